@@ -0,0 +1,168 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.collector.Collector;
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.util.Tickers;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.Environment;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
+
+// this benchmark drives Aggregator directly, so it is run without -javaagent (but with the plugin
+// api on the boot class path), and the number of producer threads is varied using the jmh -t
+// option, e.g.
+//
+// java -jar target/benchmarks.jar AggregatorBenchmark -t 64
+//     -jvmArgsAppend -Xbootclasspath/a:path/to/glowroot-agent-plugin-api.jar
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class AggregatorBenchmark {
+
+    // keep backlog well under the limit where transactions start to be dropped, so that the
+    // measured throughput is end-to-end (bounded by the aggregation processing threads)
+    private static final int MAX_PENDING = 500;
+
+    @Param({"1", "4"})
+    private int processingThreads;
+
+    private File confDir;
+    private TransactionService transactionService;
+    private TransactionRegistry transactionRegistry;
+    private TimerName timerName;
+    private Aggregator aggregator;
+
+    @Setup
+    public void setup() {
+        confDir = Files.createTempDir();
+        ConfigService configService =
+                ConfigService.create(confDir, ImmutableList.<PluginDescriptor>of());
+        transactionRegistry = new TransactionRegistry();
+        TimerNameCache timerNameCache = new TimerNameCache();
+        timerName = timerNameCache.getTimerName("benchmark");
+        transactionService = TransactionService.create(transactionRegistry, configService,
+                timerNameCache, new UserProfileScheduler(configService, new Random()),
+                Tickers.getTicker(), Clock.systemClock());
+        aggregator = new Aggregator(new NopCollector(), configService, 60000,
+                Clock.systemClock(), processingThreads);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        aggregator.close();
+        new File(confDir, "config.json").delete();
+        confDir.delete();
+    }
+
+    @Benchmark
+    public void add(ProducerState producerState) {
+        aggregator.add(producerState.nextTransaction());
+        while (aggregator.getPendingTransactionCount() >= MAX_PENDING) {
+            Thread.yield();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ProducerState {
+
+        private static final int TRANSACTION_TYPES = 8;
+        private static final int TRANSACTION_NAMES = 50;
+
+        private Transaction[] transactions;
+        private int index;
+
+        @Setup
+        public void setup(AggregatorBenchmark benchmark) {
+            List<Transaction> transactions = Lists.newArrayList();
+            for (int i = 0; i < TRANSACTION_TYPES; i++) {
+                for (int j = 0; j < TRANSACTION_NAMES; j++) {
+                    TraceEntryImpl rootEntry = benchmark.transactionService.startTransaction(
+                            "type " + i, "name " + j, MessageSupplier.create("benchmark"),
+                            benchmark.timerName,
+                            benchmark.transactionRegistry.getCurrentThreadContextHolder());
+                    rootEntry.end();
+                    transactions.add(rootEntry.getThreadContext().getTransaction());
+                }
+            }
+            this.transactions = transactions.toArray(new Transaction[transactions.size()]);
+        }
+
+        private Transaction nextTransaction() {
+            Transaction transaction = transactions[index++];
+            if (index == transactions.length) {
+                index = 0;
+            }
+            return transaction;
+        }
+    }
+
+    private static class NopCollector implements Collector {
+
+        @Override
+        public void init(File confDir, File sharedConfDir, Environment environment,
+                AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
+
+        @Override
+        public void collectAggregates(AggregateReader aggregateReader) throws Exception {
+            aggregateReader.accept(new AggregateVisitor() {
+                @Override
+                public void visitOverallAggregate(String transactionType,
+                        List<String> sharedQueryTexts, Aggregate overallAggregate) {}
+                @Override
+                public void visitTransactionAggregate(String transactionType,
+                        String transactionName, List<String> sharedQueryTexts,
+                        Aggregate transactionAggregate) {}
+            });
+        }
+
+        @Override
+        public void collectGaugeValues(List<GaugeValue> gaugeValues) {}
+
+        @Override
+        public void collectTrace(TraceReader traceReader) {}
+
+        @Override
+        public void collectTraces(List<TraceReader> traceReaders) {}
+
+        @Override
+        public void log(LogEvent logEvent) {}
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.CompactProfile;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// compares merging many profiles (as is done during rollups and when displaying the profile for a
+// time range) into MutableProfile vs CompactProfile
+//
+// this benchmark does not need the agent, e.g.
+//
+// java -jar target/benchmarks.jar ProfileMergeBenchmark -prof gc
+//
+// the retained heap of the merged profiles is measured outside of jmh, e.g.
+//
+// java -cp target/benchmarks.jar org.glowroot.microbenchmarks.ProfileMergeBenchmark
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class ProfileMergeBenchmark {
+
+    @Param({"1000"})
+    private int profileCount;
+
+    // number of distinct frames that the stack traces are built from
+    @Param({"2000"})
+    private int distinctFrameCount;
+
+    private List<Profile> profiles;
+    private List<ByteBuffer> serializedProfiles;
+
+    // keeps the profile being measured reachable until after the measurement
+    private static Object measuredProfile;
+
+    public static void main(String[] args) throws Exception {
+        final ProfileMergeBenchmark benchmark = new ProfileMergeBenchmark();
+        benchmark.profileCount = 1000;
+        benchmark.distinctFrameCount = 2000;
+        benchmark.setup();
+        long mutableProfileBytes = measureRetainedBytes(new ProfileFactory() {
+            @Override
+            public Object create() throws Exception {
+                return benchmark.mergeIntoMutableProfile();
+            }
+        });
+        long compactProfileBytes = measureRetainedBytes(new ProfileFactory() {
+            @Override
+            public Object create() throws Exception {
+                return benchmark.mergeIntoCompactProfile();
+            }
+        });
+        System.out.println("retained heap, MutableProfile: " + mutableProfileBytes / 1024 + " KB");
+        System.out.println("retained heap, CompactProfile: " + compactProfileBytes / 1024 + " KB");
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        StackTraceElement[] frames = new StackTraceElement[distinctFrameCount];
+        for (int i = 0; i < distinctFrameCount; i++) {
+            frames[i] = new StackTraceElement("org.example.pkg" + i % 50 + ".Class" + i % 400,
+                    "method" + i, "Class" + i % 400 + ".java", i);
+        }
+        // stack traces share a common set of prefixes (e.g. the request handling frames) and
+        // diverge towards the leaf
+        StackTraceElement[][] prefixes = new StackTraceElement[20][];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = randomFrames(frames, 30, random);
+        }
+        profiles = Lists.newArrayList();
+        serializedProfiles = Lists.newArrayList();
+        for (int i = 0; i < profileCount; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 50; j++) {
+                StackTraceElement[] prefix = prefixes[random.nextInt(prefixes.length)];
+                StackTraceElement[] suffix = randomFrames(frames, 10, random);
+                List<StackTraceElement> stackTrace = Lists.newArrayList();
+                // leaf first
+                for (StackTraceElement frame : suffix) {
+                    stackTrace.add(frame);
+                }
+                for (StackTraceElement frame : prefix) {
+                    stackTrace.add(frame);
+                }
+                profile.merge(stackTrace, Thread.State.RUNNABLE);
+            }
+            Profile proto = profile.toProto();
+            profiles.add(proto);
+            serializedProfiles.add(ByteBuffer.wrap(proto.toByteArray()));
+        }
+    }
+
+    @Benchmark
+    public MutableProfile mergeIntoMutableProfile() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public CompactProfile mergeIntoCompactProfile() {
+        CompactProfile profile = new CompactProfile();
+        for (Profile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile;
+    }
+
+    // this is the central collector rollup path prior to CompactProfile
+    @Benchmark
+    public MutableProfile parseAndMergeIntoMutableProfile() throws Exception {
+        MutableProfile profile = new MutableProfile();
+        for (ByteBuffer serializedProfile : serializedProfiles) {
+            profile.merge(Profile.parseFrom(serializedProfile.duplicate()));
+        }
+        return profile;
+    }
+
+    @Benchmark
+    public CompactProfile streamingMergeIntoCompactProfile() throws Exception {
+        CompactProfile profile = new CompactProfile();
+        for (ByteBuffer serializedProfile : serializedProfiles) {
+            profile.merge(serializedProfile);
+        }
+        return profile;
+    }
+
+    private static StackTraceElement[] randomFrames(StackTraceElement[] frames, int count,
+            Random random) {
+        StackTraceElement[] randomFrames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            randomFrames[i] = frames[random.nextInt(frames.length)];
+        }
+        return randomFrames;
+    }
+
+    private static long measureRetainedBytes(ProfileFactory profileFactory) throws Exception {
+        long before = getUsedHeapBytesAfterGc();
+        measuredProfile = profileFactory.create();
+        long after = getUsedHeapBytesAfterGc();
+        measuredProfile = null;
+        return after - before;
+    }
+
+    private static long getUsedHeapBytesAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private interface ProfileFactory {
+        Object create() throws Exception;
+    }
+}
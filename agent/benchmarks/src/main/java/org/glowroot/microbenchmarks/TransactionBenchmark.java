@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2018 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,11 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.collect.Lists;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
@@ -25,6 +28,7 @@ import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
 
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
@@ -36,11 +40,38 @@ public class TransactionBenchmark {
     @Param
     private PointcutType pointcutType;
 
+    // number of transactions that are kept in-flight (on other threads) during the benchmark, in
+    // order to measure the cost of adding and removing transactions from the transaction registry
+    // (and of the stack trace collector iterating over it) when there are many active transactions
+    @Param({"0", "1000"})
+    private int inFlightTransactions;
+
     private TransactionWorthy transactionWorthy;
 
+    private CountDownLatch inFlightLatch;
+    private List<Thread> inFlightThreads;
+
     @Setup
-    public void setup() {
+    public void setup() throws InterruptedException {
         transactionWorthy = new TransactionWorthy();
+        inFlightLatch = new CountDownLatch(1);
+        inFlightThreads = Lists.newArrayList();
+        CountDownLatch startedLatch = new CountDownLatch(inFlightTransactions);
+        for (int i = 0; i < inFlightTransactions; i++) {
+            Thread thread = new Thread(new InFlightTransaction(startedLatch, inFlightLatch));
+            thread.setDaemon(true);
+            thread.start();
+            inFlightThreads.add(thread);
+        }
+        startedLatch.await();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        inFlightLatch.countDown();
+        for (Thread thread : inFlightThreads) {
+            thread.join();
+        }
     }
 
     @Benchmark
@@ -54,4 +85,30 @@ public class TransactionBenchmark {
                 break;
         }
     }
+
+    private static class InFlightTransaction extends TransactionWorthy implements Runnable {
+
+        private final CountDownLatch startedLatch;
+        private final CountDownLatch completeLatch;
+
+        private InFlightTransaction(CountDownLatch startedLatch, CountDownLatch completeLatch) {
+            this.startedLatch = startedLatch;
+            this.completeLatch = completeLatch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                doSomethingTransactionWorthy();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void doSomethingTransactionWorthy() throws Exception {
+            startedLatch.countDown();
+            completeLatch.await();
+        }
+    }
 }
@@ -15,10 +15,13 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
@@ -26,19 +29,45 @@ import java.util.jar.JarFile;
 
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableInstrumentationConfig;
+import org.glowroot.agent.config.InstrumentationConfig;
+import org.glowroot.agent.config.PluginDescriptor;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.weaving.AdviceCache;
+import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingClassFileTransformer;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
+// execute() is run with -javaagent and measures class loading with the bundled plugins
+//
+// weave() drives the weaver directly with a varying number of synthetic advisors, so it is run
+// without -javaagent (but with the plugin api on the boot class path), e.g.
+//
+// java -jar target/benchmarks.jar WeavingBenchmark.weave
+//     -jvmArgsAppend -Xbootclasspath/a:path/to/glowroot-agent-plugin-api.jar
 @BenchmarkMode(Mode.SingleShotTime)
 @Warmup(iterations = 0)
 @Measurement(iterations = 1)
@@ -89,8 +118,95 @@ public class WeavingBenchmark {
         }
     }
 
+    @Benchmark
+    public void weave(WeaverState weaverState) {
+        ClassLoader loader = WeavingBenchmark.class.getClassLoader();
+        for (Map.Entry<String, byte[]> entry : weaverState.classBytes.entrySet()) {
+            weaverState.transformer.transform(loader, entry.getKey(), null, null,
+                    entry.getValue());
+        }
+    }
+
     private static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
     }
+
+    @State(Scope.Thread)
+    public static class WeaverState {
+
+        @Param({"10", "100", "1000"})
+        private int advisorCount;
+
+        private File tmpDir;
+        private Map<String, byte[]> classBytes;
+        private WeavingClassFileTransformer transformer;
+
+        @Setup
+        public void setup(WeavingBenchmark benchmark) throws Exception {
+            tmpDir = Files.createTempDir();
+            ClassLoader loader = WeavingBenchmark.class.getClassLoader();
+            // read class bytes up front so that only the weaving itself is measured
+            classBytes = Maps.newHashMap();
+            for (String className : benchmark.classNames) {
+                String internalName = className.replace('.', '/');
+                InputStream in = loader.getResourceAsStream(internalName + ".class");
+                try {
+                    classBytes.put(internalName, ByteStreams.toByteArray(in));
+                } finally {
+                    in.close();
+                }
+            }
+            // with null instrumentation, the generated advice classes are defined in the context
+            // class loader
+            AdviceCache adviceCache = new AdviceCache(ImmutableList.<PluginDescriptor>of(),
+                    createInstrumentationConfigs(advisorCount), null, tmpDir);
+            AnalyzedWorld analyzedWorld = new AnalyzedWorld(adviceCache.getAdviceIndexSupplier(),
+                    adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+            ConfigService configService =
+                    ConfigService.create(tmpDir, ImmutableList.<PluginDescriptor>of());
+            Weaver weaver = new Weaver(adviceCache.getAdviceIndexSupplier(),
+                    adviceCache.getShimTypes(), adviceCache.getMixinTypes(), analyzedWorld,
+                    new TransactionRegistry(), Ticker.systemTicker(), new TimerNameCache(),
+                    configService, null);
+            transformer = new WeavingClassFileTransformer(weaver, null);
+        }
+
+        @TearDown
+        public void tearDown() {
+            new File(tmpDir, "config.json").delete();
+            tmpDir.delete();
+        }
+
+        // the synthetic advisors do not match any of the woven classes, so this measures the
+        // per-class cost of finding matching advisors (mostly exact class names, similar to
+        // the bundled plugins, plus some package wildcards)
+        private static List<InstrumentationConfig> createInstrumentationConfigs(int count) {
+            List<InstrumentationConfig> configs = Lists.newArrayList();
+            for (int i = 0; i < count; i++) {
+                String className;
+                if (i % 10 == 0) {
+                    className = "org.springframework.synthetic" + i + ".*";
+                } else {
+                    className = "org.springframework.synthetic.Synthetic" + i;
+                }
+                configs.add(ImmutableInstrumentationConfig.builder()
+                        .className(className)
+                        .methodName("execute")
+                        .addMethodParameterTypes("..")
+                        .methodReturnType("")
+                        .captureKind(AgentConfig.InstrumentationConfig.CaptureKind.TIMER)
+                        .timerName("synthetic")
+                        .traceEntryMessageTemplate("")
+                        .traceEntryCaptureSelfNested(false)
+                        .transactionType("")
+                        .transactionNameTemplate("")
+                        .transactionUserTemplate("")
+                        .enabledProperty("")
+                        .traceEntryEnabledProperty("")
+                        .build());
+            }
+            return configs;
+        }
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// dictionary encoding for a single aggregate stream, see dictionary_entry in CollectorService.proto
+//
+// transaction types, timer names, query types and service call types/texts are repeated across
+// many of the aggregates in a single stream, so each distinct string is only sent once per stream,
+// and is then referenced by index
+//
+// the dictionary is scoped to a single stream (as opposed to the agent connection) so that each
+// stream remains self contained, which is needed for spooling and retrying streams, and for
+// central collector clusters where consecutive streams may be received by different nodes
+//
+// transaction names are intentionally not dictionary encoded, since each transaction name occurs
+// only once per transaction type in a given stream (one aggregate per transaction name), so
+// encoding them would only add a dictionary entry message per name without ever referencing it
+// twice
+//
+// public (only) so that central can round trip test its decoding against this encoding
+public class AggregateDictionary {
+
+    private final Map<String, Integer> indexes = Maps.newHashMap();
+    private final List<String> newEntries = Lists.newArrayList();
+
+    public int getIndex(String value) {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            index = indexes.size();
+            indexes.put(value, index);
+            newEntries.add(value);
+        }
+        return index;
+    }
+
+    // returns the entries that have been added since the last call, these need to be sent prior
+    // to the message that references them
+    public List<String> drainNewEntries() {
+        if (newEntries.isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<String> entries = ImmutableList.copyOf(newEntries);
+        newEntries.clear();
+        return entries;
+    }
+
+    public Aggregate encode(Aggregate aggregate) {
+        Aggregate.Builder builder = aggregate.toBuilder();
+        encodeTimers(builder.getMainThreadRootTimerBuilderList());
+        encodeTimers(builder.getAuxThreadRootTimerBuilderList());
+        encodeTimers(builder.getAsyncTimerBuilderList());
+        for (Aggregate.Query.Builder query : builder.getQueryBuilderList()) {
+            query.setTypeIndex(getIndex(query.getType()))
+                    .clearType();
+        }
+        for (Aggregate.ServiceCall.Builder serviceCall : builder.getServiceCallBuilderList()) {
+            serviceCall.setTypeIndex(getIndex(serviceCall.getType()))
+                    .clearType()
+                    .setTextIndex(getIndex(serviceCall.getText()))
+                    .clearText();
+        }
+        return builder.build();
+    }
+
+    private void encodeTimers(List<Aggregate.Timer.Builder> timers) {
+        for (Aggregate.Timer.Builder timer : timers) {
+            timer.setNameIndex(getIndex(timer.getName()))
+                    .clearName();
+            encodeTimers(timer.getChildTimerBuilderList());
+        }
+    }
+}
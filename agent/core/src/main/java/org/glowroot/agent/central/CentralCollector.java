@@ -25,6 +25,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
+import com.google.protobuf.InvalidProtocolBufferException;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -32,6 +33,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcCall;
+import org.glowroot.agent.central.CentralSpool.SendCallback;
+import org.glowroot.agent.central.CentralSpool.Sender;
+import org.glowroot.agent.central.CentralSpool.SpoolableStream;
+import org.glowroot.agent.central.CentralSpool.SpooledStream;
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.live.LiveJvmServiceImpl;
@@ -79,15 +84,20 @@ public class CentralCollector implements Collector {
     private final DownstreamServiceObserver downstreamServiceObserver;
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
+    private final GaugeNameDictionary gaugeNameDictionary = new GaugeNameDictionary();
+
+    private final @Nullable CentralSpool centralSpool;
 
     private volatile @MonotonicNonNull Environment environment;
     private volatile int nextAggregateDelayMillis;
+    // dictionary encoding is only used once the central collector has confirmed that it supports it
+    private volatile boolean dictionaryEncoding;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
             @Nullable String collectorAuthority, File confDir, @Nullable File sharedConfDir,
-            LiveJvmServiceImpl liveJvmService, LiveWeavingServiceImpl liveWeavingService,
-            LiveTraceRepositoryImpl liveTraceRepository, AgentConfigUpdater agentConfigUpdater,
-            ConfigService configService) throws Exception {
+            File tmpDir, LiveJvmServiceImpl liveJvmService,
+            LiveWeavingServiceImpl liveWeavingService, LiveTraceRepositoryImpl liveTraceRepository,
+            AgentConfigUpdater agentConfigUpdater, ConfigService configService) throws Exception {
 
         String agentId = properties.get("glowroot.agent.id");
         if (Strings.isNullOrEmpty(agentId)) {
@@ -115,6 +125,7 @@ public class CentralCollector implements Collector {
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 agentConfigUpdater, liveJvmService, liveWeavingService, liveTraceRepository,
                 agentId, inConnectionFailure, sharedQueryTextLimiter);
+        centralSpool = CentralSpool.create(tmpDir, new SpoolSender());
     }
 
     @Override
@@ -137,6 +148,7 @@ public class CentralCollector implements Collector {
                 // startup logger info messages are never sent to the central collector
                 startupLogger.info("connected to the central collector {}, version {}",
                         collectorAddress, response.getGlowrootCentralVersion());
+                dictionaryEncoding = response.getDictionaryEncodingSupported();
                 if (response.hasAgentConfig()) {
                     try {
                         agentConfigUpdater.update(response.getAgentConfig());
@@ -158,9 +170,20 @@ public class CentralCollector implements Collector {
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) {
-        final GaugeValueMessage gaugeValueMessage = GaugeValueMessage.newBuilder()
+        collectGaugeValues(gaugeValues, false);
+    }
+
+    private void collectGaugeValues(final List<GaugeValue> gaugeValues,
+            final boolean resendingGaugeNames) {
+        GaugeValueMessage.Builder builder;
+        if (dictionaryEncoding) {
+            builder = gaugeNameDictionary.encode(gaugeValues);
+        } else {
+            builder = GaugeValueMessage.newBuilder()
+                    .addAllGaugeValues(gaugeValues);
+        }
+        final GaugeValueMessage gaugeValueMessage = builder
                 .setAgentId(agentId)
-                .addAllGaugeValues(gaugeValues)
                 .setPostV09(true)
                 .build();
         centralConnection.callWithAFewRetries(new GrpcCall<GaugeValueResponseMessage>() {
@@ -170,6 +193,16 @@ public class CentralCollector implements Collector {
             }
             @Override
             public void doWithResponse(GaugeValueResponseMessage response) {
+                if (response.getResendGaugeNames()) {
+                    // the gauge values were not stored
+                    gaugeNameDictionary.reset();
+                    if (!resendingGaugeNames) {
+                        // only once, to avoid looping
+                        collectGaugeValues(gaugeValues, true);
+                    }
+                    return;
+                }
+                gaugeNameDictionary.onSent(gaugeValueMessage.getGaugeNameEntryList());
                 if (response.getResendInit() && environment != null) {
                     final InitMessage initMessage = InitMessage.newBuilder()
                             .setAgentId(agentId)
@@ -199,6 +232,15 @@ public class CentralCollector implements Collector {
         }
     }
 
+    @Override
+    public void collectTraces(List<TraceReader> traceReaders) {
+        // the trace stream protocol carries a single trace per stream, but sending the batch from
+        // one place still keeps the streams for a flush back-to-back
+        for (TraceReader traceReader : traceReaders) {
+            collectTrace(traceReader);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         if (centralConnection.suppressLogCollector()) {
@@ -224,6 +266,9 @@ public class CentralCollector implements Collector {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         downstreamServiceObserver.close();
+        if (centralSpool != null) {
+            centralSpool.close();
+        }
         centralConnection.close();
     }
 
@@ -249,10 +294,12 @@ public class CentralCollector implements Collector {
         return agentRollupId.replaceAll(" */ *", "::").trim() + "::";
     }
 
-    private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage> {
+    private class CollectAggregatesGrpcCall extends GrpcCall<AggregateResponseMessage>
+            implements SpoolableStream<AggregateStreamMessage> {
 
         private final AggregateReader aggregateReader;
         private final List<String> fullTextSha1s = Lists.newArrayList();
+        private final boolean dictionaryEncoded = dictionaryEncoding;
 
         private CollectAggregatesGrpcCall(AggregateReader aggregateReader) {
             this.aggregateReader = aggregateReader;
@@ -260,13 +307,21 @@ public class CentralCollector implements Collector {
 
         @Override
         public void call(StreamObserver<AggregateResponseMessage> responseObserver) {
-            final StreamObserver<AggregateStreamMessage> requestObserver =
+            StreamObserver<AggregateStreamMessage> requestObserver =
                     collectorServiceStub.collectAggregateStream(responseObserver);
+            if (writeTo(requestObserver)) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        @Override
+        public boolean writeTo(StreamObserver<AggregateStreamMessage> requestObserver) {
             requestObserver.onNext(AggregateStreamMessage.newBuilder()
                     .setStreamHeader(AggregateStreamHeader.newBuilder()
                             .setAgentId(agentId)
                             .setCaptureTime(aggregateReader.captureTime())
-                            .setPostV09(true))
+                            .setPostV09(true)
+                            .setDictionaryEncoded(dictionaryEncoded))
                     .build());
             // need to clear in case this is a retry
             fullTextSha1s.clear();
@@ -275,9 +330,14 @@ public class CentralCollector implements Collector {
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
-                return;
+                return false;
             }
-            requestObserver.onCompleted();
+            return true;
+        }
+
+        @Override
+        boolean spool() {
+            return centralSpool != null && centralSpool.spool(CentralSpool.AGGREGATE_STREAM, this);
         }
 
         @Override
@@ -292,9 +352,12 @@ public class CentralCollector implements Collector {
         private class AggregateVisitorImpl implements AggregateVisitor {
 
             private final StreamObserver<AggregateStreamMessage> requestObserver;
+            // new dictionary for each stream (including retries), see AggregateDictionary
+            private final @Nullable AggregateDictionary dictionary;
 
             private AggregateVisitorImpl(StreamObserver<AggregateStreamMessage> requestObserver) {
                 this.requestObserver = requestObserver;
+                dictionary = dictionaryEncoded ? new AggregateDictionary() : null;
             }
 
             @Override
@@ -307,10 +370,17 @@ public class CentralCollector implements Collector {
                             .setSharedQueryText(aggregateSharedQueryText)
                             .build());
                 }
+                OverallAggregate.Builder builder = OverallAggregate.newBuilder();
+                if (dictionary == null) {
+                    builder.setTransactionType(transactionType)
+                            .setAggregate(overallAggregate);
+                } else {
+                    builder.setTransactionTypeIndex(dictionary.getIndex(transactionType))
+                            .setAggregate(dictionary.encode(overallAggregate));
+                    sendNewDictionaryEntries(dictionary);
+                }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setOverallAggregate(OverallAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setAggregate(overallAggregate))
+                        .setOverallAggregate(builder)
                         .build());
             }
 
@@ -324,17 +394,33 @@ public class CentralCollector implements Collector {
                                     .buildAggregateSharedQueryText(sharedQueryText, fullTextSha1s))
                             .build());
                 }
+                TransactionAggregate.Builder builder = TransactionAggregate.newBuilder()
+                        .setTransactionName(transactionName);
+                if (dictionary == null) {
+                    builder.setTransactionType(transactionType)
+                            .setAggregate(transactionAggregate);
+                } else {
+                    builder.setTransactionTypeIndex(dictionary.getIndex(transactionType))
+                            .setAggregate(dictionary.encode(transactionAggregate));
+                    sendNewDictionaryEntries(dictionary);
+                }
                 requestObserver.onNext(AggregateStreamMessage.newBuilder()
-                        .setTransactionAggregate(TransactionAggregate.newBuilder()
-                                .setTransactionType(transactionType)
-                                .setTransactionName(transactionName)
-                                .setAggregate(transactionAggregate))
+                        .setTransactionAggregate(builder)
                         .build());
             }
+
+            private void sendNewDictionaryEntries(AggregateDictionary dictionary) {
+                for (String dictionaryEntry : dictionary.drainNewEntries()) {
+                    requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                            .setDictionaryEntry(dictionaryEntry)
+                            .build());
+                }
+            }
         }
     }
 
-    private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
+    private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage>
+            implements SpoolableStream<TraceStreamMessage> {
 
         private final TraceReader traceReader;
 
@@ -348,6 +434,13 @@ public class CentralCollector implements Collector {
         public void call(StreamObserver<EmptyMessage> responseObserver) {
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
+            if (writeTo(requestObserver)) {
+                requestObserver.onCompleted();
+            }
+        }
+
+        @Override
+        public boolean writeTo(StreamObserver<TraceStreamMessage> requestObserver) {
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamHeader(TraceStreamHeader.newBuilder()
                             .setAgentId(agentId)
@@ -363,14 +456,21 @@ public class CentralCollector implements Collector {
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 requestObserver.onError(t);
-                return;
+                return false;
             }
             requestObserver.onNext(TraceStreamMessage.newBuilder()
                     .setStreamCounts(TraceStreamCounts.newBuilder()
                             .setEntryCount(traceVisitor.entryCount)
                             .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount))
                     .build());
-            requestObserver.onCompleted();
+            return true;
+        }
+
+        @Override
+        boolean spool() {
+            // partial traces are not spooled since they are live and will be superseded anyways
+            return !traceReader.partial() && centralSpool != null
+                    && centralSpool.spool(CentralSpool.TRACE_STREAM, this);
         }
 
         @Override
@@ -381,6 +481,95 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private class SpoolSender implements Sender {
+
+        @Override
+        public boolean isReadyToSend() {
+            return centralConnection.isReadyToSendSpooledData();
+        }
+
+        @Override
+        public void send(SpooledStream spooledStream, final SendCallback callback) {
+            try {
+                switch (spooledStream.streamType()) {
+                    case CentralSpool.AGGREGATE_STREAM:
+                        sendAggregateStream(spooledStream, callback);
+                        break;
+                    case CentralSpool.TRACE_STREAM:
+                        sendTraceStream(spooledStream, callback);
+                        break;
+                    default:
+                        logger.error("unexpected spooled stream type: {}",
+                                spooledStream.streamType());
+                        // skip it
+                        callback.onSuccess();
+                }
+            } catch (InvalidProtocolBufferException e) {
+                logger.error(e.getMessage(), e);
+                // skip it
+                callback.onSuccess();
+            }
+        }
+
+        private void sendAggregateStream(SpooledStream spooledStream,
+                final SendCallback callback) throws InvalidProtocolBufferException {
+            final List<AggregateStreamMessage> messages = Lists.newArrayList();
+            for (byte[] bytes : spooledStream.messages()) {
+                messages.add(AggregateStreamMessage.parseFrom(bytes));
+            }
+            centralConnection.callOnce(new GrpcCall<AggregateResponseMessage>() {
+                @Override
+                void call(StreamObserver<AggregateResponseMessage> responseObserver) {
+                    StreamObserver<AggregateStreamMessage> requestObserver =
+                            collectorServiceStub.collectAggregateStream(responseObserver);
+                    for (AggregateStreamMessage message : messages) {
+                        requestObserver.onNext(message);
+                    }
+                    requestObserver.onCompleted();
+                }
+                @Override
+                void doWithResponse(AggregateResponseMessage response) {
+                    callback.onSuccess();
+                }
+                @Override
+                boolean spool() {
+                    // already spooled
+                    callback.onFailure();
+                    return true;
+                }
+            });
+        }
+
+        private void sendTraceStream(SpooledStream spooledStream, final SendCallback callback)
+                throws InvalidProtocolBufferException {
+            final List<TraceStreamMessage> messages = Lists.newArrayList();
+            for (byte[] bytes : spooledStream.messages()) {
+                messages.add(TraceStreamMessage.parseFrom(bytes));
+            }
+            centralConnection.callOnce(new GrpcCall<EmptyMessage>() {
+                @Override
+                void call(StreamObserver<EmptyMessage> responseObserver) {
+                    StreamObserver<TraceStreamMessage> requestObserver =
+                            collectorServiceStub.collectTraceStream(responseObserver);
+                    for (TraceStreamMessage message : messages) {
+                        requestObserver.onNext(message);
+                    }
+                    requestObserver.onCompleted();
+                }
+                @Override
+                void doWithResponse(EmptyMessage response) {
+                    callback.onSuccess();
+                }
+                @Override
+                boolean spool() {
+                    // already spooled
+                    callback.onFailure();
+                    return true;
+                }
+            });
+        }
+    }
+
     private class TraceVisitorImpl implements TraceVisitor {
 
         private final StreamObserver<TraceStreamMessage> requestObserver;
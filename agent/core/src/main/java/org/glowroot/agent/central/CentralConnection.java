@@ -176,6 +176,7 @@ class CentralConnection {
             return;
         }
         if (inConnectionFailure.get()) {
+            call.spool();
             return;
         }
         boolean logWarningAndDoNotSend = false;
@@ -187,6 +188,9 @@ class CentralConnection {
             }
         }
         if (logWarningAndDoNotSend) {
+            if (call.spool()) {
+                return;
+            }
             // it is important not to perform logging under the above synchronized lock in order to
             // eliminate possibility of deadlock
             suppressLogCollector(new Runnable() {
@@ -233,6 +237,17 @@ class CentralConnection {
         call.call(new RetryingStreamObserver<T>(call, 15, -1, true));
     }
 
+    // spooled data is only sent once there is plenty of room under the pending request limit, so
+    // that it does not compete with sending of current data
+    boolean isReadyToSendSpooledData() {
+        if (closed || !initCallSucceeded || inConnectionFailure.get()) {
+            return false;
+        }
+        synchronized (discardingDataLogger) {
+            return pendingRequestCount < PENDING_LIMIT / 2;
+        }
+    }
+
     void suppressLogCollector(Runnable runnable) {
         boolean priorValue = suppressLogCollector.get();
         suppressLogCollector.set(true);
@@ -344,6 +359,11 @@ class CentralConnection {
     abstract static class GrpcCall<T extends /*@NonNull*/ Object> {
         abstract void call(StreamObserver<T> responseObserver);
         void doWithResponse(@SuppressWarnings("unused") T response) {}
+        // called when the call is not going to be sent (or retried), returns true if the call was
+        // spooled so that it can be sent later
+        boolean spool() {
+            return false;
+        }
     }
 
     private class RetryingStreamObserver<T extends /*@NonNull*/ Object>
@@ -389,6 +409,9 @@ class CentralConnection {
             }
             if (inConnectionFailure.get()) {
                 decrementPendingRequestCount();
+                if (!init) {
+                    grpcCall.spool();
+                }
                 return;
             }
             suppressLogCollector(new Runnable() {
@@ -398,6 +421,10 @@ class CentralConnection {
                 }
             });
             if (!init && stopwatch.elapsed(SECONDS) > maxTotalInSeconds) {
+                decrementPendingRequestCount();
+                if (grpcCall.spool()) {
+                    return;
+                }
                 if (initCallSucceeded) {
                     suppressLogCollector(new Runnable() {
                         @Override
@@ -409,7 +436,6 @@ class CentralConnection {
                         }
                     });
                 }
-                decrementPendingRequestCount();
                 return;
             }
 
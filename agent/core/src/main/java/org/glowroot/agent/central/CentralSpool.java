@@ -0,0 +1,414 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.protobuf.MessageLite;
+import io.grpc.stub.StreamObserver;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.util.RateLimitedLogger;
+import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.OnlyUsedByTests;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// bounded on-disk spool for streams that could not be sent to the central collector (e.g. during a
+// central collector outage), the spooled streams are sent in order once the connection recovers
+//
+// spooled streams are stored as records in append-only segment files:
+//
+// record length (int), stream type (int), message count (int), then for each message:
+// message length (int), message bytes
+//
+// all reads and writes are performed on the single spool thread
+class CentralSpool {
+
+    private static final Logger logger = LoggerFactory.getLogger(CentralSpool.class);
+
+    static final int AGGREGATE_STREAM = 1;
+    static final int TRACE_STREAM = 2;
+
+    // spool is disabled by default
+    private static final long MAX_SIZE_MB = Long.getLong("glowroot.central.spool.maxSizeMb", 0);
+
+    private static final int DRAIN_RATE_PER_SECOND =
+            Integer.getInteger("glowroot.central.spool.drainRatePerSecond", 10);
+
+    private static final long SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private final File dir;
+    private final long maxSizeBytes;
+    private final long segmentSizeBytes;
+    private final Sender sender;
+
+    private final ScheduledExecutorService executor;
+    private final RateLimiter drainRateLimiter;
+    private final long drainRetryDelayMillis;
+
+    private final RateLimitedLogger spoolFullLogger = new RateLimitedLogger(CentralSpool.class);
+
+    // the remaining fields are only accessed by the spool thread
+
+    // ordered from oldest to newest, the newest segment is the one being appended to
+    private final Deque<File> segments = Lists.newLinkedList();
+    private long nextSegmentNum;
+    private long totalSizeBytes;
+    // read offset into the oldest segment
+    private long readOffset;
+
+    private boolean drainInProgress;
+    private boolean drainRetryScheduled;
+
+    static @Nullable CentralSpool create(File tmpDir, Sender sender) throws IOException {
+        if (MAX_SIZE_MB <= 0) {
+            return null;
+        }
+        CentralSpool centralSpool = new CentralSpool(new File(tmpDir, "central-spool"),
+                MAX_SIZE_MB * 1024 * 1024, SEGMENT_SIZE_BYTES, DRAIN_RATE_PER_SECOND, sender);
+        centralSpool.start();
+        return centralSpool;
+    }
+
+    CentralSpool(File dir, long maxSizeBytes, long segmentSizeBytes, double drainRatePerSecond,
+            Sender sender) throws IOException {
+        this.dir = dir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.sender = sender;
+        executor = Executors.newSingleThreadScheduledExecutor(
+                ThreadFactories.create("Glowroot-Central-Spool"));
+        drainRateLimiter = RateLimiter.create(drainRatePerSecond);
+        drainRetryDelayMillis = Math.max(1, (long) Math.ceil(1000 / drainRatePerSecond));
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        // resume from segments left over from prior run (the partially sent oldest segment will be
+        // sent again from its beginning, which is ok since the collector calls are idempotent)
+        List<Long> segmentNums = Lists.newArrayList();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Long segmentNum = getSegmentNum(file.getName());
+                if (segmentNum != null) {
+                    segmentNums.add(segmentNum);
+                }
+            }
+        }
+        Collections.sort(segmentNums);
+        for (Long segmentNum : segmentNums) {
+            File segment = getSegmentFile(segmentNum);
+            segments.add(segment);
+            totalSizeBytes += segment.length();
+            nextSegmentNum = segmentNum + 1;
+        }
+    }
+
+    // returns false if the stream was not spooled
+    <T extends MessageLite> boolean spool(final int streamType, final SpoolableStream<T> stream) {
+        if (executor.isShutdown()) {
+            return false;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CollectingStreamObserver<T> streamObserver =
+                            new CollectingStreamObserver<T>();
+                    if (stream.writeTo(streamObserver)) {
+                        append(streamType, streamObserver.messages);
+                    }
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        });
+        return true;
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainNext();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, 1, 1, SECONDS);
+    }
+
+    // must be called on spool thread (except by tests)
+    void append(int streamType, List<? extends MessageLite> messages) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(streamType);
+        out.writeInt(messages.size());
+        for (MessageLite message : messages) {
+            byte[] bytes = message.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        byte[] record = baos.toByteArray();
+        long recordSizeBytes = 4 + record.length;
+        if (totalSizeBytes + recordSizeBytes > maxSizeBytes) {
+            spoolFullLogger.warn("not spooling data for the central collector because the spool"
+                    + " size limit ({} bytes) has been reached", maxSizeBytes);
+            return;
+        }
+        File segment = segments.peekLast();
+        if (segment == null || segment.length() + recordSizeBytes > segmentSizeBytes) {
+            segment = getSegmentFile(nextSegmentNum++);
+            segments.add(segment);
+        }
+        DataOutputStream segmentOut = new DataOutputStream(new FileOutputStream(segment, true));
+        try {
+            segmentOut.writeInt(record.length);
+            segmentOut.write(record);
+        } finally {
+            segmentOut.close();
+        }
+        totalSizeBytes += recordSizeBytes;
+    }
+
+    // must be called on spool thread (except by tests)
+    @Nullable
+    SpooledStream peek() throws IOException {
+        while (true) {
+            File segment = segments.peekFirst();
+            if (segment == null) {
+                return null;
+            }
+            SpooledStream spooledStream = read(segment, readOffset);
+            if (spooledStream != null) {
+                return spooledStream;
+            }
+            if (segments.size() == 1) {
+                // nothing more to read until the next append
+                return null;
+            }
+            // remainder of segment is empty or truncated (e.g. from jvm crash during append)
+            removeOldestSegment();
+        }
+    }
+
+    // must be called on spool thread (except by tests)
+    void remove(SpooledStream spooledStream) throws IOException {
+        File segment = segments.peekFirst();
+        if (segment == null || readOffset != spooledStream.offset()) {
+            // already removed
+            return;
+        }
+        readOffset += spooledStream.sizeBytes();
+        if (readOffset >= segment.length()) {
+            removeOldestSegment();
+        }
+    }
+
+    // must be called on spool thread (except by tests)
+    long getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    private void drainNext() throws IOException {
+        if (drainInProgress || !sender.isReadyToSend()) {
+            return;
+        }
+        final SpooledStream spooledStream = peek();
+        if (spooledStream == null) {
+            return;
+        }
+        if (!drainRateLimiter.tryAcquire()) {
+            // not blocking here since the spool thread is also used for appending
+            scheduleDrainRetry();
+            return;
+        }
+        drainInProgress = true;
+        sender.send(spooledStream, new SendCallback() {
+            @Override
+            public void onSuccess() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drainInProgress = false;
+                        try {
+                            remove(spooledStream);
+                            drainNext();
+                        } catch (Throwable t) {
+                            logger.error(t.getMessage(), t);
+                        }
+                    }
+                });
+            }
+            @Override
+            public void onFailure() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // will retry from the same position on the next scheduled drain
+                        drainInProgress = false;
+                    }
+                });
+            }
+        });
+    }
+
+    private void scheduleDrainRetry() {
+        if (drainRetryScheduled) {
+            return;
+        }
+        drainRetryScheduled = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                drainRetryScheduled = false;
+                try {
+                    drainNext();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                }
+            }
+        }, drainRetryDelayMillis, MILLISECONDS);
+    }
+
+    private void removeOldestSegment() throws IOException {
+        File segment = segments.removeFirst();
+        totalSizeBytes -= segment.length();
+        readOffset = 0;
+        if (!segment.delete()) {
+            throw new IOException("Could not delete file: " + segment.getAbsolutePath());
+        }
+    }
+
+    private File getSegmentFile(long segmentNum) {
+        return new File(dir, SEGMENT_PREFIX + segmentNum + SEGMENT_SUFFIX);
+    }
+
+    private static @Nullable SpooledStream read(File segment, long offset) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(segment, "r");
+        try {
+            long remaining = in.length() - offset;
+            if (remaining < 4) {
+                return null;
+            }
+            in.seek(offset);
+            int recordLength = in.readInt();
+            if (recordLength > remaining - 4) {
+                return null;
+            }
+            byte[] record = new byte[recordLength];
+            in.readFully(record);
+            DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+            int streamType = recordIn.readInt();
+            int messageCount = recordIn.readInt();
+            ImmutableList.Builder<byte[]> messages = ImmutableList.builder();
+            for (int i = 0; i < messageCount; i++) {
+                byte[] message = new byte[recordIn.readInt()];
+                recordIn.readFully(message);
+                messages.add(message);
+            }
+            return ImmutableSpooledStream.builder()
+                    .offset(offset)
+                    .sizeBytes(4 + recordLength)
+                    .streamType(streamType)
+                    .messages(messages.build())
+                    .build();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static @Nullable Long getSegmentNum(String fileName) {
+        if (!fileName.startsWith(SEGMENT_PREFIX) || !fileName.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        return Longs.tryParse(fileName.substring(SEGMENT_PREFIX.length(),
+                fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    @Value.Immutable
+    interface SpooledStream {
+        long offset();
+        long sizeBytes();
+        int streamType();
+        List<byte[]> messages();
+    }
+
+    interface SpoolableStream<T extends MessageLite> {
+        // returns false if the stream could not be written
+        boolean writeTo(StreamObserver<T> streamObserver);
+    }
+
+    interface Sender {
+        boolean isReadyToSend();
+        void send(SpooledStream spooledStream, SendCallback callback);
+    }
+
+    interface SendCallback {
+        void onSuccess();
+        void onFailure();
+    }
+
+    private static class CollectingStreamObserver<T extends MessageLite>
+            implements StreamObserver<T> {
+
+        private final List<T> messages = Lists.newArrayList();
+
+        @Override
+        public void onNext(T value) {
+            messages.add(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onCompleted() {}
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeNameEntry;
+
+// dictionary encoding for gauge names, see gauge_name_entry in CollectorService.proto
+//
+// the same gauge names are sent every few seconds, so (unlike AggregateDictionary) each gauge name
+// is assigned a stable id for the life of the agent, and the name is only sent until the central
+// collector has successfully received it
+//
+// public (only) so that central can round trip test its decoding against this encoding
+public class GaugeNameDictionary {
+
+    private final Map<String, Integer> ids = Maps.newHashMap();
+
+    // ids of gauge names that the central collector has successfully received
+    private final Set<Integer> sentIds = Sets.newHashSet();
+
+    public synchronized GaugeValueMessage.Builder encode(List<GaugeValue> gaugeValues) {
+        GaugeValueMessage.Builder builder = GaugeValueMessage.newBuilder()
+                .setDictionaryEncoded(true);
+        Set<Integer> newIds = Sets.newHashSet();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            String gaugeName = gaugeValue.getGaugeName();
+            Integer id = ids.get(gaugeName);
+            if (id == null) {
+                id = ids.size();
+                ids.put(gaugeName, id);
+            }
+            if (!sentIds.contains(id) && newIds.add(id)) {
+                builder.addGaugeNameEntry(GaugeNameEntry.newBuilder()
+                        .setId(id)
+                        .setName(gaugeName));
+            }
+            builder.addGaugeValues(gaugeValue.toBuilder()
+                    .clearGaugeName()
+                    .setGaugeNameId(id));
+        }
+        return builder;
+    }
+
+    public synchronized void onSent(List<GaugeNameEntry> gaugeNameEntries) {
+        for (GaugeNameEntry gaugeNameEntry : gaugeNameEntries) {
+            sentIds.add(gaugeNameEntry.getId());
+        }
+    }
+
+    // the central collector no longer has the gauge names (e.g. it was restarted, or this is a
+    // different node in a central collector cluster)
+    public synchronized void reset() {
+        sentIds.clear();
+    }
+}
@@ -41,6 +41,10 @@ public interface Collector {
 
     void collectTrace(TraceReader traceReader) throws Exception;
 
+    // trace readers passed to this method are already materialized, so they can be read more than
+    // once and reading them does not block on the underlying transactions
+    void collectTraces(List<TraceReader> traceReaders) throws Exception;
+
     void log(LogEvent logEvent) throws Exception;
 
     interface AgentConfigUpdater {
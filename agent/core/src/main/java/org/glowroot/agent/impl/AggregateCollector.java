@@ -100,6 +100,41 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // used to merge the aggregate collectors of the same transaction type (and transaction name)
+    // across aggregate processing shards
+    void mergeFrom(AggregateCollector collector) {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.mergeFrom(collector.mainThreadRootTimers);
+        auxThreadRootTimers.mergeFrom(collector.auxThreadRootTimers);
+        asyncTimers.mergeFrom(collector.asyncTimers);
+        mainThreadStats.mergeFrom(collector.mainThreadStats);
+        auxThreadStats.mergeFrom(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            collector.queries.mergeQueriesInto(getQueryCollector());
+        }
+        if (collector.serviceCalls != null) {
+            collector.serviceCalls.mergeServiceCallsInto(getServiceCallCollector());
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -267,6 +302,25 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void mergeFrom(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer matchingRootTimer = null;
+                for (MutableAggregateTimer rootTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                        matchingRootTimer = rootTimer;
+                        break;
+                    }
+                }
+                if (matchingRootTimer == null) {
+                    matchingRootTimer = MutableAggregateTimer.createRootTimer(
+                            toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(matchingRootTimer);
+                }
+                matchingRootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -310,6 +364,16 @@ class AggregateCollector {
                     threadStats.getTotalAllocatedBytes());
         }
 
+        private void mergeFrom(ThreadStatsCollectorImpl collector) {
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+        }
+
         public Aggregate.ThreadStats toProto() {
             return Aggregate.ThreadStats.newBuilder()
                     .setTotalCpuNanos(totalCpuNanos)
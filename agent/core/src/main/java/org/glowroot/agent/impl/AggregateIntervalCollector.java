@@ -18,11 +18,14 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.annotation.concurrent.GuardedBy;
-
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.collector.Collector;
@@ -55,187 +58,195 @@ public class AggregateIntervalCollector {
     private final int maxServiceCallAggregates;
     private final Clock clock;
 
-    @GuardedBy("lock")
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newHashMap();
-
-    private final Object lock = new Object();
+    // one shard per aggregate processing thread (see Aggregator), transactions are sharded by
+    // transaction type and transaction name, so each transaction aggregate lives in a single shard
+    // (other than the limit exceeded bucket), while the overall aggregate for a transaction type
+    // is split across the shards and is merged when it is read
+    //
+    // each type collector is guarded by its own lock (instead of a single collector-wide lock), and
+    // each shard is only added to by a single processing thread, so the processing threads do not
+    // contend with each other
+    private final List<ConcurrentMap<String, IntervalTypeCollector>> shards;
+
+    // number of transaction aggregates per transaction type across all shards, used to enforce
+    // maxTransactionAggregates
+    private final ConcurrentMap<String, AtomicInteger> transactionAggregateCounts =
+            Maps.newConcurrentMap();
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
             int maxTransactionAggregates, int maxQueryAggregates, int maxServiceCallAggregates,
-            Clock clock) {
+            Clock clock, int shardCount) {
         captureTime = CaptureTimes.getRollup(currentTime, aggregateIntervalMillis);
         this.maxTransactionAggregates = maxTransactionAggregates;
         this.maxQueryAggregates = maxQueryAggregates;
         this.maxServiceCallAggregates = maxServiceCallAggregates;
         this.clock = clock;
+        shards = Lists.newArrayListWithCapacity(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(Maps.<String, IntervalTypeCollector>newConcurrentMap());
+        }
+    }
+
+    static int getShardIndex(String transactionType, String transactionName, int shardCount) {
+        int hash = 31 * transactionType.hashCode() + transactionName.hashCode();
+        return (hash & Integer.MAX_VALUE) % shardCount;
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector =
-                    getTypeCollector(transaction.getTransactionType());
+    // must only be called by the processing thread that owns the shard
+    void add(Transaction transaction, int shardIndex) {
+        IntervalTypeCollector typeCollector =
+                getTypeCollector(shards.get(shardIndex), transaction.getTransactionType());
+        synchronized (typeCollector) {
             typeCollector.add(transaction);
         }
     }
 
     public void mergeOverallSummaryInto(OverallSummaryCollector collector, String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            synchronized (typeCollector) {
+                typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallSummaryInto(collector);
         }
     }
 
     public void mergeTransactionSummariesInto(TransactionSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionSummariesInto(collector);
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            synchronized (typeCollector) {
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionSummariesInto(collector);
+                }
             }
         }
     }
 
     public void mergeOverallErrorSummaryInto(OverallErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            synchronized (typeCollector) {
+                typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
             }
-            typeCollector.overallAggregateCollector.mergeOverallErrorSummaryInto(collector);
         }
     }
 
     public void mergeTransactionErrorSummariesInto(TransactionErrorSummaryCollector collector,
             String transactionType) {
-        synchronized (lock) {
-            IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
-            if (typeCollector == null) {
-                return;
-            }
-            for (AggregateCollector aggregateCollector : typeCollector.transactionAggregateCollectors
-                    .values()) {
-                aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            synchronized (typeCollector) {
+                for (AggregateCollector aggregateCollector : typeCollector
+                        .transactionAggregateCollectors.values()) {
+                    aggregateCollector.mergeTransactionErrorSummariesInto(collector);
+                }
             }
         }
     }
 
     public @Nullable OverviewAggregate getOverviewAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        return read(transactionType, transactionName, new CollectorReader<OverviewAggregate>() {
+            @Override
+            public OverviewAggregate read(AggregateCollector aggregateCollector) {
+                long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+                return aggregateCollector.getOverviewAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getOverviewAggregate(liveCaptureTime);
-        }
+        });
     }
 
     public @Nullable PercentileAggregate getPercentileAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        return read(transactionType, transactionName, new CollectorReader<PercentileAggregate>() {
+            @Override
+            public PercentileAggregate read(AggregateCollector aggregateCollector) {
+                long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+                return aggregateCollector.getPercentileAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getPercentileAggregate(liveCaptureTime);
-        }
+        });
     }
 
     public @Nullable ThroughputAggregate getThroughputAggregate(String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return null;
+        return read(transactionType, transactionName, new CollectorReader<ThroughputAggregate>() {
+            @Override
+            public ThroughputAggregate read(AggregateCollector aggregateCollector) {
+                long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
+                return aggregateCollector.getThroughputAggregate(liveCaptureTime);
             }
-            long liveCaptureTime = Math.min(captureTime, clock.currentTimeMillis());
-            return aggregateCollector.getThroughputAggregate(liveCaptureTime);
-        }
+        });
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        synchronized (lock) {
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
             for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
-                String fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                String fullQueryText;
+                synchronized (typeCollector) {
+                    fullQueryText = typeCollector.getFullQueryText(fullQueryTextSha1);
+                }
                 if (fullQueryText != null) {
                     return fullQueryText;
                 }
             }
-            return null;
         }
+        return null;
     }
 
-    public void mergeQueriesInto(QueryCollector collector, String transactionType,
+    public void mergeQueriesInto(final QueryCollector collector, String transactionType,
             @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+        read(transactionType, transactionName, new CollectorReader<Void>() {
+            @Override
+            public @Nullable Void read(AggregateCollector aggregateCollector) {
+                aggregateCollector.mergeQueriesInto(collector);
+                return null;
             }
-            aggregateCollector.mergeQueriesInto(collector);
-        }
+        });
     }
 
-    public void mergeServiceCallsInto(ServiceCallCollector collector, String transactionType,
-            @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+    public void mergeServiceCallsInto(final ServiceCallCollector collector,
+            String transactionType, @Nullable String transactionName) {
+        read(transactionType, transactionName, new CollectorReader<Void>() {
+            @Override
+            public @Nullable Void read(AggregateCollector aggregateCollector) {
+                aggregateCollector.mergeServiceCallsInto(collector);
+                return null;
             }
-            aggregateCollector.mergeServiceCallsInto(collector);
-        }
+        });
     }
 
-    public void mergeMainThreadProfilesInto(ProfileCollector collector, String transactionType,
-            @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+    public void mergeMainThreadProfilesInto(final ProfileCollector collector,
+            String transactionType, @Nullable String transactionName) {
+        read(transactionType, transactionName, new CollectorReader<Void>() {
+            @Override
+            public @Nullable Void read(AggregateCollector aggregateCollector) {
+                aggregateCollector.mergeMainThreadProfilesInto(collector);
+                return null;
             }
-            aggregateCollector.mergeMainThreadProfilesInto(collector);
-        }
+        });
     }
 
-    public void mergeAuxThreadProfilesInto(ProfileCollector collector, String transactionType,
-            @Nullable String transactionName) {
-        synchronized (lock) {
-            AggregateCollector aggregateCollector =
-                    getAggregateCollector(transactionType, transactionName);
-            if (aggregateCollector == null) {
-                return;
+    public void mergeAuxThreadProfilesInto(final ProfileCollector collector,
+            String transactionType, @Nullable String transactionName) {
+        read(transactionType, transactionName, new CollectorReader<Void>() {
+            @Override
+            public @Nullable Void read(AggregateCollector aggregateCollector) {
+                aggregateCollector.mergeAuxThreadProfilesInto(collector);
+                return null;
             }
-            aggregateCollector.mergeAuxThreadProfilesInto(collector);
-        }
+        });
     }
 
-    // TODO report checker framework issue that occurs without this suppression
-    @SuppressWarnings("return.type.incompatible")
     Set<String> getTransactionTypes() {
-        synchronized (lock) {
-            return typeCollectors.keySet();
+        if (shards.size() == 1) {
+            return ImmutableSet.copyOf(shards.get(0).keySet());
+        }
+        Set<String> transactionTypes = Sets.newHashSet();
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            transactionTypes.addAll(typeCollectors.keySet());
         }
+        return transactionTypes;
     }
 
     void flush(Collector collector) throws Exception {
@@ -243,43 +254,130 @@ public class AggregateIntervalCollector {
     }
 
     void clear() {
-        synchronized (lock) {
-            typeCollectors.clear();
+        // the type collectors are cleared (instead of removed) under the same lock that add() uses,
+        // so that a transaction that is concurrently being added is either cleared or retained, but
+        // is not added to a type collector that has already been discarded
+        for (ConcurrentMap<String, IntervalTypeCollector> typeCollectors : shards) {
+            for (IntervalTypeCollector typeCollector : typeCollectors.values()) {
+                synchronized (typeCollector) {
+                    typeCollector.clear();
+                }
+            }
+        }
+    }
+
+    // reads the (merged) aggregate collector for the transaction type and transaction name, or
+    // for the overall aggregate when transaction name is null
+    @Nullable
+    private <T> T read(String transactionType, @Nullable String transactionName,
+            CollectorReader<T> reader) {
+        List<IntervalTypeCollector> typeCollectors;
+        if (transactionName == null || transactionName.equals(LIMIT_EXCEEDED_BUCKET)) {
+            typeCollectors = getTypeCollectors(transactionType);
+        } else {
+            IntervalTypeCollector typeCollector = shards.get(getShardIndex(transactionType,
+                    transactionName, shards.size())).get(transactionType);
+            typeCollectors = typeCollector == null ? ImmutableList.<IntervalTypeCollector>of()
+                    : ImmutableList.of(typeCollector);
+        }
+        if (typeCollectors.isEmpty()) {
+            return null;
         }
+        if (typeCollectors.size() == 1) {
+            IntervalTypeCollector typeCollector = typeCollectors.get(0);
+            synchronized (typeCollector) {
+                AggregateCollector aggregateCollector = typeCollector.get(transactionName);
+                if (aggregateCollector == null) {
+                    return null;
+                }
+                return reader.read(aggregateCollector);
+            }
+        }
+        AggregateCollector mergedAggregateCollector = null;
+        for (IntervalTypeCollector typeCollector : typeCollectors) {
+            synchronized (typeCollector) {
+                AggregateCollector aggregateCollector = typeCollector.get(transactionName);
+                if (aggregateCollector == null) {
+                    continue;
+                }
+                if (mergedAggregateCollector == null) {
+                    mergedAggregateCollector = new AggregateCollector(transactionName,
+                            maxQueryAggregates, maxServiceCallAggregates);
+                }
+                mergedAggregateCollector.mergeFrom(aggregateCollector);
+            }
+        }
+        if (mergedAggregateCollector == null) {
+            return null;
+        }
+        return reader.read(mergedAggregateCollector);
     }
 
-    @GuardedBy("lock")
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
+    private List<IntervalTypeCollector> getTypeCollectors(String transactionType) {
+        List<IntervalTypeCollector> typeCollectors = Lists.newArrayList();
+        for (ConcurrentMap<String, IntervalTypeCollector> shard : shards) {
+            IntervalTypeCollector typeCollector = shard.get(transactionType);
+            if (typeCollector != null) {
+                typeCollectors.add(typeCollector);
+            }
+        }
+        return typeCollectors;
+    }
+
+    private Set<String> getTransactionNames(String transactionType) {
+        Set<String> transactionNames = Sets.newLinkedHashSet();
+        for (IntervalTypeCollector typeCollector : getTypeCollectors(transactionType)) {
+            synchronized (typeCollector) {
+                transactionNames.addAll(typeCollector.transactionAggregateCollectors.keySet());
+            }
+        }
+        return transactionNames;
+    }
+
+    private IntervalTypeCollector getTypeCollector(
+            ConcurrentMap<String, IntervalTypeCollector> typeCollectors, String transactionType) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
-            typeCollector = new IntervalTypeCollector();
-            typeCollectors.put(transactionType, typeCollector);
+            typeCollector =
+                    new IntervalTypeCollector(getTransactionAggregateCount(transactionType));
+            IntervalTypeCollector existing =
+                    typeCollectors.putIfAbsent(transactionType, typeCollector);
+            if (existing != null) {
+                typeCollector = existing;
+            }
         }
         return typeCollector;
     }
 
-    @GuardedBy("lock")
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
-        }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+    private AtomicInteger getTransactionAggregateCount(String transactionType) {
+        AtomicInteger transactionAggregateCount = transactionAggregateCounts.get(transactionType);
+        if (transactionAggregateCount == null) {
+            transactionAggregateCount = new AtomicInteger();
+            AtomicInteger existing = transactionAggregateCounts.putIfAbsent(transactionType,
+                    transactionAggregateCount);
+            if (existing != null) {
+                transactionAggregateCount = existing;
+            }
         }
+        return transactionAggregateCount;
+    }
+
+    private interface CollectorReader<T> {
+        @Nullable
+        T read(AggregateCollector aggregateCollector);
     }
 
     private class IntervalTypeCollector {
 
-        private final AggregateCollector overallAggregateCollector;
+        // shared by the type collectors of all shards for the same transaction type
+        private final AtomicInteger transactionAggregateCount;
+
+        private AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
                 Maps.newConcurrentMap();
 
-        private IntervalTypeCollector() {
+        private IntervalTypeCollector(AtomicInteger transactionAggregateCount) {
+            this.transactionAggregateCount = transactionAggregateCount;
             overallAggregateCollector =
                     new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
         }
@@ -289,10 +387,11 @@ public class AggregateIntervalCollector {
             AggregateCollector transactionAggregateCollector =
                     transactionAggregateCollectors.get(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                if (transactionAggregateCollectors.size() < maxTransactionAggregates) {
+                if (transactionAggregateCount.incrementAndGet() <= maxTransactionAggregates) {
                     transactionAggregateCollector =
                             createTransactionAggregateCollector(transaction.getTransactionName());
                 } else {
+                    transactionAggregateCount.decrementAndGet();
                     transactionAggregateCollector =
                             transactionAggregateCollectors.get(LIMIT_EXCEEDED_BUCKET);
                     if (transactionAggregateCollector == null) {
@@ -304,6 +403,25 @@ public class AggregateIntervalCollector {
             merge(transaction, transactionAggregateCollector);
         }
 
+        private @Nullable AggregateCollector get(@Nullable String transactionName) {
+            if (transactionName == null) {
+                return overallAggregateCollector;
+            } else {
+                return transactionAggregateCollectors.get(transactionName);
+            }
+        }
+
+        private void clear() {
+            overallAggregateCollector =
+                    new AggregateCollector(null, maxQueryAggregates, maxServiceCallAggregates);
+            int count = transactionAggregateCollectors.size();
+            if (transactionAggregateCollectors.containsKey(LIMIT_EXCEEDED_BUCKET)) {
+                count--;
+            }
+            transactionAggregateCollectors.clear();
+            transactionAggregateCount.addAndGet(-count);
+        }
+
         private AggregateCollector createTransactionAggregateCollector(String transactionName) {
             AggregateCollector transactionAggregateCollector = new AggregateCollector(
                     transactionName, maxQueryAggregates, maxServiceCallAggregates);
@@ -359,26 +477,32 @@ public class AggregateIntervalCollector {
 
         @Override
         public void accept(AggregateVisitor aggregateVisitor) throws Exception {
-            synchronized (lock) {
-                SharedQueryTextCollectionImpl sharedQueryTextCollector =
-                        new SharedQueryTextCollectionImpl();
-                ScratchBuffer scratchBuffer = new ScratchBuffer();
-                for (Map.Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
-                    String transactionType = e.getKey();
-                    IntervalTypeCollector intervalTypeCollector = e.getValue();
-                    Aggregate overallAggregate = intervalTypeCollector.overallAggregateCollector
-                            .build(sharedQueryTextCollector, scratchBuffer);
-                    aggregateVisitor.visitOverallAggregate(transactionType,
-                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                            overallAggregate);
-                    for (Map.Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                            .entrySet()) {
-                        Aggregate transactionAggregate =
-                                f.getValue().build(sharedQueryTextCollector, scratchBuffer);
-                        aggregateVisitor.visitTransactionAggregate(transactionType, f.getKey(),
-                                sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
-                                transactionAggregate);
+            final SharedQueryTextCollectionImpl sharedQueryTextCollector =
+                    new SharedQueryTextCollectionImpl();
+            final ScratchBuffer scratchBuffer = new ScratchBuffer();
+            CollectorReader<Aggregate> builder = new CollectorReader<Aggregate>() {
+                @Override
+                public Aggregate read(AggregateCollector aggregateCollector) {
+                    return aggregateCollector.build(sharedQueryTextCollector, scratchBuffer);
+                }
+            };
+            for (String transactionType : getTransactionTypes()) {
+                Aggregate overallAggregate = read(transactionType, null, builder);
+                if (overallAggregate == null) {
+                    continue;
+                }
+                aggregateVisitor.visitOverallAggregate(transactionType,
+                        sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                        overallAggregate);
+                for (String transactionName : getTransactionNames(transactionType)) {
+                    Aggregate transactionAggregate =
+                            read(transactionType, transactionName, builder);
+                    if (transactionAggregate == null) {
+                        continue;
                     }
+                    aggregateVisitor.visitTransactionAggregate(transactionType, transactionName,
+                            sharedQueryTextCollector.getAndClearLastestSharedQueryTexts(),
+                            transactionAggregate);
                 }
             }
         }
@@ -19,8 +19,8 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-
-import javax.annotation.concurrent.GuardedBy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -33,6 +33,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
+import org.glowroot.common.util.CaptureTimes;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 
@@ -44,15 +45,28 @@ public class Aggregator {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
 
-    // back pressure on transaction collection
+    // back pressure on transaction collection (per processing thread)
     private static final int TRANSACTION_PENDING_LIMIT = 1000;
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // transactions are sharded across processing threads by transaction type and transaction name,
+    // and the per-shard overall aggregates are merged when the interval is read/flushed (see
+    // AggregateIntervalCollector)
+    private static final int PROCESSING_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.aggregate.processing.threads", 1));
+
+    // ordered by capture time, the first one is the oldest interval that has not been flushed yet
+    // (there can be more than one when some processing threads have moved on to the next interval
+    // while others are still catching up on the prior interval)
+    private final List<AggregateIntervalCollector> activeIntervalCollectors =
+            Lists.newCopyOnWriteArrayList();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
+    // only held while adding/flushing interval collectors, never on the transaction path
+    private final Object intervalLock = new Object();
+
     private final ExecutorService processingExecutor;
     private final ExecutorService flushingExecutor;
     private final Collector collector;
@@ -61,14 +75,7 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    // all structural changes to the transaction queue are made under queueLock for simplicity
-    // TODO implement lock free structure
-    private final PendingTransaction head = new PendingTransaction(null);
-    // tail is non-volatile since only accessed under lock
-    private PendingTransaction tail = head;
-    private final Object queueLock = new Object();
-    @GuardedBy("queueLock")
-    private int queueLength;
+    private final TransactionQueue[] transactionQueues;
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
@@ -76,26 +83,38 @@ public class Aggregator {
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, PROCESSING_THREADS);
+    }
+
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, int processingThreads) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        if (processingThreads == 1) {
+            processingExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Aggregate-Processing"));
+        } else {
+            processingExecutor = Executors.newFixedThreadPool(processingThreads,
+                    ThreadFactories.create("Glowroot-Aggregate-Processing-%d"));
+        }
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        long currentTime = clock.currentTimeMillis();
+        transactionQueues = new TransactionQueue[processingThreads];
+        for (int i = 0; i < processingThreads; i++) {
+            transactionQueues[i] = new TransactionQueue(currentTime);
+        }
+        activeIntervalCollectors.add(createIntervalCollector(currentTime));
+        for (int i = 0; i < processingThreads; i++) {
+            processingExecutor.execute(new TransactionProcessor(transactionQueues[i], i));
+        }
     }
 
     public Set<String> getTransactionTypes() {
         Set<String> transactionTypes = Sets.newHashSet();
-        transactionTypes.addAll(activeIntervalCollector.getTransactionTypes());
-        for (AggregateIntervalCollector intervalCollector : pendingIntervalCollectors) {
+        for (AggregateIntervalCollector intervalCollector : getOrderedAllIntervalCollectors()) {
             transactionTypes.addAll(intervalCollector.getTransactionTypes());
         }
         return transactionTypes;
@@ -115,46 +134,125 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+            intervalCollector.clear();
+        }
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        PendingTransaction newTail = new PendingTransaction(transaction);
-        long captureTime;
-        synchronized (queueLock) {
-            captureTime = clock.currentTimeMillis();
-            if (queueLength >= TRANSACTION_PENDING_LIMIT) {
-                backPressureLogger.warn("not aggregating a transaction because of an excessive"
-                        + " backlog of {} transactions already waiting to be aggregated",
-                        TRANSACTION_PENDING_LIMIT);
-                transaction.removeFromActiveTransactions();
-            } else {
-                newTail.captureTime = captureTime;
-                tail.next = newTail;
-                tail = newTail;
-                queueLength++;
-            }
+        TransactionQueue transactionQueue;
+        if (transactionQueues.length == 1) {
+            transactionQueue = transactionQueues[0];
+        } else {
+            transactionQueue = transactionQueues[AggregateIntervalCollector.getShardIndex(
+                    transaction.getTransactionType(), transaction.getTransactionName(),
+                    transactionQueues.length)];
+        }
+        return transactionQueue.add(transaction);
+    }
+
+    int getPendingTransactionCount() {
+        int count = 0;
+        for (TransactionQueue transactionQueue : transactionQueues) {
+            count += transactionQueue.queueLength.get();
         }
-        return captureTime;
+        return count;
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
         // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        // (flushing adds to pending before removing from active)
+        List<AggregateIntervalCollector> activeIntervalCollectors =
+                ImmutableList.copyOf(this.activeIntervalCollectors);
+        if (pendingIntervalCollectors.isEmpty()) {
+            // common case
+            return activeIntervalCollectors;
+        }
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
-        if (intervalCollectors.isEmpty()) {
-            // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+            if (!intervalCollectors.contains(intervalCollector)) {
+                intervalCollectors.add(intervalCollector);
+            }
+        }
+        return intervalCollectors;
+    }
+
+    private AggregateIntervalCollector getOrCreateIntervalCollector(long captureTime) {
+        long intervalCaptureTime = CaptureTimes.getRollup(captureTime, aggregateIntervalMillis);
+        synchronized (intervalLock) {
+            int index = 0;
+            for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+                if (intervalCollector.getCaptureTime() == intervalCaptureTime) {
+                    return intervalCollector;
+                }
+                if (intervalCollector.getCaptureTime() > intervalCaptureTime) {
+                    break;
+                }
+                index++;
+            }
+            AggregateIntervalCollector intervalCollector = createIntervalCollector(captureTime);
+            activeIntervalCollectors.add(index, intervalCollector);
+            return intervalCollector;
+        }
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long captureTime) {
+        return new AggregateIntervalCollector(captureTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxTransactionAggregates(),
+                configService.getAdvancedConfig().maxQueryAggregates(),
+                configService.getAdvancedConfig().maxServiceCallAggregates(), clock,
+                transactionQueues.length);
+    }
+
+    private boolean isPastOldestActiveInterval(long captureTime) {
+        // activeIntervalCollectors can only be empty after a flush at the very end of an interval,
+        // in which case there is nothing to flush
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors) {
+            return captureTime > intervalCollector.getCaptureTime();
         }
+        return false;
+    }
+
+    private void flushCompletedIntervalCollectors() {
+        synchronized (intervalLock) {
+            long watermark = Long.MAX_VALUE;
+            for (TransactionQueue transactionQueue : transactionQueues) {
+                watermark = Math.min(watermark, transactionQueue.watermark);
+            }
+            while (!activeIntervalCollectors.isEmpty()) {
+                AggregateIntervalCollector intervalCollector = activeIntervalCollectors.get(0);
+                if (intervalCollector.getCaptureTime() >= watermark) {
+                    break;
+                }
+                // safe to flush, every processing thread has moved past the end of this interval,
+                // and no pending transactions can enter the queues with an earlier capture time
+                flushIntervalCollector(intervalCollector);
+                activeIntervalCollectors.remove(0);
+            }
+        }
+    }
+
+    private void flushIntervalCollector(final AggregateIntervalCollector intervalCollector) {
+        if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            return;
+        }
+        pendingIntervalCollectors.add(intervalCollector);
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    intervalCollector.flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.remove(intervalCollector);
+                }
+            }
+        });
     }
 
     @OnlyUsedByTests
@@ -170,8 +268,64 @@ public class Aggregator {
         }
     }
 
+    // multi-producer single-consumer linked queue, producers swap in the new tail with a single
+    // atomic operation and then link the prior tail to it, so there is no lock on the transaction
+    // path
+    private class TransactionQueue {
+
+        // head is only accessed by the single consumer
+        private PendingTransaction head = new PendingTransaction(null);
+        private final AtomicReference<PendingTransaction> tail =
+                new AtomicReference<PendingTransaction>(head);
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        // no transaction with an earlier capture time will be aggregated by this queue's consumer
+        // (only written by the consumer)
+        private volatile long watermark;
+
+        private TransactionQueue(long currentTime) {
+            watermark = currentTime;
+        }
+
+        private long add(Transaction transaction) {
+            if (queueLength.incrementAndGet() > TRANSACTION_PENDING_LIMIT) {
+                queueLength.decrementAndGet();
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                return clock.currentTimeMillis();
+            }
+            PendingTransaction newTail = new PendingTransaction(transaction);
+            // read before swapping in the new tail, so every transaction that enters the queue
+            // after this one has a capture time that is not earlier than this (see processOne())
+            newTail.minFollowingCaptureTime = clock.currentTimeMillis();
+            PendingTransaction priorTail = tail.getAndSet(newTail);
+            // capture time is read after swapping in the new tail so that once the consumer has
+            // observed an empty queue, no transaction can enter the queue with a capture time that
+            // is prior to the time the consumer read just before observing the empty queue (this is
+            // what makes it safe for the consumer to flush the active interval)
+            long captureTime = clock.currentTimeMillis();
+            newTail.captureTime = captureTime;
+            // volatile write publishes the new tail (including its capture time) to the consumer
+            priorTail.next = newTail;
+            return captureTime;
+        }
+    }
+
     private class TransactionProcessor implements Runnable {
 
+        private final TransactionQueue queue;
+        private final int shardIndex;
+
+        // only accessed by this processing thread
+        private @Nullable AggregateIntervalCollector intervalCollector;
+
+        private TransactionProcessor(TransactionQueue queue, int shardIndex) {
+            this.queue = queue;
+            this.shardIndex = shardIndex;
+        }
+
         @Override
         public void run() {
             while (!closed) {
@@ -185,10 +339,20 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
-            PendingTransaction pendingTransaction = head.next;
+            PendingTransaction pendingTransaction = queue.head.next;
             if (pendingTransaction == null) {
-                if (clock.currentTimeMillis() > activeIntervalCollector.getCaptureTime()) {
-                    maybeEndOfInterval();
+                long currentTime = clock.currentTimeMillis();
+                if (queue.tail.get() != queue.head) {
+                    // a producer has swapped in a new tail but has not linked it yet, it will be
+                    // picked up right away
+                    Thread.yield();
+                    return;
+                }
+                // queue was observed empty after reading current time, so no new transactions can
+                // enter the queue with an earlier capture time
+                queue.watermark = Math.max(queue.watermark, currentTime);
+                if (isPastOldestActiveInterval(currentTime)) {
+                    flushCompletedIntervalCollectors();
                 } else {
                     // TODO benchmark other alternatives to sleep (e.g. wait/notify)
                     MILLISECONDS.sleep(1);
@@ -201,79 +365,39 @@ public class Aggregator {
             Transaction transaction = checkNotNull(pendingTransaction.transaction);
             transaction.removeFromActiveTransactions();
 
-            // remove head
-            synchronized (queueLock) {
-                PendingTransaction next = pendingTransaction.next;
-                head.next = next;
-                if (next == null) {
-                    tail = head;
-                }
-                queueLength--;
-            }
-            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
-            }
-            activeIntervalCollector.add(transaction);
-        }
+            // remove head (the consumed node becomes the new head)
+            pendingTransaction.transaction = null;
+            queue.head = pendingTransaction;
+            queue.queueLength.decrementAndGet();
 
-        private void maybeEndOfInterval() {
-            long currentTime;
-            boolean safeToFlush;
-            synchronized (queueLock) {
-                if (head.next != null) {
-                    // something just crept into the queue, possibly still something from active
-                    // interval, it will get picked up right away and if it is in next interval it
-                    // will force active aggregate to be flushed anyways
-                    return;
-                }
-                currentTime = clock.currentTimeMillis();
-                safeToFlush = currentTime > activeIntervalCollector.getCaptureTime();
+            // capture times are read by producers after entering the queue, so a producer that was
+            // descheduled in between can end up with a later capture time than the transaction
+            // behind it, which is why the watermark is only advanced to the time that was read
+            // before entering the queue (every transaction behind this one entered the queue later,
+            // and so has a capture time that is not earlier than this), and so this transaction's
+            // capture time is never earlier than the watermark and its interval cannot have been
+            // flushed yet
+            long captureTime = pendingTransaction.captureTime;
+            queue.watermark =
+                    Math.max(queue.watermark, pendingTransaction.minFollowingCaptureTime);
+            // capture times are not necessarily in order, so the cached interval collector may not
+            // be the one for this capture time
+            if (intervalCollector == null || intervalCollector.getCaptureTime() != CaptureTimes
+                    .getRollup(captureTime, aggregateIntervalMillis)) {
+                intervalCollector = getOrCreateIntervalCollector(captureTime);
             }
-            if (safeToFlush) {
-                // safe to flush, no other pending transactions can enter queue with later time
-                // (since the check above was done under same lock used to add to queue)
-                flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxTransactionAggregates(),
-                        configService.getAdvancedConfig().maxQueryAggregates(),
-                        configService.getAdvancedConfig().maxServiceCallAggregates(), clock);
+            if (isPastOldestActiveInterval(captureTime)) {
+                flushCompletedIntervalCollectors();
             }
-        }
-
-        private void flushActiveIntervalCollector() {
-            if (pendingIntervalCollectors.size() >= AGGREGATE_PENDING_LIMIT) {
-                logger.warn("not storing an aggregate because of an excessive backlog of {}"
-                        + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
-                return;
-            }
-            final AggregateIntervalCollector intervalCollector = activeIntervalCollector;
-            pendingIntervalCollectors.add(intervalCollector);
-            // flush in separate thread to avoid pending transactions from piling up quickly
-            flushingExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        intervalCollector.flush(collector);
-                    } catch (Throwable t) {
-                        logger.error(t.getMessage(), t);
-                    } finally {
-                        pendingIntervalCollectors.remove(intervalCollector);
-                    }
-                }
-            });
+            intervalCollector.add(transaction, shardIndex);
         }
     }
 
     private static class PendingTransaction {
 
-        private final @Nullable Transaction transaction; // only null for head
-        private volatile long captureTime;
+        private @Nullable Transaction transaction; // only null for head
+        private long minFollowingCaptureTime;
+        private long captureTime;
         private volatile @Nullable PendingTransaction next;
 
         private PendingTransaction(@Nullable Transaction transaction) {
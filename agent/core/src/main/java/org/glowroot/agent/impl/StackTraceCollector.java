@@ -20,7 +20,6 @@ import java.lang.management.ThreadInfo;
 import java.util.List;
 import java.util.Random;
 
-import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
@@ -37,6 +36,11 @@ public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // frames beyond this depth (counting from the top of the stack) are not captured, this caps the
+    // cost of capturing and merging pathologically deep stacks (e.g. deep recursion)
+    private static final int MAX_STACK_TRACE_DEPTH =
+            Integer.getInteger("glowroot.profiling.maxStackTraceDepth", 1024);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -90,7 +94,7 @@ public class StackTraceCollector {
         }
         @Nullable
         ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, MAX_STACK_TRACE_DEPTH);
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
             ThreadInfo threadInfo = threadInfos[i];
@@ -105,6 +109,9 @@ public class StackTraceCollector {
         private volatile int currIntervalMillis;
         private volatile boolean closed;
 
+        // only accessed by the processing thread, and re-used to avoid allocation on each run
+        private final List<ThreadContextImpl> activeThreadContexts = Lists.newArrayList();
+
         @Override
         public void run() {
             // delay for first
@@ -144,22 +151,20 @@ public class StackTraceCollector {
         }
 
         private void runInternal() {
-            List<Transaction> transactions =
-                    ImmutableList.copyOf(transactionRegistry.getTransactions());
-            if (transactions.isEmpty()) {
-                return;
-            }
-            List<ThreadContextImpl> activeThreadContexts =
-                    Lists.newArrayListWithCapacity(2 * transactions.size());
-            for (int i = 0; i < transactions.size(); i++) {
-                Transaction transaction = transactions.get(i);
+            activeThreadContexts.clear();
+            for (Transaction transaction : transactionRegistry.getTransactions()) {
                 ThreadContextImpl mainThreadContext = transaction.getMainThreadContext();
                 if (mainThreadContext.isActive()) {
                     activeThreadContexts.add(mainThreadContext);
                 }
-                activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+                transaction.addActiveAuxThreadContexts(activeThreadContexts);
+            }
+            try {
+                captureStackTraces(activeThreadContexts);
+            } finally {
+                // don't retain references to thread contexts until the next run
+                activeThreadContexts.clear();
             }
-            captureStackTraces(activeThreadContexts);
         }
     }
 }
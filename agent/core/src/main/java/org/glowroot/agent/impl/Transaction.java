@@ -575,17 +575,22 @@ public class Transaction {
     }
 
     public List<ThreadContextImpl> getActiveAuxThreadContexts() {
+        List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
+        addActiveAuxThreadContexts(activeAuxThreadContexts);
+        return activeAuxThreadContexts;
+    }
+
+    // same as getActiveAuxThreadContexts(), but without allocating a new list
+    void addActiveAuxThreadContexts(List<ThreadContextImpl> activeAuxThreadContexts) {
         synchronized (mainThreadContext) {
             if (auxThreadContexts == null) {
-                return ImmutableList.of();
+                return;
             }
-            List<ThreadContextImpl> activeAuxThreadContexts = Lists.newArrayList();
             for (ThreadContextImpl auxThreadContext : getUnmergedAuxThreadContext()) {
                 if (auxThreadContext.isActive()) {
                     activeAuxThreadContexts.add(auxThreadContext);
                 }
             }
-            return activeAuxThreadContexts;
         }
     }
 
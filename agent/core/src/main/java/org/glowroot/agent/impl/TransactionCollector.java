@@ -15,14 +15,21 @@
  */
 package org.glowroot.agent.impl;
 
+import java.sql.SQLException;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -32,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.collector.Collector.TraceReader;
+import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.TransactionConfig;
 import org.glowroot.agent.config.TransactionConfig.SlowThreshold;
@@ -40,17 +48,30 @@ import org.glowroot.agent.util.RateLimitedLogger;
 import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class TransactionCollector {
+// completed traces are stored in two stages, first the trace is created (materialized) from the
+// transaction on one of the trace creator threads, and then the created traces are passed to the
+// collector in batches on the single trace collector thread
+public class TransactionCollector implements TraceCollectorStatsMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
     // back pressure on trace collection
     private static final int PENDING_LIMIT = 100;
 
+    private static final int TRACE_CREATOR_THREADS =
+            Integer.getInteger("glowroot.traceCreator.threads", 2);
+
+    private static final int MAX_TRACE_BATCH_SIZE =
+            Integer.getInteger("glowroot.traceCollector.maxBatchSize", 10);
+
+    private final ExecutorService traceCreatorExecutor;
     private final ExecutorService dedicatedExecutor;
     private final Collector collector;
     private final Aggregator aggregator;
@@ -58,6 +79,12 @@ public class TransactionCollector {
     private final Ticker ticker;
     private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
 
+    // created traces waiting to be passed to the collector
+    private final Queue<CreatedTrace> createdTraces = new ConcurrentLinkedQueue<CreatedTrace>();
+
+    private final AtomicLong droppedTraceCount = new AtomicLong();
+    private final AtomicLong collectedTraceBatchCount = new AtomicLong();
+
     private final RateLimitedLogger backPressureLogger =
             new RateLimitedLogger(TransactionCollector.class);
 
@@ -72,6 +99,8 @@ public class TransactionCollector {
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
+        traceCreatorExecutor = Executors.newFixedThreadPool(TRACE_CREATOR_THREADS,
+                ThreadFactories.create("Glowroot-Trace-Creator-%d"));
         dedicatedExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Trace-Collector"));
         configService.addConfigListener(new UpdateSlowThresholds(configService));
@@ -115,8 +144,27 @@ public class TransactionCollector {
         return pendingTransactions;
     }
 
+    @Override
+    public int getBacklogDepth() {
+        return pendingTransactions.size();
+    }
+
+    @Override
+    public long getDroppedTraceCount() {
+        return droppedTraceCount.get();
+    }
+
+    @Override
+    public long getCollectedTraceBatchCount() {
+        return collectedTraceBatchCount.get();
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
+        traceCreatorExecutor.shutdown();
+        if (!traceCreatorExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
         dedicatedExecutor.shutdown();
         if (!dedicatedExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
@@ -135,6 +183,7 @@ public class TransactionCollector {
         // limit doesn't apply to transactions that were already (partially) stored to make sure
         // they don't get left out in case they cause an avalanche of slowness
         if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
+            droppedTraceCount.incrementAndGet();
             backPressureLogger.warn("not storing a trace because of an excessive backlog of {}"
                     + " traces already waiting to be stored", PENDING_LIMIT);
             return;
@@ -146,22 +195,58 @@ public class TransactionCollector {
 
         // transaction is ended, so Executor Plugin won't tie this async work to the transaction
         // (which is good)
-        dedicatedExecutor.execute(new Runnable() {
+        traceCreatorExecutor.execute(new Runnable() {
             @Override
             public void run() {
+                MaterializedTraceReader traceReader;
                 try {
-                    TraceReader traceReader =
-                            TraceCreator.createTraceReaderForCompleted(transaction, slow);
-                    collector.collectTrace(traceReader);
+                    traceReader = MaterializedTraceReader.create(
+                            TraceCreator.createTraceReaderForCompleted(transaction, slow));
                 } catch (Throwable t) {
                     logger.error(t.getMessage(), t);
-                } finally {
                     pendingTransactions.remove(transaction);
+                    return;
                 }
+                createdTraces.add(ImmutableCreatedTrace.of(transaction, traceReader));
+                dedicatedExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        collectCreatedTraces();
+                    }
+                });
             }
         });
     }
 
+    // created traces that are waiting while the collector is busy are passed to the collector
+    // together on the next run, so each run collects as many traces as are available (up to the
+    // max batch size), and later runs find nothing left to collect
+    private void collectCreatedTraces() {
+        List<CreatedTrace> batch = Lists.newArrayList();
+        CreatedTrace createdTrace;
+        while (batch.size() < MAX_TRACE_BATCH_SIZE
+                && (createdTrace = createdTraces.poll()) != null) {
+            batch.add(createdTrace);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<TraceReader> traceReaders = Lists.newArrayList();
+        for (CreatedTrace trace : batch) {
+            traceReaders.add(trace.traceReader());
+        }
+        try {
+            collector.collectTraces(traceReaders);
+            collectedTraceBatchCount.incrementAndGet();
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+        } finally {
+            for (CreatedTrace trace : batch) {
+                pendingTransactions.remove(trace.transaction());
+            }
+        }
+    }
+
     // no need to throttle partial trace storage since throttling is handled upstream by using a
     // single thread executor in PartialTraceStorageWatcher
     public void storePartialTrace(Transaction transaction) {
@@ -217,6 +302,13 @@ public class TransactionCollector {
         }
     }
 
+    @Value.Immutable
+    @Value.Style(allParameters = true)
+    interface CreatedTrace {
+        Transaction transaction();
+        TraceReader traceReader();
+    }
+
     @Value.Immutable
     interface SlowThresholdsForType {
         @Nullable
@@ -238,4 +330,122 @@ public class TransactionCollector {
                     .build();
         }
     }
+
+    // captures everything visited by the underlying trace reader, so that the (expensive) reading
+    // of the transaction is performed on the trace creator thread, and so that the trace can be
+    // visited again (e.g. by the collector retrying)
+    private static class MaterializedTraceReader implements TraceReader {
+
+        private final long captureTime;
+        private final String traceId;
+        private final boolean partial;
+        private final boolean update;
+
+        private final List<Trace.Entry> entries;
+        private final List<Aggregate.Query> queries;
+        private final List<String> sharedQueryTexts;
+        private final @Nullable Profile mainThreadProfile;
+        private final @Nullable Profile auxThreadProfile;
+        private final Trace.Header header;
+
+        private static MaterializedTraceReader create(TraceReader traceReader) throws Exception {
+            CapturingTraceVisitor traceVisitor = new CapturingTraceVisitor();
+            traceReader.accept(traceVisitor);
+            Trace.Header header = traceVisitor.header;
+            if (header == null) {
+                throw new IllegalStateException("Trace header was not visited");
+            }
+            return new MaterializedTraceReader(traceReader, traceVisitor, header);
+        }
+
+        private MaterializedTraceReader(TraceReader traceReader,
+                CapturingTraceVisitor traceVisitor, Trace.Header header) {
+            captureTime = traceReader.captureTime();
+            traceId = traceReader.traceId();
+            partial = traceReader.partial();
+            update = traceReader.update();
+            entries = ImmutableList.copyOf(traceVisitor.entries);
+            queries = traceVisitor.queries;
+            sharedQueryTexts = traceVisitor.sharedQueryTexts;
+            mainThreadProfile = traceVisitor.mainThreadProfile;
+            auxThreadProfile = traceVisitor.auxThreadProfile;
+            this.header = header;
+        }
+
+        @Override
+        public long captureTime() {
+            return captureTime;
+        }
+
+        @Override
+        public String traceId() {
+            return traceId;
+        }
+
+        @Override
+        public boolean partial() {
+            return partial;
+        }
+
+        @Override
+        public boolean update() {
+            return update;
+        }
+
+        @Override
+        public void accept(TraceVisitor traceVisitor) throws Exception {
+            for (Trace.Entry entry : entries) {
+                traceVisitor.visitEntry(entry);
+            }
+            traceVisitor.visitQueries(queries);
+            traceVisitor.visitSharedQueryTexts(sharedQueryTexts);
+            if (mainThreadProfile != null) {
+                traceVisitor.visitMainThreadProfile(mainThreadProfile);
+            }
+            if (auxThreadProfile != null) {
+                traceVisitor.visitAuxThreadProfile(auxThreadProfile);
+            }
+            traceVisitor.visitHeader(header);
+        }
+    }
+
+    private static class CapturingTraceVisitor implements TraceVisitor {
+
+        private final List<Trace.Entry> entries = Lists.newArrayList();
+        private List<Aggregate.Query> queries = ImmutableList.of();
+        private List<String> sharedQueryTexts = ImmutableList.of();
+        private @Nullable Profile mainThreadProfile;
+        private @Nullable Profile auxThreadProfile;
+        private @Nullable Trace.Header header;
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            entries.add(entry);
+        }
+
+        @Override
+        public void visitQueries(List<Aggregate.Query> queries) {
+            this.queries = queries;
+        }
+
+        @Override
+        public void visitSharedQueryTexts(List<String> sharedQueryTexts) throws SQLException {
+            this.sharedQueryTexts = sharedQueryTexts;
+        }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            mainThreadProfile = profile;
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            auxThreadProfile = profile;
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            this.header = header;
+        }
+    }
 }
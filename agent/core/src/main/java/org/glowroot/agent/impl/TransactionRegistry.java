@@ -18,14 +18,16 @@ package org.glowroot.agent.impl;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.agent.bytecode.api.ThreadContextThreadLocal;
-import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
+import org.glowroot.agent.util.ConcurrentSlots;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 
 public class TransactionRegistry {
 
     // collection of active running transactions
-    private final IterableWithSelfRemovableEntries<Transaction> transactions =
-            new IterableWithSelfRemovableEntries<Transaction>();
+    //
+    // this is lock free since transactions are added and removed on application threads, and
+    // iterated over by the stack trace collector and the live trace views
+    private final ConcurrentSlots<Transaction> transactions = new ConcurrentSlots<Transaction>();
 
     // active thread context being executed by the current thread
     private final ThreadContextThreadLocal currentThreadContext =
@@ -154,7 +154,7 @@ public class UserProfileScheduler {
             if (mainThreadContext.isActive()) {
                 activeThreadContexts.add(mainThreadContext);
             }
-            activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
+            transaction.addActiveAuxThreadContexts(activeThreadContexts);
             StackTraceCollector.captureStackTraces(activeThreadContexts);
         }
     }
@@ -74,9 +74,11 @@ import org.glowroot.agent.weaving.PointcutClassFileTransformer;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
+import org.glowroot.agent.weaving.WovenClassCache;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common.util.Version;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -94,6 +96,10 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    // opt-in since the cache is written on the weaving threads during jvm startup, and since its
+    // size on disk is proportional to the number of distinct classes loaded
+    private static final boolean WOVEN_CLASS_CACHE = Boolean.getBoolean("glowroot.weaving.cache");
+
     private final Clock clock;
     private final Ticker ticker;
 
@@ -150,13 +156,19 @@ public class AgentModule {
         if (pointcutClassFileTransformer != null) {
             checkNotNull(instrumentation).removeTransformer(pointcutClassFileTransformer);
         }
-        analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
+        analyzedWorld = new AnalyzedWorld(adviceCache.getAdviceIndexSupplier(),
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         TimerNameCache timerNameCache = new TimerNameCache();
 
-        weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
+        WovenClassCache wovenClassCache = null;
+        if (WOVEN_CLASS_CACHE && instrumentation != null) {
+            wovenClassCache = new WovenClassCache(new File(tmpDir, "woven-class-cache"),
+                    Version.getVersion(AgentModule.class), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
+        weaver = new Weaver(adviceCache.getAdviceIndexSupplier(), adviceCache.getShimTypes(),
                 adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, ticker,
-                timerNameCache, configService);
+                timerNameCache, configService, wovenClassCache);
 
         // need to initialize glowroot-agent-api, glowroot-agent-plugin-api and glowroot-weaving-api
         // services before enabling instrumentation
@@ -294,8 +306,12 @@ public class AgentModule {
                         "org.glowroot:type=FileSystem,name=" + name);
             }
         }
+        lazyPlatformMBeanServer.lazyRegisterMBean(transactionCollector,
+                "org.glowroot:type=TraceCollector");
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 instrumentation, clock, ticker);
+        lazyPlatformMBeanServer.lazyRegisterMBean(gaugeCollector,
+                "org.glowroot:type=GaugeCollector");
         // using fixed rate to keep gauge collections close to on the second mark
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
@@ -101,6 +101,17 @@ public class CollectorProxy implements Collector {
         }
     }
 
+    @Override
+    public void collectTraces(List<TraceReader> traceReaders) throws Exception {
+        if (instance == null) {
+            for (TraceReader traceReader : traceReaders) {
+                collectTrace(traceReader);
+            }
+        } else {
+            instance.collectTraces(traceReaders);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) throws Exception {
         if (instance == null) {
@@ -20,27 +20,38 @@ import java.lang.reflect.Method;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
 import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.openmbean.CompositeData;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
-import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,12 +71,25 @@ import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-class GaugeCollector extends ScheduledRunnable {
+class GaugeCollector extends ScheduledRunnable implements GaugeCollectorStatsMXBean {
 
     private static final Logger logger = LoggerFactory.getLogger(GaugeCollector.class);
 
+    // gauges are collected in parallel when this is greater than 1, which is useful when there are
+    // many mbeans matching wildcard object names and/or mbeans that are slow to read
+    private static final int COLLECTION_THREADS =
+            Math.max(1, Integer.getInteger("glowroot.gauge.collection.threads", 1));
+
+    // only applies to parallel collection, gauges that are not collected within the time budget
+    // are dropped from the collection pass (and are skipped in subsequent passes until their
+    // collection completes), defaults to the gauge collection interval
+    private static final long COLLECTION_TIME_BUDGET_MILLIS =
+            Long.getLong("glowroot.gauge.collection.timeBudgetMillis", -1);
+
     private final ConfigService configService;
     private final Collector collector;
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
@@ -80,27 +104,78 @@ class GaugeCollector extends ScheduledRunnable {
     // other glowroot background work
     private final ScheduledExecutorService collectionExecutor;
     private final ExecutorService flushingExecutor;
+    // null unless collecting in parallel
+    private final @Nullable ExecutorService parallelCollectionExecutor;
+    private final long collectionTimeBudgetMillis;
+
+    // concurrent map since gauges may be collected in parallel, each gauge name is only ever
+    // updated by one collection at a time though, see inFlightGaugeConfigs
+    private final ConcurrentMap<String, RawCounterValue> priorRawCounterValues =
+            Maps.newConcurrentMap();
+
+    // gauge configs whose parallel collection has not completed yet
+    private final Set<GaugeConfig> inFlightGaugeConfigs = Sets.newConcurrentHashSet();
+
+    // object names matching wildcard object names are cached until the next mbean registration or
+    // unregistration, instead of querying the mbean server on every collection pass
+    private final ConcurrentMap<ObjectName, MatchingObjectNames> matchingObjectNamesCache =
+            Maps.newConcurrentMap();
+    private final AtomicLong mbeanRegistrationChanges = new AtomicLong();
+    private final NotificationListener mbeanRegistrationListener = new NotificationListener() {
+        @Override
+        public void handleNotification(Notification notification, @Nullable Object handback) {
+            mbeanRegistrationChanges.getAndIncrement();
+        }
+    };
+    // null until the mbean registration listener has been added
+    private volatile @Nullable MBeanServer mbeanRegistrationListenerServer;
 
-    // since gauges have their own dedicated thread, don't need to worry about thread safety of
-    // priorRawCounterValues (except can't initialize here outside of the dedicated thread)
-    private @MonotonicNonNull Map<String, RawCounterValue> priorRawCounterValues;
+    private volatile long lastCollectionDurationNanos;
+    private volatile long maxCollectionDurationNanos;
+    private final AtomicLong timedOutGaugeCount = new AtomicLong();
 
     GaugeCollector(ConfigService configService, Collector collector,
             LazyPlatformMBeanServer lazyPlatformMBeanServer,
-            final @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker) {
+            @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker) {
+        this(configService, collector, lazyPlatformMBeanServer, instrumentation, clock, ticker,
+                COLLECTION_THREADS,
+                COLLECTION_TIME_BUDGET_MILLIS > 0 ? COLLECTION_TIME_BUDGET_MILLIS
+                        : configService.getGaugeCollectionIntervalMillis());
+    }
+
+    @VisibleForTesting
+    GaugeCollector(ConfigService configService, Collector collector,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer,
+            final @Nullable Instrumentation instrumentation, Clock clock, Ticker ticker,
+            int collectionThreads, long collectionTimeBudgetMillis) {
         this.configService = configService;
         this.collector = collector;
         this.lazyPlatformMBeanServer = lazyPlatformMBeanServer;
         this.clock = clock;
         this.ticker = ticker;
+        this.collectionTimeBudgetMillis = collectionTimeBudgetMillis;
         startTimeMillis = clock.currentTimeMillis();
         collectionExecutor = Executors.newSingleThreadScheduledExecutor(
                 ThreadFactories.create("Glowroot-Gauge-Collection"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Gauge-Flushing"));
+        if (collectionThreads > 1) {
+            parallelCollectionExecutor = Executors.newFixedThreadPool(collectionThreads,
+                    ThreadFactories.create("Glowroot-Gauge-Collection-Worker"));
+        } else {
+            parallelCollectionExecutor = null;
+        }
         lazyPlatformMBeanServer.addInitListener(new InitListener() {
             @Override
             public void postInit(MBeanServer mbeanServer) {
+                try {
+                    mbeanServer.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                            mbeanRegistrationListener, null, null);
+                    mbeanRegistrationListenerServer = mbeanServer;
+                } catch (Exception e) {
+                    // matching object names will be queried on every collection pass
+                    logger.debug(e.getMessage(), e);
+                }
                 try {
                     if (JavaVersion.isGreaterThanOrEqualToJava9() && instrumentation != null) {
                         Java9.grantAccess(instrumentation, "org.glowroot.agent.init.GaugeCollector",
@@ -121,13 +196,26 @@ class GaugeCollector extends ScheduledRunnable {
 
     @Override
     protected void runInternal() throws Exception {
-        final List<GaugeValue> gaugeValues = Lists.newArrayList();
-        if (priorRawCounterValues == null) {
-            // wait to now to initialize priorGaugeValues inside of the dedicated thread
-            priorRawCounterValues = Maps.newHashMap();
+        // not using ticker, which is reserved for capturing counter gauge values
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        List<GaugeConfig> gaugeConfigs = configService.getGaugeConfigs();
+        if (!matchingObjectNamesCache.isEmpty()) {
+            pruneMatchingObjectNamesCache(gaugeConfigs);
         }
-        for (GaugeConfig gaugeConfig : configService.getGaugeConfigs()) {
-            gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+        final List<GaugeValue> gaugeValues;
+        if (parallelCollectionExecutor == null) {
+            gaugeValues = Lists.newArrayList();
+            for (GaugeConfig gaugeConfig : gaugeConfigs) {
+                gaugeValues.addAll(collectGaugeValues(gaugeConfig));
+            }
+        } else {
+            gaugeValues = collectGaugeValuesInParallel(parallelCollectionExecutor, gaugeConfigs);
+        }
+        long collectionDurationNanos = stopwatch.elapsed(NANOSECONDS);
+        lastCollectionDurationNanos = collectionDurationNanos;
+        if (collectionDurationNanos > maxCollectionDurationNanos) {
+            // only updated by the dedicated gauge collection thread
+            maxCollectionDurationNanos = collectionDurationNanos;
         }
         flushingExecutor.execute(new Runnable() {
             @Override
@@ -146,19 +234,86 @@ class GaugeCollector extends ScheduledRunnable {
         scheduleWithFixedDelay(collectionExecutor, period, unit);
     }
 
+    @Override
+    public long getLastCollectionDurationMillis() {
+        return NANOSECONDS.toMillis(lastCollectionDurationNanos);
+    }
+
+    @Override
+    public long getMaxCollectionDurationMillis() {
+        return NANOSECONDS.toMillis(maxCollectionDurationNanos);
+    }
+
+    @Override
+    public long getTimedOutGaugeCount() {
+        return timedOutGaugeCount.get();
+    }
+
     void close() throws InterruptedException {
         collectionExecutor.shutdown();
         if (!collectionExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (parallelCollectionExecutor != null) {
+            parallelCollectionExecutor.shutdown();
+            if (!parallelCollectionExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate executor");
+            }
+        }
+        MBeanServer mbeanServer = mbeanRegistrationListenerServer;
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,
+                        mbeanRegistrationListener);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+        }
         flushingExecutor.shutdown();
         if (!flushingExecutor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
     }
 
+    private List<GaugeValue> collectGaugeValuesInParallel(ExecutorService executor,
+            List<GaugeConfig> gaugeConfigs) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long budgetNanos = MILLISECONDS.toNanos(collectionTimeBudgetMillis);
+        List<Future<List<GaugeValue>>> futures = Lists.newArrayList();
+        for (final GaugeConfig gaugeConfig : gaugeConfigs) {
+            if (!inFlightGaugeConfigs.add(gaugeConfig)) {
+                // still being collected from a prior pass that exceeded the time budget
+                timedOutGaugeCount.getAndIncrement();
+                continue;
+            }
+            futures.add(executor.submit(new Callable<List<GaugeValue>>() {
+                @Override
+                public List<GaugeValue> call() throws Exception {
+                    try {
+                        return collectGaugeValues(gaugeConfig);
+                    } finally {
+                        inFlightGaugeConfigs.remove(gaugeConfig);
+                    }
+                }
+            }));
+        }
+        List<GaugeValue> gaugeValues = Lists.newArrayList();
+        for (Future<List<GaugeValue>> future : futures) {
+            long remainingNanos = Math.max(0, budgetNanos - stopwatch.elapsed(NANOSECONDS));
+            try {
+                gaugeValues.addAll(future.get(remainingNanos, NANOSECONDS));
+            } catch (TimeoutException e) {
+                // the collection is left running, but its values are dropped from this pass
+                logger.debug(e.getMessage(), e);
+                timedOutGaugeCount.getAndIncrement();
+            } catch (ExecutionException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return gaugeValues;
+    }
+
     @VisibleForTesting
-    @RequiresNonNull("priorRawCounterValues")
     List<GaugeValue> collectGaugeValues(GaugeConfig gaugeConfig) throws Exception {
         String mbeanObjectName = gaugeConfig.mbeanObjectName();
         ObjectName objectName;
@@ -172,7 +327,7 @@ class GaugeCollector extends ScheduledRunnable {
         if (!objectName.isPattern()) {
             return collectGaugeValues(objectName, gaugeConfig.mbeanAttributes(), mbeanObjectName);
         }
-        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        Set<ObjectName> matchingObjectNames = getMatchingObjectNames(objectName);
         if (matchingObjectNames.isEmpty()) {
             logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
             return ImmutableList.of();
@@ -189,10 +344,56 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
-    @RequiresNonNull("priorRawCounterValues")
+    private Set<ObjectName> getMatchingObjectNames(ObjectName objectName) throws Exception {
+        if (mbeanRegistrationListenerServer == null) {
+            return lazyPlatformMBeanServer.queryNames(objectName, null);
+        }
+        // read prior to querying, so that an mbean registration during the query will result in
+        // querying again next time
+        long registrationChanges = mbeanRegistrationChanges.get();
+        MatchingObjectNames cached = matchingObjectNamesCache.get(objectName);
+        if (cached != null && cached.mbeanRegistrationChanges() == registrationChanges) {
+            return cached.objectNames();
+        }
+        Set<ObjectName> matchingObjectNames = lazyPlatformMBeanServer.queryNames(objectName, null);
+        matchingObjectNamesCache.put(objectName,
+                ImmutableMatchingObjectNames.of(registrationChanges, matchingObjectNames));
+        return matchingObjectNames;
+    }
+
+    // removes cached object names for wildcard gauges that have since been deleted
+    private void pruneMatchingObjectNamesCache(List<GaugeConfig> gaugeConfigs) {
+        Set<ObjectName> objectNames = Sets.newHashSet();
+        for (GaugeConfig gaugeConfig : gaugeConfigs) {
+            try {
+                objectNames.add(ObjectName.getInstance(gaugeConfig.mbeanObjectName()));
+            } catch (MalformedObjectNameException e) {
+                // malformed object names are never cached
+                logger.debug(e.getMessage(), e);
+            }
+        }
+        matchingObjectNamesCache.keySet().retainAll(objectNames);
+    }
+
     private List<GaugeValue> collectGaugeValues(ObjectName objectName,
             List<ImmutableMBeanAttribute> mbeanAttributes, String mbeanObjectName) {
         long captureTime = clock.currentTimeMillis();
+        Map<String, /*@Nullable*/ Object> batchedAttributeValues;
+        if (mbeanAttributes.size() > 1) {
+            try {
+                batchedAttributeValues = getAttributes(objectName, mbeanAttributes);
+            } catch (InstanceNotFoundException e) {
+                logger.debug(e.getMessage(), e);
+                logFirstTimeMBeanNotMatchedOrFound(mbeanObjectName);
+                return ImmutableList.of();
+            } catch (Exception e) {
+                // attributes are read individually below in order to log the specific errors
+                logger.debug(e.getMessage(), e);
+                batchedAttributeValues = ImmutableMap.of();
+            }
+        } else {
+            batchedAttributeValues = ImmutableMap.of();
+        }
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
             String mbeanAttributeName = mbeanAttribute.name();
@@ -200,7 +401,7 @@ class GaugeCollector extends ScheduledRunnable {
             try {
                 if (mbeanAttributeName.contains(".")) {
                     String[] path = mbeanAttributeName.split("\\.");
-                    attributeValue = lazyPlatformMBeanServer.getAttribute(objectName, path[0]);
+                    attributeValue = getAttribute(objectName, path[0], batchedAttributeValues);
                     CompositeData compositeData = (CompositeData) attributeValue;
                     if (compositeData == null) {
                         // this is valid, e.g. attribute LastGcInfo on mbean
@@ -211,7 +412,7 @@ class GaugeCollector extends ScheduledRunnable {
                     attributeValue = compositeData.get(path[1]);
                 } else {
                     attributeValue =
-                            lazyPlatformMBeanServer.getAttribute(objectName, mbeanAttributeName);
+                            getAttribute(objectName, mbeanAttributeName, batchedAttributeValues);
                 }
             } catch (InstanceNotFoundException e) {
                 logger.debug(e.getMessage(), e);
@@ -284,6 +485,38 @@ class GaugeCollector extends ScheduledRunnable {
         return gaugeValues;
     }
 
+    // reads all of the attributes in a single call, attributes that cannot be read are omitted
+    // from the returned map
+    private Map<String, /*@Nullable*/ Object> getAttributes(ObjectName objectName,
+            List<ImmutableMBeanAttribute> mbeanAttributes) throws Exception {
+        Set<String> attributeNames = Sets.newLinkedHashSet();
+        for (MBeanAttribute mbeanAttribute : mbeanAttributes) {
+            String mbeanAttributeName = mbeanAttribute.name();
+            int index = mbeanAttributeName.indexOf('.');
+            attributeNames.add(index == -1 ? mbeanAttributeName
+                    : mbeanAttributeName.substring(0, index));
+        }
+        AttributeList attributeList = lazyPlatformMBeanServer.getAttributes(objectName,
+                attributeNames.toArray(new String[attributeNames.size()]));
+        Map<String, /*@Nullable*/ Object> attributeValues = Maps.newHashMap();
+        if (attributeList != null) {
+            for (Attribute attribute : attributeList.asList()) {
+                attributeValues.put(attribute.getName(), attribute.getValue());
+            }
+        }
+        return attributeValues;
+    }
+
+    private @Nullable Object getAttribute(ObjectName objectName, String attributeName,
+            Map<String, /*@Nullable*/ Object> batchedAttributeValues) throws Exception {
+        if (batchedAttributeValues.containsKey(attributeName)) {
+            return batchedAttributeValues.get(attributeName);
+        }
+        // not read in batch (or could not be), so read individually in order to get the specific
+        // error
+        return lazyPlatformMBeanServer.getAttribute(objectName, attributeName);
+    }
+
     // relatively common, so nice message
     private void logFirstTimeMBeanNotMatchedOrFound(String mbeanObjectName) {
         int delaySeconds = configService.getAdvancedConfig().mbeanGaugeNotFoundDelaySeconds();
@@ -339,4 +572,11 @@ class GaugeCollector extends ScheduledRunnable {
         double value();
         long captureTick();
     }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface MatchingObjectNames {
+        long mbeanRegistrationChanges();
+        Set<ObjectName> objectNames();
+    }
 }
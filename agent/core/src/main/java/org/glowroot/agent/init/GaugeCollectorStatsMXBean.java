@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.init;
+
+public interface GaugeCollectorStatsMXBean {
+
+    // duration of the most recent gauge collection pass
+    long getLastCollectionDurationMillis();
+    long getMaxCollectionDurationMillis();
+    // number of gauges whose values were dropped because they were not collected within the time
+    // budget (only applies to parallel gauge collection)
+    long getTimedOutGaugeCount();
+}
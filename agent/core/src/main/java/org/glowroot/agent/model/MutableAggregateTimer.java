@@ -59,6 +59,12 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        mergeChildTimers(timer.childTimers, childTimers);
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -70,4 +76,26 @@ public class MutableAggregateTimer {
         }
         return builder.build();
     }
+
+    private static void mergeChildTimers(List<MutableAggregateTimer> toBeMergedChildTimers,
+            List<MutableAggregateTimer> childTimers) {
+        for (MutableAggregateTimer toBeMergedChildTimer : toBeMergedChildTimers) {
+            MutableAggregateTimer matchingChildTimer = null;
+            for (MutableAggregateTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                // always copy (instead of sharing) so that the merged timer is not affected by
+                // subsequent changes to the timer that is being merged
+                matchingChildTimer =
+                        createRootTimer(toBeMergedChildTimer.name, toBeMergedChildTimer.extended);
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.merge(toBeMergedChildTimer);
+        }
+    }
 }
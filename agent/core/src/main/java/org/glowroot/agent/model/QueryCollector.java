@@ -22,15 +22,13 @@ import java.util.Map;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import org.glowroot.agent.util.QueryTextSha1s;
 import org.glowroot.common.Constants;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
-import static com.google.common.base.Charsets.UTF_8;
-
 public class QueryCollector {
 
     private static final String LIMIT_EXCEEDED_BUCKET = "LIMIT EXCEEDED BUCKET";
@@ -38,6 +36,10 @@ public class QueryCollector {
     // first key is query type, second key is query text
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
     private final Map<String, MutableQuery> limitExceededBuckets = Maps.newHashMap();
+    // reverse index from sha1 to full query text, only for query texts that are long enough to be
+    // truncated (and so referenced by sha1), built on first lookup (since most collectors never
+    // need it) and then maintained as new query texts are added
+    private @Nullable Map<String, String> fullQueryTextsBySha1;
     private final int limit;
     private final int hardLimitMultiplierWhileBuilding;
 
@@ -104,6 +106,10 @@ public class QueryCollector {
                 aggregateQuery = new MutableQuery();
                 queriesForType.put(queryText, aggregateQuery);
                 queryCount++;
+                if (fullQueryTextsBySha1 != null
+                        && queryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                    fullQueryTextsBySha1.put(QueryTextSha1s.get(queryText), queryText);
+                }
             } else {
                 aggregateQuery = getOrCreateLimitExceededBucket(queryType);
             }
@@ -139,7 +145,7 @@ public class QueryCollector {
                 if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, Constants.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
+                    fullQueryTextSha1 = QueryTextSha1s.get(fullQueryText);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
@@ -160,18 +166,20 @@ public class QueryCollector {
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Map.Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
-                if (fullQueryText.length() <= Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
-                    continue;
-                }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
-                    return fullQueryText;
+        Map<String, String> fullQueryTextsBySha1 = this.fullQueryTextsBySha1;
+        if (fullQueryTextsBySha1 == null) {
+            fullQueryTextsBySha1 = Maps.newHashMap();
+            for (Map<String, MutableQuery> queriesForType : queries.values()) {
+                for (String fullQueryText : queriesForType.keySet()) {
+                    if (fullQueryText.length() > Constants.AGGREGATE_QUERY_TEXT_TRUNCATE) {
+                        fullQueryTextsBySha1.put(QueryTextSha1s.get(fullQueryText),
+                                fullQueryText);
+                    }
                 }
             }
+            this.fullQueryTextsBySha1 = fullQueryTextsBySha1;
         }
-        return null;
+        return fullQueryTextsBySha1.get(fullQueryTextSha1);
     }
 
     private void mergeLimitExceededBucket(String queryType, MutableQuery limitExceededBucket) {
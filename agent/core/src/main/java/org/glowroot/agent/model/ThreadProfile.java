@@ -18,25 +18,56 @@ package org.glowroot.agent.model;
 import java.lang.management.ThreadInfo;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
 
 import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
+// stack trace samples are merged directly into a trie that is stored in parallel primitive arrays,
+// and where each trie node refers to an interned frame id instead of the frame itself, so that the
+// memory (and garbage) cost of profiling scales with the number of distinct frames instead of the
+// number of samples
 public class ThreadProfile {
 
+    private static final int NO_NODE = -1;
+
+    // the lower bits of a node key hold the leaf thread state (0 for non-leaf nodes), and the upper
+    // bits hold the frame id
+    private static final int LEAF_THREAD_STATE_BITS = 3;
+    private static final int LEAF_THREAD_STATE_MASK = (1 << LEAF_THREAD_STATE_BITS) - 1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
     private final int maxSamples;
     private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private final Map<StackTraceElement, Integer> frameIds = Maps.newHashMap();
+    @GuardedBy("lock")
+    private final List<StackTraceElement> frames = Lists.newArrayList();
+
     @GuardedBy("lock")
-    private final List<List<StackTraceElement>> unmergedStackTraces = Lists.newArrayList();
+    private int[] nodeKeys = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private final List<Thread.State> unmergedStackTraceThreadStates = Lists.newArrayList();
+    private int[] nodeSampleCounts = new int[INITIAL_CAPACITY];
     @GuardedBy("lock")
-    private @MonotonicNonNull MutableProfile profile;
+    private int[] nodeFirstChilds = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int[] nodeNextSiblings = new int[INITIAL_CAPACITY];
+    @GuardedBy("lock")
+    private int nodeCount;
+    @GuardedBy("lock")
+    private int firstRootNode = NO_NODE;
+
     @GuardedBy("lock")
     private long sampleCount;
 
@@ -46,24 +77,12 @@ public class ThreadProfile {
     }
 
     public void mergeInto(MutableProfile profile) {
-        synchronized (lock) {
-            if (this.profile == null) {
-                mergeTheUnmergedInto(profile);
-            } else {
-                profile.merge(this.profile);
-            }
-        }
+        profile.merge(toProto());
     }
 
-    public org.glowroot.wire.api.model.ProfileOuterClass.Profile toProto() {
+    public Profile toProto() {
         synchronized (lock) {
-            if (profile == null) {
-                profile = new MutableProfile();
-                mergeTheUnmergedInto(profile);
-                unmergedStackTraces.clear();
-                unmergedStackTraceThreadStates.clear();
-            }
-            return profile.toProto();
+            return new ProtoBuilder().build();
         }
     }
 
@@ -88,30 +107,199 @@ public class ThreadProfile {
             if (++sampleCount > maxSamples) {
                 return;
             }
-            List<StackTraceElement> stackTrace = Arrays.asList(threadInfo.getStackTrace());
-            Thread.State threadState = threadInfo.getThreadState();
-            if (profile == null) {
-                unmergedStackTraces.add(stackTrace);
-                unmergedStackTraceThreadStates.add(threadState);
-                if (unmergedStackTraces.size() >= 10) {
-                    // merged stack tree takes up less memory
-                    profile = new MutableProfile();
-                    mergeTheUnmergedInto(profile);
-                    unmergedStackTraces.clear();
-                    unmergedStackTraceThreadStates.clear();
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+            int leafThreadState = getLeafThreadState(threadInfo.getThreadState());
+            int parentNode = NO_NODE;
+            for (int i = stackTrace.length - 1; i >= 0; i--) {
+                int key = getFrameId(stackTrace[i]) << LEAF_THREAD_STATE_BITS;
+                if (i == 0) {
+                    key |= leafThreadState;
                 }
-            } else {
-                profile.merge(stackTrace, threadState);
+                int node = getOrAddChildNode(parentNode, key);
+                nodeSampleCounts[node]++;
+                parentNode = node;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private int getFrameId(StackTraceElement frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId == null) {
+            frameId = frames.size();
+            frames.add(frame);
+            frameIds.put(frame, frameId);
+        }
+        return frameId;
+    }
+
+    @GuardedBy("lock")
+    private int getOrAddChildNode(int parentNode, int key) {
+        int lastChildNode = NO_NODE;
+        int childNode = parentNode == NO_NODE ? firstRootNode : nodeFirstChilds[parentNode];
+        while (childNode != NO_NODE) {
+            if (nodeKeys[childNode] == key) {
+                return childNode;
             }
+            lastChildNode = childNode;
+            childNode = nodeNextSiblings[childNode];
+        }
+        int node = addNode(key);
+        // append (instead of prepend) to retain the same node ordering as MutableProfile
+        if (lastChildNode != NO_NODE) {
+            nodeNextSiblings[lastChildNode] = node;
+        } else if (parentNode == NO_NODE) {
+            firstRootNode = node;
+        } else {
+            nodeFirstChilds[parentNode] = node;
         }
+        return node;
     }
 
     @GuardedBy("lock")
-    private void mergeTheUnmergedInto(MutableProfile profile) {
-        for (int i = 0; i < unmergedStackTraces.size(); i++) {
-            List<StackTraceElement> stackTrace = unmergedStackTraces.get(i);
-            Thread.State threadState = unmergedStackTraceThreadStates.get(i);
-            profile.merge(stackTrace, threadState);
+    private int addNode(int key) {
+        if (nodeCount == nodeKeys.length) {
+            int newCapacity = nodeCount * 2;
+            nodeKeys = Arrays.copyOf(nodeKeys, newCapacity);
+            nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newCapacity);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newCapacity);
+        }
+        int node = nodeCount++;
+        nodeKeys[node] = key;
+        nodeSampleCounts[node] = 0;
+        nodeFirstChilds[node] = NO_NODE;
+        nodeNextSiblings[node] = NO_NODE;
+        return node;
+    }
+
+    private static int getLeafThreadState(Thread. /*@Nullable*/ State state) {
+        if (state == null) {
+            return Profile.LeafThreadState.NONE_VALUE;
+        }
+        switch (state) {
+            case NEW:
+                return Profile.LeafThreadState.NEW_VALUE;
+            case RUNNABLE:
+                return Profile.LeafThreadState.RUNNABLE_VALUE;
+            case BLOCKED:
+                return Profile.LeafThreadState.BLOCKED_VALUE;
+            case WAITING:
+                return Profile.LeafThreadState.WAITING_VALUE;
+            case TIMED_WAITING:
+                return Profile.LeafThreadState.TIMED_WAITING_VALUE;
+            case TERMINATED:
+                return Profile.LeafThreadState.TERMINATED_VALUE;
+            default:
+                return Profile.LeafThreadState.NONE_VALUE;
+        }
+    }
+
+    private class ProtoBuilder {
+
+        private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
+        private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
+
+        private final List<String> packageNames = Lists.newArrayList();
+        private final List<String> classNames = Lists.newArrayList();
+        private final List<String> methodNames = Lists.newArrayList();
+        private final List<String> fileNames = Lists.newArrayList();
+
+        private final Profile.Builder builder = Profile.newBuilder();
+
+        // frame names are only split and indexed once per distinct frame
+        private final int[] packageNameIndexByFrameId = new int[frames.size()];
+        private final int[] classNameIndexByFrameId = new int[frames.size()];
+        private final int[] methodNameIndexByFrameId = new int[frames.size()];
+        private final int[] fileNameIndexByFrameId = new int[frames.size()];
+
+        @GuardedBy("lock")
+        private Profile build() {
+            for (int frameId = 0; frameId < frames.size(); frameId++) {
+                StackTraceElement frame = frames.get(frameId);
+                String fullClassName = frame.getClassName();
+                int index = fullClassName.lastIndexOf('.');
+                String packageName;
+                String className;
+                if (index == -1) {
+                    packageName = "";
+                    className = fullClassName;
+                } else {
+                    packageName = fullClassName.substring(0, index);
+                    className = fullClassName.substring(index + 1);
+                }
+                packageNameIndexByFrameId[frameId] =
+                        getNameIndex(packageName, packageNameIndexes, packageNames);
+                classNameIndexByFrameId[frameId] =
+                        getNameIndex(className, classNameIndexes, classNames);
+                methodNameIndexByFrameId[frameId] = getNameIndex(
+                        MoreObjects.firstNonNull(frame.getMethodName(), "<null method name>"),
+                        methodNameIndexes, methodNames);
+                fileNameIndexByFrameId[frameId] = getNameIndex(
+                        Strings.nullToEmpty(frame.getFileName()), fileNameIndexes, fileNames);
+            }
+            builder.addAllPackageName(packageNames)
+                    .addAllClassName(classNames)
+                    .addAllMethodName(methodNames)
+                    .addAllFileName(fileNames);
+            addNodes();
+            return builder.build();
+        }
+
+        // pre-order traversal, using explicit stack to avoid StackOverflowError caused by a
+        // recursive algorithm
+        @GuardedBy("lock")
+        private void addNodes() {
+            int[] nodeStack = new int[16];
+            int[] depthStack = new int[16];
+            int stackSize = 0;
+            if (firstRootNode != NO_NODE) {
+                nodeStack[stackSize] = firstRootNode;
+                depthStack[stackSize++] = 0;
+            }
+            while (stackSize > 0) {
+                int node = nodeStack[--stackSize];
+                int depth = depthStack[stackSize];
+                int key = nodeKeys[node];
+                int frameId = key >>> LEAF_THREAD_STATE_BITS;
+                builder.addNode(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth)
+                        .setPackageNameIndex(packageNameIndexByFrameId[frameId])
+                        .setClassNameIndex(classNameIndexByFrameId[frameId])
+                        .setMethodNameIndex(methodNameIndexByFrameId[frameId])
+                        .setFileNameIndex(fileNameIndexByFrameId[frameId])
+                        .setLineNumber(frames.get(frameId).getLineNumber())
+                        .setLeafThreadStateValue(key & LEAF_THREAD_STATE_MASK)
+                        .setSampleCount(nodeSampleCounts[node]));
+                if (stackSize + 2 > nodeStack.length) {
+                    nodeStack = Ints.ensureCapacity(nodeStack, stackSize + 2, stackSize);
+                    depthStack = Ints.ensureCapacity(depthStack, stackSize + 2, stackSize);
+                }
+                // sibling is pushed first so that it is visited after the child subtree
+                int nextSibling = nodeNextSiblings[node];
+                if (nextSibling != NO_NODE) {
+                    nodeStack[stackSize] = nextSibling;
+                    depthStack[stackSize++] = depth;
+                }
+                int firstChild = nodeFirstChilds[node];
+                if (firstChild != NO_NODE) {
+                    nodeStack[stackSize] = firstChild;
+                    depthStack[stackSize++] = depth + 1;
+                }
+            }
+        }
+
+        private int getNameIndex(String name, Map<String, Integer> nameIndexes,
+                List<String> names) {
+            Integer index = nameIndexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                nameIndexes.put(name, index);
+            }
+            return index;
         }
     }
 }
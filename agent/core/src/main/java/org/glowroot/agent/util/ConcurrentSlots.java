@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+
+// lock free alternative to IterableWithSelfRemovableEntries
+//
+// elements are stored in slots, which are allocated in fixed size chunks that are never moved or
+// released, and free slots are tracked in a lock free stack, so add and remove are each a single
+// compare-and-set in the common case (the lock is only used when adding a new chunk), and iterating
+// over the elements only reads the slots in place
+//
+// elements are held by weak references (same as IterableWithSelfRemovableEntries) so that an
+// element that is never removed does not leak, and its slot is reclaimed during iteration
+public class ConcurrentSlots<E> implements Iterable<E> {
+
+    private static final int CHUNK_BITS = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int NONE = -1;
+
+    // chunks are only ever appended (under lock)
+    private volatile ImmutableList<Chunk<E>> chunks = ImmutableList.of();
+
+    // head of the free slot stack, the lower 32 bits are the slot index and the upper 32 bits are a
+    // generation counter that is incremented on every change to the head, which prevents the ABA
+    // problem when a slot is popped and pushed back between another thread's read and its
+    // compare-and-set
+    private final AtomicLong freeHead = new AtomicLong(pack(0, NONE));
+
+    private final Object lock = new Object();
+
+    public SelfRemovableEntry add(E e) {
+        WeakReference<E> ref = new WeakReference<E>(e);
+        while (true) {
+            long head = freeHead.get();
+            int index = index(head);
+            if (index == NONE) {
+                addChunk();
+                continue;
+            }
+            Chunk<E> chunk = chunks.get(index >>> CHUNK_BITS);
+            int next = chunk.nextFree.get(index & CHUNK_MASK);
+            if (freeHead.compareAndSet(head, pack(generation(head) + 1, next))) {
+                chunk.refs.set(index & CHUNK_MASK, ref);
+                return new Slot(chunk, index, ref);
+            }
+        }
+    }
+
+    // the iterator does not block add or remove, and so may or may not see elements that are
+    // added or removed during iteration
+    @Override
+    public Iterator<E> iterator() {
+        return new ElementIterator(chunks);
+    }
+
+    private void free(Chunk<E> chunk, int index) {
+        while (true) {
+            long head = freeHead.get();
+            chunk.nextFree.set(index & CHUNK_MASK, index(head));
+            if (freeHead.compareAndSet(head, pack(generation(head) + 1, index))) {
+                return;
+            }
+        }
+    }
+
+    private void addChunk() {
+        synchronized (lock) {
+            if (index(freeHead.get()) != NONE) {
+                // another thread already added a chunk, or a slot was freed in the meantime
+                return;
+            }
+            ImmutableList<Chunk<E>> localChunks = chunks;
+            int firstIndex = localChunks.size() << CHUNK_BITS;
+            Chunk<E> chunk = new Chunk<E>();
+            for (int i = 0; i < CHUNK_SIZE - 1; i++) {
+                chunk.nextFree.set(i, firstIndex + i + 1);
+            }
+            // chunk must be visible before any of its slots are pushed onto the free stack
+            chunks = ImmutableList.<Chunk<E>>builder()
+                    .addAll(localChunks)
+                    .add(chunk)
+                    .build();
+            while (true) {
+                long head = freeHead.get();
+                chunk.nextFree.set(CHUNK_MASK, index(head));
+                if (freeHead.compareAndSet(head, pack(generation(head) + 1, firstIndex))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long pack(int generation, int index) {
+        return ((long) generation << 32) | (index & 0xFFFFFFFFL);
+    }
+
+    private static int generation(long head) {
+        return (int) (head >>> 32);
+    }
+
+    private static int index(long head) {
+        return (int) head;
+    }
+
+    private static class Chunk<E> {
+
+        private final AtomicReferenceArray<WeakReference<E>> refs =
+                new AtomicReferenceArray<WeakReference<E>>(CHUNK_SIZE);
+
+        // only meaningful while the slot is in the free stack
+        private final AtomicIntegerArray nextFree = new AtomicIntegerArray(CHUNK_SIZE);
+    }
+
+    private class Slot implements SelfRemovableEntry {
+
+        private final Chunk<E> chunk;
+        private final int index;
+        private final WeakReference<E> ref;
+
+        private Slot(Chunk<E> chunk, int index, WeakReference<E> ref) {
+            this.chunk = chunk;
+            this.index = index;
+            this.ref = ref;
+        }
+
+        @Override
+        public void remove() {
+            // compare-and-set makes this idempotent, and also guards against racing with the
+            // iterator reclaiming the slot after the element has been garbage collected
+            if (chunk.refs.compareAndSet(index & CHUNK_MASK, ref, null)) {
+                free(chunk, index);
+            }
+        }
+    }
+
+    private class ElementIterator implements Iterator<E> {
+
+        private final ImmutableList<Chunk<E>> chunks;
+
+        private int nextIndex;
+        private @Nullable E nextElement;
+
+        @SuppressWarnings("method.invocation.invalid")
+        private ElementIterator(ImmutableList<Chunk<E>> chunks) {
+            this.chunks = chunks;
+            advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextElement != null;
+        }
+
+        @Override
+        public E next() {
+            E currElement = nextElement;
+            if (currElement == null) {
+                throw new NoSuchElementException();
+            }
+            advance();
+            return currElement;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance() {
+            int size = chunks.size() << CHUNK_BITS;
+            while (nextIndex < size) {
+                int index = nextIndex++;
+                Chunk<E> chunk = chunks.get(index >>> CHUNK_BITS);
+                WeakReference<E> ref = chunk.refs.get(index & CHUNK_MASK);
+                if (ref == null) {
+                    continue;
+                }
+                E element = ref.get();
+                if (element != null) {
+                    nextElement = element;
+                    return;
+                }
+                // element was garbage collected without being removed
+                if (chunk.refs.compareAndSet(index & CHUNK_MASK, ref, null)) {
+                    free(chunk, index);
+                }
+            }
+            nextElement = null;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// the same (long) query text instances are hashed repeatedly, e.g. when building the shared query
+// texts for every aggregate flush and every trace, so the sha1 is cached per query text instance
+//
+// the cache is keyed by identity (weak keys), since query texts are generally the same instances
+// (originating from the plugin) for their entire life in the agent, and a cache miss only costs
+// re-computing the sha1
+public class QueryTextSha1s {
+
+    private static final LoadingCache<String, String> sha1s = CacheBuilder.newBuilder()
+            .weakKeys()
+            .maximumSize(10000)
+            .build(new CacheLoader<String, String>() {
+                @Override
+                public String load(String queryText) {
+                    return Hashing.sha1().hashString(queryText, UTF_8).toString();
+                }
+            });
+
+    private QueryTextSha1s() {}
+
+    public static String get(String queryText) {
+        return sha1s.getUnchecked(queryText);
+    }
+}
@@ -63,6 +63,7 @@ public class AdviceCache {
     private volatile ImmutableSet<String> reweavableConfigVersions;
 
     private volatile ImmutableList<Advice> allAdvisors;
+    private volatile AdviceIndex allAdvisorsIndex;
 
     public AdviceCache(List<PluginDescriptor> pluginDescriptors,
             List<InstrumentationConfig> reweavableConfigs,
@@ -119,13 +120,14 @@ public class AdviceCache {
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, true);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
         allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        allAdvisorsIndex = AdviceIndex.create(allAdvisors);
     }
 
-    public Supplier<List<Advice>> getAdvisorsSupplier() {
-        return new Supplier<List<Advice>>() {
+    public Supplier<AdviceIndex> getAdviceIndexSupplier() {
+        return new Supplier<AdviceIndex>() {
             @Override
-            public List<Advice> get() {
-                return allAdvisors;
+            public AdviceIndex get() {
+                return allAdvisorsIndex;
             }
         };
     }
@@ -145,6 +147,7 @@ public class AdviceCache {
                 createReweavableAdvisors(reweavableConfigs, instrumentation, tmpDir, false);
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
         allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        allAdvisorsIndex = AdviceIndex.create(allAdvisors);
     }
 
     public boolean isOutOfSync(List<InstrumentationConfig> reweavableConfigs) {
@@ -234,6 +237,6 @@ public class AdviceCache {
     // this method exists because tests cannot use (sometimes) shaded guava Supplier
     @OnlyUsedByTests
     public List<Advice> getAdvisors() {
-        return getAdvisorsSupplier().get();
+        return allAdvisors;
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// index over the advisors by their pointcut class name, so that finding the advisors that could
+// match a given class does not require checking every advisor against every class that is loaded
+//
+// advisors are indexed by exact class name (the common case), by the literal prefix of simple
+// class name patterns (e.g. "org.apache.catalina.*"), and the remaining advisors (empty class name,
+// full regex class name, or pattern starting with *) are always candidates
+//
+// candidates still need to be fully matched (see AdviceMatcher)
+class AdviceIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final ImmutableList<Advice> advisors;
+
+    // values are indexes into advisors
+    private final Map<String, int[]> exactClassNames;
+    private final PrefixNode classNamePrefixes;
+    private final int[] residual;
+
+    static AdviceIndex create(List<Advice> advisors) {
+        return new AdviceIndex(ImmutableList.copyOf(advisors));
+    }
+
+    private AdviceIndex(ImmutableList<Advice> advisors) {
+        this.advisors = advisors;
+        Map<String, int[]> exactClassNames = Maps.newHashMap();
+        PrefixNode classNamePrefixes = new PrefixNode();
+        int[] residual = EMPTY;
+        for (int i = 0; i < advisors.size(); i++) {
+            List<String> parts = getClassNameParts(advisors.get(i));
+            if (parts == null) {
+                residual = append(residual, i);
+                continue;
+            }
+            for (String part : parts) {
+                int index = part.indexOf('*');
+                if (index == -1) {
+                    exactClassNames.put(part, append(exactClassNames.get(part), i));
+                } else {
+                    classNamePrefixes.add(part.substring(0, index), i);
+                }
+            }
+        }
+        this.exactClassNames = exactClassNames;
+        this.classNamePrefixes = classNamePrefixes;
+        this.residual = residual;
+    }
+
+    List<Advice> advisors() {
+        return advisors;
+    }
+
+    // returns candidates in the same order as advisors()
+    List<Advice> getCandidates(String className) {
+        int[] indexes = residual;
+        int[] exact = exactClassNames.get(className);
+        if (exact != null) {
+            indexes = concat(indexes, exact);
+        }
+        indexes = classNamePrefixes.collect(className, indexes);
+        if (indexes.length == 0) {
+            return ImmutableList.of();
+        }
+        if (indexes != residual) {
+            // a single advice can be indexed under multiple parts of a | pattern
+            indexes = sortAndDedup(indexes);
+        }
+        List<Advice> candidates = Lists.newArrayListWithCapacity(indexes.length);
+        for (int index : indexes) {
+            candidates.add(advisors.get(index));
+        }
+        return candidates;
+    }
+
+    AdviceIndex withAdditionalAdvisors(List<Advice> additionalAdvisors) {
+        if (additionalAdvisors.isEmpty()) {
+            return this;
+        }
+        return new AdviceIndex(ImmutableList.<Advice>builder()
+                .addAll(advisors)
+                .addAll(additionalAdvisors)
+                .build());
+    }
+
+    // returns null if the advice cannot be indexed by class name
+    private static @Nullable List<String> getClassNameParts(Advice advice) {
+        String className = advice.pointcut().className();
+        if (className.isEmpty() || className.startsWith("/") && className.endsWith("/")) {
+            return null;
+        }
+        // see AdviceBuilder.buildPattern() for the limited regex syntax (| and *)
+        List<String> parts = Arrays.asList(className.split("\\|"));
+        for (String part : parts) {
+            if (part.startsWith("*")) {
+                return null;
+            }
+        }
+        return parts;
+    }
+
+    private static int[] append(int /*@Nullable*/ [] array, int value) {
+        if (array == null) {
+            return new int[] {value};
+        }
+        int[] newArray = Arrays.copyOf(array, array.length + 1);
+        newArray[array.length] = value;
+        return newArray;
+    }
+
+    private static int[] concat(int[] array1, int[] array2) {
+        if (array1.length == 0) {
+            return array2;
+        }
+        int[] newArray = Arrays.copyOf(array1, array1.length + array2.length);
+        System.arraycopy(array2, 0, newArray, array1.length, array2.length);
+        return newArray;
+    }
+
+    private static int[] sortAndDedup(int[] array) {
+        int[] sorted = array.clone();
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        return length == sorted.length ? sorted : Arrays.copyOf(sorted, length);
+    }
+
+    // trie of class name prefixes, split into package segments
+    private static class PrefixNode {
+
+        private final Map<String, PrefixNode> children = Maps.newHashMap();
+
+        // prefixes that end in the next segment, e.g. "org.hibernate.internal.Session*" is
+        // stored under org -> hibernate -> internal with partial segment "Session" (and
+        // "org.apache.catalina.*" is stored under org -> apache -> catalina with partial segment
+        // "", which matches any next segment)
+        private String[] partialSegments = new String[0];
+        private int[] partialSegmentAdvisors = EMPTY;
+
+        private void add(String prefix, int adviceIndex) {
+            PrefixNode node = this;
+            int start = 0;
+            int index;
+            while ((index = prefix.indexOf('.', start)) != -1) {
+                String segment = prefix.substring(start, index);
+                PrefixNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new PrefixNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+                start = index + 1;
+            }
+            String partialSegment = prefix.substring(start);
+            node.partialSegments = Arrays.copyOf(node.partialSegments,
+                    node.partialSegments.length + 1);
+            node.partialSegments[node.partialSegments.length - 1] = partialSegment;
+            node.partialSegmentAdvisors = append(node.partialSegmentAdvisors, adviceIndex);
+        }
+
+        private int[] collect(String className, int[] indexes) {
+            @Nullable
+            PrefixNode node = this;
+            int start = 0;
+            while (node != null) {
+                for (int i = 0; i < node.partialSegments.length; i++) {
+                    if (className.startsWith(node.partialSegments[i], start)) {
+                        indexes = append(indexes, node.partialSegmentAdvisors[i]);
+                    }
+                }
+                if (node.children.isEmpty()) {
+                    break;
+                }
+                int index = className.indexOf('.', start);
+                if (index == -1) {
+                    break;
+                }
+                node = node.children.get(className.substring(start, index));
+                start = index + 1;
+            }
+            return indexes;
+        }
+    }
+}
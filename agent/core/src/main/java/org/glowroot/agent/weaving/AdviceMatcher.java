@@ -39,9 +39,9 @@ abstract class AdviceMatcher {
 
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
             List<String> classAnnotations, Collection<String> superClassNames,
-            List<Advice> advisors) {
+            AdviceIndex adviceIndex) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : adviceIndex.getCandidates(className)) {
             if (isClassMatch(className, classAnnotations, superClassNames, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
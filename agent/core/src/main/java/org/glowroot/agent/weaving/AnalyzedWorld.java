@@ -85,13 +85,13 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
-    private final Supplier<List<Advice>> advisors;
+    private final Supplier<AdviceIndex> adviceIndex;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
 
-    public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+    public AnalyzedWorld(Supplier<AdviceIndex> adviceIndex, List<ShimType> shimTypes,
             List<MixinType> mixinTypes) {
-        this.advisors = advisors;
+        this.adviceIndex = adviceIndex;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
     }
@@ -138,23 +138,23 @@ public class AnalyzedWorld {
         return getSuperClasses(className, loader, parseContext);
     }
 
-    static List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
-            @Nullable ClassLoader loader, String className) {
+    static AdviceIndex mergeInstrumentationAnnotations(AdviceIndex adviceIndex,
+            byte[] classBytes, @Nullable ClassLoader loader, String className) {
         byte[] marker = "Lorg/glowroot/agent/api/Instrumentation$".getBytes(UTF_8);
         if (Bytes.indexOf(classBytes, marker) == -1) {
-            return advisors;
+            return adviceIndex;
         }
         InstrumentationSeekerClassVisitor cv = new InstrumentationSeekerClassVisitor();
         ClassReader cr = new ClassReader(classBytes);
         cr.accept(cv, ClassReader.SKIP_CODE);
         List<InstrumentationConfig> instrumentationConfigs = cv.getInstrumentationConfigs();
         if (instrumentationConfigs.isEmpty()) {
-            return advisors;
+            return adviceIndex;
         }
         if (loader == null) {
             logger.warn("@Instrumentation annotations not currently supported in bootstrap class"
                     + " loader: {}", className);
-            return advisors;
+            return adviceIndex;
         }
         for (InstrumentationConfig instrumentationConfig : instrumentationConfigs) {
             instrumentationConfig.logValidationErrorsIfAny();
@@ -166,9 +166,7 @@ public class AnalyzedWorld {
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
-        List<Advice> mergedAdvisors = Lists.newArrayList(advisors);
-        mergedAdvisors.addAll(newAdvisors.keySet());
-        return mergedAdvisors;
+        return adviceIndex.withAdditionalAdvisors(newAdvisors.keySet().asList());
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -272,13 +270,13 @@ public class AnalyzedWorld {
             return createAnalyzedClassPlanB(className, loader);
         }
         byte[] bytes = Resources.toByteArray(url);
-        List<Advice> advisors =
-                mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
+        AdviceIndex adviceIndex =
+                mergeInstrumentationAnnotations(this.adviceIndex.get(), bytes, loader, className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         // passing noLongerNeedToWeaveMainMethods=true since not really weaving bytecode here
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes, true);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), adviceIndex,
+                shimTypes, mixinTypes, loader, this, null, bytes, true);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
@@ -324,7 +322,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, adviceIndex.get());
         if (analyzedClass.isInterface()) {
             // FIXME log warning if any default methods have advice
             return analyzedClass;
@@ -404,7 +402,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz,
+            AdviceIndex adviceIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -428,7 +427,7 @@ public class AnalyzedWorld {
         // TODO document limitations of superClassNames only containing first level super classes
         // (e.g. doesn't include super class's super class)
         List<AdviceMatcher> adviceMatchers = AdviceMatcher.getAdviceMatchers(clazz.getName(),
-                classAnnotations, superClassNames, advisors);
+                classAnnotations, superClassNames, adviceIndex);
         Map<Method, List<Advice>> bridgeTargetAdvisors = Maps.newHashMap();
         for (Method method : clazz.getDeclaredMethods()) {
             if (!method.isBridge()) {
@@ -303,6 +303,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.bytecode.api.Util");
         types.add("org.glowroot.agent.weaving.Advice");
         types.add("org.glowroot.agent.weaving.AdviceGenerator");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$1");
+        types.add("org.glowroot.agent.weaving.AdviceIndex$PrefixNode");
         types.add("org.glowroot.agent.weaving.Advice$AdviceOrdering");
         types.add("org.glowroot.agent.weaving.Advice$AdviceParameter");
         types.add("org.glowroot.agent.weaving.Advice$ParameterKind");
@@ -396,6 +399,9 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.agent.weaving.WovenClassCache");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$CachedClass");
+        types.add("org.glowroot.agent.weaving.WovenClassCache$Fingerprint");
         types.add("org.glowroot.wire.api.model.AgentConfigOuterClass$AgentConfig"
                 + "$InstrumentationConfig$CaptureKind");
         types.add("org.glowroot.wire.api.model.AgentConfigOuterClass$AgentConfig"
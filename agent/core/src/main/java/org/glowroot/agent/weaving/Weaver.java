@@ -26,6 +26,7 @@ import java.security.CodeSource;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
@@ -57,8 +58,11 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries;
 import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.WovenClassCache.CachedClass;
 import org.glowroot.common.util.ScheduledRunnable.TerminateSubsequentExecutionsException;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM6;
 import static org.objectweb.asm.Opcodes.INVOKESTATIC;
@@ -80,13 +84,14 @@ public class Weaver {
         }
     }
 
-    private final Supplier<List<Advice>> advisors;
+    private final Supplier<AdviceIndex> adviceIndex;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final TransactionRegistry transactionRegistry;
     private final Ticker ticker;
     private final TimerName timerName;
+    private final @Nullable WovenClassCache wovenClassCache;
 
     private volatile boolean weavingTimerEnabled;
 
@@ -94,14 +99,20 @@ public class Weaver {
 
     private volatile boolean weavingDisabledForLoggingDeadlock;
 
+    // these are only tracked until entering the main method, in order to measure the weaving
+    // time during jvm startup
+    private final AtomicLong startupWeavingCount = new AtomicLong();
+    private final AtomicLong startupWeavingNanos = new AtomicLong();
+    private final AtomicLong startupCacheHitCount = new AtomicLong();
+
     private final IterableWithSelfRemovableEntries<ActiveWeaving> activeWeavings =
             new IterableWithSelfRemovableEntries<ActiveWeaving>();
 
-    public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+    public Weaver(Supplier<AdviceIndex> adviceIndex, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
             TransactionRegistry transactionRegistry, Ticker ticker, TimerNameCache timerNameCache,
-            final ConfigService configService) {
-        this.advisors = advisors;
+            final ConfigService configService, @Nullable WovenClassCache wovenClassCache) {
+        this.adviceIndex = adviceIndex;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
@@ -114,10 +125,20 @@ public class Weaver {
             }
         });
         this.timerName = timerNameCache.getTimerName(OnlyForTheTimerName.class);
+        this.wovenClassCache = wovenClassCache;
     }
 
     public void setNoLongerNeedToWeaveMainMethods() {
         noLongerNeedToWeaveMainMethods = true;
+        long startupWeavingMillis = NANOSECONDS.toMillis(startupWeavingNanos.get());
+        if (wovenClassCache == null) {
+            logger.debug("weaving before entering main: {} classes in {} ms",
+                    startupWeavingCount.get(), startupWeavingMillis);
+        } else {
+            logger.info("weaving before entering main: {} classes in {} ms ({} served from woven"
+                    + " class cache)", startupWeavingCount.get(), startupWeavingMillis,
+                    startupCacheHitCount.get());
+        }
     }
 
     public void checkForDeadlockedActiveWeaving() {
@@ -156,6 +177,10 @@ public class Weaver {
             if (weavingTimer != null) {
                 weavingTimer.stop();
             }
+            if (!noLongerNeedToWeaveMainMethods) {
+                startupWeavingCount.getAndIncrement();
+                startupWeavingNanos.getAndAdd(ticker.read() - startTick);
+            }
         }
     }
 
@@ -178,8 +203,28 @@ public class Weaver {
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
             @Nullable ClassLoader loader) {
-        List<Advice> advisors = AnalyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        AdviceIndex baseAdviceIndex = this.adviceIndex.get();
+        AdviceIndex adviceIndex = AnalyzedWorld.mergeInstrumentationAnnotations(baseAdviceIndex,
                 classBytes, loader, className);
+        boolean noLongerNeedToWeaveMainMethods = this.noLongerNeedToWeaveMainMethods;
+        File cacheFile = null;
+        // classes with @Instrumentation annotations are not cached since their advisors are
+        // generated on each jvm startup, and re-weaving is not cached since it is not part of
+        // jvm startup
+        if (wovenClassCache != null && adviceIndex == baseAdviceIndex
+                && classBeingRedefined == null) {
+            cacheFile = wovenClassCache.getFile(adviceIndex, className, classBytes,
+                    loader == null, noLongerNeedToWeaveMainMethods);
+            CachedClass cachedClass = wovenClassCache.read(cacheFile, adviceIndex);
+            if (cachedClass != null && cachedClass.superAnalyzedClasses().equals(
+                    getSuperAnalyzedClasses(cachedClass.analyzedClass(), loader, codeSource))) {
+                if (!noLongerNeedToWeaveMainMethods) {
+                    startupCacheHitCount.getAndIncrement();
+                }
+                analyzedWorld.add(cachedClass.analyzedClass(), loader);
+                return cachedClass.wovenBytes();
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         boolean frames = accv.getMajorVersion() >= V1_6;
@@ -241,12 +286,15 @@ public class Weaver {
             cr.accept(new JSRInlinerClassVisitor(cv), expandFrames);
             maybeProcessedBytes = cw.toByteArray();
         }
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, analyzedWorld, codeSource, classBytes,
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), adviceIndex,
+                shimTypes, mixinTypes, loader, analyzedWorld, codeSource, classBytes,
                 noLongerNeedToWeaveMainMethods);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            if (cacheFile != null && maybeProcessedBytes == null) {
+                writeToCache(cacheFile, adviceIndex, null, classAnalyzer);
+            }
             return maybeProcessedBytes;
         }
         List<ShimType> matchedShimTypes = classAnalyzer.getMatchedShimTypes();
@@ -304,6 +352,11 @@ public class Weaver {
             }
             return null;
         }
+        // classes with class or method metas are not cached since weaving also generates a meta
+        // holder class for them
+        if (cacheFile != null && maybeProcessedBytes == null && !cv.hasMetaHolder()) {
+            writeToCache(cacheFile, adviceIndex, transformedBytes, classAnalyzer);
+        }
         if (className.equals(DEBUG_CLASS_NAME)) {
             try {
                 File tempFile = File.createTempFile("glowroot-transformed-", ".class");
@@ -321,6 +374,34 @@ public class Weaver {
         return transformedBytes;
     }
 
+    private List<AnalyzedClass> getSuperAnalyzedClasses(AnalyzedClass analyzedClass,
+            @Nullable ClassLoader loader, @Nullable CodeSource codeSource) {
+        // same order as in ClassAnalyzer
+        ParseContext parseContext = ImmutableParseContext.of(analyzedClass.name(), codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        if (!analyzedClass.isInterface()) {
+            superAnalyzedClasses.addAll(analyzedWorld
+                    .getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext));
+        }
+        return superAnalyzedClasses;
+    }
+
+    private void writeToCache(File cacheFile, AdviceIndex adviceIndex,
+            byte /*@Nullable*/ [] wovenBytes, ClassAnalyzer classAnalyzer) {
+        checkNotNull(wovenClassCache);
+        AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+        if (analyzedClass.ejbRemote()) {
+            // super analyzed classes are modified for @javax.ejb.Remote
+            return;
+        }
+        wovenClassCache.write(cacheFile, adviceIndex, wovenBytes, analyzedClass,
+                classAnalyzer.getSuperAnalyzedClasses());
+    }
+
     private void checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
         ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
         long[] deadlockedThreadIds = threadBean.findDeadlockedThreads();
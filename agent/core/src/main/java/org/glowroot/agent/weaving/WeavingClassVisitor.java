@@ -251,6 +251,10 @@ class WeavingClassVisitor extends ClassVisitor {
         cw.visitEnd();
     }
 
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     @RequiresNonNull("type")
     private void handleMetaHolders() {
         if (metaHolderInternalName != null) {
@@ -0,0 +1,470 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// opt-in on-disk cache of the weaving result for each class (the woven bytes, or nothing if the
+// class does not need weaving) together with its AnalyzedClass, so that on subsequent jvm startups
+// unchanged classes can skip the parsing, analysis and weaving
+//
+// entries are keyed by the class name and bytes, a fingerprint of the agent version, advisors, shim
+// types and mixin types, and the other inputs to weaving (bootstrap class loader, weaving of main
+// methods)
+//
+// the weaving result also depends on the analyzed super classes, so these are stored in the entry
+// and compared against the current analyzed super classes before the entry is used
+public class WovenClassCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WovenClassCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final String agentVersion;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+
+    // advisors change only when reweavable instrumentation is updated, so only need to cache the
+    // fingerprint for the most recent advice index
+    private volatile @Nullable Fingerprint fingerprint;
+
+    private volatile boolean staleFingerprintsRemoved;
+
+    public WovenClassCache(File directory, String agentVersion, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        this.directory = directory;
+        this.agentVersion = agentVersion;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+    }
+
+    File getFile(AdviceIndex adviceIndex, String className, byte[] classBytes,
+            boolean bootstrapLoader, boolean noLongerNeedToWeaveMainMethods) {
+        Fingerprint fingerprint = getFingerprint(adviceIndex);
+        MessageDigest messageDigest = createMessageDigest();
+        messageDigest.update((byte) (bootstrapLoader ? 1 : 0));
+        messageDigest.update((byte) (noLongerNeedToWeaveMainMethods ? 1 : 0));
+        messageDigest.update(className.getBytes(UTF_8));
+        messageDigest.update((byte) 0);
+        messageDigest.update(classBytes);
+        return new File(new File(directory, fingerprint.hex), toHex(messageDigest.digest()));
+    }
+
+    @Nullable
+    CachedClass read(File file, AdviceIndex adviceIndex) {
+        if (!file.exists()) {
+            return null;
+        }
+        Fingerprint fingerprint = getFingerprint(adviceIndex);
+        try {
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    return null;
+                }
+                byte[] wovenBytes = null;
+                if (in.readBoolean()) {
+                    wovenBytes = new byte[in.readInt()];
+                    in.readFully(wovenBytes);
+                }
+                AnalyzedClass analyzedClass = readAnalyzedClass(in, fingerprint);
+                int superAnalyzedClassCount = in.readInt();
+                List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+                for (int i = 0; i < superAnalyzedClassCount; i++) {
+                    superAnalyzedClasses.add(readAnalyzedClass(in, fingerprint));
+                }
+                return new CachedClass(wovenBytes, analyzedClass, superAnalyzedClasses);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // e.g. partially written or corrupt entry, in which case it will be overwritten
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    void write(File file, AdviceIndex adviceIndex, byte /*@Nullable*/ [] wovenBytes,
+            AnalyzedClass analyzedClass, List<AnalyzedClass> superAnalyzedClasses) {
+        Fingerprint fingerprint = getFingerprint(adviceIndex);
+        if (!isCacheable(analyzedClass, fingerprint)) {
+            return;
+        }
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            if (!isCacheable(superAnalyzedClass, fingerprint)) {
+                return;
+            }
+        }
+        try {
+            File parentDir = file.getParentFile();
+            if (!parentDir.exists() && !parentDir.mkdirs() && !parentDir.exists()) {
+                throw new IOException("Could not create directory: " + parentDir);
+            }
+            // write to temp file and then rename, so that a partially written entry is never read
+            File tmpFile = File.createTempFile("tmp-", ".tmp", parentDir);
+            DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                if (wovenBytes == null) {
+                    out.writeBoolean(false);
+                } else {
+                    out.writeBoolean(true);
+                    out.writeInt(wovenBytes.length);
+                    out.write(wovenBytes);
+                }
+                writeAnalyzedClass(out, analyzedClass, fingerprint);
+                out.writeInt(superAnalyzedClasses.size());
+                for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+                    writeAnalyzedClass(out, superAnalyzedClass, fingerprint);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmpFile.renameTo(file) && !tmpFile.delete()) {
+                logger.debug("could not delete temp file: {}", tmpFile);
+            }
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private Fingerprint getFingerprint(AdviceIndex adviceIndex) {
+        Fingerprint fingerprint = this.fingerprint;
+        if (fingerprint != null && fingerprint.adviceIndex == adviceIndex) {
+            return fingerprint;
+        }
+        synchronized (this) {
+            fingerprint = this.fingerprint;
+            if (fingerprint == null || fingerprint.adviceIndex != adviceIndex) {
+                fingerprint = new Fingerprint(adviceIndex, createFingerprintHex(adviceIndex));
+                this.fingerprint = fingerprint;
+            }
+            if (!staleFingerprintsRemoved) {
+                // entries for previous agent versions and previous instrumentation can never be
+                // used again (the agent tmp dir is locked, so it is not shared with other jvms)
+                removeStaleFingerprints(fingerprint.hex);
+                staleFingerprintsRemoved = true;
+            }
+        }
+        return fingerprint;
+    }
+
+    private String createFingerprintHex(AdviceIndex adviceIndex) {
+        MessageDigest messageDigest = createMessageDigest();
+        messageDigest.update(agentVersion.getBytes(UTF_8));
+        for (Advice advice : adviceIndex.advisors()) {
+            messageDigest.update((byte) 0);
+            messageDigest.update(advice.toString().getBytes(UTF_8));
+        }
+        for (ShimType shimType : shimTypes) {
+            messageDigest.update((byte) 0);
+            messageDigest.update(shimType.toString().getBytes(UTF_8));
+        }
+        for (MixinType mixinType : mixinTypes) {
+            messageDigest.update((byte) 0);
+            messageDigest.update(mixinType.targets().toString().getBytes(UTF_8));
+            messageDigest.update(mixinType.interfaces().toString().getBytes(UTF_8));
+            messageDigest.update(String.valueOf(mixinType.initMethodName()).getBytes(UTF_8));
+            messageDigest.update(mixinType.implementationBytes());
+        }
+        return toHex(messageDigest.digest());
+    }
+
+    private void removeStaleFingerprints(String currentFingerprintHex) {
+        File[] fingerprintDirs = directory.listFiles();
+        if (fingerprintDirs == null) {
+            return;
+        }
+        for (File fingerprintDir : fingerprintDirs) {
+            if (fingerprintDir.getName().equals(currentFingerprintHex)) {
+                continue;
+            }
+            File[] files = fingerprintDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.delete()) {
+                        logger.debug("could not delete file: {}", file);
+                    }
+                }
+            }
+            if (!fingerprintDir.delete()) {
+                logger.debug("could not delete directory: {}", fingerprintDir);
+            }
+        }
+    }
+
+    // advisors, shim types and mixin types are stored by their index, which is not possible for
+    // advisors from @Instrumentation annotations since those are not in the advice index
+    private boolean isCacheable(AnalyzedClass analyzedClass, Fingerprint fingerprint) {
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            for (Advice advice : analyzedMethod.advisors()) {
+                if (!fingerprint.advisorIndexes.containsKey(advice)) {
+                    return false;
+                }
+            }
+            for (Advice advice : analyzedMethod.subTypeRestrictedAdvisors()) {
+                if (!fingerprint.advisorIndexes.containsKey(advice)) {
+                    return false;
+                }
+            }
+        }
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            if (indexOf(shimTypes, shimType) == -1) {
+                return false;
+            }
+        }
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            if (indexOf(mixinTypes, mixinType) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeAnalyzedClass(DataOutputStream out, AnalyzedClass analyzedClass,
+            Fingerprint fingerprint) throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeAdvisors(out, analyzedMethod.advisors(), fingerprint);
+            writeAdvisors(out, analyzedMethod.subTypeRestrictedAdvisors(), fingerprint);
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            out.writeUTF(publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        out.writeInt(analyzedClass.shimTypes().size());
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            out.writeInt(indexOf(shimTypes, shimType));
+        }
+        out.writeInt(analyzedClass.mixinTypes().size());
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            out.writeInt(indexOf(mixinTypes, mixinType));
+        }
+        out.writeBoolean(analyzedClass.ejbRemote());
+    }
+
+    private AnalyzedClass readAnalyzedClass(DataInputStream in, Fingerprint fingerprint)
+            throws IOException {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readAdvisors(in, fingerprint))
+                    .addAllSubTypeRestrictedAdvisors(readAdvisors(in, fingerprint))
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            builder.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        int shimTypeCount = in.readInt();
+        for (int i = 0; i < shimTypeCount; i++) {
+            builder.addShimTypes(get(shimTypes, in.readInt()));
+        }
+        int mixinTypeCount = in.readInt();
+        for (int i = 0; i < mixinTypeCount; i++) {
+            builder.addMixinTypes(get(mixinTypes, in.readInt()));
+        }
+        return builder.ejbRemote(in.readBoolean())
+                .build();
+    }
+
+    private static void writeAdvisors(DataOutputStream out, List<Advice> advisors,
+            Fingerprint fingerprint) throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            Integer index = fingerprint.advisorIndexes.get(advice);
+            if (index == null) {
+                // checked by isCacheable()
+                throw new IOException("Advice not found in advice index: " + advice);
+            }
+            out.writeInt(index);
+        }
+    }
+
+    private static List<Advice> readAdvisors(DataInputStream in, Fingerprint fingerprint)
+            throws IOException {
+        int count = in.readInt();
+        List<Advice> advisors = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            advisors.add(get(fingerprint.adviceIndex.advisors(), in.readInt()));
+        }
+        return advisors;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String string)
+            throws IOException {
+        if (string == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        } else {
+            return null;
+        }
+    }
+
+    private static <T> int indexOf(List<T> list, T item) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static <T> T get(List<T> list, int index) throws IOException {
+        if (index < 0 || index >= list.size()) {
+            throw new IOException("Invalid index: " + index);
+        }
+        return list.get(index);
+    }
+
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is required to be supported by every java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    static class CachedClass {
+
+        private final byte /*@Nullable*/ [] wovenBytes;
+        private final AnalyzedClass analyzedClass;
+        private final List<AnalyzedClass> superAnalyzedClasses;
+
+        CachedClass(byte /*@Nullable*/ [] wovenBytes, AnalyzedClass analyzedClass,
+                List<AnalyzedClass> superAnalyzedClasses) {
+            this.wovenBytes = wovenBytes;
+            this.analyzedClass = analyzedClass;
+            this.superAnalyzedClasses = superAnalyzedClasses;
+        }
+
+        byte /*@Nullable*/ [] wovenBytes() {
+            return wovenBytes;
+        }
+
+        AnalyzedClass analyzedClass() {
+            return analyzedClass;
+        }
+
+        List<AnalyzedClass> superAnalyzedClasses() {
+            return superAnalyzedClasses;
+        }
+    }
+
+    private static class Fingerprint {
+
+        private final AdviceIndex adviceIndex;
+        private final String hex;
+        private final Map<Advice, Integer> advisorIndexes;
+
+        Fingerprint(AdviceIndex adviceIndex, String hex) {
+            this.adviceIndex = adviceIndex;
+            this.hex = hex;
+            // identity map since advice equals/hashCode is relatively expensive, and the advisors
+            // in the analyzed classes are the same instances as in the advice index
+            advisorIndexes = new IdentityHashMap<Advice, Integer>();
+            List<Advice> advisors = adviceIndex.advisors();
+            for (int i = 0; i < advisors.size(); i++) {
+                advisorIndexes.put(advisors.get(i), i);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.central.CentralSpool.SendCallback;
+import org.glowroot.agent.central.CentralSpool.Sender;
+import org.glowroot.agent.central.CentralSpool.SpooledStream;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CentralSpoolTest {
+
+    private File dir;
+
+    @Before
+    public void beforeEach() throws IOException {
+        dir = File.createTempFile("glowroot-unit-test-", "");
+        dir.delete();
+    }
+
+    @After
+    public void afterEach() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void shouldReadInOrder() throws Exception {
+        // given
+        CentralSpool centralSpool = new CentralSpool(dir, 1024 * 1024, 100, 1, new NopSender());
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            centralSpool.append(CentralSpool.AGGREGATE_STREAM, buildMessages(i));
+        }
+
+        // then
+        assertThat(dir.listFiles().length).isGreaterThan(1);
+        for (int i = 0; i < 10; i++) {
+            SpooledStream spooledStream = centralSpool.peek();
+            assertThat(spooledStream).isNotNull();
+            assertThat(spooledStream.streamType()).isEqualTo(CentralSpool.AGGREGATE_STREAM);
+            assertThat(getCaptureTime(spooledStream)).isEqualTo(i);
+            centralSpool.remove(spooledStream);
+        }
+        assertThat(centralSpool.peek()).isNull();
+        assertThat(centralSpool.getTotalSizeBytes()).isZero();
+        assertThat(dir.listFiles()).isEmpty();
+        centralSpool.close();
+    }
+
+    @Test
+    public void shouldNotExceedMaxSize() throws Exception {
+        // given
+        CentralSpool centralSpool = new CentralSpool(dir, 200, 100, 1, new NopSender());
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            centralSpool.append(CentralSpool.AGGREGATE_STREAM, buildMessages(i));
+        }
+
+        // then
+        assertThat(centralSpool.getTotalSizeBytes()).isLessThanOrEqualTo(200);
+        assertThat(getCaptureTime(centralSpool.peek())).isEqualTo(0);
+        centralSpool.close();
+    }
+
+    @Test
+    public void shouldResumeAfterRestart() throws Exception {
+        // given
+        CentralSpool centralSpool = new CentralSpool(dir, 1024 * 1024, 100, 1, new NopSender());
+        for (int i = 0; i < 10; i++) {
+            centralSpool.append(CentralSpool.AGGREGATE_STREAM, buildMessages(i));
+        }
+        centralSpool.remove(centralSpool.peek());
+        centralSpool.close();
+
+        // when
+        centralSpool = new CentralSpool(dir, 1024 * 1024, 100, 1, new NopSender());
+        centralSpool.append(CentralSpool.AGGREGATE_STREAM, buildMessages(10));
+
+        // then
+        int count = 0;
+        long lastCaptureTime = -1;
+        SpooledStream spooledStream;
+        while ((spooledStream = centralSpool.peek()) != null) {
+            long captureTime = getCaptureTime(spooledStream);
+            assertThat(captureTime).isGreaterThan(lastCaptureTime);
+            lastCaptureTime = captureTime;
+            centralSpool.remove(spooledStream);
+            count++;
+        }
+        // first segment is resent from its beginning
+        assertThat(count).isGreaterThanOrEqualTo(10);
+        assertThat(lastCaptureTime).isEqualTo(10);
+        centralSpool.close();
+    }
+
+    private static List<AggregateStreamMessage> buildMessages(long captureTime) {
+        return ImmutableList.of(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId("xyz")
+                        .setCaptureTime(captureTime))
+                .build());
+    }
+
+    private static long getCaptureTime(SpooledStream spooledStream) throws Exception {
+        return AggregateStreamMessage.parseFrom(spooledStream.messages().get(0))
+                .getStreamHeader().getCaptureTime();
+    }
+
+    private static class NopSender implements Sender {
+
+        @Override
+        public boolean isReadyToSend() {
+            return false;
+        }
+
+        @Override
+        public void send(SpooledStream spooledStream, SendCallback callback) {}
+    }
+}
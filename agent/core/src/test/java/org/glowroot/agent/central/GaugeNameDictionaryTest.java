@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GaugeNameDictionaryTest {
+
+    private static final List<GaugeValue> GAUGE_VALUES = ImmutableList.of(
+            GaugeValue.newBuilder()
+                    .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                    .setValue(1)
+                    .build(),
+            GaugeValue.newBuilder()
+                    .setGaugeName("java.lang:type=OperatingSystem:ProcessCpuLoad")
+                    .setValue(2)
+                    .build());
+
+    @Test
+    public void shouldOnlySendGaugeNamesUntilReceived() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+
+        // when
+        GaugeValueMessage first = dictionary.encode(GAUGE_VALUES).build();
+        dictionary.onSent(first.getGaugeNameEntryList());
+        GaugeValueMessage second = dictionary.encode(GAUGE_VALUES).build();
+
+        // then
+        assertThat(first.getDictionaryEncoded()).isTrue();
+        assertThat(first.getGaugeNameEntryCount()).isEqualTo(2);
+        assertThat(first.getGaugeNameEntry(0).getName())
+                .isEqualTo("java.lang:type=Memory:HeapMemoryUsage.used");
+        assertThat(first.getGaugeValues(0).getGaugeName()).isEmpty();
+        assertThat(first.getGaugeValues(1).getGaugeNameId())
+                .isEqualTo(first.getGaugeNameEntry(1).getId());
+        assertThat(second.getGaugeNameEntryCount()).isZero();
+        assertThat(second.getGaugeValuesList()).isEqualTo(first.getGaugeValuesList());
+    }
+
+    @Test
+    public void shouldResendGaugeNamesAfterReset() {
+        // given
+        GaugeNameDictionary dictionary = new GaugeNameDictionary();
+        dictionary.onSent(dictionary.encode(GAUGE_VALUES).getGaugeNameEntryList());
+
+        // when
+        dictionary.reset();
+        GaugeValueMessage message = dictionary.encode(GAUGE_VALUES).build();
+
+        // then
+        assertThat(message.getGaugeNameEntryCount()).isEqualTo(2);
+    }
+}
@@ -17,6 +17,7 @@ package org.glowroot.agent.impl;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.Test;
@@ -25,6 +26,7 @@ import org.glowroot.agent.collector.Collector;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.model.ThreadStats;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -74,33 +76,190 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldFlushWithShardedProcessing() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock(), 4);
+
+        // when
+        int count = 0;
+        long firstCaptureTime = aggregator.add(buildTransaction("a type", "name 0"));
+        long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
+        while (true) {
+            // transaction names of the same transaction type are spread across the shards
+            long captureTime =
+                    aggregator.add(buildTransaction("a type", "name " + (count % 8)));
+            count++;
+            if (captureTime > aggregateCaptureTime) {
+                break;
+            }
+            MILLISECONDS.sleep(1);
+        }
+
+        // then
+        // aggregation is done in separate threads, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalTransactionCount() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalTransactionCount()).isEqualTo(count);
+        assertThat(aggregateCollector.getTotalTransactionAggregateCount()).isEqualTo(count);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldAggregateOutOfOrderTransactionsIntoTheirOwnIntervals() throws Exception {
+        shouldAggregateOutOfOrderTransactionsIntoTheirOwnIntervals(1);
+    }
+
+    @Test
+    public void shouldAggregateOutOfOrderTransactionsIntoTheirOwnIntervalsWhenSharded()
+            throws Exception {
+        shouldAggregateOutOfOrderTransactionsIntoTheirOwnIntervals(2);
+    }
+
+    private static void shouldAggregateOutOfOrderTransactionsIntoTheirOwnIntervals(
+            int processingThreads) throws Exception {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        SlowProducerClock clock = new SlowProducerClock();
+        Aggregator aggregator = new Aggregator(aggregateCollector, configService, 1000, clock,
+                processingThreads);
+
+        // when
+        addOutOfOrderTransactions(aggregator, clock);
+
+        // then
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (getTransactionCount(aggregator, 1000) > 0
+                    && getTransactionCount(aggregator, 2000) > 0) {
+                break;
+            }
+            MILLISECONDS.sleep(1);
+        }
+        assertThat(getTransactionCount(aggregator, 1000)).isEqualTo(1);
+        assertThat(getTransactionCount(aggregator, 2000)).isEqualTo(1);
+        aggregator.close();
+    }
+
+    // the first transaction enters the queue first but reads a capture time in the next interval,
+    // so the second transaction behind it has an earlier capture time
+    private static void addOutOfOrderTransactions(final Aggregator aggregator,
+            SlowProducerClock clock) throws InterruptedException {
+        Thread slowProducer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                aggregator.add(buildTransaction());
+            }
+        });
+        clock.slowProducer = slowProducer;
+        slowProducer.start();
+        clock.slowProducerEntered.await();
+        clock.mainThread = Thread.currentThread();
+        assertThat(aggregator.add(buildTransaction())).isEqualTo(900);
+        clock.slowProducerRelease.countDown();
+        slowProducer.join();
+    }
+
+    private static long getTransactionCount(Aggregator aggregator, long captureTime) {
+        List<AggregateIntervalCollector> intervalCollectors =
+                aggregator.getOrderedIntervalCollectorsInRange(captureTime - 1, captureTime);
+        if (intervalCollectors.isEmpty()) {
+            return 0;
+        }
+        OverviewAggregate overviewAggregate =
+                intervalCollectors.get(0).getOverviewAggregate("a type", null);
+        return overviewAggregate == null ? 0 : overviewAggregate.transactionCount();
+    }
+
     private static Transaction buildTransaction() {
+        return buildTransaction("a type", "a name");
+    }
+
+    private static Transaction buildTransaction(String transactionType, String transactionName) {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
         when(mainThreadRootTimer.getName()).thenReturn("mock timer");
-        when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getTransactionType()).thenReturn(transactionType);
+        when(transaction.getTransactionName()).thenReturn(transactionName);
         when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
         when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
         when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
         return transaction;
     }
 
+    private static class SlowProducerClock extends Clock {
+
+        private final CountDownLatch slowProducerEntered = new CountDownLatch(1);
+        private final CountDownLatch slowProducerRelease = new CountDownLatch(1);
+
+        private volatile @Nullable Thread slowProducer;
+        private volatile @Nullable Thread mainThread;
+
+        // only accessed by the slow producer
+        private int slowProducerReads;
+
+        @Override
+        public long currentTimeMillis() {
+            Thread currentThread = Thread.currentThread();
+            if (currentThread == slowProducer) {
+                if (slowProducerReads++ == 0) {
+                    // the read before entering the queue
+                    return 800;
+                }
+                // the read after entering the queue (capture time) is delayed
+                slowProducerEntered.countDown();
+                try {
+                    slowProducerRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1500;
+            }
+            if (currentThread == mainThread) {
+                return 900;
+            }
+            return 100;
+        }
+    }
+
     private static class MockCollector implements Collector {
 
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
+        private volatile long totalTransactionCount;
+        private volatile long totalTransactionAggregateCount;
 
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private long getTotalTransactionCount() {
+            return totalTransactionCount;
+        }
+
+        private long getTotalTransactionAggregateCount() {
+            return totalTransactionAggregateCount;
+        }
+
         @Override
         public void init(File confDir, @Nullable File sharedConfDir, Environment environment,
                 AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
 
         @Override
         public void collectAggregates(AggregateReader aggregateReader) throws Exception {
+            final long[] transactionCount = new long[2];
             aggregateReader.accept(new AggregateVisitor() {
                 @Override
                 public void visitOverallAggregate(String transactionType,
@@ -109,12 +268,20 @@ public class AggregatorTest {
                     if (totalDurationNanos == 0) {
                         totalDurationNanos = overallAggregate.getTotalDurationNanos();
                     }
+                    transactionCount[0] += overallAggregate.getTransactionCount();
                 }
                 @Override
                 public void visitTransactionAggregate(String transactionType,
                         String transactionName, List<String> sharedQueryTexts,
-                        Aggregate transactionAggregate) {}
+                        Aggregate transactionAggregate) {
+                    transactionCount[1] += transactionAggregate.getTransactionCount();
+                }
             });
+            // only capture first non-zero value
+            if (totalTransactionCount == 0) {
+                totalTransactionAggregateCount = transactionCount[1];
+                totalTransactionCount = transactionCount[0];
+            }
         }
 
         @Override
@@ -123,6 +290,9 @@ public class AggregatorTest {
         @Override
         public void collectTrace(TraceReader traceReader) {}
 
+        @Override
+        public void collectTraces(List<TraceReader> traceReaders) {}
+
         @Override
         public void log(LogEvent logEvent) {}
     }
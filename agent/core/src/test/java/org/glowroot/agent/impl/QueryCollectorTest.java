@@ -18,14 +18,17 @@ package org.glowroot.agent.impl;
 import java.util.List;
 import java.util.Map;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import org.junit.Test;
 
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.SharedQueryTextCollection;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class QueryCollectorTest {
@@ -48,6 +51,27 @@ public class QueryCollectorTest {
         test(queries);
     }
 
+    @Test
+    public void testGetFullQueryText() throws Exception {
+        // given
+        QueryCollector queries = new QueryCollector(100, 4);
+        String fullQueryText1 = Strings.repeat("select 1 ", 100);
+        String fullQueryText2 = Strings.repeat("select 2 ", 100);
+        queries.mergeQuery("SQL", fullQueryText1, 1, 1, true, 1, false);
+
+        // when
+        String found1 = queries.getFullQueryText(sha1(fullQueryText1));
+        // added after the sha1 index has been built
+        queries.mergeQuery("SQL", fullQueryText2, 1, 1, true, 1, false);
+        String found2 = queries.getFullQueryText(sha1(fullQueryText2));
+        String notFound = queries.getFullQueryText(sha1("select 3"));
+
+        // then
+        assertThat(found1).isEqualTo(fullQueryText1);
+        assertThat(found2).isEqualTo(fullQueryText2);
+        assertThat(notFound).isNull();
+    }
+
     private void test(QueryCollector collector) throws Exception {
         // when
         SharedQueryTextCollectionImpl sharedQueryTextCollection =
@@ -69,6 +93,10 @@ public class QueryCollectorTest {
         assertThat(queries.get(100).getTotalDurationNanos()).isEqualTo(201);
     }
 
+    private static String sha1(String text) {
+        return Hashing.sha1().hashString(text, UTF_8).toString();
+    }
+
     private static class SharedQueryTextCollectionImpl implements SharedQueryTextCollection {
 
         private final Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
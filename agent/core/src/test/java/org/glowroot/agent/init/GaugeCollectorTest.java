@@ -18,16 +18,27 @@ package org.glowroot.agent.init;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeoutException;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import org.glowroot.agent.collector.Collector;
@@ -38,6 +49,7 @@ import org.glowroot.agent.config.ImmutableAdvancedConfig;
 import org.glowroot.agent.config.ImmutableGaugeConfig;
 import org.glowroot.agent.config.ImmutableMBeanAttribute;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
@@ -47,7 +59,9 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.nullable;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -331,6 +345,138 @@ public class GaugeCollectorTest {
                 "MBean attribute value is not a number or string");
     }
 
+    @Test
+    public void shouldReadAttributesInBatch() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ddd", false))
+                .build();
+        AttributeList attributeList = new AttributeList();
+        attributeList.add(new Attribute("ccc", 555));
+        attributeList.add(new Attribute("ddd", 666));
+        when(lazyPlatformMBeanServer.getAttributes(any(ObjectName.class), any(String[].class)))
+                .thenReturn(attributeList);
+
+        // when
+        List<GaugeValue> gaugeValues = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues).hasSize(2);
+        assertThat(gaugeValues.get(0).getGaugeName()).isEqualTo("xyz:aaa=bbb:ccc");
+        assertThat(gaugeValues.get(0).getValue()).isEqualTo(555);
+        assertThat(gaugeValues.get(1).getGaugeName()).isEqualTo("xyz:aaa=bbb:ddd");
+        assertThat(gaugeValues.get(1).getValue()).isEqualTo(666);
+        verify(lazyPlatformMBeanServer, never()).getAttribute(any(ObjectName.class), anyString());
+    }
+
+    @Test
+    public void shouldDropGaugeThatExceedsTimeBudget() throws Exception {
+        // given
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("xyz:aaa=bbb")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("ccc", false))
+                .build();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getGaugeConfigs()).thenReturn(ImmutableList.of(gaugeConfig));
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Exception {
+                        latch.await();
+                        return 555;
+                    }
+                });
+        GaugeCollector parallelGaugeCollector = new GaugeCollector(configService,
+                mock(Collector.class), lazyPlatformMBeanServer, null, clock, ticker, 2, 100);
+
+        // when
+        parallelGaugeCollector.run();
+        // still in flight from the prior collection
+        parallelGaugeCollector.run();
+        latch.countDown();
+        parallelGaugeCollector.close();
+
+        // then
+        assertThat(parallelGaugeCollector.getTimedOutGaugeCount()).isEqualTo(2);
+        verify(logger).debug(nullable(String.class), any(TimeoutException.class));
+    }
+
+    @Test
+    public void shouldRequeryMatchingObjectNamesAfterMBeanRegistrationChange() throws Exception {
+        // given
+        MBeanServer mbeanServer = initMBeanServer();
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:type=Test,name=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("Value", false))
+                .build();
+        ObjectName one = ObjectName.getInstance("test:type=Test,name=one");
+        ObjectName two = ObjectName.getInstance("test:type=Test,name=two");
+        mbeanServer.registerMBean(new TestImpl(), one);
+
+        // when
+        List<GaugeValue> gaugeValues1 = gaugeCollector.collectGaugeValues(gaugeConfig);
+        List<GaugeValue> gaugeValues2 = gaugeCollector.collectGaugeValues(gaugeConfig);
+        mbeanServer.registerMBean(new TestImpl(), two);
+        List<GaugeValue> gaugeValues3 = gaugeCollector.collectGaugeValues(gaugeConfig);
+        mbeanServer.unregisterMBean(one);
+        List<GaugeValue> gaugeValues4 = gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        assertThat(gaugeValues1).hasSize(1);
+        assertThat(gaugeValues2).hasSize(1);
+        assertThat(gaugeValues3).hasSize(2);
+        assertThat(gaugeValues4).hasSize(1);
+        // not re-queried for the second collection
+        verify(lazyPlatformMBeanServer, times(3)).queryNames(any(ObjectName.class),
+                nullable(QueryExp.class));
+    }
+
+    @Test
+    public void shouldPruneMatchingObjectNamesOfDeletedGauges() throws Exception {
+        // given
+        initMBeanServer();
+        GaugeConfig gaugeConfig = ImmutableGaugeConfig.builder()
+                .mbeanObjectName("test:type=Test,name=*")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("Value", false))
+                .build();
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // when
+        // the gauge is no longer configured (the config service returns no gauge configs)
+        gaugeCollector.run();
+        gaugeCollector.collectGaugeValues(gaugeConfig);
+
+        // then
+        verify(lazyPlatformMBeanServer, times(2)).queryNames(any(ObjectName.class),
+                nullable(QueryExp.class));
+    }
+
+    // fires the init listener that the mocked lazy platform mbean server would otherwise never
+    // fire, and delegates queries and attribute reads to a (non-platform) mbean server
+    private MBeanServer initMBeanServer() throws Exception {
+        final MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+        ArgumentCaptor<InitListener> initListenerCaptor =
+                ArgumentCaptor.forClass(InitListener.class);
+        verify(lazyPlatformMBeanServer).addInitListener(initListenerCaptor.capture());
+        initListenerCaptor.getValue().postInit(mbeanServer);
+        // registering the jvm internal mbeans can fail depending on the jvm version
+        verify(logger, atMost(1)).debug(nullable(String.class), any(Exception.class));
+        when(lazyPlatformMBeanServer.queryNames(any(ObjectName.class), nullable(QueryExp.class)))
+                .thenAnswer(new Answer<Object>() {
+                    @Override
+                    public Object answer(InvocationOnMock invocation) throws Exception {
+                        return mbeanServer.queryNames((ObjectName) invocation.getArgument(0),
+                                null);
+                    }
+                });
+        when(lazyPlatformMBeanServer.getAttribute(any(ObjectName.class), anyString()))
+                .thenReturn(555);
+        return mbeanServer;
+    }
+
     private static void setLogger(Class<?> clazz, Logger logger) throws Exception {
         Field loggerField = clazz.getDeclaredField("logger");
         loggerField.setAccessible(true);
@@ -339,4 +485,15 @@ public class GaugeCollectorTest {
         modifiersField.setInt(loggerField, loggerField.getModifiers() & ~Modifier.FINAL);
         loggerField.set(null, logger);
     }
+
+    public interface TestMXBean {
+        int getValue();
+    }
+
+    private static class TestImpl implements TestMXBean {
+        @Override
+        public int getValue() {
+            return 555;
+        }
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ThreadProfileTest {
+
+    private static final StackTraceElement[] STACK_TRACE_1 = new StackTraceElement[] {
+            new StackTraceElement("com.example.Dao", "query", "Dao.java", 30),
+            new StackTraceElement("com.example.Service", "handle", "Service.java", 20),
+            new StackTraceElement("Main", "main", null, 10)};
+
+    private static final StackTraceElement[] STACK_TRACE_2 = new StackTraceElement[] {
+            new StackTraceElement("com.example.Cache", "get", "Cache.java", 40),
+            new StackTraceElement("com.example.Service", "handle", "Service.java", 20),
+            new StackTraceElement("Main", "main", null, 10)};
+
+    @Test
+    public void shouldMatchMutableProfile() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        MutableProfile mutableProfile = new MutableProfile();
+
+        // when
+        addStackTrace(STACK_TRACE_1, Thread.State.RUNNABLE, threadProfile, mutableProfile);
+        addStackTrace(STACK_TRACE_2, Thread.State.RUNNABLE, threadProfile, mutableProfile);
+        addStackTrace(STACK_TRACE_1, Thread.State.RUNNABLE, threadProfile, mutableProfile);
+        addStackTrace(STACK_TRACE_1, Thread.State.BLOCKED, threadProfile, mutableProfile);
+
+        // then
+        assertThat(threadProfile.toProto()).isEqualTo(mutableProfile.toProto());
+        assertThat(threadProfile.getSampleCount()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldMergeIntoMutableProfile() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(100);
+        MutableProfile mutableProfile = new MutableProfile();
+        addStackTrace(STACK_TRACE_1, Thread.State.RUNNABLE, threadProfile, mutableProfile);
+        addStackTrace(STACK_TRACE_2, Thread.State.WAITING, threadProfile, mutableProfile);
+
+        // when
+        MutableProfile mergedProfile = new MutableProfile();
+        threadProfile.mergeInto(mergedProfile);
+        threadProfile.mergeInto(mergedProfile);
+
+        // then
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(4);
+        mutableProfile.merge(mutableProfile.toProto());
+        assertThat(mergedProfile.toProto()).isEqualTo(mutableProfile.toProto());
+    }
+
+    @Test
+    public void shouldNotExceedMaxSamples() {
+        // given
+        ThreadProfile threadProfile = new ThreadProfile(2);
+        MutableProfile mutableProfile = new MutableProfile();
+
+        // when
+        for (int i = 0; i < 3; i++) {
+            addStackTrace(STACK_TRACE_1, Thread.State.RUNNABLE, threadProfile, mutableProfile);
+        }
+
+        // then
+        assertThat(threadProfile.getSampleCount()).isEqualTo(2);
+        assertThat(threadProfile.isSampleLimitExceeded()).isTrue();
+        Profile profile = threadProfile.toProto();
+        assertThat(profile.getNode(0).getSampleCount()).isEqualTo(2);
+    }
+
+    private static void addStackTrace(StackTraceElement[] stackTrace, Thread.State threadState,
+            ThreadProfile threadProfile, MutableProfile mutableProfile) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getStackTrace()).thenReturn(stackTrace);
+        when(threadInfo.getThreadState()).thenReturn(threadState);
+        threadProfile.addStackTrace(threadInfo);
+        mutableProfile.merge(Arrays.asList(stackTrace), threadState);
+    }
+}
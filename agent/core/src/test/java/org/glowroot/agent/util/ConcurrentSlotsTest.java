@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.agent.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentSlotsTest {
+
+    @Test
+    public void shouldAddAndRemove() {
+        // given
+        ConcurrentSlots<Object> slots = new ConcurrentSlots<Object>();
+        List<Object> elements = Lists.newArrayList();
+        List<SelfRemovableEntry> entries = Lists.newArrayList();
+        // more than a single chunk
+        for (int i = 0; i < 1000; i++) {
+            Object element = new Object();
+            elements.add(element);
+            entries.add(slots.add(element));
+        }
+
+        // when
+        List<Object> added = ImmutableList.copyOf(slots);
+        for (int i = 0; i < 1000; i++) {
+            entries.get(999 - i).remove();
+        }
+
+        // then
+        assertThat(added).containsOnlyElementsOf(elements).hasSize(1000);
+        assertThat(slots.iterator().hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldReuseRemovedSlots() {
+        // given
+        ConcurrentSlots<Object> slots = new ConcurrentSlots<Object>();
+        Object one = new Object();
+        Object two = new Object();
+        SelfRemovableEntry entry = slots.add(one);
+
+        // when
+        entry.remove();
+        // removing twice should not corrupt the free slot stack
+        entry.remove();
+        SelfRemovableEntry entry2 = slots.add(two);
+        Object three = new Object();
+        slots.add(three);
+
+        // then
+        assertThat(slots).containsOnly(two, three);
+        entry2.remove();
+        assertThat(slots).containsOnly(three);
+    }
+
+    @Test
+    public void shouldAddAndRemoveConcurrently() throws Exception {
+        // given
+        final ConcurrentSlots<Object> slots = new ConcurrentSlots<Object>();
+        final Object retained = new Object();
+        SelfRemovableEntry retainedEntry = slots.add(retained);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 10000; j++) {
+                        List<SelfRemovableEntry> entries = Lists.newArrayList();
+                        for (int k = 0; k < 10; k++) {
+                            entries.add(slots.add(new Object()));
+                        }
+                        for (SelfRemovableEntry entry : entries) {
+                            entry.remove();
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // then
+        assertThat(slots).containsOnly(retained);
+        retainedEntry.remove();
+        assertThat(slots).isEmpty();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private final Advice exactAdvice = createAdvice(OnlyForTheExactClassName.class);
+
+    private final Advice prefixAdvice = createAdvice(OnlyForThePrefixClassName.class);
+
+    private final Advice partialSegmentAdvice =
+            createAdvice(OnlyForThePartialSegmentClassName.class);
+
+    private final Advice multipleAdvice = createAdvice(OnlyForTheMultipleClassNames.class);
+
+    private final Advice emptyAdvice = createAdvice(OnlyForTheEmptyClassName.class);
+
+    private final Advice regexAdvice = createAdvice(OnlyForTheRegexClassName.class);
+
+    private final Advice leadingWildcardAdvice =
+            createAdvice(OnlyForTheLeadingWildcardClassName.class);
+
+    private final AdviceIndex adviceIndex = AdviceIndex.create(ImmutableList.of(exactAdvice,
+            prefixAdvice, partialSegmentAdvice, multipleAdvice, emptyAdvice, regexAdvice,
+            leadingWildcardAdvice));
+
+    @Test
+    public void shouldMatchExactClassName() {
+        assertThat(adviceIndex.getCandidates("org.example.Exact")).containsExactly(exactAdvice,
+                emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.ExactNot"))
+                .containsExactly(emptyAdvice, regexAdvice, leadingWildcardAdvice);
+    }
+
+    @Test
+    public void shouldMatchPrefixClassName() {
+        assertThat(adviceIndex.getCandidates("org.example.prefix.Anything"))
+                .containsExactly(prefixAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.prefix.sub.Anything"))
+                .containsExactly(prefixAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.prefixNot.Anything"))
+                .containsExactly(emptyAdvice, regexAdvice, leadingWildcardAdvice);
+    }
+
+    @Test
+    public void shouldMatchPartialSegmentClassName() {
+        assertThat(adviceIndex.getCandidates("org.example.SessionImpl")).containsExactly(
+                partialSegmentAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.Session")).containsExactly(
+                partialSegmentAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.Other"))
+                .containsExactly(emptyAdvice, regexAdvice, leadingWildcardAdvice);
+    }
+
+    @Test
+    public void shouldMatchMultipleClassNamesOnlyOnce() {
+        assertThat(adviceIndex.getCandidates("org.example.one.Exact"))
+                .containsExactly(multipleAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.two.Anything"))
+                .containsExactly(multipleAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.two.one.Exact"))
+                .containsExactly(multipleAdvice, emptyAdvice, regexAdvice, leadingWildcardAdvice);
+    }
+
+    @Test
+    public void shouldIncludeAdditionalAdvisors() {
+        // given
+        Advice additionalAdvice = createAdvice(OnlyForTheAdditionalClassName.class);
+
+        // when
+        AdviceIndex mergedAdviceIndex =
+                adviceIndex.withAdditionalAdvisors(ImmutableList.of(additionalAdvice));
+
+        // then
+        assertThat(mergedAdviceIndex.getCandidates("org.example.Additional")).containsExactly(
+                emptyAdvice, regexAdvice, leadingWildcardAdvice, additionalAdvice);
+        assertThat(adviceIndex.getCandidates("org.example.Additional"))
+                .containsExactly(emptyAdvice, regexAdvice, leadingWildcardAdvice);
+    }
+
+    private static Advice createAdvice(Class<?> clazz) {
+        return ImmutableAdvice.builder()
+                .pointcut(clazz.getAnnotation(Pointcut.class))
+                .adviceType(Type.getType(clazz))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    @Pointcut(className = "org.example.Exact", methodName = "dummy", methodParameterTypes = {})
+    private static class OnlyForTheExactClassName {}
+
+    @Pointcut(className = "org.example.prefix.*", methodName = "dummy", methodParameterTypes = {})
+    private static class OnlyForThePrefixClassName {}
+
+    @Pointcut(className = "org.example.Session*", methodName = "dummy", methodParameterTypes = {})
+    private static class OnlyForThePartialSegmentClassName {}
+
+    @Pointcut(className = "org.example.one.Exact|org.example.two.*", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class OnlyForTheMultipleClassNames {}
+
+    @Pointcut(className = "", methodName = "dummy", methodParameterTypes = {})
+    private static class OnlyForTheEmptyClassName {}
+
+    @Pointcut(className = "/org\\.example\\..*/", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class OnlyForTheRegexClassName {}
+
+    @Pointcut(className = "*.Exact", methodName = "dummy", methodParameterTypes = {})
+    private static class OnlyForTheLeadingWildcardClassName {}
+
+    @Pointcut(className = "org.example.Additional", methodName = "dummy",
+            methodParameterTypes = {})
+    private static class OnlyForTheAdditionalClassName {}
+}
@@ -1011,16 +1011,16 @@ public class WeaverTest {
         advisors.add(new AdviceBuilder(BindThrowableAdvice.class).build());
         advisors.add(new AdviceBuilder(ThrowInOnBeforeAdvice.class).build());
         advisors.add(new AdviceBuilder(BasicHighOrderAdvice.class).build());
-        Supplier<List<Advice>> advisorsSupplier =
-                Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
-        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+        Supplier<AdviceIndex> adviceIndexSupplier =
+                Suppliers.ofInstance(AdviceIndex.create(advisors));
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(adviceIndexSupplier,
                 ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+        Weaver weaver = new Weaver(adviceIndexSupplier, ImmutableList.<ShimType>of(),
                 ImmutableList.<MixinType>of(), analyzedWorld, transactionRegistry,
-                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class));
+                Ticker.systemTicker(), new TimerNameCache(), mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1773,15 +1773,15 @@ public class WeaverTest {
         if (shim != null) {
             shimTypes.add(ShimType.create(shim, adviceOrShimOrMixinClass));
         }
-        Supplier<List<Advice>> advisorsSupplier =
-                Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
-        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes);
+        Supplier<AdviceIndex> adviceIndexSupplier =
+                Suppliers.ofInstance(AdviceIndex.create(advisors));
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(adviceIndexSupplier, shimTypes, mixinTypes);
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(adviceIndexSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1812,16 +1812,16 @@ public class WeaverTest {
         if (shim != null) {
             shimTypes.add(ShimType.create(shim, adviceOrShimOrMixinClass));
         }
-        Supplier<List<Advice>> advisorsSupplier =
-                Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
+        Supplier<AdviceIndex> adviceIndexSupplier =
+                Suppliers.ofInstance(AdviceIndex.create(advisors));
         AnalyzedWorld analyzedWorld =
-                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes);
+                new AnalyzedWorld(adviceIndexSupplier, shimTypes, mixinTypes);
         TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
         when(transactionRegistry.getCurrentThreadContextHolder())
                 .thenReturn(new ThreadContextThreadLocal().getHolder());
-        Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
+        Weaver weaver = new Weaver(adviceIndexSupplier, shimTypes, mixinTypes, analyzedWorld,
                 transactionRegistry, Ticker.systemTicker(), new TimerNameCache(),
-                mock(ConfigService.class));
+                mock(ConfigService.class), null);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.WovenClassCache.CachedClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WovenClassCacheTest {
+
+    private final Advice advice1 = createAdvice(OnlyForTheAdvice1.class);
+
+    private final Advice advice2 = createAdvice(OnlyForTheAdvice2.class);
+
+    private final AdviceIndex adviceIndex = AdviceIndex.create(ImmutableList.of(advice1, advice2));
+
+    private final byte[] classBytes = new byte[] {1, 2, 3};
+
+    private File dir;
+    private WovenClassCache wovenClassCache;
+
+    @Before
+    public void beforeEach() throws IOException {
+        dir = File.createTempFile("glowroot-unit-test-", "");
+        dir.delete();
+        wovenClassCache = new WovenClassCache(dir, "1.2.3", ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    @After
+    public void afterEach() {
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void shouldReadWovenClass() {
+        // given
+        File file = wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                false);
+        AnalyzedClass analyzedClass = createAnalyzedClass("org.example.Test", advice2);
+        AnalyzedClass superAnalyzedClass = createAnalyzedClass("org.example.Base", advice1);
+        byte[] wovenBytes = new byte[] {4, 5, 6};
+
+        // when
+        wovenClassCache.write(file, adviceIndex, wovenBytes, analyzedClass,
+                ImmutableList.of(superAnalyzedClass));
+        CachedClass cachedClass = wovenClassCache.read(file, adviceIndex);
+
+        // then
+        assertThat(cachedClass).isNotNull();
+        assertThat(cachedClass.wovenBytes()).isEqualTo(wovenBytes);
+        assertThat(cachedClass.analyzedClass()).isEqualTo(analyzedClass);
+        assertThat(cachedClass.analyzedClass().analyzedMethods().get(0).advisors().get(0))
+                .isSameAs(advice2);
+        assertThat(cachedClass.superAnalyzedClasses()).containsExactly(superAnalyzedClass);
+    }
+
+    @Test
+    public void shouldReadNotWovenClass() {
+        // given
+        File file = wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                false);
+        AnalyzedClass analyzedClass = createAnalyzedClass("org.example.Test", null);
+
+        // when
+        wovenClassCache.write(file, adviceIndex, null, analyzedClass,
+                ImmutableList.<AnalyzedClass>of());
+        CachedClass cachedClass = wovenClassCache.read(file, adviceIndex);
+
+        // then
+        assertThat(cachedClass).isNotNull();
+        assertThat(cachedClass.wovenBytes()).isNull();
+        assertThat(cachedClass.analyzedClass()).isEqualTo(analyzedClass);
+        assertThat(cachedClass.superAnalyzedClasses()).isEmpty();
+    }
+
+    @Test
+    public void shouldNotWriteAdviceThatIsNotInAdviceIndex() {
+        // given
+        File file = wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                false);
+        Advice otherAdvice = createAdvice(OnlyForTheOtherAdvice.class);
+
+        // when
+        wovenClassCache.write(file, adviceIndex, null,
+                createAnalyzedClass("org.example.Test", null),
+                ImmutableList.of(createAnalyzedClass("org.example.Base", otherAdvice)));
+
+        // then
+        assertThat(file.exists()).isFalse();
+        assertThat(wovenClassCache.read(file, adviceIndex)).isNull();
+    }
+
+    @Test
+    public void shouldUseDifferentFileForDifferentInputs() {
+        // given
+        AdviceIndex otherAdviceIndex = AdviceIndex.create(ImmutableList.of(advice1));
+
+        // when
+        File file = wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                false);
+
+        // then
+        assertThat(wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                false)).isEqualTo(file);
+        assertThat(wovenClassCache.getFile(adviceIndex, "org/example/Test2", classBytes, false,
+                false)).isNotEqualTo(file);
+        assertThat(wovenClassCache.getFile(adviceIndex, "org/example/Test", new byte[] {1, 2},
+                false, false)).isNotEqualTo(file);
+        assertThat(wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, true,
+                false)).isNotEqualTo(file);
+        assertThat(wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false,
+                true)).isNotEqualTo(file);
+        assertThat(wovenClassCache.getFile(otherAdviceIndex, "org/example/Test", classBytes,
+                false, false).getParentFile()).isNotEqualTo(file.getParentFile());
+    }
+
+    @Test
+    public void shouldRemoveStaleFingerprints() throws IOException {
+        // given
+        File staleDir = new File(dir, "stale");
+        staleDir.mkdirs();
+        new File(staleDir, "entry").createNewFile();
+
+        // when
+        wovenClassCache.getFile(adviceIndex, "org/example/Test", classBytes, false, false);
+
+        // then
+        assertThat(staleDir.exists()).isFalse();
+    }
+
+    private static AnalyzedClass createAnalyzedClass(String name, Advice advice) {
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name(name)
+                .superName("java.lang.Object")
+                .addInterfaceNames("java.io.Serializable")
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("finalMethod")
+                        .addParameterTypes("int")
+                        .build())
+                .ejbRemote(false);
+        if (advice != null) {
+            builder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name("execute")
+                    .addParameterTypes("java.lang.String", "int[]")
+                    .returnType("void")
+                    .modifiers(1)
+                    .signature(null)
+                    .addExceptions("java.io.IOException")
+                    .addAdvisors(advice)
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static Advice createAdvice(Class<?> clazz) {
+        return ImmutableAdvice.builder()
+                .pointcut(clazz.getAnnotation(Pointcut.class))
+                .adviceType(Type.getType(clazz))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Pointcut(className = "org.example.Base", methodName = "execute", methodParameterTypes = {})
+    private static class OnlyForTheAdvice1 {}
+
+    @Pointcut(className = "org.example.Test", methodName = "execute", methodParameterTypes = {})
+    private static class OnlyForTheAdvice2 {}
+
+    @Pointcut(className = "org.example.Other", methodName = "execute", methodParameterTypes = {})
+    private static class OnlyForTheOtherAdvice {}
+}
@@ -65,6 +65,7 @@ import org.glowroot.common2.config.RoleConfig.SimplePermission;
 import org.glowroot.common2.repo.AgentRollupRepository;
 import org.glowroot.common2.repo.ImmutableAgentRollup;
 import org.glowroot.ui.CreateUiModuleBuilder;
+import org.glowroot.ui.HttpRequestDispatcherMXBean;
 import org.glowroot.ui.SessionMapFactory;
 import org.glowroot.ui.UiModule;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -264,6 +265,12 @@ class EmbeddedAgentModule {
                     .numWorkerThreads(2)
                     .version(version)
                     .build();
+            HttpRequestDispatcherMXBean httpRequestDispatcher =
+                    uiModule.getHttpRequestDispatcher();
+            if (httpRequestDispatcher != null) {
+                agentModule.getLazyPlatformMBeanServer().lazyRegisterMBean(httpRequestDispatcher,
+                        "org.glowroot:type=HttpRequestDispatcher");
+            }
         } else {
             checkNotNull(offlineViewerAgentModule);
             uiModule = new CreateUiModuleBuilder()
@@ -74,6 +74,7 @@ class EmbeddedCollector implements Collector {
     @Override
     public void collectAggregates(AggregateReader aggregateReader) throws Exception {
         aggregateDao.store(aggregateReader);
+        alertingService.onDataStored(AGENT_ID, aggregateReader.captureTime());
         alertingService.checkForDeletedAlerts(AGENT_ID);
         for (AlertConfig alertConfig : configRepository.getAlertConfigs(AGENT_ID)) {
             AlertCondition alertCondition = alertConfig.getCondition();
@@ -105,7 +106,8 @@ class EmbeddedCollector implements Collector {
 
     @Override
     public void collectGaugeValues(List<GaugeValue> gaugeValues) throws Exception {
-        gaugeValueDao.store(gaugeValues);
+        long oldestCaptureTime = gaugeValueDao.store(gaugeValues);
+        alertingService.onDataStored(AGENT_ID, oldestCaptureTime);
         long maxCaptureTime = 0;
         for (GaugeValue gaugeValue : gaugeValues) {
             maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
@@ -134,6 +136,11 @@ class EmbeddedCollector implements Collector {
         traceDao.store(traceReader);
     }
 
+    @Override
+    public void collectTraces(List<TraceReader> traceReaders) throws Exception {
+        traceDao.store(traceReaders);
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         // do nothing, already logging locally through ConsoleAppender and RollingFileAppender
@@ -76,9 +76,12 @@ class PreInitializeStorageShutdownClasses {
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
         types.add("org.glowroot.agent.embedded.util.CappedDatabase");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$1");
+        types.add("org.glowroot.agent.embedded.util.CappedDatabase$CompressionBuffer");
         types.add("org.glowroot.agent.embedded.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.agent.embedded.util.CappedDatabaseOutputStream");
         types.add("org.glowroot.agent.embedded.util.DataSource");
+        types.add("org.glowroot.agent.embedded.util.DataSource$PooledConnection");
         types.add("org.glowroot.agent.embedded.util.DataSource$ShutdownHookThread");
         types.add("org.glowroot.agent.util.JavaVersion");
         return types;
@@ -20,11 +20,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -81,6 +84,12 @@ public class AggregateDao implements AggregateRepository {
 
     private static final String AGENT_ID = "";
 
+    // limits the number of rollup intervals per rollup level that are processed in a single pass
+    // of the background rollup, so that catching up after a long outage does not hold up the
+    // other background tasks
+    private static final int ROLLUP_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.aggregate.rollupBatchSize", 100);
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -152,6 +161,9 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
 
+    // capture time of the most recently stored level 0 aggregates
+    private final AtomicLong lastCaptureTime;
+
     private final AtomicLongArray lastRollupTimes;
 
     private final Object rollupLock = new Object();
@@ -177,17 +189,15 @@ public class AggregateDao implements AggregateRepository {
                     .of(transactionTableName + "_idx", transactionAggregateIndexColumns)));
         }
 
-        // don't need last_rollup_times table like in GaugeValueDao since there is already index
-        // on capture_time so these queries are relatively fast
-        long[] lastRollupTimes = new long[rollupConfigs.size()];
-        lastRollupTimes[0] = 0;
-        for (int i = 1; i < lastRollupTimes.length; i++) {
-            lastRollupTimes[i] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
-                    + " from aggregate_tt_rollup_" + castUntainted(i));
+        List<Column> columns = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            columns.add(ImmutableColumn.of("last_rollup_" + i + "_time", ColumnType.BIGINT));
         }
-        this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
+        dataSource.syncTable("aggregate_last_rollup_times", columns);
 
-        // TODO initial rollup in case store is not called in a reasonable time
+        lastCaptureTime = new AtomicLong(dataSource.queryForLong(
+                "select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0"));
+        lastRollupTimes = initData(rollupConfigs.size(), dataSource);
     }
 
     public void store(AggregateReader aggregateReader) throws Exception {
@@ -232,19 +242,8 @@ public class AggregateDao implements AggregateRepository {
                 }
             }
         });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
-            }
-        }
+        // rollups are performed in the background by AggregateRollupRunnable
+        lastCaptureTime.set(captureTime);
     }
 
     // query.from() is non-inclusive
@@ -425,16 +424,83 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
-    private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
+    // returns the oldest capture time that was rolled up (or Long.MAX_VALUE if none)
+    long rollup() throws Exception {
+        synchronized (rollupLock) {
+            long oldestCaptureTime = Long.MAX_VALUE;
+            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                long intervalMillis = rollupConfigs.get(i).intervalMillis();
+                // each rollup level can only be rolled up as far as the level below it
+                long fromCaptureTime = i == 1 ? lastCaptureTime.get() : lastRollupTimes.get(i - 1);
+                long safeRollupTime =
+                        RollupLevelService.getSafeRollupTime(fromCaptureTime, intervalMillis);
+                long lastRollupTime = lastRollupTimes.get(i);
+                if (safeRollupTime > lastRollupTime) {
+                    oldestCaptureTime = Math.min(oldestCaptureTime,
+                            rollup(lastRollupTime, safeRollupTime, intervalMillis, i, i - 1));
+                }
+            }
+            return oldestCaptureTime;
+        }
+    }
+
+    // this is exposed via RollupCappedDatabaseStats
+    long getRollupLagMillis(int rollupLevel) {
+        if (rollupLevel == 0) {
+            return 0;
+        }
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        long safeRollupTime = RollupLevelService.getSafeRollupTime(lastCaptureTime.get(),
+                rollupConfigs.get(rollupLevel).intervalMillis());
+        return Math.max(0, safeRollupTime - lastRollupTimes.get(rollupLevel));
+    }
+
+    void reinitAfterDeletingDatabase() throws Exception {
+        synchronized (rollupLock) {
+            lastCaptureTime.set(0);
+            AtomicLongArray lastRollupTimes =
+                    initData(configRepository.getRollupConfigs().size(), dataSource);
+            for (int i = 0; i < lastRollupTimes.length(); i++) {
+                this.lastRollupTimes.set(i, lastRollupTimes.get(i));
+            }
+        }
+    }
+
+    private long rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
+        long oldestCaptureTime = Long.MAX_VALUE;
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
-                fixedIntervalMillis, lastRollupTime, curentRollupTime));
+                fixedIntervalMillis, lastRollupTime, safeRollupTime, ROLLUP_BATCH_SIZE));
         for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+            oldestCaptureTime = Math.min(oldestCaptureTime, rollupTime);
+            // rolling up one transaction type at a time keeps each individual query (and the time
+            // that the data source connections are held) small
+            List<String> transactionTypes = dataSource.query(new RollupTransactionTypeQuery(
+                    rollupTime, fixedIntervalMillis, fromRollupLevel));
+            for (String transactionType : transactionTypes) {
+                dataSource.query(new RollupOverallAggregates(transactionType, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+                dataSource.query(new RollupTransactionAggregates(transactionType, rollupTime,
+                        fixedIntervalMillis, fromRollupLevel, toRollupLevel));
+            }
+            // JVM termination before this point will cause this rollup interval to be re-rolled
+            // up after the next startup, but this is ok since it will just overwrite the prior
+            // rollup
+            updateLastRollupTime(toRollupLevel, rollupTime);
+        }
+        if (rollupTimes.size() < ROLLUP_BATCH_SIZE) {
+            // there may not be any data in the remaining intervals, in which case those intervals
+            // are complete as well
+            updateLastRollupTime(toRollupLevel, safeRollupTime);
         }
+        return oldestCaptureTime;
+    }
+
+    private void updateLastRollupTime(int rollupLevel, long lastRollupTime) throws SQLException {
+        dataSource.update("update aggregate_last_rollup_times set last_rollup_"
+                + castUntainted(rollupLevel) + "_time = ?", lastRollupTime);
+        lastRollupTimes.set(rollupLevel, lastRollupTime);
     }
 
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
@@ -618,6 +684,34 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    // returns array indexed by rollup level (index 0 is unused)
+    private static AtomicLongArray initData(int rollupLevels, DataSource dataSource)
+            throws Exception {
+        List<String> columnNames = Lists.newArrayList();
+        for (int i = 1; i < rollupLevels; i++) {
+            columnNames.add("last_rollup_" + i + "_time");
+        }
+        Joiner joiner = Joiner.on(", ");
+        String selectClause = castUntainted(joiner.join(columnNames));
+        long[] lastRollupTimes = dataSource.query(new LastRollupTimesQuery(selectClause));
+        if (lastRollupTimes.length == 0) {
+            // last_rollup_times did not exist prior to 0.10.12, so fall back to the most recent
+            // rollup that is already present
+            long[] values = new long[rollupLevels - 1];
+            for (int i = 1; i < rollupLevels; i++) {
+                values[i - 1] = dataSource.queryForLong("select ifnull(max(capture_time), 0)"
+                        + " from aggregate_tt_rollup_" + castUntainted(i));
+            }
+            String valueClause = castUntainted(joiner.join(Longs.asList(values)));
+            dataSource.update("insert into aggregate_last_rollup_times (" + selectClause
+                    + ") values (" + valueClause + ")");
+            lastRollupTimes = values;
+        }
+        long[] values = new long[rollupLevels];
+        System.arraycopy(lastRollupTimes, 0, values, 1, lastRollupTimes.length);
+        return new AtomicLongArray(values);
+    }
+
     private static class OverallSummaryQuery implements JdbcQuery</*@Nullable*/ Void> {
 
         private final OverallSummaryCollector collector;
@@ -994,14 +1088,16 @@ public class AggregateDao implements AggregateRepository {
 
     private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final String transactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
         private final ScratchBuffer scratchBuffer = new ScratchBuffer();
 
-        private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupOverallAggregates(String transactionType, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel) {
+            this.transactionType = transactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1019,14 +1115,15 @@ public class AggregateDao implements AggregateRepository {
                     + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
                     + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
                     + " duration_nanos_histogram from aggregate_tt_rollup_"
-                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
+                    + castUntainted(fromRollupLevel) + " where transaction_type = ? and"
+                    + " capture_time > ? and capture_time <= ?";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
-            preparedStatement.setLong(2, rollupCaptureTime);
+            preparedStatement.setString(1, transactionType);
+            preparedStatement.setLong(2, rollupCaptureTime - fixedIntervalMillis);
+            preparedStatement.setLong(3, rollupCaptureTime);
         }
 
         @Override
@@ -1064,13 +1161,15 @@ public class AggregateDao implements AggregateRepository {
 
     private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
 
+        private final String transactionType;
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
         private final int toRollupLevel;
 
-        private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupTransactionAggregates(String transactionType, long rollupCaptureTime,
+                long fixedIntervalMillis, int fromRollupLevel, int toRollupLevel) {
+            this.transactionType = transactionType;
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
@@ -1089,14 +1188,15 @@ public class AggregateDao implements AggregateRepository {
                     + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
                     + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
                     + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
-                    + " where capture_time > ? and capture_time <= ? order by transaction_type,"
-                    + " transaction_name";
+                    + " where transaction_type = ? and capture_time > ? and capture_time <= ?"
+                    + " order by transaction_name";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws Exception {
-            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
-            preparedStatement.setLong(2, rollupCaptureTime);
+            preparedStatement.setString(1, transactionType);
+            preparedStatement.setLong(2, rollupCaptureTime - fixedIntervalMillis);
+            preparedStatement.setLong(3, rollupCaptureTime);
         }
 
         @Override
@@ -1228,14 +1328,16 @@ public class AggregateDao implements AggregateRepository {
         private final int rollupLevel;
         private final long fixedIntervalMillis;
         private final long lastRollupTime;
-        private final long curentRollupTime;
+        private final long safeRollupTime;
+        private final int limit;
 
         private RollupTimeRowMapper(int rollupLevel, long fixedIntervalMillis, long lastRollupTime,
-                long curentRollupTime) {
+                long safeRollupTime, int limit) {
             this.rollupLevel = rollupLevel;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.lastRollupTime = lastRollupTime;
-            this.curentRollupTime = curentRollupTime;
+            this.safeRollupTime = safeRollupTime;
+            this.limit = limit;
         }
 
         @Override
@@ -1244,13 +1346,15 @@ public class AggregateDao implements AggregateRepository {
             String captureTimeSql = castUntainted(
                     "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
             return "select distinct " + captureTimeSql + " from aggregate_tt_rollup_"
-                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?";
+                    + castUntainted(rollupLevel) + " where capture_time > ? and capture_time <= ?"
+                    + " order by 1 limit ?";
         }
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
             preparedStatement.setLong(1, lastRollupTime);
-            preparedStatement.setLong(2, curentRollupTime);
+            preparedStatement.setLong(2, safeRollupTime);
+            preparedStatement.setInt(3, limit);
         }
 
         @Override
@@ -1259,6 +1363,73 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static class RollupTransactionTypeQuery implements JdbcRowQuery<String> {
+
+        private final long rollupCaptureTime;
+        private final long fixedIntervalMillis;
+        private final int fromRollupLevel;
+
+        private RollupTransactionTypeQuery(long rollupCaptureTime, long fixedIntervalMillis,
+                int fromRollupLevel) {
+            this.rollupCaptureTime = rollupCaptureTime;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.fromRollupLevel = fromRollupLevel;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select distinct transaction_type from aggregate_tt_rollup_"
+                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
+                    + " and capture_time <= ? order by transaction_type";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
+            preparedStatement.setLong(2, rollupCaptureTime);
+        }
+
+        @Override
+        public String mapRow(ResultSet resultSet) throws SQLException {
+            return checkNotNull(resultSet.getString(1));
+        }
+    }
+
+    private static class LastRollupTimesQuery implements JdbcQuery<long[]> {
+
+        private final @Untainted String selectClause;
+
+        private LastRollupTimesQuery(@Untainted String selectClause) {
+            this.selectClause = selectClause;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select " + selectClause + " from aggregate_last_rollup_times";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws Exception {}
+
+        @Override
+        public long[] processResultSet(ResultSet resultSet) throws Exception {
+            if (!resultSet.next()) {
+                return new long[0];
+            }
+            int columns = resultSet.getMetaData().getColumnCount();
+            long[] values = new long[columns];
+            for (int i = 0; i < columns; i++) {
+                values[i] = resultSet.getLong(i + 1);
+            }
+            return values;
+        }
+
+        @Override
+        public long[] valueIfDataSourceClosed() {
+            return new long[0];
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface CappedId {
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import org.glowroot.common.util.ScheduledRunnable;
+import org.glowroot.common2.repo.util.AlertingService;
+
+class AggregateRollupRunnable extends ScheduledRunnable {
+
+    private static final String AGENT_ID = "";
+
+    private final AggregateDao aggregateDao;
+    private final AlertingService alertingService;
+
+    AggregateRollupRunnable(AggregateDao aggregateDao, AlertingService alertingService) {
+        this.aggregateDao = aggregateDao;
+        this.alertingService = alertingService;
+    }
+
+    @Override
+    protected void runInternal() throws Exception {
+        long oldestCaptureTime = aggregateDao.rollup();
+        // rollups run in the background and can lag behind (see getRollupLagMillis()), so metric
+        // alert checks need to re-read the rolled up aggregates
+        alertingService.onDataStored(AGENT_ID, oldestCaptureTime);
+    }
+}
@@ -122,10 +122,13 @@ public class GaugeValueDao implements GaugeValueRepository {
         return gauges;
     }
 
-    public void store(List<GaugeValue> gaugeValues) throws Exception {
+    // returns the oldest capture time that was stored, including rollups (or Long.MAX_VALUE if
+    // none)
+    public long store(List<GaugeValue> gaugeValues) throws Exception {
         if (gaugeValues.isEmpty()) {
-            return;
+            return Long.MAX_VALUE;
         }
+        long oldestCaptureTime = Long.MAX_VALUE;
         Map<GaugeValue, Long> gaugeValueIdMap = Maps.newLinkedHashMap();
         for (GaugeValue gaugeValue : gaugeValues) {
             long gaugeId = gaugeIdDao.updateLastCaptureTime(gaugeValue.getGaugeName(),
@@ -134,8 +137,9 @@ public class GaugeValueDao implements GaugeValueRepository {
                 // data source is closing and a new gauge id was needed, but could not insert it
                 // --or-- race condition with GaugeIdDao.deleteAll() in which case return is good
                 // option also
-                return;
+                return Long.MAX_VALUE;
             }
+            oldestCaptureTime = Math.min(oldestCaptureTime, gaugeValue.getCaptureTime());
             gaugeNameDao.insert(gaugeValue.getCaptureTime(), gaugeValue.getGaugeName());
             gaugeValueIdMap.put(gaugeValue, gaugeId);
         }
@@ -152,6 +156,8 @@ public class GaugeValueDao implements GaugeValueRepository {
                 long lastRollupTime = lastRollupTimes.get(i);
                 if (safeRollupTime > lastRollupTime) {
                     rollup(lastRollupTime, safeRollupTime, intervalMillis, i + 1, i);
+                    // rolled up capture times are all later than the last rollup time
+                    oldestCaptureTime = Math.min(oldestCaptureTime, lastRollupTime + 1);
                     // JVM termination here will cause last_rollup_*_time to be out of sync, which
                     // will cause a re-rollup of this time after the next startup, but this is ok
                     // since it will just overwrite prior rollup
@@ -161,6 +167,7 @@ public class GaugeValueDao implements GaugeValueRepository {
                 }
             }
         }
+        return oldestCaptureTime;
     }
 
     // from is INCLUSIVE
@@ -25,9 +25,14 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     static final String AGGREGATE_PROFILES = "aggregate profiles";
 
     private final CappedDatabase cappedDatabase;
+    private final AggregateDao aggregateDao;
+    private final int rollupLevel;
 
-    RollupCappedDatabaseStats(CappedDatabase cappedDatabase) {
+    RollupCappedDatabaseStats(CappedDatabase cappedDatabase, AggregateDao aggregateDao,
+            int rollupLevel) {
         this.cappedDatabase = cappedDatabase;
+        this.aggregateDao = aggregateDao;
+        this.rollupLevel = rollupLevel;
     }
 
     @Override
@@ -44,4 +49,9 @@ public class RollupCappedDatabaseStats implements RollupCappedDatabaseStatsMXBea
     public CappedDatabaseStats getAggregateProfiles() {
         return cappedDatabase.getStats(AGGREGATE_PROFILES);
     }
+
+    @Override
+    public long getRollupLagMillis() {
+        return aggregateDao.getRollupLagMillis(rollupLevel);
+    }
 }
@@ -46,6 +46,7 @@ import org.glowroot.common2.repo.util.MailService;
 import org.glowroot.common2.repo.util.RollupLevelService;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class SimpleRepoModule {
 
@@ -54,6 +55,8 @@ public class SimpleRepoModule {
 
     private static final long SNAPSHOT_REAPER_PERIOD_MINUTES = 5;
 
+    private static final long AGGREGATE_ROLLUP_PERIOD_SECONDS = 30;
+
     private final DataSource dataSource;
     private final ImmutableList<CappedDatabase> rollupCappedDatabases;
     private final CappedDatabase traceCappedDatabase;
@@ -70,6 +73,7 @@ public class SimpleRepoModule {
     private final AlertingService alertingService;
     private final HttpClient httpClient;
     private final @Nullable ReaperRunnable reaperRunnable;
+    private final @Nullable AggregateRollupRunnable aggregateRollupRunnable;
 
     public SimpleRepoModule(DataSource dataSource, File dataDir, Clock clock, Ticker ticker,
             ConfigRepositoryImpl configRepository,
@@ -118,8 +122,8 @@ public class SimpleRepoModule {
         }
 
         repoAdmin = new RepoAdminImpl(dataSource, rollupCappedDatabases, traceCappedDatabase,
-                configRepository, environmentDao, gaugeIdDao, gaugeNameDao, gaugeValueDao,
-                transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
+                configRepository, environmentDao, aggregateDao, gaugeIdDao, gaugeNameDao,
+                gaugeValueDao, transactionTypeDao, fullQueryTextDao, traceAttributeNameDao, clock);
 
         httpClient = new HttpClient(configRepository);
 
@@ -128,19 +132,23 @@ public class SimpleRepoModule {
                 newLockSet(), clock);
         if (backgroundExecutor == null) {
             reaperRunnable = null;
+            aggregateRollupRunnable = null;
         } else {
             reaperRunnable = new ReaperRunnable(configRepository, aggregateDao, traceDao,
                     gaugeIdDao, gaugeNameDao, gaugeValueDao, transactionTypeDao, fullQueryTextDao,
                     incidentDao, clock);
             reaperRunnable.scheduleWithFixedDelay(backgroundExecutor,
                     SNAPSHOT_REAPER_PERIOD_MINUTES, MINUTES);
+            aggregateRollupRunnable = new AggregateRollupRunnable(aggregateDao, alertingService);
+            aggregateRollupRunnable.scheduleWithFixedDelay(backgroundExecutor,
+                    AGGREGATE_ROLLUP_PERIOD_SECONDS, SECONDS);
         }
     }
 
     public void registerMBeans(PlatformMBeanServerLifecycle platformMBeanServerLifecycle) {
         for (int i = 0; i < rollupCappedDatabases.size(); i++) {
             platformMBeanServerLifecycle.lazyRegisterMBean(
-                    new RollupCappedDatabaseStats(rollupCappedDatabases.get(i)),
+                    new RollupCappedDatabaseStats(rollupCappedDatabases.get(i), aggregateDao, i),
                     "org.glowroot:type=RollupCappedDatabase" + i);
         }
         platformMBeanServerLifecycle.lazyRegisterMBean(
@@ -203,6 +211,9 @@ public class SimpleRepoModule {
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
         }
+        if (aggregateRollupRunnable != null) {
+            aggregateRollupRunnable.cancel();
+        }
         alertingService.close();
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
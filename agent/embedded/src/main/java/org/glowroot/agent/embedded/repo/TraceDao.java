@@ -16,6 +16,7 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -26,6 +27,7 @@ import java.util.Locale;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.slf4j.Logger;
@@ -35,6 +37,7 @@ import org.glowroot.agent.collector.Collector.TraceReader;
 import org.glowroot.agent.collector.Collector.TraceVisitor;
 import org.glowroot.agent.embedded.repo.TracePointQueryBuilder.ParameterizedSql;
 import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.CappedDatabase.BlockReader;
 import org.glowroot.agent.embedded.util.DataSource;
 import org.glowroot.agent.embedded.util.DataSource.JdbcQuery;
 import org.glowroot.agent.embedded.util.DataSource.JdbcRowQuery;
@@ -91,7 +94,10 @@ public class TraceDao implements TraceRepository {
             ImmutableColumn.of("user", ColumnType.VARCHAR),
             ImmutableColumn.of("error_message", ColumnType.VARCHAR),
             ImmutableColumn.of("header", ColumnType.VARBINARY), // protobuf
+            // entries_capped_id is only used by traces stored prior to 0.10.12, which did not
+            // use TraceEntryBlock
             ImmutableColumn.of("entries_capped_id", ColumnType.BIGINT),
+            ImmutableColumn.of("entry_block_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("queries_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("shared_query_texts_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
@@ -163,6 +169,14 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column queries_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        if (dataSource.tableExists("trace")
+                && !dataSource.columnExists("trace", "entry_block_capped_id")) {
+            // upgrade to 0.10.12
+            startupLogger.info("upgrading glowroot schema, this may delay glowroot startup for a"
+                    + " few minutes (depending on data size)...");
+            dataSource.execute("alter table trace add column entry_block_capped_id bigint");
+            startupLogger.info("glowroot schema upgrade complete");
+        }
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
@@ -170,14 +184,7 @@ public class TraceDao implements TraceRepository {
     }
 
     public void store(TraceReader traceReader) throws Exception {
-        final long captureTime = traceReader.captureTime();
-        final Trace.Builder builder = Trace.newBuilder()
-                .setId(traceReader.traceId())
-                .setUpdate(traceReader.update());
-
-        TraceVisitorImpl traceVisitor = new TraceVisitorImpl(captureTime, builder);
-        traceReader.accept(traceVisitor);
-        Trace trace = builder.build();
+        Trace trace = readTrace(traceReader);
         Trace.Header header = trace.getHeader();
 
         dataSource.update(new TraceMerge(trace));
@@ -185,14 +192,41 @@ public class TraceDao implements TraceRepository {
             if (trace.getUpdate()) {
                 dataSource.update("delete from trace_attribute where trace_id = ?", trace.getId());
             }
-            dataSource.batchUpdate(new TraceAttributeInsert(trace));
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
-                        attribute.getName(), header.getCaptureTime());
+            dataSource.batchUpdate(new TraceAttributeInsert(ImmutableList.of(trace)));
+        }
+        updateLastCaptureTimes(trace);
+    }
+
+    // stores all of the traces using a single batch for the trace rows and a single batch for the
+    // trace attribute rows
+    public void store(List<TraceReader> traceReaders) throws Exception {
+        if (traceReaders.isEmpty()) {
+            return;
+        }
+        List<Trace> traces = Lists.newArrayList();
+        List<TraceMerge> traceMerges = Lists.newArrayList();
+        for (TraceReader traceReader : traceReaders) {
+            Trace trace = readTrace(traceReader);
+            traces.add(trace);
+            traceMerges.add(new TraceMerge(trace));
+        }
+        dataSource.batchUpdate(new TraceMergeBatch(traceMerges));
+        List<Trace> tracesWithAttributes = Lists.newArrayList();
+        for (Trace trace : traces) {
+            if (trace.getHeader().getAttributeCount() > 0) {
+                if (trace.getUpdate()) {
+                    dataSource.update("delete from trace_attribute where trace_id = ?",
+                            trace.getId());
+                }
+                tracesWithAttributes.add(trace);
             }
         }
-        transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
-                header.getCaptureTime());
+        if (!tracesWithAttributes.isEmpty()) {
+            dataSource.batchUpdate(new TraceAttributeInsert(tracesWithAttributes));
+        }
+        for (Trace trace : traces) {
+            updateLastCaptureTimes(trace);
+        }
     }
 
     @Override
@@ -260,7 +294,13 @@ public class TraceDao implements TraceRepository {
 
     @Override
     public @Nullable Entries readEntries(String agentId, String traceId) throws Exception {
-        return dataSource.query(new EntriesQuery(traceId));
+        return dataSource.query(new EntriesQuery(traceId, 0, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public @Nullable Entries readEntries(String agentId, String traceId, int from, int limit)
+            throws Exception {
+        return dataSource.query(new EntriesQuery(traceId, from, limit));
     }
 
     @Override
@@ -347,6 +387,34 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTextsForExport;
     }
 
+    // returns null if the trace has no entries or if the entries have expired
+    private @Nullable List<Trace.Entry> readEntries(@Nullable Long entryBlockCappedId,
+            @Nullable Long entriesCappedId, final int from, final int limit) throws IOException {
+        if (entryBlockCappedId != null) {
+            return traceCappedDatabase.readBlock(entryBlockCappedId,
+                    new BlockReader<List<Trace.Entry>>() {
+                        @Override
+                        public List<Trace.Entry> read(InputStream input) throws IOException {
+                            return TraceEntryBlock.decode(input, from, limit);
+                        }
+                    });
+        }
+        if (entriesCappedId == null) {
+            return null;
+        }
+        // entries stored prior to 0.10.12
+        List<Trace.Entry> entries =
+                traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+        if (entries.isEmpty()) {
+            return null;
+        }
+        int to = (int) Math.min(entries.size(), (long) from + limit);
+        if (from >= to) {
+            return ImmutableList.of();
+        }
+        return entries.subList(from, to);
+    }
+
     private static void appendQueryAndFilter(StringBuilder sql, TraceQuery query,
             ErrorMessageFilter filter) {
         sql.append(" and transaction_type = ?");
@@ -382,6 +450,24 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private Trace readTrace(TraceReader traceReader) throws Exception {
+        Trace.Builder builder = Trace.newBuilder()
+                .setId(traceReader.traceId())
+                .setUpdate(traceReader.update());
+        traceReader.accept(new TraceVisitorImpl(traceReader.captureTime(), builder));
+        return builder.build();
+    }
+
+    private void updateLastCaptureTimes(Trace trace) throws Exception {
+        Trace.Header header = trace.getHeader();
+        for (Trace.Attribute attribute : header.getAttributeList()) {
+            traceAttributeNameDao.updateLastCaptureTime(header.getTransactionType(),
+                    attribute.getName(), header.getCaptureTime());
+        }
+        transactionTypeDao.updateLastCaptureTime(header.getTransactionType(),
+                header.getCaptureTime());
+    }
+
     private class TraceVisitorImpl implements TraceVisitor {
 
         private final long captureTime;
@@ -444,7 +530,7 @@ public class TraceDao implements TraceRepository {
 
         private final String traceId;
         private final Trace.Header header;
-        private final @Nullable Long entriesCappedId;
+        private final @Nullable Long entryBlockCappedId;
         private final @Nullable Long queriesCappedId;
         private final @Nullable Long sharedQueryTextsCappedId;
         private final @Nullable Long mainThreadProfileId;
@@ -456,9 +542,10 @@ public class TraceDao implements TraceRepository {
 
             List<Trace.Entry> entries = trace.getEntryList();
             if (entries.isEmpty()) {
-                entriesCappedId = null;
+                entryBlockCappedId = null;
             } else {
-                entriesCappedId = traceCappedDatabase.writeMessages(entries,
+                entryBlockCappedId = traceCappedDatabase.write(
+                        ByteSource.wrap(TraceEntryBlock.encode(entries)),
                         TraceCappedDatabaseStats.TRACE_ENTRIES);
             }
             List<Aggregate.Query> queries = trace.getQueryList();
@@ -493,10 +580,10 @@ public class TraceDao implements TraceRepository {
         public @Untainted String getSql() {
             return "merge into trace (id, partial, slow, error, start_time, capture_time,"
                     + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, queries_capped_id,"
-                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
-                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    + " error_message, header, entries_capped_id, entry_block_capped_id,"
+                    + " queries_capped_id, shared_query_texts_capped_id,"
+                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
+                    + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
         // minimal work inside this method as it is called with active connection
@@ -528,7 +615,9 @@ public class TraceDao implements TraceRepository {
                     .setUser("")
                     .build()
                     .toByteArray());
-            RowMappers.setLong(preparedStatement, i++, entriesCappedId);
+            // clear entries_capped_id in case of a trace update
+            preparedStatement.setNull(i++, Types.BIGINT);
+            RowMappers.setLong(preparedStatement, i++, entryBlockCappedId);
             RowMappers.setLong(preparedStatement, i++, queriesCappedId);
             RowMappers.setLong(preparedStatement, i++, sharedQueryTextsCappedId);
             RowMappers.setLong(preparedStatement, i++, mainThreadProfileId);
@@ -536,12 +625,34 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    private static class TraceMergeBatch implements JdbcUpdate {
+
+        private final List<TraceMerge> traceMerges;
+
+        private TraceMergeBatch(List<TraceMerge> traceMerges) {
+            this.traceMerges = traceMerges;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return traceMerges.get(0).getSql();
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (TraceMerge traceMerge : traceMerges) {
+                traceMerge.bind(preparedStatement);
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
     private static class TraceAttributeInsert implements JdbcUpdate {
 
-        private final Trace trace;
+        private final List<Trace> traces;
 
-        private TraceAttributeInsert(Trace trace) {
-            this.trace = trace;
+        private TraceAttributeInsert(List<Trace> traces) {
+            this.traces = traces;
         }
 
         @Override
@@ -552,18 +663,19 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public void bind(PreparedStatement preparedStatement) throws SQLException {
-            Trace.Header header = trace.getHeader();
-            for (Trace.Attribute attribute : header.getAttributeList()) {
-                for (String value : attribute.getValueList()) {
-                    int i = 1;
-                    preparedStatement.setString(i++, trace.getId());
-                    preparedStatement.setString(i++, attribute.getName());
-                    preparedStatement.setString(i++, value);
-                    preparedStatement.setLong(i++, header.getCaptureTime());
-                    preparedStatement.addBatch();
+            for (Trace trace : traces) {
+                Trace.Header header = trace.getHeader();
+                for (Trace.Attribute attribute : header.getAttributeList()) {
+                    for (String value : attribute.getValueList()) {
+                        int i = 1;
+                        preparedStatement.setString(i++, trace.getId());
+                        preparedStatement.setString(i++, attribute.getName());
+                        preparedStatement.setString(i++, value);
+                        preparedStatement.setLong(i++, header.getCaptureTime());
+                        preparedStatement.addBatch();
+                    }
                 }
             }
-
         }
     }
 
@@ -613,7 +725,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select headline, user, header, entries_capped_id, queries_capped_id,"
+            return "select headline, user, header,"
+                    + " coalesce(entry_block_capped_id, entries_capped_id), queries_capped_id,"
                     + " main_thread_profile_capped_id, aux_thread_profile_capped_id from trace"
                     + " where id = ?";
         }
@@ -662,14 +775,19 @@ public class TraceDao implements TraceRepository {
     private class EntriesQuery implements JdbcQuery</*@Nullable*/ Entries> {
 
         private final String traceId;
+        private final int from;
+        private final int limit;
 
-        private EntriesQuery(String traceId) {
+        private EntriesQuery(String traceId, int from, int limit) {
             this.traceId = traceId;
+            this.from = from;
+            this.limit = limit;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select entries_capped_id, shared_query_texts_capped_id from trace where id = ?";
+            return "select entry_block_capped_id, entries_capped_id, shared_query_texts_capped_id"
+                    + " from trace where id = ?";
         }
 
         @Override
@@ -683,14 +801,12 @@ public class TraceDao implements TraceRepository {
                 return null;
             }
             int i = 1;
+            Long entryBlockCappedId = RowMappers.getLong(resultSet, i++);
             Long entriesCappedId = RowMappers.getLong(resultSet, i++);
             Long sharedQueryTextsCappedId = RowMappers.getLong(resultSet, i++);
-            if (entriesCappedId == null) {
-                return null;
-            }
             List<Trace.Entry> entries =
-                    traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
-            if (entries.isEmpty()) {
+                    readEntries(entryBlockCappedId, entriesCappedId, from, limit);
+            if (entries == null || from == 0 && entries.isEmpty()) {
                 return null;
             }
             ImmutableEntries.Builder result = ImmutableEntries.builder()
@@ -767,8 +883,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select entries_capped_id, queries_capped_id, shared_query_texts_capped_id from"
-                    + " trace where id = ?";
+            return "select entry_block_capped_id, entries_capped_id, queries_capped_id,"
+                    + " shared_query_texts_capped_id from trace where id = ?";
         }
 
         @Override
@@ -782,12 +898,14 @@ public class TraceDao implements TraceRepository {
                 return null;
             }
             int i = 1;
+            Long entryBlockCappedId = RowMappers.getLong(resultSet, i++);
             Long entriesCappedId = RowMappers.getLong(resultSet, i++);
             Long queriesCappedId = RowMappers.getLong(resultSet, i++);
             Long sharedQueryTextsCappedId = RowMappers.getLong(resultSet, i++);
-            List<Trace.Entry> entries = ImmutableList.of();
-            if (entriesCappedId != null) {
-                entries = traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+            List<Trace.Entry> entries =
+                    readEntries(entryBlockCappedId, entriesCappedId, 0, Integer.MAX_VALUE);
+            if (entries == null) {
+                entries = ImmutableList.of();
             }
             List<Aggregate.Query> queries = ImmutableList.of();
             if (queriesCappedId != null) {
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// compact encoding of trace entries, stored in the capped database as a single block
+//
+// messages (and query message prefixes/suffixes) are interned into a dictionary since the same
+// message is commonly repeated many times in a single trace, start offsets are delta encoded, and
+// entries are grouped into pages with a page index at the start of the block, so that a range of
+// entries can be decoded without decoding (or even parsing) the entries before it
+class TraceEntryBlock {
+
+    private static final int FORMAT_VERSION = 1;
+
+    @VisibleForTesting
+    static final int PAGE_SIZE = 100;
+
+    private static final int ACTIVE = 1;
+    private static final int QUERY_ENTRY_MESSAGE = 2;
+    private static final int DETAIL_ENTRIES = 4;
+    private static final int LOCATION = 8;
+    private static final int ERROR = 16;
+
+    private TraceEntryBlock() {}
+
+    static byte[] encode(List<Trace.Entry> entries) throws IOException {
+        Map<String, Integer> dictionary = Maps.newLinkedHashMap();
+        List<byte[]> pages = Lists.newArrayList();
+        for (int from = 0; from < entries.size(); from += PAGE_SIZE) {
+            int to = Math.min(from + PAGE_SIZE, entries.size());
+            pages.add(encodePage(entries.subList(from, to), dictionary));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+        out.writeUInt32NoTag(FORMAT_VERSION);
+        out.writeUInt32NoTag(entries.size());
+        out.writeUInt32NoTag(PAGE_SIZE);
+        out.writeUInt32NoTag(dictionary.size());
+        for (String value : dictionary.keySet()) {
+            out.writeStringNoTag(value);
+        }
+        out.writeUInt32NoTag(pages.size());
+        for (byte[] page : pages) {
+            out.writeUInt32NoTag(page.length);
+        }
+        for (byte[] page : pages) {
+            out.writeRawBytes(page);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    static List<Trace.Entry> decode(InputStream input) throws IOException {
+        return decode(input, 0, Integer.MAX_VALUE);
+    }
+
+    // decodes the entries in the range [from, from + limit)
+    static List<Trace.Entry> decode(InputStream input, int from, int limit) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(input);
+        // same as SizeLimitBypassingParser, entries are only limited by the capped database size
+        in.setSizeLimit(Integer.MAX_VALUE);
+        int formatVersion = in.readUInt32();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unexpected trace entry block format: " + formatVersion);
+        }
+        int entryCount = in.readUInt32();
+        int pageSize = in.readUInt32();
+        ByteString[] dictionary = new ByteString[in.readUInt32()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readBytes();
+        }
+        int[] pageLengths = new int[in.readUInt32()];
+        for (int i = 0; i < pageLengths.length; i++) {
+            pageLengths[i] = in.readUInt32();
+        }
+        int to = (int) Math.min(entryCount, (long) from + limit);
+        if (from >= to) {
+            return ImmutableList.of();
+        }
+        int page = from / pageSize;
+        for (int i = 0; i < page; i++) {
+            in.skipRawBytes(pageLengths[i]);
+        }
+        Decoder decoder = new Decoder(in, dictionary);
+        List<Trace.Entry> entries = Lists.newArrayListWithCapacity(to - from);
+        for (int index = page * pageSize; index < to; index++) {
+            if (index % pageSize == 0) {
+                decoder.startPage();
+            }
+            Trace.Entry entry = decoder.readEntry();
+            if (index >= from) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] encodePage(List<Trace.Entry> entries, Map<String, Integer> dictionary)
+            throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+        long priorStartOffsetNanos = 0;
+        for (Trace.Entry entry : entries) {
+            out.writeUInt32NoTag(entry.getDepth());
+            // zigzag encoding in case start offsets are ever out of order
+            out.writeSInt64NoTag(entry.getStartOffsetNanos() - priorStartOffsetNanos);
+            priorStartOffsetNanos = entry.getStartOffsetNanos();
+            out.writeUInt64NoTag(entry.getDurationNanos());
+            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
+            List<Proto.StackTraceElement> location = entry.getLocationStackTraceElementList();
+            int flags = 0;
+            if (entry.getActive()) {
+                flags |= ACTIVE;
+            }
+            if (entry.hasQueryEntryMessage()) {
+                flags |= QUERY_ENTRY_MESSAGE;
+            }
+            if (!detailEntries.isEmpty()) {
+                flags |= DETAIL_ENTRIES;
+            }
+            if (!location.isEmpty()) {
+                flags |= LOCATION;
+            }
+            if (entry.hasError()) {
+                flags |= ERROR;
+            }
+            out.writeUInt32NoTag(flags);
+            if (entry.hasQueryEntryMessage()) {
+                Trace.QueryEntryMessage queryEntryMessage = entry.getQueryEntryMessage();
+                out.writeUInt32NoTag(queryEntryMessage.getSharedQueryTextIndex());
+                out.writeUInt32NoTag(intern(queryEntryMessage.getPrefix(), dictionary));
+                out.writeUInt32NoTag(intern(queryEntryMessage.getSuffix(), dictionary));
+            } else {
+                out.writeUInt32NoTag(intern(entry.getMessage(), dictionary));
+            }
+            if (!detailEntries.isEmpty()) {
+                out.writeUInt32NoTag(detailEntries.size());
+                for (Trace.DetailEntry detailEntry : detailEntries) {
+                    out.writeMessageNoTag(detailEntry);
+                }
+            }
+            if (!location.isEmpty()) {
+                out.writeUInt32NoTag(location.size());
+                for (Proto.StackTraceElement element : location) {
+                    out.writeMessageNoTag(element);
+                }
+            }
+            if (entry.hasError()) {
+                out.writeMessageNoTag(entry.getError());
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static int intern(String value, Map<String, Integer> dictionary) {
+        Integer index = dictionary.get(value);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.put(value, index);
+        }
+        return index;
+    }
+
+    private static class Decoder {
+
+        private final CodedInputStream in;
+        private final ByteString[] dictionary;
+        // dictionary values are only converted to strings when they are first referenced by a
+        // decoded entry
+        private final String[] decodedDictionary;
+
+        private long priorStartOffsetNanos;
+
+        private Decoder(CodedInputStream in, ByteString[] dictionary) {
+            this.in = in;
+            this.dictionary = dictionary;
+            decodedDictionary = new String[dictionary.length];
+        }
+
+        private void startPage() {
+            priorStartOffsetNanos = 0;
+        }
+
+        private Trace.Entry readEntry() throws IOException {
+            Trace.Entry.Builder entry = Trace.Entry.newBuilder()
+                    .setDepth(in.readUInt32());
+            long startOffsetNanos = priorStartOffsetNanos + in.readSInt64();
+            priorStartOffsetNanos = startOffsetNanos;
+            entry.setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(in.readUInt64());
+            int flags = in.readUInt32();
+            entry.setActive((flags & ACTIVE) != 0);
+            if ((flags & QUERY_ENTRY_MESSAGE) != 0) {
+                entry.setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(in.readUInt32())
+                        .setPrefix(getString(in.readUInt32()))
+                        .setSuffix(getString(in.readUInt32())));
+            } else {
+                entry.setMessage(getString(in.readUInt32()));
+            }
+            if ((flags & DETAIL_ENTRIES) != 0) {
+                int count = in.readUInt32();
+                for (int i = 0; i < count; i++) {
+                    entry.addDetailEntry(in.readMessage(Trace.DetailEntry.parser(),
+                            ExtensionRegistryLite.getEmptyRegistry()));
+                }
+            }
+            if ((flags & LOCATION) != 0) {
+                int count = in.readUInt32();
+                for (int i = 0; i < count; i++) {
+                    entry.addLocationStackTraceElement(in.readMessage(
+                            Proto.StackTraceElement.parser(),
+                            ExtensionRegistryLite.getEmptyRegistry()));
+                }
+            }
+            if ((flags & ERROR) != 0) {
+                entry.setError(in.readMessage(Trace.Error.parser(),
+                        ExtensionRegistryLite.getEmptyRegistry()));
+            }
+            return entry.build();
+        }
+
+        private String getString(int index) {
+            String value = decodedDictionary[index];
+            if (value == null) {
+                value = dictionary[index].toStringUtf8();
+                decodedDictionary[index] = value;
+            }
+            return value;
+        }
+    }
+}
@@ -16,6 +16,8 @@
 package org.glowroot.agent.embedded.util;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
@@ -24,8 +26,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -45,6 +53,7 @@ import com.ning.compress.lzf.LZFInputStream;
 import com.ning.compress.lzf.LZFOutputStream;
 import com.ning.compress.lzf.util.ChunkDecoderFactory;
 import com.ning.compress.lzf.util.ChunkEncoderFactory;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,6 +62,7 @@ import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.SizeLimitBypassingParser;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CappedDatabase {
 
@@ -60,6 +70,26 @@ public class CappedDatabase {
 
     private static final boolean USE_SAFE_LZF_ENCODER;
 
+    // when enabled, reads are performed lock-free against a read-only memory mapping of the capped
+    // file (not recommended on windows, where a memory-mapped file cannot be replaced during a
+    // resize that is not performed in-place)
+    private static final boolean MEMORY_MAPPED = Boolean.getBoolean("glowroot.cappedDatabase.mmap");
+
+    // compression buffers (only used when memory mapped) larger than this are not retained for
+    // re-use
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    // returned by a lock-free read when the mapping was replaced mid-read
+    private static final byte[] RETRY = new byte[0];
+
+    private static final ThreadLocal<CompressionBuffer> compressionBuffers =
+            new ThreadLocal<CompressionBuffer>() {
+                @Override
+                protected CompressionBuffer initialValue() {
+                    return new CompressionBuffer();
+                }
+            };
+
     static {
         String arch = StandardSystemProperty.OS_ARCH.value();
         // see https://github.com/lz4/lz4-java/blob/1.4.1/src/java/net/jpountz/util/Utils.java#L27
@@ -79,14 +109,32 @@ public class CappedDatabase {
     private RandomAccessFile inFile;
     private volatile boolean closed = false;
 
+    private final boolean memoryMapped;
+    // null when not memory mapped, replaced (under lock) on each resize
+    private volatile @Nullable Mapping mapping;
+
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MEMORY_MAPPED);
+    }
+
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean memoryMapped)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
+        if (memoryMapped && !MemoryAccess.isAvailable()) {
+            logger.warn("capped database {} cannot be memory mapped on this JVM", file.getName());
+            this.memoryMapped = false;
+        } else {
+            this.memoryMapped = memoryMapped;
+        }
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
         inFile = new RandomAccessFile(file, "r");
+        if (this.memoryMapped) {
+            mapping = createMapping();
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -120,8 +168,7 @@ public class CappedDatabase {
         return stats;
     }
 
-    @OnlyUsedByTests
-    long write(final ByteSource byteSource, String type) throws IOException {
+    public long write(final ByteSource byteSource, String type) throws IOException {
         return write(type, new Copier() {
             @Override
             public void copyTo(OutputStream out) throws IOException {
@@ -131,6 +178,12 @@ public class CappedDatabase {
     }
 
     private long write(String type, Copier copier) throws IOException {
+        if (closed) {
+            return -1;
+        }
+        if (memoryMapped) {
+            return writeBuffered(type, copier);
+        }
         synchronized (lock) {
             if (closed) {
                 return -1;
@@ -144,48 +197,63 @@ public class CappedDatabase {
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
-            CappedDatabaseStats stats = statsByType.get(type);
-            if (stats == null) {
-                stats = new CappedDatabaseStats();
-                statsByType.put(type, stats);
-            }
-            stats.record(countingStreamBeforeCompression.getCount(),
+            recordStats(type, countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
             return out.endBlock();
         }
     }
 
-    public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
-            Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+    // when memory mapped, compression is performed outside of the lock (at the cost of buffering
+    // the compressed block), so that the critical section that lock-free readers can collide with
+    // is just the block copy
+    private long writeBuffered(String type, Copier copier) throws IOException {
+        CompressionBuffer compressionBuffer = compressionBuffers.get();
+        compressionBuffer.reset();
+        try {
+            long startTick = ticker.read();
+            CountingOutputStream countingStreamBeforeCompression =
+                    new CountingOutputStream(newLZFOutputStream(compressionBuffer));
+            copier.copyTo(countingStreamBeforeCompression);
+            countingStreamBeforeCompression.close();
+            long endTick = ticker.read();
+            synchronized (lock) {
+                if (closed) {
+                    return -1;
+                }
+                out.startBlock();
+                compressionBuffer.writeTo(out);
+                recordStats(type, countingStreamBeforeCompression.getCount(),
+                        compressionBuffer.size(), endTick - startTick);
+                return out.endBlock();
+            }
+        } finally {
+            if (compressionBuffer.capacity() > MAX_POOLED_BUFFER_SIZE) {
+                compressionBuffers.remove();
+            }
         }
-        if (overwritten) {
-            return null;
+    }
+
+    @GuardedBy("lock")
+    private void recordStats(String type, long uncompressedBytes, long compressedBytes,
+            long nanos) {
+        CappedDatabaseStats stats = statsByType.get(type);
+        if (stats == null) {
+            stats = new CappedDatabaseStats();
+            statsByType.put(type, stats);
         }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
+        stats.record(uncompressedBytes, compressedBytes, nanos);
+    }
+
+    public <T extends /*@NonNull*/ AbstractMessage> /*@Nullable*/ T readMessage(long cappedId,
+            Parser<T> parser) throws IOException {
+        InputStream input = openBlock(cappedId);
+        if (input == null) {
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -196,28 +264,10 @@ public class CappedDatabase {
 
     public <T extends /*@NonNull*/ MessageLite> List<T> readMessages(long cappedId,
             Parser<T> parser) throws IOException {
-        boolean overwritten;
-        boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
-        }
-        if (overwritten) {
+        InputStream input = openBlock(cappedId);
+        if (input == null) {
             return ImmutableList.of();
         }
-        if (inTheFuture) {
-            // this can happen when the glowroot folder is copied for analysis without shutting down
-            // the JVM and glowroot.capped.db is copied first, then new data is written to
-            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
-            // glowroot.h2.db is copied with capped ids that do not exist in the copied
-            // glowroot.capped.db
-            return ImmutableList.of();
-        }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = newLZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -227,10 +277,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            synchronized (lock) {
-                overwritten = out.isOverwritten(cappedId);
-            }
-            if (!overwritten) {
+            if (!isExpired(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -240,6 +287,24 @@ public class CappedDatabase {
         return messages;
     }
 
+    public <T extends /*@NonNull*/ Object> /*@Nullable*/ T readBlock(long cappedId,
+            BlockReader<T> blockReader) throws IOException {
+        InputStream input = openBlock(cappedId);
+        if (input == null) {
+            return null;
+        }
+        try {
+            return blockReader.read(input);
+        } catch (Exception e) {
+            if (!isExpired(cappedId)) {
+                logger.error(e.getMessage(), e);
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
@@ -251,6 +316,11 @@ public class CappedDatabase {
         }
     }
 
+    @OnlyUsedByTests
+    boolean isMemoryMapped() {
+        return mapping != null;
+    }
+
     public long getSmallestNonExpiredId() {
         synchronized (lock) {
             return out.getSmallestNonOverwrittenId();
@@ -265,6 +335,16 @@ public class CappedDatabase {
             inFile.close();
             out.resize(newSizeKb);
             inFile = new RandomAccessFile(file, "r");
+            if (memoryMapped) {
+                // readers that are in the middle of reading from the prior mapping will detect
+                // that the mapping has been replaced and retry, and the prior mapping is unmapped
+                // once the last of them is done with it
+                Mapping priorMapping = mapping;
+                mapping = createMapping();
+                if (priorMapping != null) {
+                    priorMapping.release();
+                }
+            }
         }
     }
 
@@ -274,10 +354,148 @@ public class CappedDatabase {
             closed = true;
             out.close();
             inFile.close();
+            Mapping priorMapping = mapping;
+            if (priorMapping != null) {
+                mapping = null;
+                priorMapping.release();
+            }
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    // returns null if the block has been overwritten (or does not exist yet)
+    private @Nullable InputStream openBlock(long cappedId) throws IOException {
+        if (memoryMapped) {
+            byte[] block = readMappedBlock(cappedId);
+            if (block != null) {
+                return newLZFInputStream(new ByteArrayInputStream(block));
+            }
+            if (mapping != null) {
+                return null;
+            }
+            // too large to be memory mapped (or closed), fall back to locked read
+        }
+        boolean overwritten;
+        boolean inTheFuture;
+        synchronized (lock) {
+            overwritten = out.isOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCurrIndex();
+        }
+        if (overwritten || inTheFuture) {
+            return null;
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        final int bufferSize = 32768;
+        return newLZFInputStream(
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+    }
+
+    // lock-free read of the (compressed) block, returns null if the block has been overwritten
+    // (or does not exist yet)
+    private byte /*@Nullable*/ [] readMappedBlock(long cappedId) throws IOException {
+        while (true) {
+            Mapping mapping = this.mapping;
+            if (mapping == null) {
+                return null;
+            }
+            if (!mapping.acquire()) {
+                // unmapped after being replaced
+                continue;
+            }
+            try {
+                byte[] block = readMappedBlock(cappedId, mapping);
+                if (block != RETRY) {
+                    return block;
+                }
+            } finally {
+                mapping.release();
+            }
+        }
+    }
+
+    // returns RETRY if the mapping was replaced mid-read
+    private byte /*@Nullable*/ [] readMappedBlock(long cappedId, Mapping mapping)
+            throws IOException {
+        if (isMappedBlockUnavailable(cappedId, 0, mapping)) {
+            return null;
+        }
+        ByteBuffer buffer = mapping.buffer.duplicate();
+        int position = mapping.convertToBufferPosition(cappedId);
+        long blockLength = buffer.getLong(position);
+        boolean validBlockLength = blockLength >= 0 && blockLength <= mapping.sizeBytes
+                - CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES;
+        if (!validBlockLength) {
+            // this can happen if the block header was overwritten mid-read, which is checked
+            // below
+            blockLength = 0;
+        }
+        byte[] block = new byte[(int) blockLength];
+        int blockIndex = 0;
+        while (blockIndex < block.length) {
+            position = mapping.convertToBufferPosition(
+                    cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+            int numToRead = Math.min(block.length - blockIndex,
+                    mapping.buffer.capacity() - position);
+            buffer.position(position);
+            buffer.get(block, blockIndex, numToRead);
+            blockIndex += numToRead;
+        }
+        // the bytes above must be read before the sequence check below, and a volatile read
+        // only orders the reads that come after it
+        MemoryAccess.loadFence();
+        if (this.mapping != mapping) {
+            // resized mid-read
+            return RETRY;
+        }
+        // sequence check, the writer advances the write limit before writing any bytes, so if
+        // the write limit has not reached this block (on the next loop around the capped file)
+        // then none of the bytes above could have been overwritten mid-read
+        if (isMappedBlockUnavailable(cappedId, blockLength, mapping)) {
+            return null;
+        }
+        if (!validBlockLength) {
+            throw new IOException("Invalid capped database block length");
+        }
+        return block;
+    }
+
+    private boolean isMappedBlockUnavailable(long cappedId, long blockLength, Mapping mapping) {
+        if (cappedId < mapping.lastResizeBaseIndex) {
+            return true;
+        }
+        if (cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockLength > out
+                .getCurrIndex()) {
+            // this can happen when the glowroot folder is copied for analysis without shutting down
+            // the JVM and glowroot.capped.db is copied first, then new data is written to
+            // glowroot.capped.db and the new capped ids are written to glowroot.h2.db and then
+            // glowroot.h2.db is copied with capped ids that do not exist in the copied
+            // glowroot.capped.db
+            return true;
+        }
+        return cappedId < out.getWriteLimitIndex() - mapping.sizeBytes;
+    }
+
+    @GuardedBy("lock")
+    private @Nullable Mapping createMapping() throws IOException {
+        long sizeBytes = out.getSizeKb() * 1024L;
+        long mappedSize = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + sizeBytes;
+        if (mappedSize > Integer.MAX_VALUE) {
+            logger.warn("capped database {} is too large to be memory mapped", file.getName());
+            return null;
+        }
+        // a read-write channel is needed in order to extend the file to its full capped size
+        RandomAccessFile mappedFile = new RandomAccessFile(file, "rw");
+        try {
+            MappedByteBuffer buffer =
+                    mappedFile.getChannel().map(MapMode.READ_ONLY, 0, mappedSize);
+            return new Mapping(buffer, out.getLastResizeBaseIndex(), sizeBytes);
+        } finally {
+            // the mapping remains valid after the channel is closed
+            mappedFile.close();
+        }
+    }
+
     private static LZFOutputStream newLZFOutputStream(OutputStream outputStream) {
         if (USE_SAFE_LZF_ENCODER) {
             return new LZFOutputStream(ChunkEncoderFactory.safeInstance(), outputStream);
@@ -305,6 +523,14 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
+            if (mapping != null) {
+                byte[] block = readMappedBlock(cappedId);
+                if (block == null) {
+                    throw new CappedBlockRolledOverMidReadException("Block rolled over");
+                }
+                return new InputStreamReader(newLZFInputStream(new ByteArrayInputStream(block)),
+                        UTF_8);
+            }
             // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
             // lots of small reads from the underlying RandomAccessFile
             final int bufferSize = 32768;
@@ -382,6 +608,10 @@ public class CappedDatabase {
         }
     }
 
+    public interface BlockReader<T> {
+        T read(InputStream input) throws IOException;
+    }
+
     private interface Copier {
         void copyTo(OutputStream out) throws IOException;
     }
@@ -420,4 +650,128 @@ public class CappedDatabase {
             return count;
         }
     }
+
+    private static class Mapping {
+
+        private final MappedByteBuffer buffer;
+        private final long lastResizeBaseIndex;
+        private final long sizeBytes;
+
+        // one reference is held by the CappedDatabase until the mapping is replaced, plus one per
+        // in-flight lock-free read, the mapping is unmapped when the last reference is released
+        // (instead of waiting for garbage collection, which can hold on to large amounts of address
+        // space and, on windows, prevents the file from being replaced)
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Mapping(MappedByteBuffer buffer, long lastResizeBaseIndex, long sizeBytes) {
+            this.buffer = buffer;
+            this.lastResizeBaseIndex = lastResizeBaseIndex;
+            this.sizeBytes = sizeBytes;
+        }
+
+        // returns false if the mapping has already been unmapped
+        private boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (references.decrementAndGet() == 0) {
+                MemoryAccess.unmap(buffer);
+            }
+        }
+
+        private int convertToBufferPosition(long index) {
+            return CappedDatabaseOutputStream.HEADER_SKIP_BYTES
+                    + (int) ((index - lastResizeBaseIndex) % sizeBytes);
+        }
+    }
+
+    // re-used (per thread) across writes to avoid re-allocating the compression buffer
+    private static class CompressionBuffer extends ByteArrayOutputStream {
+
+        private CompressionBuffer() {
+            super(32768);
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
+
+    // sun.misc.Unsafe is accessed reflectively since it is not available on all JVMs, and since
+    // loadFence() is only available on Java 8+ and invokeCleaner() is only available on Java 9+
+    private static class MemoryAccess {
+
+        private static final @Nullable Object unsafe;
+        private static final @Nullable Method loadFenceMethod;
+        // Java 9+
+        private static final @Nullable Method invokeCleanerMethod;
+
+        static {
+            Object theUnsafe = null;
+            Method loadFence = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafeField.setAccessible(true);
+                theUnsafe = theUnsafeField.get(null);
+                loadFence = unsafeClass.getMethod("loadFence");
+                invokeCleaner = getInvokeCleanerMethod(unsafeClass);
+            } catch (Exception e) {
+                logger.debug(e.getMessage(), e);
+            }
+            unsafe = theUnsafe;
+            loadFenceMethod = loadFence;
+            invokeCleanerMethod = invokeCleaner;
+        }
+
+        private static boolean isAvailable() {
+            return loadFenceMethod != null;
+        }
+
+        private static void loadFence() throws IOException {
+            try {
+                checkNotNull(loadFenceMethod).invoke(unsafe);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static void unmap(MappedByteBuffer buffer) {
+            try {
+                if (invokeCleanerMethod != null) {
+                    invokeCleanerMethod.invoke(unsafe, buffer);
+                    return;
+                }
+                // Java 8
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // the mapping will be unmapped when the buffer is garbage collected
+                logger.debug(e.getMessage(), e);
+            }
+        }
+
+        private static @Nullable Method getInvokeCleanerMethod(Class<?> unsafeClass) {
+            try {
+                return unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                logger.debug(e.getMessage(), e);
+                return null;
+            }
+        }
+    }
 }
@@ -35,7 +35,15 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // currIndex is ever-increasing even over capped boundary
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
-    private long currIndex;
+    //
+    // currIndex is volatile so it can be read outside of the external synchronization by the
+    // memory-mapped reader
+    private volatile long currIndex;
+    // writeLimitIndex is advanced (before any bytes are written) to the index just past the bytes
+    // that are about to be written, so that the memory-mapped reader can detect (after reading
+    // outside of the external synchronization) whether any of the bytes it read may have been
+    // concurrently overwritten
+    private volatile long writeLimitIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
     private long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
@@ -66,6 +74,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        writeLimitIndex = currIndex;
     }
 
     void startBlock() {
@@ -79,6 +88,7 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        writeLimitIndex = currIndex;
     }
 
     long endBlock() throws IOException {
@@ -98,10 +108,20 @@ class CappedDatabaseOutputStream extends OutputStream {
         return Math.max(lastResizeBaseIndex, currIndex - sizeBytes);
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     long getCurrIndex() {
         return currIndex;
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    long getWriteLimitIndex() {
+        return writeLimitIndex;
+    }
+
+    long getLastResizeBaseIndex() {
+        return lastResizeBaseIndex;
+    }
+
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
         return sizeKb;
@@ -175,6 +195,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        writeLimitIndex = currIndex + len;
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
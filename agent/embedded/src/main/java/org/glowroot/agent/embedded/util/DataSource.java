@@ -24,8 +24,13 @@ import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -55,6 +60,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
+// writes (and schema changes) go through a single writer connection under lock, while queries
+// are spread across a small pool of reader connections so that long running UI queries do not
+// hold up the collector writing aggregates and traces (and vice versa)
 public class DataSource {
 
     private static final Logger logger = LoggerFactory.getLogger(DataSource.class);
@@ -65,12 +73,31 @@ public class DataSource {
     private static final int QUERY_TIMEOUT_SECONDS =
             Integer.getInteger("glowroot.internal.h2.queryTimeout", 60);
 
+    private static final int READER_CONNECTIONS =
+            Math.max(1, Integer.getInteger("glowroot.internal.h2.readerConnections", 2));
+
+    private static final AtomicInteger memDbCounter = new AtomicInteger();
+
     // null means use memDb
     private final @Nullable File dbFile;
+    // memDb needs a name so that the writer and reader connections share the same database
+    private final String memDbName;
     private final Thread shutdownHookThread;
+
     private final Object lock = new Object();
     @GuardedBy("lock")
-    private Connection connection;
+    private PooledConnection writer;
+
+    // read lock is held while using a reader connection, write lock is held while replacing the
+    // connections (defrag, compact, deleteAll, close)
+    private final ReadWriteLock connectionsLock = new ReentrantReadWriteLock();
+    private final BlockingQueue<PooledConnection> readers =
+            new ArrayBlockingQueue<PooledConnection>(READER_CONNECTIONS);
+    // this is used so that nested queries (e.g. from inside JdbcQuery.processResultSet()) re-use
+    // the same reader connection instead of competing for (and possibly exhausting) the pool
+    private final ThreadLocal</*@Nullable*/ PooledConnection> currentReader =
+            new ThreadLocal</*@Nullable*/ PooledConnection>();
+
     private volatile boolean closed;
 
     @SuppressWarnings("nullness:type.argument.type.incompatible")
@@ -86,57 +113,29 @@ public class DataSource {
     private final Map</*@Untainted*/ String, ImmutableList<Index>> indexes =
             Maps.newConcurrentMap();
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder().weakValues()
-                    .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
-                        @Override
-                        @SuppressWarnings("GuardedBy")
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
-
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        memDbName = "glowroot-" + memDbCounter.getAndIncrement();
+        writer = createConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        memDbName = "";
+        writer = createConnections();
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public void defrag() throws SQLException {
-        if (dbFile == null) {
-            return;
-        }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
-        }
+        shutdownAndReconnect("shutdown defrag");
     }
 
     public void compact() throws SQLException {
-        if (dbFile == null) {
-            return;
-        }
-        synchronized (lock) {
-            if (closed) {
-                return;
-            }
-            execute("shutdown compact");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
-        }
+        shutdownAndReconnect("shutdown compact");
     }
 
     public long getH2DataFileSize() {
@@ -156,29 +155,34 @@ public class DataSource {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        connectionsLock.writeLock().lock();
+        try {
             if (closed) {
                 return;
             }
             List<String> schemaVersionRows =
                     queryForStringList("select schema_version from schema_version");
-            connection.close();
-            preparedStatementCache.invalidateAll();
-            if (!dbFile.delete()) {
-                throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
-            }
-            connection = createConnection(dbFile);
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
-                    .entrySet()) {
-                syncTable(entry.getKey(), entry.getValue());
-            }
-            for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
-                    .entrySet()) {
-                syncIndexes(entry.getKey(), entry.getValue());
-            }
-            for (String schemaVersionRow : schemaVersionRows) {
-                update("insert into schema_version (schema_version) values (?)", schemaVersionRow);
+            synchronized (lock) {
+                closeConnections();
+                if (!dbFile.delete()) {
+                    throw new SQLException("Could not delete file: " + dbFile.getAbsolutePath());
+                }
+                writer = createConnections();
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Column>> entry : tables
+                        .entrySet()) {
+                    syncTable(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry</*@Untainted*/ String, ImmutableList<Index>> entry : indexes
+                        .entrySet()) {
+                    syncIndexes(entry.getKey(), entry.getValue());
+                }
+                for (String schemaVersionRow : schemaVersionRows) {
+                    update("insert into schema_version (schema_version) values (?)",
+                            schemaVersionRow);
+                }
             }
+        } finally {
+            connectionsLock.writeLock().unlock();
         }
     }
 
@@ -188,7 +192,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Statement statement = connection.createStatement();
+            Statement statement = writer.connection.createStatement();
             StatementCloser closer = new StatementCloser(statement);
             try {
                 // setQueryTimeout() affects all statements of this connection (at least with h2)
@@ -205,11 +209,12 @@ public class DataSource {
     // warning: this method returns 0 when data source is closed
     public long queryForLong(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return 0;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Long>() {
+        PooledConnection reader = acquireReader();
+        if (reader == null) {
+            return 0;
+        }
+        try {
+            return query(reader, sql, args, new ResultSetExtractor<Long>() {
                 @Override
                 public Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -225,17 +230,20 @@ public class DataSource {
                     return val;
                 }
             });
+        } finally {
+            releaseReader(reader);
         }
     }
 
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closed) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+        PooledConnection reader = acquireReader();
+        if (reader == null) {
+            return null;
+        }
+        try {
+            return query(reader, sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -249,6 +257,8 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -268,12 +278,13 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closed) {
-                return jdbcQuery.valueIfDataSourceClosed();
-            }
+        PooledConnection reader = acquireReader();
+        if (reader == null) {
+            return jdbcQuery.valueIfDataSourceClosed();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    prepareStatement(reader, jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -284,7 +295,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and each connection is
+            // only used by one thread at a time
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -302,12 +316,13 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
+        PooledConnection reader = acquireReader();
+        if (reader == null) {
+            return ImmutableList.of();
+        }
+        try {
             PreparedStatement preparedStatement =
-                    prepareStatement(jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
+                    prepareStatement(reader, jdbcQuery.getSql(), QUERY_TIMEOUT_SECONDS);
             jdbcQuery.bind(preparedStatement);
             ResultSet resultSet = preparedStatement.executeQuery();
             ResultSetCloser closer = new ResultSetCloser(resultSet);
@@ -322,7 +337,10 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and each connection is
+            // only used by one thread at a time
+        } finally {
+            releaseReader(reader);
         }
     }
 
@@ -354,7 +372,7 @@ public class DataSource {
             if (closed) {
                 return 0;
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement = prepareStatement(writer, jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeUpdate();
             // don't need to close statement since they are all cached and used under lock
@@ -373,7 +391,7 @@ public class DataSource {
             if (closed) {
                 return new int[0];
             }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql(), 0);
+            PreparedStatement preparedStatement = prepareStatement(writer, jdbcUpdate.getSql(), 0);
             jdbcUpdate.bind(preparedStatement);
             return preparedStatement.executeBatch();
             // don't need to close statement since they are all cached and used under lock
@@ -414,7 +432,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            Schemas.syncTable(tableName, columns, writer.connection);
             tables.put(tableName, ImmutableList.copyOf(columns));
         }
     }
@@ -425,7 +443,7 @@ public class DataSource {
             if (closed) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            Schemas.syncIndexes(tableName, indexes, writer.connection);
             this.indexes.put(tableName, indexes);
         }
     }
@@ -437,14 +455,14 @@ public class DataSource {
     // helpful for upgrading schema
     public boolean tableExists(String tableName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.tableExists(tableName, connection);
+            return !closed && Schemas.tableExists(tableName, writer.connection);
         }
     }
 
     // helpful for upgrading schema
     public boolean columnExists(String tableName, String columnName) throws SQLException {
         synchronized (lock) {
-            return !closed && Schemas.columnExists(tableName, columnName, connection);
+            return !closed && Schemas.columnExists(tableName, columnName, writer.connection);
         }
     }
 
@@ -452,7 +470,7 @@ public class DataSource {
     public void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
         synchronized (lock) {
-            if (Schemas.tableExists(oldTableName, connection)) {
+            if (Schemas.tableExists(oldTableName, writer.connection)) {
                 execute("alter table " + oldTableName + " rename to " + newTableName);
             }
         }
@@ -462,7 +480,7 @@ public class DataSource {
     public void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
         synchronized (lock) {
-            if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+            if (Schemas.columnExists(tableName, oldColumnName, writer.connection)) {
                 execute("alter table " + tableName + " alter column " + oldColumnName
                         + " rename to "
                         + newColumnName);
@@ -482,44 +500,67 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
-            if (closed) {
-                return;
+        connectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                closeConnections();
             }
-            closed = true;
-            connection.close();
+        } finally {
+            connectionsLock.writeLock().unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private void shutdownAndReconnect(@Untainted String shutdownSql) throws SQLException {
+        if (dbFile == null) {
+            return;
+        }
+        connectionsLock.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                // reader connections need to be closed first, otherwise h2 will complain about
+                // the database being in use by other connections
+                closeReaders();
+                execute(shutdownSql);
+                writer = createConnections();
+            }
+        } finally {
+            connectionsLock.writeLock().unlock();
+        }
+    }
+
     private List<H2Table> analyzeH2DiskSpaceUnderSuppressQueryTimeout() throws Exception {
         List</*@Untainted*/ String> tableNames;
-        synchronized (lock) {
-            if (closed) {
-                return ImmutableList.of();
-            }
-            tableNames = getAllTableNamesUnderLock();
+        PooledConnection reader = acquireReader();
+        if (reader == null) {
+            return ImmutableList.of();
+        }
+        try {
+            tableNames = getAllTableNames(reader);
+        } finally {
+            releaseReader(reader);
         }
         List<H2Table> tables = Lists.newArrayList();
         for (String tableName : tableNames) {
-            long bytes;
-            Stopwatch stopwatch = Stopwatch.createStarted();
-            synchronized (lock) {
-                if (closed) {
-                    return tables;
-                }
-                bytes = queryForLong("call disk_space_used (?)", tableName);
+            if (closed) {
+                return tables;
             }
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            long bytes = queryForLong("call disk_space_used (?)", tableName);
             // sleep a bit to allow some other threads to use the data source
             MILLISECONDS.sleep(stopwatch.elapsed(MILLISECONDS) / 10);
-            stopwatch.reset().start();
-            long rows;
-            synchronized (lock) {
-                if (closed) {
-                    return tables;
-                }
-                rows = queryForLong("select count(*) from " + tableName);
+            if (closed) {
+                return tables;
             }
+            stopwatch.reset().start();
+            long rows = queryForLong("select count(*) from " + tableName);
             // sleep a bit to allow some other threads to use the data source
             MILLISECONDS.sleep(stopwatch.elapsed(MILLISECONDS) / 10);
             tables.add(ImmutableH2Table.builder()
@@ -531,21 +572,53 @@ public class DataSource {
         return tables;
     }
 
-    @GuardedBy("lock")
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql, QUERY_TIMEOUT_SECONDS);
+    // returns null if the data source is closed, otherwise the returned reader connection must be
+    // passed to releaseReader() when done
+    private @Nullable PooledConnection acquireReader() throws SQLException {
+        connectionsLock.readLock().lock();
+        if (closed) {
+            connectionsLock.readLock().unlock();
+            return null;
+        }
+        PooledConnection reader = currentReader.get();
+        if (reader == null) {
+            try {
+                reader = readers.take();
+            } catch (InterruptedException e) {
+                // re-interrupt so that caller can handle interruption
+                Thread.currentThread().interrupt();
+                connectionsLock.readLock().unlock();
+                throw new SQLException(e);
+            }
+            currentReader.set(reader);
+        }
+        reader.holdCount++;
+        return reader;
+    }
+
+    private void releaseReader(PooledConnection reader) {
+        if (--reader.holdCount == 0) {
+            currentReader.remove();
+            readers.add(reader);
+        }
+        connectionsLock.readLock().unlock();
+    }
+
+    private <T extends /*@Nullable*/ Object> T query(PooledConnection reader,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = prepareStatement(reader, sql, QUERY_TIMEOUT_SECONDS);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
         ResultSet resultSet = preparedStatement.executeQuery();
         return extractAndClose(resultSet, rse);
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and each connection is only
+        // used by one thread at a time
     }
 
-    @GuardedBy("lock")
-    private List</*@Untainted*/ String> getAllTableNamesUnderLock() throws SQLException {
-        ResultSet resultSet = connection.getMetaData().getTables(null, null, null, null);
+    private static List</*@Untainted*/ String> getAllTableNames(PooledConnection reader)
+            throws SQLException {
+        ResultSet resultSet = reader.connection.getMetaData().getTables(null, null, null, null);
         return extractAndClose(resultSet, new ResultSetExtractor<List</*@Untainted*/ String>>() {
             @Override
             public List</*@Untainted*/ String> extractData(ResultSet resultSet) throws Exception {
@@ -562,11 +635,10 @@ public class DataSource {
         });
     }
 
-    @GuardedBy("lock")
-    private PreparedStatement prepareStatement(@Untainted String sql, int queryTimeoutSeconds)
-            throws SQLException {
+    private PreparedStatement prepareStatement(PooledConnection pooledConnection,
+            @Untainted String sql, int queryTimeoutSeconds) throws SQLException {
         try {
-            PreparedStatement preparedStatement = preparedStatementCache.get(sql);
+            PreparedStatement preparedStatement = pooledConnection.preparedStatementCache.get(sql);
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             if (suppressQueryTimeout.get()) {
                 preparedStatement.setQueryTimeout(0);
@@ -584,22 +656,36 @@ public class DataSource {
         }
     }
 
-    private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
-            throws SQLException {
-        ResultSetCloser closer = new ResultSetCloser(resultSet);
-        try {
-            return rse.extractData(resultSet);
-        } catch (Throwable t) {
-            throw closer.rethrow(t);
-        } finally {
-            closer.close();
+    // returns the writer connection, after populating the reader connections
+    private PooledConnection createConnections() throws SQLException {
+        // writer connection is created first since it creates the database if it does not exist
+        PooledConnection writer = new PooledConnection(createConnection());
+        for (int i = 0; i < READER_CONNECTIONS; i++) {
+            readers.add(new PooledConnection(createConnection()));
+        }
+        return writer;
+    }
+
+    @GuardedBy("lock")
+    private void closeConnections() throws SQLException {
+        closeReaders();
+        writer.connection.close();
+    }
+
+    // must be called while holding the connectionsLock write lock, which guarantees that all of
+    // the reader connections are back in the pool
+    private void closeReaders() throws SQLException {
+        PooledConnection reader;
+        while ((reader = readers.poll()) != null) {
+            reader.connection.close();
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private Connection createConnection() throws SQLException {
         if (dbFile == null) {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
-            return new JdbcConnection("jdbc:h2:mem:;compress=true;db_close_on_exit=false",
+            return new JdbcConnection(
+                    "jdbc:h2:mem:" + memDbName + ";compress=true;db_close_on_exit=false",
                     new Properties());
         } else {
             String dbPath = dbFile.getPath();
@@ -614,10 +700,23 @@ public class DataSource {
         }
     }
 
+    private static <T> T extractAndClose(ResultSet resultSet, ResultSetExtractor<T> rse)
+            throws SQLException {
+        ResultSetCloser closer = new ResultSetCloser(resultSet);
+        try {
+            return rse.extractData(resultSet);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
     private static void debug(String sql, @Nullable Object... args) {
         debug(logger, sql, args);
     }
 
+
     @VisibleForTesting
     static void debug(Logger logger, String sql, @Nullable Object... args) {
         if (!logger.isDebugEnabled()) {
@@ -667,6 +766,28 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // each connection has its own prepared statement cache since h2 prepared statements are tied
+    // to the connection that created them
+    private static class PooledConnection {
+
+        private final Connection connection;
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        // only accessed by the thread that currently holds this connection
+        private int holdCount;
+
+        private PooledConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                    .build(new CacheLoader</*@Untainted*/ String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -678,8 +799,13 @@ public class DataSource {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closed = true;
-                synchronized (lock) {
-                    connection.close();
+                connectionsLock.writeLock().lock();
+                try {
+                    synchronized (lock) {
+                        closeConnections();
+                    }
+                } finally {
+                    connectionsLock.writeLock().unlock();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
@@ -132,6 +132,30 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollup() throws Exception {
+        // given
+        populateAggregates();
+        assertThat(aggregateDao.getRollupLagMillis(1)).isEqualTo(15000);
+
+        // when
+        aggregateDao.rollup();
+
+        // then
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overallAggregates =
+                aggregateDao.readOverviewAggregates(AGENT_ID, query);
+        assertThat(overallAggregates).hasSize(1);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(aggregateDao.getRollupLagMillis(1)).isEqualTo(0);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
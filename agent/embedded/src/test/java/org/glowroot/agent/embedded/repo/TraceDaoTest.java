@@ -16,8 +16,10 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.File;
+import java.util.List;
 
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -105,6 +107,32 @@ public class TraceDaoTest {
         assertThat(header2.getUser()).isEqualTo(header.getUser());
     }
 
+    @Test
+    public void shouldStoreTraceBatch() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        List<TraceReader> traceReaders = ImmutableList.of(TraceTestData.createTraceReader(header),
+                TraceTestData.createTraceReader(header), TraceTestData.createTraceReader(header));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder()
+                .durationNanosLow(0)
+                .build();
+
+        // when
+        traceDao.store(traceReaders);
+
+        // then
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ID, query, filter, 10);
+        assertThat(queryResult.records()).hasSize(3);
+        for (TraceReader traceReader : traceReaders) {
+            assertThat(traceDao.readHeaderPlus(AGENT_ID, traceReader.traceId())).isNotNull();
+        }
+    }
+
     @Test
     public void shouldReadTraceWithDurationNanosQualifier() throws Exception {
         // given
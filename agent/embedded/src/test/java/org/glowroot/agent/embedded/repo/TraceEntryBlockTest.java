@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceEntryBlockTest {
+
+    @Test
+    public void shouldRoundTrip() throws Exception {
+        // given
+        List<Trace.Entry> entries = ImmutableList.of(
+                Trace.Entry.newBuilder()
+                        .setDepth(0)
+                        .setStartOffsetNanos(10)
+                        .setDurationNanos(1000)
+                        .setMessage("abc")
+                        .addDetailEntry(Trace.DetailEntry.newBuilder()
+                                .setName("x")
+                                .addValue(Trace.DetailValue.newBuilder()
+                                        .setString("y")))
+                        .build(),
+                Trace.Entry.newBuilder()
+                        .setDepth(1)
+                        .setStartOffsetNanos(20)
+                        .setDurationNanos(500)
+                        .setActive(true)
+                        .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                                .setSharedQueryTextIndex(3)
+                                .setPrefix("jdbc query: ")
+                                .setSuffix(" => 1 row"))
+                        .addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                                .setClassName("a.b.C")
+                                .setMethodName("d")
+                                .setFileName("C.java")
+                                .setLineNumber(11))
+                        .build(),
+                Trace.Entry.newBuilder()
+                        .setDepth(1)
+                        // out of order start offset
+                        .setStartOffsetNanos(15)
+                        .setDurationNanos(0)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("failed"))
+                        .build());
+
+        // when
+        List<Trace.Entry> decoded = decode(TraceEntryBlock.encode(entries));
+
+        // then
+        assertThat(decoded).isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldDecodeRangeAcrossPages() throws Exception {
+        // given
+        List<Trace.Entry> entries = createEntries(TraceEntryBlock.PAGE_SIZE * 3 + 7);
+        byte[] bytes = TraceEntryBlock.encode(entries);
+
+        // when
+        List<Trace.Entry> range = TraceEntryBlock.decode(new ByteArrayInputStream(bytes),
+                TraceEntryBlock.PAGE_SIZE - 5, TraceEntryBlock.PAGE_SIZE + 10);
+        List<Trace.Entry> lastRange = TraceEntryBlock.decode(new ByteArrayInputStream(bytes),
+                TraceEntryBlock.PAGE_SIZE * 3, 100);
+        List<Trace.Entry> pastEnd = TraceEntryBlock.decode(new ByteArrayInputStream(bytes),
+                entries.size(), 100);
+
+        // then
+        assertThat(decode(bytes)).isEqualTo(entries);
+        assertThat(range).isEqualTo(entries.subList(TraceEntryBlock.PAGE_SIZE - 5,
+                TraceEntryBlock.PAGE_SIZE * 2 + 5));
+        assertThat(lastRange)
+                .isEqualTo(entries.subList(TraceEntryBlock.PAGE_SIZE * 3, entries.size()));
+        assertThat(pastEnd).isEmpty();
+    }
+
+    @Test
+    public void shouldInternRepeatedMessages() throws Exception {
+        // given
+        List<Trace.Entry> entries = createEntries(1000);
+        int protobufSize = 0;
+        for (Trace.Entry entry : entries) {
+            protobufSize += entry.getSerializedSize();
+        }
+
+        // when
+        byte[] bytes = TraceEntryBlock.encode(entries);
+
+        // then
+        assertThat(bytes.length).isLessThan(protobufSize / 2);
+    }
+
+    private static List<Trace.Entry> createEntries(int count) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(i % 3)
+                    .setStartOffsetNanos(1000000L * i)
+                    .setDurationNanos(1000 + i)
+                    .setMessage("a fairly long repeated trace entry message " + (i % 5))
+                    .build());
+        }
+        return entries;
+    }
+
+    private static List<Trace.Entry> decode(byte[] bytes) throws Exception {
+        return TraceEntryBlock.decode(new ByteArrayInputStream(bytes));
+    }
+}
@@ -33,8 +33,8 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
 
-    private File tempFile;
-    private CappedDatabase cappedDatabase;
+    File tempFile;
+    CappedDatabase cappedDatabase;
 
     @Rule
     public ExpectedException thrown = ExpectedException.none();
@@ -42,7 +42,11 @@ public class CappedDatabaseTest {
     @Before
     public void onBefore() throws IOException {
         tempFile = File.createTempFile("glowroot-test-", ".capped.db");
-        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker());
+        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker(), memoryMapped());
+    }
+
+    boolean memoryMapped() {
+        return false;
     }
 
     @After
@@ -15,11 +15,17 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import org.checkerframework.checker.tainting.qual.Untainted;
+
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -94,4 +100,60 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldReadWritesFromReaderConnections() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (value bigint)");
+        // when
+        dataSource.update("insert into test (value) values (?)", 1);
+        // then
+        assertThat(dataSource.queryForLong("select value from test")).isEqualTo(1);
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReuseReaderConnectionForNestedQuery() throws Exception {
+        // given
+        final DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (value bigint)");
+        dataSource.update("insert into test (value) values (?)", 1);
+        // when
+        Long value = dataSource.query(new DataSource.JdbcQuery<Long>() {
+            @Override
+            public @Untainted String getSql() {
+                return "select value from test";
+            }
+            @Override
+            public void bind(PreparedStatement preparedStatement) {}
+            @Override
+            public Long processResultSet(ResultSet resultSet) throws Exception {
+                resultSet.next();
+                return resultSet.getLong(1) + dataSource.queryForLong("select count(*) from test");
+            }
+            @Override
+            public Long valueIfDataSourceClosed() {
+                return 0L;
+            }
+        });
+        // then
+        assertThat(value).isEqualTo(2);
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldReconnectReaderConnectionsAfterCompact() throws Exception {
+        // given
+        File dbFile = File.createTempFile("glowroot-unit-test-", ".h2.db");
+        DataSource dataSource = new DataSource(dbFile);
+        dataSource.execute("create table test (value bigint)");
+        dataSource.update("insert into test (value) values (?)", 1);
+        // when
+        dataSource.compact();
+        // then
+        assertThat(dataSource.queryForLong("select value from test")).isEqualTo(1);
+        dataSource.close();
+        dbFile.delete();
+    }
 }
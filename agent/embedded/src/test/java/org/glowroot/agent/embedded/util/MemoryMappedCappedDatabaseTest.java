@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteSource;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// runs all of the CappedDatabaseTest tests against the memory-mapped reader
+public class MemoryMappedCappedDatabaseTest extends CappedDatabaseTest {
+
+    @Override
+    boolean memoryMapped() {
+        return true;
+    }
+
+    @Test
+    public void shouldBeMemoryMapped() {
+        assertThat(cappedDatabase.isMemoryMapped()).isTrue();
+    }
+
+    @Test
+    public void shouldReadAfterResize() throws Exception {
+        // given
+        String text = "0123456789";
+        long cappedId = cappedDatabase.write(ByteSource.wrap(text.getBytes(UTF_8)), "test");
+
+        // when
+        cappedDatabase.resize(2);
+
+        // then
+        assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+    }
+
+    @Test
+    public void shouldNeverReadTornBlockWhileWriting() throws Exception {
+        // given
+        final List<String> texts = Lists.newArrayList();
+        Random random = new Random();
+        for (int i = 0; i < 10; i++) {
+            // each text is made up of a single repeated character so that a torn read can be
+            // detected
+            char c = (char) ('a' + i);
+            StringBuilder sb = new StringBuilder();
+            for (int j = 0; j < 100 + random.nextInt(200); j++) {
+                sb.append(c);
+            }
+            texts.add(sb.toString());
+        }
+        final AtomicLong lastCappedId = new AtomicLong(
+                cappedDatabase.write(ByteSource.wrap(texts.get(0).getBytes(UTF_8)), "test"));
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        // when
+        Future<Integer> future = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int readCount = 0;
+                while (!done.get()) {
+                    String text;
+                    try {
+                        text = cappedDatabase.read(lastCappedId.get()).read();
+                    } catch (Exception e) {
+                        // the only acceptable failure is that the block was overwritten
+                        assertThat(e.getClass().getName()).isEqualTo(
+                                "org.glowroot.agent.embedded.util.CappedDatabase"
+                                        + "$CappedBlockRolledOverMidReadException");
+                        continue;
+                    }
+                    assertThat(text).isNotEmpty();
+                    assertThat(text.replace(text.substring(0, 1), "")).isEmpty();
+                    readCount++;
+                }
+                return readCount;
+            }
+        });
+        for (int i = 0; i < 10000; i++) {
+            lastCappedId.set(cappedDatabase
+                    .write(ByteSource.wrap(texts.get(i % 10).getBytes(UTF_8)), "test"));
+        }
+        done.set(true);
+
+        // then
+        assertThat(future.get()).isGreaterThan(0);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.glowroot.agent.plugin.api.checker.Nullable;
+
+// replaces numeric and string literals with ? and collapses IN lists of literals down to a single
+// ?, so that sql which inlines literal values is aggregated as a single query instead of exceeding
+// the query aggregate limit
+//
+// IN lists that contain bind parameters are not collapsed, since the bind parameters are still
+// captured (and displayed) one per ?
+//
+// comments, quoted identifiers and literals that are part of identifiers (e.g. table1) are left as
+// is, and the original string is returned (without allocating) when there is nothing to replace
+class SqlNormalizer {
+
+    // normalized sql is cached per distinct raw sql in a fixed size direct mapped cache, which
+    // bounds the memory and keeps lookups lock free, at the cost of an occasional re-normalization
+    // when two distinct sql strings map to the same slot
+    private static final int CACHE_SIZE = 1024;
+
+    // very long sql is not cached, to bound the memory retained by the cache
+    private static final int MAX_CACHED_SQL_LENGTH = 10000;
+
+    private static final AtomicReferenceArray<CacheEntry> cache =
+            new AtomicReferenceArray<CacheEntry>(CACHE_SIZE);
+
+    private SqlNormalizer() {}
+
+    static String normalizeCached(String sql) {
+        if (sql.length() > MAX_CACHED_SQL_LENGTH) {
+            return normalize(sql);
+        }
+        int hash = sql.hashCode();
+        int index = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+        CacheEntry entry = cache.get(index);
+        if (entry != null && (entry.sql == sql || entry.sql.equals(sql))) {
+            return entry.normalized;
+        }
+        String normalized = normalize(sql);
+        cache.set(index, new CacheEntry(sql, normalized));
+        return normalized;
+    }
+
+    static String normalize(String sql) {
+        int length = sql.length();
+        // only allocated once the first replacement is found
+        @Nullable StringBuilder sb = null;
+        // index in sql up to which sql has been appended to sb
+        int appended = 0;
+        boolean afterIn = false;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            int end;
+            boolean replace = false;
+            boolean in = false;
+            if (c == '\'') {
+                end = skipQuoted(sql, i, '\'');
+                replace = true;
+            } else if (c == '"' || c == '`') {
+                end = skipQuoted(sql, i, c);
+            } else if (c == '-' && startsWith(sql, i, '-', '-')) {
+                end = skipLineComment(sql, i);
+            } else if (c == '/' && startsWith(sql, i, '/', '*')) {
+                end = skipBlockComment(sql, i);
+            } else if (isNumberStart(sql, i) && (i == 0 || sql.charAt(i - 1) != ':')) {
+                // ":1" is a positional bind parameter
+                end = skipNumber(sql, i);
+                replace = true;
+            } else if (Character.isJavaIdentifierStart(c)) {
+                end = skipIdentifier(sql, i);
+                in = end - i == 2 && sql.regionMatches(true, i, "in", 0, 2);
+            } else if (c == '(' && afterIn) {
+                end = skipLiteralList(sql, i);
+                if (end == -1) {
+                    end = i + 1;
+                } else {
+                    if (sb == null) {
+                        sb = new StringBuilder(length);
+                    }
+                    sb.append(sql, appended, i).append("(?)");
+                    appended = end;
+                }
+            } else {
+                end = i + 1;
+            }
+            if (replace) {
+                if (sb == null) {
+                    sb = new StringBuilder(length);
+                }
+                sb.append(sql, appended, i).append('?');
+                appended = end;
+            }
+            if (!Character.isWhitespace(c)) {
+                afterIn = in;
+            }
+            i = end;
+        }
+        if (sb == null) {
+            return sql;
+        }
+        return sb.append(sql, appended, length).toString();
+    }
+
+    // returns the index after the closing ')' if the list only contains literals, otherwise returns
+    // -1
+    private static int skipLiteralList(String sql, int openParenIndex) {
+        int length = sql.length();
+        int i = openParenIndex + 1;
+        boolean expectLiteral = true;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (expectLiteral) {
+                if (c == '\'') {
+                    i = skipQuoted(sql, i, '\'');
+                } else if (isNumberStart(sql, i)) {
+                    i = skipNumber(sql, i);
+                } else if ((c == '-' || c == '+') && i + 1 < length
+                        && isNumberStart(sql, i + 1)) {
+                    i = skipNumber(sql, i + 1);
+                } else {
+                    return -1;
+                }
+                expectLiteral = false;
+            } else if (c == ',') {
+                expectLiteral = true;
+                i++;
+            } else if (c == ')') {
+                return i + 1;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipQuoted(String sql, int openQuoteIndex, char quote) {
+        int length = sql.length();
+        int i = openQuoteIndex + 1;
+        while (i < length) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < length && sql.charAt(i + 1) == quote) {
+                    // escaped quote
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return length;
+    }
+
+    private static int skipLineComment(String sql, int i) {
+        int end = sql.indexOf('\n', i);
+        return end == -1 ? sql.length() : end;
+    }
+
+    private static int skipBlockComment(String sql, int i) {
+        int end = sql.indexOf("*/", i + 2);
+        return end == -1 ? sql.length() : end + 2;
+    }
+
+    private static int skipIdentifier(String sql, int i) {
+        int length = sql.length();
+        int end = i + 1;
+        while (end < length && Character.isJavaIdentifierPart(sql.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isNumberStart(String sql, int i) {
+        char c = sql.charAt(i);
+        if (isDigit(c)) {
+            return true;
+        }
+        return c == '.' && i + 1 < sql.length() && isDigit(sql.charAt(i + 1))
+                && (i == 0 || !Character.isJavaIdentifierPart(sql.charAt(i - 1)));
+    }
+
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        int end = i;
+        if (startsWith(sql, i, '0', 'x') || startsWith(sql, i, '0', 'X')) {
+            end += 2;
+            while (end < length && Character.digit(sql.charAt(end), 16) != -1) {
+                end++;
+            }
+            return end;
+        }
+        while (end < length && (isDigit(sql.charAt(end)) || sql.charAt(end) == '.')) {
+            end++;
+        }
+        if (end < length && (sql.charAt(end) == 'e' || sql.charAt(end) == 'E')) {
+            int exponent = end + 1;
+            if (exponent < length
+                    && (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-')) {
+                exponent++;
+            }
+            if (exponent < length && isDigit(sql.charAt(exponent))) {
+                end = exponent;
+                while (end < length && isDigit(sql.charAt(end))) {
+                    end++;
+                }
+            }
+        }
+        return end;
+    }
+
+    private static boolean startsWith(String sql, int i, char c1, char c2) {
+        return i + 1 < sql.length() && sql.charAt(i) == c1 && sql.charAt(i + 1) == c2;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static class CacheEntry {
+
+        private final String sql;
+        private final String normalized;
+
+        private CacheEntry(String sql, String normalized) {
+            this.sql = sql;
+            this.normalized = normalized;
+        }
+    }
+}
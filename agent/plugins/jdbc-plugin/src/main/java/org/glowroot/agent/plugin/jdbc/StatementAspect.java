@@ -60,6 +60,8 @@ public class StatementAspect {
             configService.getBooleanProperty("captureBindParameters");
     private static final BooleanProperty captureStatementClose =
             configService.getBooleanProperty("captureStatementClose");
+    private static final BooleanProperty normalizeLiterals =
+            configService.getBooleanProperty("normalizeLiterals");
 
     @Shim("java.sql.PreparedStatement")
     public interface PreparedStatement {}
@@ -304,7 +306,7 @@ public class StatementAspect {
                 // this shouldn't happen since just checked hasGlowrootStatementMirror() above
                 return null;
             }
-            QueryEntry query = context.startQueryEntry(QUERY_TYPE, sql,
+            QueryEntry query = context.startQueryEntry(QUERY_TYPE, getQueryText(sql),
                     QueryMessageSupplier.create("jdbc execute: "), timerName);
             mirror.setLastQueryEntry(query);
             return query;
@@ -412,7 +414,7 @@ public class StatementAspect {
             PreparedStatementMirror mirror =
                     (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
             QueryMessageSupplier queryMessageSupplier;
-            String queryText = mirror.getSql();
+            String queryText = getQueryText(mirror.getSql());
             if (captureBindParameters.value()) {
                 queryMessageSupplier = new PreparedStatementMessageSupplier(mirror.getParameters());
             } else {
@@ -543,7 +545,7 @@ public class StatementAspect {
         private static QueryEntry onBeforePreparedStatement(ThreadContext context,
                 PreparedStatementMirror mirror) {
             QueryMessageSupplier queryMessageSupplier;
-            String queryText = mirror.getSql();
+            String queryText = getQueryText(mirror.getSql());
             int batchSize = mirror.getBatchSize();
             if (batchSize <= 0) {
                 queryText = "[empty batch] " + queryText;
@@ -573,7 +575,7 @@ public class StatementAspect {
                     if (!first) {
                         sb.append(", ");
                     }
-                    sb.append(sql);
+                    sb.append(getQueryText(sql));
                     first = false;
                 }
                 concatenated = sb.toString();
@@ -637,4 +639,11 @@ public class StatementAspect {
             }
         }
     }
+
+    private static String getQueryText(String sql) {
+        if (normalizeLiterals.value()) {
+            return SqlNormalizer.normalizeCached(sql);
+        }
+        return sql;
+    }
 }
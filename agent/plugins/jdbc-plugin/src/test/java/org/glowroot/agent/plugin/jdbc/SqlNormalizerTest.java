@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SqlNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(SqlNormalizer.normalize("select * from employee where id = 42"))
+                .isEqualTo("select * from employee where id = ?");
+        assertThat(SqlNormalizer.normalize("select * from employee where name = 'o''brien'"))
+                .isEqualTo("select * from employee where name = ?");
+        assertThat(SqlNormalizer.normalize("update t set x = 1.5e-3, y = .25, z = 0x1F where a=7"))
+                .isEqualTo("update t set x = ?, y = ?, z = ? where a=?");
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(SqlNormalizer.normalize("select * from t where id in (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?)");
+        assertThat(SqlNormalizer.normalize("select * from t where id IN(?,?,?) and x = 'a'"))
+                .isEqualTo("select * from t where id IN(?,?,?) and x = ?");
+        assertThat(SqlNormalizer.normalize("select * from t where id in (1, ?)"))
+                .isEqualTo("select * from t where id in (?, ?)");
+        assertThat(SqlNormalizer.normalize("select * from t where id in (select id from u)"))
+                .isEqualTo("select * from t where id in (select id from u)");
+        assertThat(SqlNormalizer.normalize("insert into t (a, b) values (1, 2)"))
+                .isEqualTo("insert into t (a, b) values (?, ?)");
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersCommentsOrBindParameters() {
+        String sql = "select col1, \"col 2\" from table1 /* 123 */ where x = :1 and y = $2 -- 4";
+        assertThat(SqlNormalizer.normalize(sql)).isSameAs(sql);
+    }
+
+    @Test
+    public void shouldCacheNormalizedSql() {
+        // given
+        String sql = "select * from employee where id = 42";
+
+        // when
+        String normalized = SqlNormalizer.normalizeCached(sql);
+
+        // then
+        assertThat(normalized).isEqualTo("select * from employee where id = ?");
+        assertThat(SqlNormalizer.normalizeCached(new String(sql))).isSameAs(normalized);
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.QueryOptions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.SettableFuture;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.central.repo.CentralRepoModule;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Session;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common2.repo.util.AlertingService;
+import org.glowroot.common2.repo.util.AlertingService.IncidentKey;
+import org.glowroot.common2.repo.util.HttpClient;
+import org.glowroot.common2.repo.util.LockSet;
+import org.glowroot.common2.repo.util.MailService;
+import org.glowroot.common2.repo.util.RollupLevelService;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceBlockingStub;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeNameEntry;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueResponseMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt32;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// drives the central collector ingestion path (CollectorServiceImpl -> AggregateDaoImpl,
+// TraceDaoImpl, GaugeValueDaoImpl) through an in-process grpc channel, against a local cassandra
+// which must already be running (e.g. the one that the central integration tests start), e.g.
+//
+// java -jar target/benchmarks.jar CollectorServiceBenchmark -t 16 -prof gc
+//
+// each jmh thread simulates one agent, so -t controls the number of concurrently reporting agents
+//
+// throughput mode reports messages (streams) per millisecond, sample time mode reports latency
+// percentiles (including p99), and -prof gc reports allocation rate
+//
+// dictionaryEncoded=true sends aggregates and gauge values the same way that agents do when the
+// central collector supports dictionary encoding, the serialized size of the messages sent per
+// operation (with and without dictionary encoding) is measured outside of jmh (and without
+// cassandra), e.g.
+//
+// java -cp target/benchmarks.jar org.glowroot.central.CollectorServiceBenchmark
+//
+// the cassandra contact point can be changed with -jvmArgsAppend
+// -Dglowroot.benchmark.cassandra.contactPoint=..., the benchmark uses its own keyspace, which is
+// dropped at the end of each trial
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class CollectorServiceBenchmark {
+
+    private static final String KEYSPACE = "glowroot_benchmark";
+
+    private static final AtomicInteger agentNum = new AtomicInteger();
+
+    private static final List<String> DICTIONARY =
+            ImmutableList.of("Web", "http request", "jdbc query", "SQL");
+
+    @Param({"20"})
+    private int transactionNameCount;
+
+    @Param({"50"})
+    private int traceEntryCount;
+
+    @Param({"50"})
+    private int gaugeCount;
+
+    @Param({"false", "true"})
+    private boolean dictionaryEncoded;
+
+    private Cluster cluster;
+    private Session session;
+    private ClusterManager clusterManager;
+    private Server server;
+    private ManagedChannel channel;
+
+    private CollectorServiceStub asyncStub;
+    private CollectorServiceBlockingStub blockingStub;
+
+    private List<AggregateStreamMessage> aggregateMessages;
+    private List<TraceStreamMessage> traceMessages;
+
+    public static void main(String[] args) {
+        for (boolean dictionaryEncoded : new boolean[] {false, true}) {
+            CollectorServiceBenchmark benchmark = new CollectorServiceBenchmark();
+            benchmark.transactionNameCount = 20;
+            benchmark.traceEntryCount = 50;
+            benchmark.gaugeCount = 50;
+            benchmark.dictionaryEncoded = dictionaryEncoded;
+            int aggregateBytes = 0;
+            for (AggregateStreamMessage message : benchmark.createAggregateMessages()) {
+                aggregateBytes += message.getSerializedSize();
+            }
+            int gaugeValueBytes =
+                    benchmark.createGaugeValueMessage("", 0, false).getSerializedSize();
+            System.out.println("dictionaryEncoded=" + dictionaryEncoded
+                    + ", aggregate stream bytes: " + aggregateBytes
+                    + ", gauge value message bytes: " + gaugeValueBytes);
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        cluster = Cluster.builder()
+                .addContactPoint(System.getProperty("glowroot.benchmark.cassandra.contactPoint",
+                        "127.0.0.1"))
+                .withQueryOptions(new QueryOptions().setDefaultIdempotence(true))
+                .build();
+        session = new Session(cluster.newSession(), KEYSPACE);
+        clusterManager = ClusterManager.create();
+        Clock clock = Clock.systemClock();
+        CentralRepoModule repos = new CentralRepoModule(clusterManager, session, "", clock);
+
+        RollupLevelService rollupLevelService =
+                new RollupLevelService(repos.getConfigRepository(), clock);
+        LockSet<IncidentKey> openingIncidentLockSet =
+                clusterManager.createReplicatedLockSet("openingIncidentLockSet", 60, SECONDS);
+        LockSet<IncidentKey> resolvingIncidentLockSet =
+                clusterManager.createReplicatedLockSet("resolvingIncidentLockSet", 60, SECONDS);
+        AlertingService alertingService = new AlertingService(repos.getConfigRepository(),
+                repos.getIncidentDao(), repos.getAggregateDao(), repos.getGaugeValueDao(),
+                rollupLevelService, new MailService(),
+                new HttpClient(repos.getConfigRepository()), openingIncidentLockSet,
+                resolvingIncidentLockSet, clock);
+        HeartbeatAlertingService heartbeatAlertingService = new HeartbeatAlertingService(
+                repos.getHeartbeatDao(), repos.getIncidentDao(), alertingService,
+                repos.getConfigRepository());
+        CentralAlertingService centralAlertingService = new CentralAlertingService(
+                repos.getConfigRepository(), alertingService, heartbeatAlertingService);
+        GrpcCommon grpcCommon = new GrpcCommon(repos.getAgentDao(), repos.getV09AgentRollupDao());
+        CollectorServiceImpl collectorService = new CollectorServiceImpl(repos.getAgentDao(),
+                repos.getAgentConfigDao(), repos.getEnvironmentDao(), repos.getHeartbeatDao(),
+                repos.getAggregateDao(), repos.getGaugeValueDao(), repos.getTraceDao(),
+                repos.getV09AgentRollupDao(), grpcCommon, centralAlertingService,
+                session.getAsyncExecutor(), clock, "benchmark");
+
+        String serverName = "glowroot-benchmark-" + UUID.randomUUID();
+        server = InProcessServerBuilder.forName(serverName)
+                .addService(collectorService)
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+        asyncStub = CollectorServiceGrpc.newStub(channel);
+        blockingStub = CollectorServiceGrpc.newBlockingStub(channel);
+
+        aggregateMessages = createAggregateMessages();
+        traceMessages = createTraceMessages();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.shutdown();
+        channel.awaitTermination(10, SECONDS);
+        server.shutdown();
+        server.awaitTermination(10, SECONDS);
+        clusterManager.close();
+        session.close();
+        com.datastax.driver.core.Session wrappedSession = cluster.connect();
+        wrappedSession.execute("drop keyspace if exists " + KEYSPACE);
+        wrappedSession.close();
+        cluster.close();
+    }
+
+    @Benchmark
+    public AggregateResponseMessage collectAggregates(AgentState agentState) throws Exception {
+        ResponseObserver<AggregateResponseMessage> responseObserver = new ResponseObserver<>();
+        StreamObserver<AggregateStreamMessage> requestObserver =
+                asyncStub.collectAggregateStream(responseObserver);
+        requestObserver.onNext(AggregateStreamMessage.newBuilder()
+                .setStreamHeader(AggregateStreamHeader.newBuilder()
+                        .setAgentId(agentState.agentId)
+                        .setCaptureTime(agentState.nextAggregateCaptureTime())
+                        .setPostV09(true)
+                        .setDictionaryEncoded(dictionaryEncoded))
+                .build());
+        for (AggregateStreamMessage message : aggregateMessages) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onCompleted();
+        return responseObserver.get();
+    }
+
+    @Benchmark
+    public EmptyMessage collectTrace(AgentState agentState) throws Exception {
+        ResponseObserver<EmptyMessage> responseObserver = new ResponseObserver<>();
+        StreamObserver<TraceStreamMessage> requestObserver =
+                asyncStub.collectTraceStream(responseObserver);
+        requestObserver.onNext(TraceStreamMessage.newBuilder()
+                .setStreamHeader(TraceStreamHeader.newBuilder()
+                        .setAgentId(agentState.agentId)
+                        .setTraceId(UUID.randomUUID().toString())
+                        .setPostV09(true))
+                .build());
+        for (TraceStreamMessage message : traceMessages) {
+            requestObserver.onNext(message);
+        }
+        requestObserver.onCompleted();
+        return responseObserver.get();
+    }
+
+    @Benchmark
+    public GaugeValueResponseMessage collectGaugeValues(AgentState agentState) {
+        GaugeValueMessage request = createGaugeValueMessage(agentState.agentId,
+                agentState.nextGaugeCaptureTime(), !agentState.gaugeNamesSent);
+        GaugeValueResponseMessage response = blockingStub.collectGaugeValues(request);
+        agentState.gaugeNamesSent = !response.getResendGaugeNames();
+        return response;
+    }
+
+    private GaugeValueMessage createGaugeValueMessage(String agentId, long captureTime,
+            boolean includeGaugeNames) {
+        GaugeValueMessage.Builder request = GaugeValueMessage.newBuilder()
+                .setAgentId(agentId)
+                .setPostV09(true)
+                .setDictionaryEncoded(dictionaryEncoded);
+        for (int i = 0; i < gaugeCount; i++) {
+            String gaugeName = "java.lang:type=Benchmark,name=" + i + ":Value";
+            GaugeValue.Builder gaugeValue = GaugeValue.newBuilder()
+                    .setCaptureTime(captureTime)
+                    .setValue(i)
+                    .setWeight(1);
+            if (dictionaryEncoded) {
+                gaugeValue.setGaugeNameId(i);
+                if (includeGaugeNames) {
+                    request.addGaugeNameEntry(GaugeNameEntry.newBuilder()
+                            .setId(i)
+                            .setName(gaugeName));
+                }
+            } else {
+                gaugeValue.setGaugeName(gaugeName);
+            }
+            request.addGaugeValues(gaugeValue);
+        }
+        return request.build();
+    }
+
+    private List<AggregateStreamMessage> createAggregateMessages() {
+        List<AggregateStreamMessage> messages = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setSharedQueryText(Aggregate.SharedQueryText.newBuilder()
+                            .setFullText("select * from benchmark_table_" + i + " where id = ?"))
+                    .build());
+        }
+        if (dictionaryEncoded) {
+            // same order that the agent assigns dictionary indexes
+            for (String dictionaryEntry : DICTIONARY) {
+                messages.add(AggregateStreamMessage.newBuilder()
+                        .setDictionaryEntry(dictionaryEntry)
+                        .build());
+            }
+        }
+        OverallAggregate.Builder overallAggregate = OverallAggregate.newBuilder();
+        if (dictionaryEncoded) {
+            overallAggregate.setTransactionTypeIndex(DICTIONARY.indexOf("Web"));
+        } else {
+            overallAggregate.setTransactionType("Web");
+        }
+        messages.add(AggregateStreamMessage.newBuilder()
+                .setOverallAggregate(overallAggregate
+                        .setAggregate(createAggregate(transactionNameCount)))
+                .build());
+        for (int i = 0; i < transactionNameCount; i++) {
+            TransactionAggregate.Builder transactionAggregate = TransactionAggregate.newBuilder()
+                    .setTransactionName("/benchmark/transaction/" + i);
+            if (dictionaryEncoded) {
+                transactionAggregate.setTransactionTypeIndex(DICTIONARY.indexOf("Web"));
+            } else {
+                transactionAggregate.setTransactionType("Web");
+            }
+            messages.add(AggregateStreamMessage.newBuilder()
+                    .setTransactionAggregate(transactionAggregate
+                            .setAggregate(createAggregate(1)))
+                    .build());
+        }
+        return messages;
+    }
+
+    private List<TraceStreamMessage> createTraceMessages() {
+        List<TraceStreamMessage> messages = Lists.newArrayList();
+        messages.add(TraceStreamMessage.newBuilder()
+                .setSharedQueryText(Trace.SharedQueryText.newBuilder()
+                        .setFullText("select * from benchmark_table where id = ?"))
+                .build());
+        for (int i = 0; i < traceEntryCount; i++) {
+            messages.add(TraceStreamMessage.newBuilder()
+                    .setEntry(Trace.Entry.newBuilder()
+                            .setDepth(0)
+                            .setStartOffsetNanos(MILLISECONDS.toNanos(i))
+                            .setDurationNanos(MILLISECONDS.toNanos(1))
+                            .setMessage("jdbc query: ")
+                            .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                                    .setSharedQueryTextIndex(0)
+                                    .setPrefix("jdbc query: ")))
+                    .build());
+        }
+        long startTime = System.currentTimeMillis();
+        messages.add(TraceStreamMessage.newBuilder()
+                .setHeader(Trace.Header.newBuilder()
+                        .setSlow(true)
+                        .setStartTime(startTime)
+                        .setCaptureTime(startTime + traceEntryCount)
+                        .setDurationNanos(MILLISECONDS.toNanos(traceEntryCount))
+                        .setTransactionType("Web")
+                        .setTransactionName("/benchmark/transaction/0")
+                        .setHeadline("/benchmark/transaction/0")
+                        .setUser("benchmark")
+                        .addAttribute(Trace.Attribute.newBuilder()
+                                .setName("benchmark")
+                                .addValue("xyz"))
+                        .setEntryCount(traceEntryCount)
+                        .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                                .setName("http request")
+                                .setTotalNanos(MILLISECONDS.toNanos(traceEntryCount))
+                                .setCount(1)))
+                .build());
+        messages.add(TraceStreamMessage.newBuilder()
+                .setStreamCounts(TraceStreamCounts.newBuilder()
+                        .setSharedQueryTextCount(1)
+                        .setEntryCount(traceEntryCount))
+                .build());
+        return messages;
+    }
+
+    private Aggregate createAggregate(int transactionCount) {
+        Aggregate.Timer.Builder rootTimer = Aggregate.Timer.newBuilder()
+                .setTotalNanos(MILLISECONDS.toNanos(10 * transactionCount))
+                .setCount(transactionCount);
+        Aggregate.Timer.Builder childTimer = Aggregate.Timer.newBuilder()
+                .setTotalNanos(MILLISECONDS.toNanos(5 * transactionCount))
+                .setCount(5 * transactionCount);
+        if (dictionaryEncoded) {
+            rootTimer.setNameIndex(DICTIONARY.indexOf("http request"));
+            childTimer.setNameIndex(DICTIONARY.indexOf("jdbc query"));
+        } else {
+            rootTimer.setName("http request");
+            childTimer.setName("jdbc query");
+        }
+        Aggregate.Builder aggregate = Aggregate.newBuilder()
+                .setTotalDurationNanos(MILLISECONDS.toNanos(10 * transactionCount))
+                .setTransactionCount(transactionCount)
+                .addMainThreadRootTimer(rootTimer.addChildTimer(childTimer));
+        for (int i = 0; i < 5; i++) {
+            Aggregate.Query.Builder query = Aggregate.Query.newBuilder();
+            if (dictionaryEncoded) {
+                query.setTypeIndex(DICTIONARY.indexOf("SQL"));
+            } else {
+                query.setType("SQL");
+            }
+            aggregate.addQuery(query
+                    .setSharedQueryTextIndex(i)
+                    .setTotalDurationNanos(MILLISECONDS.toNanos(transactionCount))
+                    .setTotalRows(OptionalInt64.newBuilder().setValue(transactionCount))
+                    .setExecutionCount(transactionCount));
+        }
+        return aggregate.build();
+    }
+
+    // each benchmark thread reports as a separate agent
+    @State(Scope.Thread)
+    public static class AgentState {
+
+        private String agentId;
+        private long aggregateCaptureTime;
+        private long gaugeCaptureTime;
+        private boolean gaugeNamesSent;
+
+        @Setup
+        public void setup(CollectorServiceBenchmark benchmark) {
+            agentId = "benchmark-agent-" + agentNum.getAndIncrement();
+            benchmark.blockingStub.collectInit(InitMessage.newBuilder()
+                    .setAgentId(agentId)
+                    .setAgentConfig(AgentConfig.newBuilder()
+                            .setAdvancedConfig(AdvancedConfig.newBuilder()
+                                    .setMaxQueryAggregates(
+                                            OptionalInt32.newBuilder().setValue(500))
+                                    .setMaxServiceCallAggregates(
+                                            OptionalInt32.newBuilder().setValue(500))))
+                    .build());
+            long now = System.currentTimeMillis();
+            aggregateCaptureTime = now - now % MINUTES.toMillis(1);
+            gaugeCaptureTime = now;
+        }
+
+        private long nextAggregateCaptureTime() {
+            // aggregates are collected once per minute
+            aggregateCaptureTime += MINUTES.toMillis(1);
+            return aggregateCaptureTime;
+        }
+
+        private long nextGaugeCaptureTime() {
+            gaugeCaptureTime += SECONDS.toMillis(5);
+            return gaugeCaptureTime;
+        }
+    }
+
+    private static class ResponseObserver<T> implements StreamObserver<T> {
+
+        private final SettableFuture<T> future = SettableFuture.create();
+
+        @Override
+        public void onNext(T value) {
+            future.set(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            future.setException(t);
+        }
+
+        @Override
+        public void onCompleted() {}
+
+        private T get() throws Exception {
+            return future.get(60, SECONDS);
+        }
+    }
+}
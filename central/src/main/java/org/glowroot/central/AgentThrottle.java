@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// collections for a given agent are still stored one at a time, but instead of blocking the gRPC
+// thread while waiting its turn, each collection is chained onto the prior one
+class AgentThrottle {
+
+    private static final Logger logger = LoggerFactory.getLogger(AgentThrottle.class);
+
+    private final int maxPending;
+
+    @GuardedBy("this")
+    private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+    @GuardedBy("this")
+    private int pending;
+
+    AgentThrottle(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    // returns false if the collection was rejected because too many collections are already
+    // pending for the agent
+    boolean submit(Supplier<CompletableFuture<?>> collector, Executor executor) {
+        CompletableFuture<Void> next = new CompletableFuture<>();
+        CompletableFuture<?> prior;
+        synchronized (this) {
+            if (pending >= maxPending) {
+                return false;
+            }
+            pending++;
+            prior = tail;
+            tail = next;
+        }
+        Runnable runnable = () -> {
+            CompletableFuture<?> future;
+            try {
+                future = collector.get();
+            } catch (Throwable t) {
+                // the chain must still advance, otherwise all subsequent collections for the
+                // agent would be stuck behind this one
+                logger.error(t.getMessage(), t);
+                future = CompletableFuture.completedFuture(null);
+            }
+            future.whenComplete((result, t) -> {
+                synchronized (this) {
+                    pending--;
+                }
+                next.complete(null);
+            });
+        };
+        if (prior.isDone()) {
+            runnable.run();
+        } else {
+            // the prior collection may complete on a cassandra driver i/o thread
+            prior.whenCompleteAsync((result, t) -> runnable.run(), executor);
+        }
+        return true;
+    }
+
+    void whenIdle(Runnable runnable, Executor executor) {
+        CompletableFuture<?> future;
+        synchronized (this) {
+            future = tail;
+        }
+        if (future.isDone()) {
+            runnable.run();
+        } else {
+            future.whenCompleteAsync((result, t) -> runnable.run(), executor);
+        }
+    }
+}
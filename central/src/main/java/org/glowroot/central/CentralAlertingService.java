@@ -67,6 +67,11 @@ class CentralAlertingService {
         }
     }
 
+    // see AlertingService.onDataStored()
+    void onDataStored(String agentRollupId, long oldestCaptureTime) {
+        alertingService.onDataStored(agentRollupId, oldestCaptureTime);
+    }
+
     void checkForDeletedAlerts(String agentRollupId, String agentRollupDisplay)
             throws InterruptedException {
         try {
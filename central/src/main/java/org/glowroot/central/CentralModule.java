@@ -151,7 +151,8 @@ public class CentralModule {
 
             CentralConfiguration centralConfig = getCentralConfiguration(directories.getConfDir());
             clusterManager = ClusterManager.create(directories.getConfDir(),
-                    centralConfig.jgroupsProperties());
+                    centralConfig.jgroupsProperties(), centralConfig.nearCacheMaxSize(),
+                    centralConfig.nearCacheExpirationSeconds());
             session = connect(centralConfig);
             cluster = session.getCluster();
 
@@ -198,7 +199,8 @@ public class CentralModule {
                     directories.getConfDir(), repos.getAgentConfigDao(), repos.getAgentDao(),
                     repos.getEnvironmentDao(), repos.getHeartbeatDao(), repos.getAggregateDao(),
                     repos.getGaugeValueDao(), repos.getTraceDao(), repos.getV09AgentRollupDao(),
-                    centralAlertingService, clusterManager, clock, version);
+                    centralAlertingService, clusterManager, session.getAsyncExecutor(), clock,
+                    version);
             DownstreamServiceImpl downstreamService = grpcServer.getDownstreamService();
             updateAgentConfigIfNeededService = new UpdateAgentConfigIfNeededService(
                     repos.getAgentDao(), repos.getAgentConfigDao(), downstreamService, clock);
@@ -213,8 +215,8 @@ public class CentralModule {
                 }
             });
             rollupService = new RollupService(repos.getAgentDao(), repos.getAggregateDao(),
-                    repos.getGaugeValueDao(), repos.getSyntheticResultDao(), centralAlertingService,
-                    clock);
+                    repos.getGaugeValueDao(), repos.getSyntheticResultDao(), repos.getTraceDao(),
+                    centralAlertingService, clusterManager, centralConfig.rollupThreads(), clock);
             syntheticMonitorService = new SyntheticMonitorService(repos.getAgentDao(),
                     repos.getConfigRepository(), repos.getIncidentDao(), alertingService,
                     repos.getSyntheticResultDao(), clusterManager, ticker, clock, version);
@@ -518,6 +520,30 @@ public class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraPoolTimeoutMillis)) {
             builder.cassandraPoolTimeoutMillis(Integer.parseInt(cassandraPoolTimeoutMillis));
         }
+        String cassandraWriteBatchMaxStatements =
+                properties.get("glowroot.cassandra.writeBatch.maxStatements");
+        if (!Strings.isNullOrEmpty(cassandraWriteBatchMaxStatements)) {
+            builder.cassandraWriteBatchMaxStatements(
+                    Integer.parseInt(cassandraWriteBatchMaxStatements));
+        }
+        String cassandraWriteBatchMaxSizeKb =
+                properties.get("glowroot.cassandra.writeBatch.maxSizeKb");
+        if (!Strings.isNullOrEmpty(cassandraWriteBatchMaxSizeKb)) {
+            builder.cassandraWriteBatchMaxSizeKb(Integer.parseInt(cassandraWriteBatchMaxSizeKb));
+        }
+        String rollupThreads = properties.get("glowroot.rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreads)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreads));
+        }
+        String nearCacheMaxSize = properties.get("glowroot.cache.nearCache.maxSize");
+        if (!Strings.isNullOrEmpty(nearCacheMaxSize)) {
+            builder.nearCacheMaxSize(Long.parseLong(nearCacheMaxSize));
+        }
+        String nearCacheExpirationSeconds =
+                properties.get("glowroot.cache.nearCache.expirationSeconds");
+        if (!Strings.isNullOrEmpty(nearCacheExpirationSeconds)) {
+            builder.nearCacheExpirationSeconds(Long.parseLong(nearCacheExpirationSeconds));
+        }
         String grpcBindAddress = properties.get("glowroot.grpc.bindAddress");
         if (!Strings.isNullOrEmpty(grpcBindAddress)) {
             builder.grpcBindAddress(grpcBindAddress);
@@ -687,7 +713,8 @@ public class CentralModule {
                 if (session == null) {
                     session = new Session(
                             createCluster(centralConfig, defaultTimestampGenerator).connect(),
-                            keyspace);
+                            keyspace, centralConfig.cassandraWriteBatchMaxStatements(),
+                            centralConfig.cassandraWriteBatchMaxSizeKb());
                 }
                 String cassandraVersion = verifyCassandraVersion(session);
                 KeyspaceMetadata keyspaceMetadata =
@@ -868,6 +895,36 @@ public class CentralModule {
             return 10000;
         }
 
+        @Value.Default
+        int cassandraWriteBatchMaxStatements() {
+            // 1 disables write coalescing
+            return Session.DEFAULT_WRITE_BATCH_MAX_STATEMENTS;
+        }
+
+        @Value.Default
+        int cassandraWriteBatchMaxSizeKb() {
+            return Session.DEFAULT_WRITE_BATCH_MAX_SIZE_KB;
+        }
+
+        @Value.Default
+        long nearCacheMaxSize() {
+            // local tier in front of each clustered cache (0 disables the local tier)
+            return 10000;
+        }
+
+        @Value.Default
+        long nearCacheExpirationSeconds() {
+            // local entries are invalidated via the cluster, expiration bounds the staleness if an
+            // invalidation message is lost (0 means no expiration)
+            return 60;
+        }
+
+        @Value.Default
+        int rollupThreads() {
+            // independent agent rollups are rolled up in parallel
+            return 4;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -21,14 +21,18 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +47,7 @@ import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SchemaUpgrade;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.V09AgentRollupDao;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
@@ -74,12 +79,14 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase {
 
     private static final Logger logger = LoggerFactory.getLogger(CollectorServiceImpl.class);
 
+    private static final int MAX_PENDING_PER_AGENT =
+            Integer.getInteger("glowroot.internal.collector.maxPendingPerAgent", 10);
+
     private final AgentDao agentDao;
     private final AgentConfigDao agentConfigDao;
     private final EnvironmentDao environmentDao;
@@ -90,26 +97,32 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final V09AgentRollupDao v09AgentRollupDao;
     private final GrpcCommon grpcCommon;
     private final CentralAlertingService centralAlertingService;
+    // continuations of async store operations run here, since they must not run on cassandra
+    // driver i/o threads
+    private final Executor asyncExecutor;
     private final Clock clock;
     private final String version;
 
     private volatile long currentMinute;
     private final AtomicInteger nextDelay = new AtomicInteger();
 
-    private final LoadingCache<String, Semaphore> throttlePerAgentId = CacheBuilder.newBuilder()
-            .weakValues()
-            .build(new CacheLoader<String, Semaphore>() {
-                @Override
-                public Semaphore load(String key) throws Exception {
-                    return new Semaphore(1);
-                }
-            });
+    private final DictionaryDecoder dictionaryDecoder = new DictionaryDecoder();
+
+    private final LoadingCache<String, AgentThrottle> throttlePerAgentId =
+            CacheBuilder.newBuilder()
+                    .weakValues()
+                    .build(new CacheLoader<String, AgentThrottle>() {
+                        @Override
+                        public AgentThrottle load(String key) throws Exception {
+                            return new AgentThrottle(MAX_PENDING_PER_AGENT);
+                        }
+                    });
 
     CollectorServiceImpl(AgentDao agentDao, AgentConfigDao agentConfigDao,
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
-            GrpcCommon grpcCommon, CentralAlertingService centralAlertingService, Clock clock,
-            String version) {
+            GrpcCommon grpcCommon, CentralAlertingService centralAlertingService,
+            Executor asyncExecutor, Clock clock, String version) {
         this.agentDao = agentDao;
         this.agentConfigDao = agentConfigDao;
         this.environmentDao = environmentDao;
@@ -120,6 +133,7 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         this.v09AgentRollupDao = v09AgentRollupDao;
         this.grpcCommon = grpcCommon;
         this.centralAlertingService = centralAlertingService;
+        this.asyncExecutor = asyncExecutor;
         this.clock = clock;
         this.version = version;
     }
@@ -156,7 +170,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         logger.info("agent connected: {}, version {}", getDisplayForLogging(agentId),
                 request.getEnvironment().getJavaInfo().getGlowrootAgentVersion());
         InitResponse.Builder response = InitResponse.newBuilder()
-                .setGlowrootCentralVersion(version);
+                .setGlowrootCentralVersion(version)
+                .setDictionaryEncodingSupported(true);
         if (!updatedAgentConfig.equals(request.getAgentConfig())) {
             response.setAgentConfig(updatedAgentConfig);
         }
@@ -255,61 +270,59 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
             List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
-        throttle(agentId, postV09, responseObserver, new Runnable() {
+        throttle(agentId, postV09, responseObserver, new Supplier<CompletableFuture<?>>() {
             @Override
-            public void run() {
-                collectAggregatesUnderThrottle(agentId, postV09, captureTime, sharedQueryTexts,
-                        aggregatesByTypeList, responseObserver);
+            public CompletableFuture<?> get() {
+                return collectAggregatesUnderThrottle(agentId, postV09, captureTime,
+                        sharedQueryTexts, aggregatesByTypeList, responseObserver);
             }
         });
     }
 
     private void throttledCollectGaugeValues(GaugeValueMessage request,
             StreamObserver<GaugeValueResponseMessage> responseObserver) {
-        throttle(request.getAgentId(), request.getPostV09(), responseObserver, new Runnable() {
-            @Override
-            public void run() {
-                collectGaugeValuesUnderThrottle(request, responseObserver);
-            }
-        });
+        throttle(request.getAgentId(), request.getPostV09(), responseObserver,
+                new Supplier<CompletableFuture<?>>() {
+                    @Override
+                    public CompletableFuture<?> get() {
+                        return collectGaugeValuesUnderThrottle(request, responseObserver);
+                    }
+                });
     }
 
     private void throttledCollectTrace(String agentId, boolean postV09, Trace trace,
             StreamObserver<EmptyMessage> responseObserver) {
-        throttle(agentId, postV09, responseObserver, new Runnable() {
+        throttle(agentId, postV09, responseObserver, new Supplier<CompletableFuture<?>>() {
             @Override
-            public void run() {
-                collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
+            public CompletableFuture<?> get() {
+                return collectTraceUnderThrottle(agentId, postV09, trace, responseObserver);
             }
         });
     }
 
     private <T> void throttle(String agentId, boolean postV09, StreamObserver<T> responseObserver,
-            Runnable runnable) {
-        Semaphore semaphore = throttlePerAgentId.getUnchecked(agentId);
-        boolean acquired;
-        try {
-            acquired = semaphore.tryAcquire(1, MINUTES);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
-            responseObserver.onError(e);
-            return;
-        }
-        if (!acquired) {
+            Supplier<CompletableFuture<?>> collector) {
+        AgentThrottle throttle = throttlePerAgentId.getUnchecked(agentId);
+        Supplier<CompletableFuture<?>> collectorOrError = () -> {
+            try {
+                return collector.get();
+            } catch (Throwable t) {
+                logger.error("{} - {}", getDisplayForLogging(agentId, postV09), t.getMessage(),
+                        t);
+                responseObserver.onError(t);
+                return CompletableFuture.completedFuture(null);
+            }
+        };
+        if (!throttle.submit(collectorOrError, asyncExecutor)) {
             logger.warn("{} - collection rejected due to backlog",
                     getDisplayForLogging(agentId, postV09));
             responseObserver.onError(new Exception());
-            return;
-        }
-        try {
-            runnable.run();
-        } finally {
-            semaphore.release();
         }
     }
 
-    private void collectAggregatesUnderThrottle(String agentId, boolean postV09, long captureTime,
-            List<Aggregate.SharedQueryText> sharedQueryTexts,
+    // the returned future completes (normally) once the response has been sent
+    private CompletableFuture<?> collectAggregatesUnderThrottle(String agentId, boolean postV09,
+            long captureTime, List<Aggregate.SharedQueryText> sharedQueryTexts,
             List<OldAggregatesByType> aggregatesByTypeList,
             StreamObserver<AggregateResponseMessage> responseObserver) {
         String postV09AgentId;
@@ -318,38 +331,44 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
         } catch (Throwable t) {
             logger.error("{} - {}", getDisplayForLogging(agentId, postV09), t.getMessage(), t);
             responseObserver.onError(t);
-            return;
-        }
-        try {
-            aggregateDao.store(postV09AgentId, captureTime, aggregatesByTypeList, sharedQueryTexts);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
-        }
-        String agentDisplay;
-        try {
-            agentDisplay = agentDao.readAgentRollupDisplay(postV09AgentId);
-        } catch (Exception e) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), e.getMessage(), e);
-            responseObserver.onError(e);
-            return;
-        }
-        try {
-            centralAlertingService.checkForDeletedAlerts(postV09AgentId, agentDisplay);
-            centralAlertingService.checkAggregateAlertsAsync(postV09AgentId, agentDisplay,
-                    captureTime);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
-            logger.debug(e.getMessage(), e);
-        }
-        responseObserver.onNext(AggregateResponseMessage.newBuilder()
-                .setNextDelayMillis(getNextDelayMillis())
-                .build());
-        responseObserver.onCompleted();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<?> future = MoreFutures.callAsync(() -> aggregateDao
+                .storeAsync(postV09AgentId, captureTime, aggregatesByTypeList, sharedQueryTexts));
+        return future.handleAsync((result, throwable) -> {
+            if (throwable != null) {
+                Throwable t = MoreFutures.unwrapCompletionException(throwable);
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return null;
+            }
+            centralAlertingService.onDataStored(postV09AgentId, captureTime);
+            String agentDisplay;
+            try {
+                agentDisplay = agentDao.readAgentRollupDisplay(postV09AgentId);
+            } catch (Exception e) {
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), e.getMessage(), e);
+                responseObserver.onError(e);
+                return null;
+            }
+            try {
+                centralAlertingService.checkForDeletedAlerts(postV09AgentId, agentDisplay);
+                centralAlertingService.checkAggregateAlertsAsync(postV09AgentId, agentDisplay,
+                        captureTime);
+            } catch (InterruptedException e) {
+                // probably shutdown requested
+                logger.debug(e.getMessage(), e);
+            }
+            responseObserver.onNext(AggregateResponseMessage.newBuilder()
+                    .setNextDelayMillis(getNextDelayMillis())
+                    .build());
+            responseObserver.onCompleted();
+            return null;
+        }, asyncExecutor);
     }
 
-    private void collectGaugeValuesUnderThrottle(GaugeValueMessage request,
+    // the returned future completes (normally) once the response has been sent
+    private CompletableFuture<?> collectGaugeValuesUnderThrottle(GaugeValueMessage request,
             StreamObserver<GaugeValueResponseMessage> responseObserver) {
         String postV09AgentId;
         try {
@@ -359,75 +378,107 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     getDisplayForLogging(request.getAgentId(), request.getPostV09()),
                     t.getMessage(), t);
             responseObserver.onError(t);
-            return;
-        }
+            return CompletableFuture.completedFuture(null);
+        }
+        List<GaugeValue> gaugeValues =
+                dictionaryDecoder.decodeGaugeValues(postV09AgentId, request);
+        if (gaugeValues == null) {
+            // gauge values are not stored, and will be resent by the agent along with the names
+            responseObserver.onNext(GaugeValueResponseMessage.newBuilder()
+                    .setResendGaugeNames(true)
+                    .build());
+            responseObserver.onCompleted();
+            return CompletableFuture.completedFuture(null);
+        }
+        long minCaptureTime = Long.MAX_VALUE;
         long maxCaptureTime = 0;
-        try {
-            gaugeValueDao.store(postV09AgentId, request.getGaugeValuesList());
-            for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
-                maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        for (GaugeValue gaugeValue : gaugeValues) {
+            minCaptureTime = Math.min(minCaptureTime, gaugeValue.getCaptureTime());
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        }
+        long finalMinCaptureTime = minCaptureTime;
+        long finalMaxCaptureTime = maxCaptureTime;
+        CompletableFuture<?> future = MoreFutures.callAsync(
+                () -> gaugeValueDao.storeAsync(postV09AgentId, gaugeValues));
+        future = MoreFutures.thenComposeAsync(future,
+                () -> heartbeatDao.storeAsync(postV09AgentId), asyncExecutor);
+        return future.handleAsync((result, throwable) -> {
+            if (throwable != null) {
+                Throwable t = MoreFutures.unwrapCompletionException(throwable);
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return null;
             }
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
-        }
-        try {
-            heartbeatDao.store(postV09AgentId);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
-        }
-        String agentDisplay;
-        try {
-            agentDisplay = agentDao.readAgentRollupDisplay(postV09AgentId);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
-        }
-        try {
-            centralAlertingService.checkForDeletedAlerts(postV09AgentId, agentDisplay);
-            centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(postV09AgentId, agentDisplay,
-                    maxCaptureTime);
-        } catch (InterruptedException e) {
-            // probably shutdown requested
-            logger.debug(e.getMessage(), e);
-        }
-        boolean resendInit;
-        try {
-            resendInit = agentConfigDao.read(postV09AgentId) == null;
-        } catch (Throwable t) {
-            // log as error, but not worth failing for this
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            resendInit = false;
-        }
-        responseObserver.onNext(GaugeValueResponseMessage.newBuilder()
-                .setResendInit(resendInit)
-                .build());
-        responseObserver.onCompleted();
+            centralAlertingService.onDataStored(postV09AgentId, finalMinCaptureTime);
+            String agentDisplay;
+            try {
+                agentDisplay = agentDao.readAgentRollupDisplay(postV09AgentId);
+            } catch (Throwable t) {
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return null;
+            }
+            try {
+                centralAlertingService.checkForDeletedAlerts(postV09AgentId, agentDisplay);
+                centralAlertingService.checkGaugeAndHeartbeatAlertsAsync(postV09AgentId,
+                        agentDisplay, finalMaxCaptureTime);
+            } catch (InterruptedException e) {
+                // probably shutdown requested
+                logger.debug(e.getMessage(), e);
+            }
+            boolean resendInit;
+            try {
+                resendInit = agentConfigDao.read(postV09AgentId) == null;
+            } catch (Throwable t) {
+                // log as error, but not worth failing for this
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                resendInit = false;
+            }
+            responseObserver.onNext(GaugeValueResponseMessage.newBuilder()
+                    .setResendInit(resendInit)
+                    .build());
+            responseObserver.onCompleted();
+            return null;
+        }, asyncExecutor);
     }
 
-    private void collectTraceUnderThrottle(String agentId, boolean postV09, Trace trace,
-            StreamObserver<EmptyMessage> responseObserver) {
+    // the returned future completes (normally) once the response has been sent
+    private CompletableFuture<?> collectTraceUnderThrottle(String agentId, boolean postV09,
+            Trace trace, StreamObserver<EmptyMessage> responseObserver) {
         String postV09AgentId;
         try {
             postV09AgentId = grpcCommon.getAgentId(agentId, postV09);
         } catch (Throwable t) {
             logger.error("{} - {}", getDisplayForLogging(agentId, postV09), t.getMessage(), t);
             responseObserver.onError(t);
-            return;
-        }
-        try {
-            traceDao.store(postV09AgentId, trace);
-        } catch (Throwable t) {
-            logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
-            responseObserver.onError(t);
-            return;
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<?> future =
+                MoreFutures.callAsync(() -> traceDao.storeAsync(postV09AgentId, trace));
+        return future.handleAsync((result, throwable) -> {
+            if (throwable != null) {
+                Throwable t = MoreFutures.unwrapCompletionException(throwable);
+                logger.error("{} - {}", getDisplayForLogging(postV09AgentId), t.getMessage(), t);
+                responseObserver.onError(t);
+                return null;
+            }
+            responseObserver.onNext(EmptyMessage.getDefaultInstance());
+            responseObserver.onCompleted();
+            return null;
+        }, asyncExecutor);
+    }
+
+    // requests the next message from the stream, but not until any collection that is already in
+    // progress for the agent has completed, this uses gRPC flow control to push back on the agent
+    // instead of blocking a gRPC thread
+    private void requestNext(ServerCallStreamObserver<?> responseObserver,
+            @Nullable String agentId) {
+        if (agentId == null) {
+            responseObserver.request(1);
+        } else {
+            throttlePerAgentId.getUnchecked(agentId).whenIdle(() -> responseObserver.request(1),
+                    asyncExecutor);
         }
-        responseObserver.onNext(EmptyMessage.getDefaultInstance());
-        responseObserver.onCompleted();
     }
 
     private int getNextDelayMillis() {
@@ -493,12 +544,19 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
     private final class AggregateStreamObserver implements StreamObserver<AggregateStreamMessage> {
 
         private final StreamObserver<AggregateResponseMessage> responseObserver;
+        private final ServerCallStreamObserver<AggregateResponseMessage> serverCallStreamObserver;
         private @MonotonicNonNull AggregateStreamHeader streamHeader;
         private List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private Map<String, OldAggregatesByType.Builder> aggregatesByTypeMap = new HashMap<>();
+        // only used when the stream is dictionary encoded
+        private List<String> dictionary = new ArrayList<>();
 
         private AggregateStreamObserver(StreamObserver<AggregateResponseMessage> responseObserver) {
             this.responseObserver = responseObserver;
+            serverCallStreamObserver =
+                    (ServerCallStreamObserver<AggregateResponseMessage>) responseObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
         }
 
         @Override
@@ -510,25 +568,49 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 case SHARED_QUERY_TEXT:
                     sharedQueryTexts.add(value.getSharedQueryText());
                     break;
+                case DICTIONARY_ENTRY:
+                    dictionary.add(value.getDictionaryEntry());
+                    break;
                 case OVERALL_AGGREGATE:
                     OverallAggregate overallAggregate = value.getOverallAggregate();
-                    String transactionType = overallAggregate.getTransactionType();
+                    String transactionType;
+                    Aggregate aggregate;
+                    if (isDictionaryEncoded()) {
+                        transactionType =
+                                dictionary.get(overallAggregate.getTransactionTypeIndex());
+                        aggregate = DictionaryDecoder
+                                .decodeAggregate(overallAggregate.getAggregate(), dictionary);
+                    } else {
+                        transactionType = overallAggregate.getTransactionType();
+                        aggregate = overallAggregate.getAggregate();
+                    }
                     aggregatesByTypeMap.put(transactionType, OldAggregatesByType.newBuilder()
                             .setTransactionType(transactionType)
-                            .setOverallAggregate(overallAggregate.getAggregate()));
+                            .setOverallAggregate(aggregate));
                     break;
                 case TRANSACTION_AGGREGATE:
                     TransactionAggregate transactionAggregate = value.getTransactionAggregate();
-                    OldAggregatesByType.Builder builder = checkNotNull(
-                            aggregatesByTypeMap.get(transactionAggregate.getTransactionType()));
+                    if (isDictionaryEncoded()) {
+                        transactionType =
+                                dictionary.get(transactionAggregate.getTransactionTypeIndex());
+                        aggregate = DictionaryDecoder
+                                .decodeAggregate(transactionAggregate.getAggregate(), dictionary);
+                    } else {
+                        transactionType = transactionAggregate.getTransactionType();
+                        aggregate = transactionAggregate.getAggregate();
+                    }
+                    OldAggregatesByType.Builder builder =
+                            checkNotNull(aggregatesByTypeMap.get(transactionType));
                     builder.addTransactionAggregate(OldTransactionAggregate.newBuilder()
                             .setTransactionName(transactionAggregate.getTransactionName())
-                            .setAggregate(transactionAggregate.getAggregate())
+                            .setAggregate(aggregate)
                             .build());
                     break;
                 default:
                     throw new RuntimeException("Unexpected message: " + value.getMessageCase());
             }
+            requestNext(serverCallStreamObserver,
+                    streamHeader == null ? null : streamHeader.getAgentId());
         }
 
         @Override
@@ -557,11 +639,16 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                     streamHeader.getCaptureTime(), sharedQueryTexts, aggregatesByTypeList,
                     responseObserver);
         }
+
+        private boolean isDictionaryEncoded() {
+            return streamHeader != null && streamHeader.getDictionaryEncoded();
+        }
     }
 
     private final class TraceStreamObserver implements StreamObserver<TraceStreamMessage> {
 
         private final StreamObserver<EmptyMessage> responseObserver;
+        private final ServerCallStreamObserver<EmptyMessage> serverCallStreamObserver;
         private @MonotonicNonNull TraceStreamHeader streamHeader;
         private List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         private @MonotonicNonNull Trace trace;
@@ -574,6 +661,9 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
 
         private TraceStreamObserver(StreamObserver<EmptyMessage> responseObserver) {
             this.responseObserver = responseObserver;
+            serverCallStreamObserver = (ServerCallStreamObserver<EmptyMessage>) responseObserver;
+            serverCallStreamObserver.disableAutoInboundFlowControl();
+            serverCallStreamObserver.request(1);
         }
 
         @Override
@@ -610,6 +700,8 @@ class CollectorServiceImpl extends CollectorServiceGrpc.CollectorServiceImplBase
                 default:
                     throw new RuntimeException("Unexpected message: " + value.getMessageCase());
             }
+            requestNext(serverCallStreamObserver,
+                    streamHeader == null ? null : streamHeader.getAgentId());
         }
 
         @Override
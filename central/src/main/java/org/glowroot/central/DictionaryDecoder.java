@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage.GaugeNameEntry;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// decodes dictionary encoded aggregates and gauge values that are sent by agents (see
+// AggregateDictionary and GaugeNameDictionary in the agent)
+class DictionaryDecoder {
+
+    // gauge names are cached per agent, and if the cache does not have a gauge name (e.g. central
+    // was restarted, or the agent was previously connected to a different central node), the agent
+    // is asked to resend its gauge names
+    private final LoadingCache<String, ConcurrentMap<Integer, String>> gaugeNames =
+            CacheBuilder.newBuilder()
+                    .expireAfterAccess(1, HOURS)
+                    .build(new CacheLoader<String, ConcurrentMap<Integer, String>>() {
+                        @Override
+                        public ConcurrentMap<Integer, String> load(String agentId) {
+                            return new ConcurrentHashMap<>();
+                        }
+                    });
+
+    // null return value means at least one gauge name id is unknown
+    @Nullable
+    List<GaugeValue> decodeGaugeValues(String agentId, GaugeValueMessage request) {
+        if (!request.getDictionaryEncoded()) {
+            return request.getGaugeValuesList();
+        }
+        ConcurrentMap<Integer, String> names = gaugeNames.getUnchecked(agentId);
+        for (GaugeNameEntry gaugeNameEntry : request.getGaugeNameEntryList()) {
+            names.put(gaugeNameEntry.getId(), gaugeNameEntry.getName());
+        }
+        List<GaugeValue> gaugeValues = new ArrayList<>(request.getGaugeValuesCount());
+        for (GaugeValue gaugeValue : request.getGaugeValuesList()) {
+            String gaugeName = names.get(gaugeValue.getGaugeNameId());
+            if (gaugeName == null) {
+                return null;
+            }
+            gaugeValues.add(gaugeValue.toBuilder()
+                    .setGaugeName(gaugeName)
+                    .clearGaugeNameId()
+                    .build());
+        }
+        return gaugeValues;
+    }
+
+    static Aggregate decodeAggregate(Aggregate aggregate, List<String> dictionary) {
+        Aggregate.Builder builder = aggregate.toBuilder();
+        decodeTimers(builder.getMainThreadRootTimerBuilderList(), dictionary);
+        decodeTimers(builder.getAuxThreadRootTimerBuilderList(), dictionary);
+        decodeTimers(builder.getAsyncTimerBuilderList(), dictionary);
+        for (Aggregate.Query.Builder query : builder.getQueryBuilderList()) {
+            query.setType(dictionary.get(query.getTypeIndex()))
+                    .clearTypeIndex();
+        }
+        for (Aggregate.ServiceCall.Builder serviceCall : builder.getServiceCallBuilderList()) {
+            serviceCall.setType(dictionary.get(serviceCall.getTypeIndex()))
+                    .clearTypeIndex()
+                    .setText(dictionary.get(serviceCall.getTextIndex()))
+                    .clearTextIndex();
+        }
+        return builder.build();
+    }
+
+    private static void decodeTimers(List<Aggregate.Timer.Builder> timers,
+            List<String> dictionary) {
+        for (Aggregate.Timer.Builder timer : timers) {
+            timer.setName(dictionary.get(timer.getNameIndex()))
+                    .clearNameIndex();
+            decodeTimers(timer.getChildTimerBuilderList(), dictionary);
+        }
+    }
+}
@@ -19,6 +19,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
 
 import io.grpc.Server;
 import io.grpc.netty.NettyServerBuilder;
@@ -54,14 +55,15 @@ class GrpcServer {
             EnvironmentDao environmentDao, HeartbeatDao heartbeatDao, AggregateDao aggregateDao,
             GaugeValueDao gaugeValueDao, TraceDao traceDao, V09AgentRollupDao v09AgentRollupDao,
             CentralAlertingService centralAlertingService, ClusterManager clusterManager,
-            Clock clock, String version) throws IOException {
+            Executor asyncExecutor, Clock clock, String version) throws IOException {
 
         GrpcCommon grpcCommon = new GrpcCommon(agentDao, v09AgentRollupDao);
         downstreamService = new DownstreamServiceImpl(grpcCommon, clusterManager);
 
         CollectorServiceImpl collectorService = new CollectorServiceImpl(agentDao, agentConfigDao,
                 environmentDao, heartbeatDao, aggregateDao, gaugeValueDao, traceDao,
-                v09AgentRollupDao, grpcCommon, centralAlertingService, clock, version);
+                v09AgentRollupDao, grpcCommon, centralAlertingService, asyncExecutor, clock,
+                version);
 
         if (httpPort == null) {
             httpServer = null;
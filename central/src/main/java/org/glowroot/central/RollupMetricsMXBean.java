@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.Map;
+
+// exposed via jmx (org.glowroot.central:type=Rollup) so that the rollup cycle can be monitored
+public interface RollupMetricsMXBean {
+
+    // time from the scheduled start of the last rollup cycle until its completion
+    long getLastCycleLagMillis();
+
+    long getLastCycleDurationMillis();
+
+    // number of central collector nodes that the agent rollups were partitioned across
+    int getLastCycleNodeCount();
+
+    // number of agent rollups (including child agent rollups) rolled up by this node
+    int getLastCycleAgentRollupCount();
+
+    long getLastCycleMaxAgentRollupLatencyMillis();
+
+    Map<String, Long> getLastCycleAgentRollupLatencies();
+}
@@ -15,13 +15,27 @@
  */
 package org.glowroot.central;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,36 +44,58 @@ import org.glowroot.central.repo.AgentDao;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.repo.AgentRollupRepository.AgentRollup;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 class RollupService implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(RollupService.class);
 
+    private static final String MBEAN_OBJECT_NAME = "org.glowroot.central:type=Rollup";
+
     private final AgentDao agentDao;
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
+    private final TraceDao traceDao;
     private final CentralAlertingService centralAlertingService;
     private final Clock clock;
 
+    // each central collector node heartbeats into this map once per rollup cycle, and the live
+    // nodes then partition the top-level agent rollups among themselves (entries expire so that the
+    // agent rollups owned by a node which goes away are picked up by the remaining nodes)
+    private final ConcurrentMap<String, Long> rollupNodes;
+    private final String nodeId = UUID.randomUUID().toString();
+
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
+
+    private final RollupMetrics metrics = new RollupMetrics();
+    private final @Nullable ObjectName mbeanObjectName;
 
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            SyntheticResultDao syntheticResultDao, CentralAlertingService centralAlertingService,
-            Clock clock) {
+            SyntheticResultDao syntheticResultDao, TraceDao traceDao,
+            CentralAlertingService centralAlertingService, ClusterManager clusterManager,
+            int rollupThreads, Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
+        this.traceDao = traceDao;
         this.centralAlertingService = centralAlertingService;
         this.clock = clock;
+        rollupNodes = clusterManager.createReplicatedMap("rollupNodes", 3, MINUTES);
+        mbeanObjectName = registerMBean(metrics);
+        workerExecutor = Executors.newFixedThreadPool(rollupThreads);
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -68,8 +104,10 @@ class RollupService implements Runnable {
     public void run() {
         while (!closed) {
             try {
-                MILLISECONDS.sleep(millisUntilNextRollup(clock.currentTimeMillis()));
-                runInternal();
+                long currentTimeMillis = clock.currentTimeMillis();
+                long millisUntilNextRollup = millisUntilNextRollup(currentTimeMillis);
+                MILLISECONDS.sleep(millisUntilNextRollup);
+                runInternal(currentTimeMillis + millisUntilNextRollup);
             } catch (InterruptedException e) {
                 // probably shutdown requested (see close method below)
                 logger.debug(e.getMessage(), e);
@@ -80,47 +118,121 @@ class RollupService implements Runnable {
         }
     }
 
-    void close() throws InterruptedException {
+    void close() throws Exception {
         closed = true;
-        // shutdownNow() is needed here to send interrupt to RollupService thread
+        // let the other central collector nodes pick up this node's agent rollups on their next
+        // rollup cycle
+        rollupNodes.remove(nodeId);
+        // shutdownNow() is needed here to send interrupt to RollupService threads
         executor.shutdownNow();
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Timed out waiting for rollup thread to terminate");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException(
+                    "Timed out waiting for rollup worker threads to terminate");
+        }
+        if (mbeanObjectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanObjectName);
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup agentRollup : shuffle(agentDao.readRecentlyActiveAgentRollups(7))) {
-            rollupAggregates(agentRollup);
-            rollupGauges(agentRollup);
-            rollupSyntheticMonitors(agentRollup);
-            // checking aggregate and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length (and alerts on rollups are not checked
-            // anywhere else)
-            //
-            // agent (not rollup) alerts are also checked right after receiving the respective data
-            // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
-            // minute in case no data has been received from the agent recently
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup);
+    private void runInternal(long scheduledTime) throws Exception {
+        long startTime = clock.currentTimeMillis();
+        rollupNodes.put(nodeId, startTime);
+        List<String> nodeIds = new ArrayList<>(rollupNodes.keySet());
+        if (!nodeIds.contains(nodeId)) {
+            // the replicated map can briefly lag behind the local put above
+            nodeIds.add(nodeId);
+        }
+        Map<String, Long> agentRollupLatencies = new ConcurrentHashMap<>();
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (AgentRollup agentRollup : agentDao.readRecentlyActiveAgentRollups(7)) {
+            // child agent rollups are rolled up on the same node as their top-level agent rollup
+            // since parent rollups must be performed after their child rollups
+            if (isOwner(agentRollup.id(), nodeId, nodeIds)) {
+                futures.add(rollupAsync(agentRollup, agentRollupLatencies));
+            }
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            // individual rollup failures are already logged, this is only reached on shutdown
+            logger.debug(e.getMessage(), e);
         }
         // FIXME keep this here as fallback, but also resolve alerts immediately when they are
         // deleted (or when their condition is updated)
         centralAlertingService.checkForAllDeletedAlerts();
+        metrics.recordCycle(scheduledTime, startTime, clock.currentTimeMillis(), nodeIds.size(),
+                agentRollupLatencies);
     }
 
-    private void rollupAggregates(AgentRollup agentRollup) throws InterruptedException {
-        // randomize order so that multiple central collector nodes will be less likely to perform
-        // duplicative work
-        for (AgentRollup childAgentRollup : shuffle(agentRollup.children())) {
-            rollupAggregates(childAgentRollup);
+    // returns future that completes with true if gauge rollup succeeded for the agent rollup and
+    // all of its descendants
+    private CompletableFuture<Boolean> rollupAsync(AgentRollup agentRollup,
+            Map<String, Long> agentRollupLatencies) {
+        List<CompletableFuture<Boolean>> childFutures = new ArrayList<>();
+        for (AgentRollup childAgentRollup : agentRollup.children()) {
+            childFutures.add(rollupAsync(childAgentRollup, agentRollupLatencies));
         }
+        // need to roll up children first, since aggregates and gauge values initial roll up from
+        // children is done on the 1-min aggregates of the children
+        return CompletableFuture.allOf(childFutures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    boolean childGaugeRollupsSucceeded = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childGaugeRollupsSucceeded =
+                                childGaugeRollupsSucceeded && childFuture.join();
+                    }
+                    try {
+                        return rollup(agentRollup, childGaugeRollupsSucceeded,
+                                agentRollupLatencies);
+                    } catch (InterruptedException e) {
+                        // probably shutdown requested (see close method above)
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    }
+                }, workerExecutor);
+    }
+
+    @Instrumentation.Transaction(transactionType = "Background", transactionName = "Rollup",
+            traceHeadline = "Rollup: {{0.id}}", timer = "rollup")
+    private boolean rollup(AgentRollup agentRollup, boolean childGaugeRollupsSucceeded,
+            Map<String, Long> agentRollupLatencies) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        rollupAggregates(agentRollup);
+        boolean gaugeRollupSucceeded;
+        if (childGaugeRollupsSucceeded) {
+            gaugeRollupSucceeded = rollupGauges(agentRollup);
+        } else {
+            // need to _not_ roll up parent if exception occurs while rolling up a child, since
+            // gauge values initial roll up from children is done on the 1-min aggregates of the
+            // children
+            gaugeRollupSucceeded = false;
+        }
+        rollupSyntheticMonitors(agentRollup);
+        rollupErrorMessages(agentRollup);
+        // checking aggregate and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length (and alerts on rollups are not checked
+        // anywhere else)
+        //
+        // agent (not rollup) alerts are also checked right after receiving the respective data
+        // (aggregate/gauge/heartbeat) from the agent, but need to also check these once a
+        // minute in case no data has been received from the agent recently
+        centralAlertingService.checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup.id(),
+                agentRollup.display(), clock.currentTimeMillis());
+        agentRollupLatencies.put(agentRollup.id(), stopwatch.elapsed(MILLISECONDS));
+        return gaugeRollupSucceeded;
+    }
+
+    private void rollupAggregates(AgentRollup agentRollup) throws InterruptedException {
         try {
-            aggregateDao.rollup(agentRollup.id());
+            long oldestCaptureTime = aggregateDao.rollup(agentRollup.id());
+            centralAlertingService.onDataStored(agentRollup.id(), oldestCaptureTime);
         } catch (InterruptedException e) {
             // probably shutdown requested (see close method above)
             throw e;
@@ -131,21 +243,9 @@ class RollupService implements Runnable {
 
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup) throws InterruptedException {
-        // need to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup);
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // need to _not_ roll up parent if exception occurs while rolling up a child, since
-            // gauge values initial roll up from children is done on the 1-min aggregates of the
-            // children
-            return false;
-        }
         try {
-            gaugeValueDao.rollup(agentRollup.id());
+            long oldestCaptureTime = gaugeValueDao.rollup(agentRollup.id());
+            centralAlertingService.onDataStored(agentRollup.id(), oldestCaptureTime);
             return true;
         } catch (InterruptedException e) {
             // probably shutdown requested (see close method above)
@@ -156,10 +256,7 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupSyntheticMonitors(childAgentRollup);
-        }
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -170,19 +267,15 @@ class RollupService implements Runnable {
         }
     }
 
-    private void checkAggregateAndGaugeAndHeartbeatAlertsAsync(AgentRollup agentRollup)
-            throws InterruptedException {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            checkAggregateAndGaugeAndHeartbeatAlertsAsync(childAgentRollup);
+    private void rollupErrorMessages(AgentRollup agentRollup) throws InterruptedException {
+        try {
+            traceDao.rollup(agentRollup.id());
+        } catch (InterruptedException e) {
+            // probably shutdown requested (see close method above)
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
         }
-        centralAlertingService.checkAggregateAndGaugeAndHeartbeatAlertsAsync(agentRollup.id(),
-                agentRollup.display(), clock.currentTimeMillis());
-    }
-
-    private static <T> List<T> shuffle(List<T> agentRollups) {
-        List<T> mutable = new ArrayList<>(agentRollups);
-        Collections.shuffle(mutable);
-        return mutable;
     }
 
     @VisibleForTesting
@@ -190,6 +283,43 @@ class RollupService implements Runnable {
         return 60000 - (currentTimeMillis - 10000) % 60000;
     }
 
+    // rendezvous hashing, so that only the agent rollups owned by a node that joins or leaves the
+    // cluster are moved between nodes
+    @VisibleForTesting
+    static boolean isOwner(String agentRollupId, String nodeId, List<String> nodeIds) {
+        String ownerNodeId = null;
+        long ownerHash = 0;
+        for (String currNodeId : nodeIds) {
+            long hash = Hashing.murmur3_128().newHasher()
+                    .putString(currNodeId, UTF_8)
+                    .putString(agentRollupId, UTF_8)
+                    .hash()
+                    .asLong();
+            if (ownerNodeId == null || hash > ownerHash
+                    || hash == ownerHash && currNodeId.compareTo(ownerNodeId) < 0) {
+                ownerNodeId = currNodeId;
+                ownerHash = hash;
+            }
+        }
+        return nodeId.equals(ownerNodeId);
+    }
+
+    private static @Nullable ObjectName registerMBean(RollupMetrics metrics) {
+        try {
+            ObjectName objectName = new ObjectName(MBEAN_OBJECT_NAME);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mbeanServer.isRegistered(objectName)) {
+                // e.g. multiple central modules in the same jvm during testing
+                return null;
+            }
+            mbeanServer.registerMBean(metrics, objectName);
+            return objectName;
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+            return null;
+        }
+    }
+
     @SuppressWarnings("return.type.incompatible")
     private static <T> /*@Initialized*/ T castInitialized(/*@UnderInitialization*/ T obj) {
         return obj;
@@ -199,4 +329,58 @@ class RollupService implements Runnable {
     interface AgentRollupConsumer {
         void accept(AgentRollup agentRollup) throws Exception;
     }
+
+    @VisibleForTesting
+    static class RollupMetrics implements RollupMetricsMXBean {
+
+        private volatile long lastCycleLagMillis;
+        private volatile long lastCycleDurationMillis;
+        private volatile int lastCycleNodeCount;
+        private volatile Map<String, Long> lastCycleAgentRollupLatencies = ImmutableMap.of();
+
+        @VisibleForTesting
+        void recordCycle(long scheduledTime, long startTime, long endTime, int nodeCount,
+                Map<String, Long> agentRollupLatencies) {
+            // lag is measured from the scheduled start of the cycle, so it includes any delay in
+            // starting the cycle
+            lastCycleLagMillis = endTime - scheduledTime;
+            lastCycleDurationMillis = endTime - startTime;
+            lastCycleNodeCount = nodeCount;
+            lastCycleAgentRollupLatencies = ImmutableMap.copyOf(agentRollupLatencies);
+        }
+
+        @Override
+        public long getLastCycleLagMillis() {
+            return lastCycleLagMillis;
+        }
+
+        @Override
+        public long getLastCycleDurationMillis() {
+            return lastCycleDurationMillis;
+        }
+
+        @Override
+        public int getLastCycleNodeCount() {
+            return lastCycleNodeCount;
+        }
+
+        @Override
+        public int getLastCycleAgentRollupCount() {
+            return lastCycleAgentRollupLatencies.size();
+        }
+
+        @Override
+        public long getLastCycleMaxAgentRollupLatencyMillis() {
+            long max = 0;
+            for (long latency : lastCycleAgentRollupLatencies.values()) {
+                max = Math.max(max, latency);
+            }
+            return max;
+        }
+
+        @Override
+        public Map<String, Long> getLastCycleAgentRollupLatencies() {
+            return lastCycleAgentRollupLatencies;
+        }
+    }
 }
@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.agent.api.Instrumentation.AlreadyInTransactionBehavior;
@@ -29,11 +30,17 @@ public interface AggregateDao extends AggregateRepository {
     void store(String agentId, long captureTime, List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception;
 
+    CompletableFuture<?> storeAsync(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception;
+
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Rollup aggregates", traceHeadline = "Rollup aggregates: {{0}}",
             timer = "rollup aggregates",
             alreadyInTransactionBehavior = AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION)
-    void rollup(String agentRollupId) throws Exception;
+    // returns the oldest capture time that was rolled up (at any rollup level), or Long.MAX_VALUE
+    // if there was nothing to roll up
+    long rollup(String agentRollupId) throws Exception;
 
     @OnlyUsedByTests
     void truncateAll() throws Exception;
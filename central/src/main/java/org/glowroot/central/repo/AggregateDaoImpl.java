@@ -24,6 +24,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -49,6 +51,7 @@ import org.glowroot.central.repo.Common.NeedsRollupFromChildren;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
+import org.glowroot.central.util.WriteCoalescer;
 import org.glowroot.common.ConfigDefaults;
 import org.glowroot.common.Constants;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -60,9 +63,9 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.CompactProfile;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
-import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.MutableServiceCall;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
@@ -406,22 +409,65 @@ public class AggregateDaoImpl implements AggregateDao {
     public void store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, captureTime,
+                aggregatesByTypeList, initialSharedQueryTexts)));
+    }
+
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
-        store(agentId, agentRollupIds, agentId, agentRollupIds, captureTime, aggregatesByTypeList,
-                initialSharedQueryTexts);
+        return storeAsync(agentId, agentRollupIds, agentId, agentRollupIds, captureTime,
+                aggregatesByTypeList, initialSharedQueryTexts);
     }
 
-    public void store(String agentId, List<String> agentRollupIds,
+    public CompletableFuture<?> storeAsync(String agentId, List<String> agentRollupIds,
             String agentIdForMeta, List<String> agentRollupIdsForMeta, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (aggregatesByTypeList.isEmpty()) {
-            agentDao.insert(agentIdForMeta, captureTime).get();
-            return;
+            return MoreFutures.allAsync(
+                    ImmutableList.of(agentDao.insert(agentIdForMeta, captureTime)));
         }
         TTL adjustedTTL = getAdjustedTTL(getTTLs().get(0), captureTime, clock);
-        List<Future<?>> futures = new ArrayList<>();
         List<Aggregate.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        List<Future<?>> futures = storeFullQueryTexts(agentId, agentRollupIds,
+                initialSharedQueryTexts, sharedQueryTexts);
+
+        Executor executor = session.getAsyncExecutor();
+        // writes to the same partition (e.g. all of the overall aggregate tables for a given
+        // transaction type) are coalesced into unlogged batches
+        WriteCoalescer writeCoalescer = session.createWriteCoalescer();
+        // each stage below runs only after the prior stage has completed, so these are never
+        // accessed concurrently
+        List<Future<?>> pendingFutures = new ArrayList<>();
+        // wait for success before proceeding in order to ensure cannot end up with orphaned
+        // fullTextSha1
+        CompletableFuture<?> future = MoreFutures.allAsync(futures);
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            future = MoreFutures.thenComposeAsync(future,
+                    () -> storeAggregatesByType(agentId, agentRollupIdsForMeta, captureTime,
+                            aggregatesByType, sharedQueryTexts, adjustedTTL, writeCoalescer,
+                            pendingFutures, executor),
+                    executor);
+        }
+        future = MoreFutures.thenComposeAsync(future, () -> {
+            pendingFutures.add(agentDao.insert(agentIdForMeta, captureTime));
+            // wait for success before inserting "needs rollup" records
+            writeCoalescer.flush();
+            return MoreFutures.allAsync(pendingFutures);
+        }, executor);
+        return MoreFutures.thenComposeAsync(future,
+                () -> MoreFutures.allAsync(storeNeedsRollup(agentId, agentRollupIds, captureTime,
+                        aggregatesByTypeList, adjustedTTL)),
+                executor);
+    }
+
+    private List<Future<?>> storeFullQueryTexts(String agentId, List<String> agentRollupIds,
+            List<Aggregate.SharedQueryText> initialSharedQueryTexts,
+            List<Aggregate.SharedQueryText> sharedQueryTexts) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
         for (Aggregate.SharedQueryText sharedQueryText : initialSharedQueryTexts) {
             String fullTextSha1 = sharedQueryText.getFullTextSha1();
             if (fullTextSha1.isEmpty()) {
@@ -451,40 +497,46 @@ public class AggregateDaoImpl implements AggregateDao {
             }
         }
 
-        // wait for success before proceeding in order to ensure cannot end up with orphaned
-        // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return futures;
+    }
 
-        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
-            String transactionType = aggregatesByType.getTransactionType();
-            Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
-            for (OldTransactionAggregate transactionAggregate : aggregatesByType
-                    .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
-                        transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
-            }
-            // wait for success before proceeding in order to ensure cannot end up with
-            // "no overview table records found" during a transactionName rollup, since
-            // transactionName rollups are based on finding transactionName in summary table
-            MoreFutures.waitForAll(futures);
-            futures.clear();
+    private CompletableFuture<?> storeAggregatesByType(String agentId,
+            List<String> agentRollupIdsForMeta, long captureTime,
+            OldAggregatesByType aggregatesByType, List<Aggregate.SharedQueryText> sharedQueryTexts,
+            TTL adjustedTTL, WriteCoalescer writeCoalescer, List<Future<?>> pendingFutures,
+            Executor executor) throws Exception {
+        String transactionType = aggregatesByType.getTransactionType();
+        Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
+        List<Future<?>> futures = new ArrayList<>();
+        futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
+                overallAggregate, sharedQueryTexts, adjustedTTL, writeCoalescer));
+        for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                .getTransactionAggregateList()) {
+            futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                    transactionAggregate.getTransactionName(), captureTime,
+                    transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL,
+                    writeCoalescer));
+        }
+        // wait for success before proceeding in order to ensure cannot end up with
+        // "no overview table records found" during a transactionName rollup, since
+        // transactionName rollups are based on finding transactionName in summary table
+        writeCoalescer.flush();
+        return MoreFutures.thenComposeAsync(MoreFutures.allAsync(futures), () -> {
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionSummary(agentId, transactionType,
+                pendingFutures.addAll(storeTransactionSummary(agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL, writeCoalescer));
             }
-            futures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
-        }
-        futures.add(agentDao.insert(agentIdForMeta, captureTime));
-        // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+            pendingFutures.addAll(transactionTypeDao.store(agentRollupIdsForMeta, transactionType));
+            return CompletableFuture.completedFuture(null);
+        }, executor);
+    }
 
+    private List<Future<?>> storeNeedsRollup(String agentId, List<String> agentRollupIds,
+            long captureTime, List<OldAggregatesByType> aggregatesByTypeList, TTL adjustedTTL)
+            throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
@@ -515,7 +567,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setSet(i++, transactionTypes);
         boundStatement.setInt(i++, needsRollupAdjustedTTL);
         futures.add(session.executeAsync(boundStatement));
-        MoreFutures.waitForAll(futures);
+        return futures;
     }
 
     // query.from() is non-inclusive
@@ -800,24 +852,27 @@ public class AggregateDaoImpl implements AggregateDao {
     }
 
     @Override
-    public void rollup(String agentRollupId) throws Exception {
-        rollup(agentRollupId, agentRollupId, AgentRollupIds.getParent(agentRollupId),
+    public long rollup(String agentRollupId) throws Exception {
+        return rollup(agentRollupId, agentRollupId, AgentRollupIds.getParent(agentRollupId),
                 !agentRollupId.endsWith("::"));
     }
 
-    public void rollup(String agentRollupId, String agentRollupIdForMeta,
+    public long rollup(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, boolean leaf) throws Exception {
         List<TTL> ttls = getTTLs();
+        long oldestCaptureTime = Long.MAX_VALUE;
         if (!leaf) {
-            rollupFromChildren(agentRollupId, agentRollupIdForMeta, parentAgentRollupId,
-                    ttls.get(0));
+            oldestCaptureTime = rollupFromChildren(agentRollupId, agentRollupIdForMeta,
+                    parentAgentRollupId, ttls.get(0));
         }
         int rollupLevel = 1;
         while (rollupLevel < configRepository.getRollupConfigs().size()) {
             TTL ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, agentRollupIdForMeta, rollupLevel, ttl);
+            oldestCaptureTime = Math.min(oldestCaptureTime,
+                    rollup(agentRollupId, agentRollupIdForMeta, rollupLevel, ttl));
             rollupLevel++;
         }
+        return oldestCaptureTime;
     }
 
     @Override
@@ -835,9 +890,11 @@ public class AggregateDaoImpl implements AggregateDao {
         session.execute("truncate aggregate_needs_rollup_from_child");
     }
 
-    private void rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
+    // returns the oldest capture time that was rolled up, or Long.MAX_VALUE if none
+    private long rollupFromChildren(String agentRollupId, String agentRollupIdForMeta,
             @Nullable String parentAgentRollupId, TTL ttl) throws Exception {
         final int rollupLevel = 0;
+        long oldestCaptureTime = Long.MAX_VALUE;
         List<NeedsRollupFromChildren> needsRollupFromChildrenList = Common
                 .getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
@@ -873,11 +930,15 @@ public class AggregateDaoImpl implements AggregateDao {
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
                     deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+            oldestCaptureTime = Math.min(oldestCaptureTime, captureTime);
         }
+        return oldestCaptureTime;
     }
 
-    private void rollup(String agentRollupId, String agentRollupIdForMeta, int rollupLevel, TTL ttl)
+    // returns the oldest capture time that was rolled up, or Long.MAX_VALUE if none
+    private long rollup(String agentRollupId, String agentRollupIdForMeta, int rollupLevel, TTL ttl)
             throws Exception {
+        long oldestCaptureTime = Long.MAX_VALUE;
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel).intervalMillis();
         List<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId, rollupLevel,
@@ -918,7 +979,9 @@ public class AggregateDaoImpl implements AggregateDao {
             Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), transactionTypes,
                     needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
                     insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+            oldestCaptureTime = Math.min(oldestCaptureTime, captureTime);
         }
+        return oldestCaptureTime;
     }
 
     private List<Future<?>> rollupOneFromChildren(RollupParams rollup, String transactionType,
@@ -1541,10 +1604,10 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> rollupThreadProfileFromRows(RollupParams rollup,
             TransactionQuery query, Iterable<Row> rows, Table table) throws Exception {
-        MutableProfile profile = new MutableProfile();
+        CompactProfile profile = new CompactProfile();
         for (Row row : rows) {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
-            profile.merge(Profile.parseFrom(bytes));
+            profile.merge(bytes);
         }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
@@ -1589,7 +1652,7 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> storeOverallAggregate(String agentRollupId, String transactionType,
             long captureTime, Aggregate aggregate, List<Aggregate.SharedQueryText> sharedQueryTexts,
-            TTL adjustedTTL) throws Exception {
+            TTL adjustedTTL, WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1602,7 +1665,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1613,7 +1676,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1622,7 +1685,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1633,7 +1696,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1643,7 +1706,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1654,7 +1717,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1665,18 +1728,19 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, writeCoalescer));
         futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
+                agentRollupId, transactionType, null, captureTime, adjustedTTL, writeCoalescer));
         return futures;
     }
 
     private List<Future<?>> storeTransactionAggregate(String agentRollupId, String transactionType,
             String transactionName, long captureTime, Aggregate aggregate,
-            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL) throws Exception {
+            List<Aggregate.SharedQueryText> sharedQueryTexts, TTL adjustedTTL,
+            WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1688,7 +1752,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1700,7 +1764,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1711,7 +1775,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setLong(i++, aggregate.getErrorCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1723,7 +1787,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1735,18 +1799,20 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL.profileTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         futures.addAll(insertQueries(getQueries(aggregate), sharedQueryTexts, rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL,
+                writeCoalescer));
         futures.addAll(insertServiceCallsProto(getServiceCalls(aggregate), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL,
+                writeCoalescer));
         return futures;
     }
 
     private List<Future<?>> storeTransactionSummary(String agentRollupId, String transactionType,
-            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL)
-            throws Exception {
+            String transactionName, long captureTime, Aggregate aggregate, TTL adjustedTTL,
+            WriteCoalescer writeCoalescer) throws Exception {
 
         final int rollupLevel = 0;
 
@@ -1760,7 +1826,7 @@ public class AggregateDaoImpl implements AggregateDao {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL.generalTTL());
-        futures.add(session.executeAsync(boundStatement));
+        futures.add(writeCoalescer.add(boundStatement));
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1772,7 +1838,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL.generalTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         return futures;
     }
@@ -1780,7 +1846,7 @@ public class AggregateDaoImpl implements AggregateDao {
     private List<Future<?>> insertQueries(List<Aggregate.Query> queries,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
-            TTL adjustedTTL) throws Exception {
+            TTL adjustedTTL, WriteCoalescer writeCoalescer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
         for (Aggregate.Query query : queries) {
             Aggregate.SharedQueryText sharedQueryText =
@@ -1816,7 +1882,7 @@ public class AggregateDaoImpl implements AggregateDao {
                 boundStatement.setToNull(i++);
             }
             boundStatement.setInt(i++, adjustedTTL.queryTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         return futures;
     }
@@ -1859,7 +1925,8 @@ public class AggregateDaoImpl implements AggregateDao {
 
     private List<Future<?>> insertServiceCallsProto(List<Aggregate.ServiceCall> serviceCalls,
             int rollupLevel, String agentRollupId, String transactionType,
-            @Nullable String transactionName, long captureTime, TTL adjustedTTL) throws Exception {
+            @Nullable String transactionName, long captureTime, TTL adjustedTTL,
+            WriteCoalescer writeCoalescer) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
         for (Aggregate.ServiceCall serviceCall : serviceCalls) {
             BoundStatement boundStatement;
@@ -1880,7 +1947,7 @@ public class AggregateDaoImpl implements AggregateDao {
             boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
             boundStatement.setLong(i++, serviceCall.getExecutionCount());
             boundStatement.setInt(i++, adjustedTTL.serviceCallTTL());
-            futures.add(session.executeAsync(boundStatement));
+            futures.add(writeCoalescer.add(boundStatement));
         }
         return futures;
     }
@@ -1975,9 +2042,7 @@ public class AggregateDaoImpl implements AggregateDao {
         for (Row row : results) {
             captureTime = Math.max(captureTime, checkNotNull(row.getTimestamp(0)).getTime());
             ByteBuffer bytes = checkNotNull(row.getBytes(1));
-            // TODO optimize this byte copying
-            Profile profile = Profile.parseFrom(bytes);
-            collector.mergeProfile(profile);
+            collector.mergeProfile(bytes);
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -16,6 +16,7 @@
 package org.glowroot.central.repo;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.glowroot.agent.api.Instrumentation;
 import org.glowroot.agent.api.Instrumentation.AlreadyInTransactionBehavior;
@@ -26,10 +27,15 @@ public interface GaugeValueDao extends GaugeValueRepository {
 
     void store(String agentId, List<GaugeValue> gaugeValues) throws Exception;
 
+    CompletableFuture<?> storeAsync(String agentId, List<GaugeValue> gaugeValues)
+            throws Exception;
+
     @Instrumentation.Transaction(transactionType = "Background", transactionName = "Rollup gauges",
             traceHeadline = "Rollup gauges: {{0}}", timer = "rollup gauges",
             alreadyInTransactionBehavior = AlreadyInTransactionBehavior.CAPTURE_NEW_TRANSACTION)
-    void rollup(String agentRollupId) throws Exception;
+    // returns the oldest capture time that was rolled up (at any rollup level), or Long.MAX_VALUE
+    // if there was nothing to roll up
+    long rollup(String agentRollupId) throws Exception;
 
     void truncateAll() throws Exception;
 }
@@ -21,6 +21,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import com.datastax.driver.core.BoundStatement;
@@ -168,13 +169,19 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
 
     @Override
     public void store(String agentId, List<GaugeValue> gaugeValues) throws Exception {
-        store(agentId, AgentRollupIds.getAgentRollupIds(agentId), gaugeValues);
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, gaugeValues)));
     }
 
-    public void store(String agentId, List<String> agentRollupIdsForMeta,
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, List<GaugeValue> gaugeValues)
+            throws Exception {
+        return storeAsync(agentId, AgentRollupIds.getAgentRollupIds(agentId), gaugeValues);
+    }
+
+    public CompletableFuture<?> storeAsync(String agentId, List<String> agentRollupIdsForMeta,
             List<GaugeValue> gaugeValues) throws Exception {
         if (gaugeValues.isEmpty()) {
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         int ttl = getTTLs().get(0);
         long maxCaptureTime = 0;
@@ -199,9 +206,14 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         }
 
         // wait for success before inserting "needs rollup" records
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return MoreFutures.thenComposeAsync(MoreFutures.allAsync(futures),
+                () -> MoreFutures.allAsync(storeNeedsRollup(agentId, gaugeValues, ttl)),
+                session.getAsyncExecutor());
+    }
 
+    private List<Future<?>> storeNeedsRollup(String agentId, List<GaugeValue> gaugeValues,
+            int ttl) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
         // insert into gauge_needs_rollup_1
         SetMultimap<Long, String> rollupCaptureTimes = getRollupCaptureTimes(gaugeValues);
         for (Map.Entry<Long, Set<String>> entry : Multimaps.asMap(rollupCaptureTimes).entrySet()) {
@@ -218,7 +230,7 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             boundStatement.setInt(i++, needsRollupAdjustedTTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        MoreFutures.waitForAll(futures);
+        return futures;
     }
 
     @Override
@@ -261,8 +273,8 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     }
 
     @Override
-    public void rollup(String agentRollupId) throws Exception {
-        rollup(agentRollupId, AgentRollupIds.getParent(agentRollupId),
+    public long rollup(String agentRollupId) throws Exception {
+        return rollup(agentRollupId, AgentRollupIds.getParent(agentRollupId),
                 !agentRollupId.endsWith("::"));
     }
 
@@ -270,21 +282,24 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
     //
     // child agent rollups should be processed before their parent agent rollup, since initial
     // parent rollup depends on the 1-minute child rollup
-    public void rollup(String agentRollupId, @Nullable String parentAgentRollupId, boolean leaf)
+    public long rollup(String agentRollupId, @Nullable String parentAgentRollupId, boolean leaf)
             throws Exception {
         List<Integer> ttls = getTTLs();
+        long oldestCaptureTime = Long.MAX_VALUE;
         int rollupLevel;
         if (leaf) {
             rollupLevel = 1;
         } else {
-            rollupFromChildren(agentRollupId, parentAgentRollupId, ttls.get(1));
+            oldestCaptureTime = rollupFromChildren(agentRollupId, parentAgentRollupId, ttls.get(1));
             rollupLevel = 2;
         }
         while (rollupLevel <= configRepository.getRollupConfigs().size()) {
             int ttl = ttls.get(rollupLevel);
-            rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl);
+            oldestCaptureTime = Math.min(oldestCaptureTime,
+                    rollup(agentRollupId, parentAgentRollupId, rollupLevel, ttl));
             rollupLevel++;
         }
+        return oldestCaptureTime;
     }
 
     private SetMultimap<Long, String> getRollupCaptureTimes(List<GaugeValue> gaugeValues) {
@@ -300,9 +315,11 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
         return rollupCaptureTimes;
     }
 
-    private void rollupFromChildren(String agentRollupId, @Nullable String parentAgentRollupId,
+    // returns the oldest capture time that was rolled up, or Long.MAX_VALUE if none
+    private long rollupFromChildren(String agentRollupId, @Nullable String parentAgentRollupId,
             int ttl) throws Exception {
         final int rollupLevel = 1;
+        long oldestCaptureTime = Long.MAX_VALUE;
         List<NeedsRollupFromChildren> needsRollupFromChildrenList = Common
                 .getNeedsRollupFromChildrenList(agentRollupId, readNeedsRollupFromChild, session);
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
@@ -336,11 +353,15 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
                     needsRollupFromChildren.getUniquenessKeysForDeletion(),
                     nextRollupIntervalMillis, insertNeedsRollup.get(rollupLevel),
                     deleteNeedsRollupFromChild, needsRollupAdjustedTTL, session);
+            oldestCaptureTime = Math.min(oldestCaptureTime, captureTime);
         }
+        return oldestCaptureTime;
     }
 
-    private void rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
+    // returns the oldest capture time that was rolled up, or Long.MAX_VALUE if none
+    private long rollup(String agentRollupId, @Nullable String parentAgentRollupId, int rollupLevel,
             int ttl) throws Exception {
+        long oldestCaptureTime = Long.MAX_VALUE;
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         long rollupIntervalMillis = rollupConfigs.get(rollupLevel - 1).intervalMillis();
         List<NeedsRollup> needsRollupList = Common.getNeedsRollupList(agentRollupId, rollupLevel,
@@ -393,7 +414,9 @@ public class GaugeValueDaoImpl implements GaugeValueDao {
             Common.postRollup(agentRollupId, needsRollup.getCaptureTime(), gaugeNames,
                     needsRollup.getUniquenessKeysForDeletion(), nextRollupIntervalMillis,
                     insertNeedsRollup, deleteNeedsRollup, needsRollupAdjustedTTL, session);
+            oldestCaptureTime = Math.min(oldestCaptureTime, captureTime);
         }
+        return oldestCaptureTime;
     }
 
     private ListenableFuture<ResultSet> rollupOneFromChildren(int rollupLevel, String agentRollupId,
@@ -18,10 +18,12 @@ package org.glowroot.central.repo;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
+import com.google.common.collect.ImmutableList;
 
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Session;
@@ -55,6 +57,10 @@ public class HeartbeatDao {
     }
 
     public void store(String agentId) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId)));
+    }
+
+    public CompletableFuture<?> storeAsync(String agentId) throws Exception {
         List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
         List<Future<?>> futures = new ArrayList<>();
         for (String agentRollupId : agentRollupIds) {
@@ -65,7 +71,7 @@ public class HeartbeatDao {
             boundStatement.setInt(i++, TTL);
             futures.add(session.executeAsync(boundStatement));
         }
-        MoreFutures.waitForAll(futures);
+        return MoreFutures.allAsync(futures);
     }
 
     public boolean exists(String agentRollupId, long centralCaptureFrom, long centralCaptureTo)
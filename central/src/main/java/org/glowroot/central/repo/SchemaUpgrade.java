@@ -73,6 +73,7 @@ import org.glowroot.common2.config.CentralStorageConfig;
 import org.glowroot.common2.config.ImmutableCentralStorageConfig;
 import org.glowroot.common2.config.ImmutableCentralWebConfig;
 import org.glowroot.common2.config.PermissionParser;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common2.repo.util.RollupLevelService;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
@@ -102,7 +103,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 76;
+    private static final int CURR_SCHEMA_VERSION = 77;
 
     private final Session session;
     private final Clock clock;
@@ -468,6 +469,10 @@ public class SchemaUpgrade {
             updateTraceAttributeNamePartitionKeyPart2();
             updateSchemaVersion(76);
         }
+        if (initialSchemaVersion < 77) {
+            populateTraceErrorMessageNeedsRollup();
+            updateSchemaVersion(77);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded glowroot central schema from version {} to version {}",
@@ -2432,6 +2437,58 @@ public class SchemaUpgrade {
         dropTableIfExists("trace_attribute_name_temp");
     }
 
+    // error messages stored prior to the error message rollup tables are rolled up by the next
+    // TraceDao.rollup() so that they don't drop out of the error message summaries and charts
+    private void populateTraceErrorMessageNeedsRollup() throws Exception {
+        logger.info("populating trace_error_message_needs_rollup table - this could take several"
+                + " minutes on large data sets...");
+        session.createTableWithLCS("create table if not exists trace_error_message_needs_rollup"
+                + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
+                + " transaction_type varchar, transaction_name varchar, primary key"
+                + " (agent_rollup, capture_time, uniqueness)) with gc_grace_seconds = "
+                + HOURS.toSeconds(4), true);
+        PreparedStatement insertPS = session.prepare("insert into"
+                + " trace_error_message_needs_rollup (agent_rollup, capture_time, uniqueness,"
+                + " transaction_type, transaction_name) values (?, ?, ?, ?, ?) using ttl ?");
+        // every trace_tt_error_message row has a corresponding trace_tn_error_message row, and
+        // TraceDao.rollup() rolls up both the transaction type and the transaction name
+        ResultSet results = session.execute("select agent_rollup, transaction_type,"
+                + " transaction_name, capture_time from trace_tn_error_message");
+        Multimap<Long, ErrorMessageNeedsRollupKey> keysPerCaptureTime = HashMultimap.create();
+        for (Row row : results) {
+            int i = 0;
+            String agentRollupId = checkNotNull(row.getString(i++));
+            String transactionType = checkNotNull(row.getString(i++));
+            String transactionName = checkNotNull(row.getString(i++));
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            long rollupCaptureTime = CaptureTimes.getRollup(captureTime,
+                    TraceDaoImpl.ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS);
+            keysPerCaptureTime.put(rollupCaptureTime, ImmutableErrorMessageNeedsRollupKey
+                    .of(agentRollupId, transactionType, transactionName));
+        }
+        int ttl = getCentralStorageConfig(session).getTraceTTL();
+        List<RollupConfig> rollupConfigs = RollupConfig.buildRollupConfigs();
+        Queue<ListenableFuture<ResultSet>> futures = new ArrayDeque<>();
+        for (Map.Entry<Long, ErrorMessageNeedsRollupKey> entry : keysPerCaptureTime.entries()) {
+            long rollupCaptureTime = entry.getKey();
+            ErrorMessageNeedsRollupKey key = entry.getValue();
+            int adjustedTTL = Common.getAdjustedTTL(ttl, rollupCaptureTime, clock);
+            BoundStatement boundStatement = insertPS.bind();
+            int i = 0;
+            boundStatement.setString(i++, key.agentRollupId());
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setString(i++, key.transactionType());
+            boundStatement.setString(i++, key.transactionName());
+            boundStatement.setInt(i++,
+                    Common.getNeedsRollupAdjustedTTL(adjustedTTL, rollupConfigs));
+            futures.add(session.executeAsync(boundStatement));
+            waitForSome(futures);
+        }
+        MoreFutures.waitForAll(futures);
+        logger.info("populating trace_error_message_needs_rollup table - complete");
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType)
             throws Exception {
         if (tableExists(tableName) && !columnExists(tableName, columnName)) {
@@ -2765,6 +2822,14 @@ public class SchemaUpgrade {
         String gaugeName();
     }
 
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ErrorMessageNeedsRollupKey {
+        String agentRollupId();
+        String transactionType();
+        String transactionName();
+    }
+
     @Value.Immutable
     interface V09AgentRollup {
         boolean agent();
@@ -15,6 +15,8 @@
  */
 package org.glowroot.central.repo;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common2.repo.TraceRepository;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
@@ -23,6 +25,10 @@ public interface TraceDao extends TraceRepository {
 
     void store(String agentId, Trace trace) throws Exception;
 
+    CompletableFuture<?> storeAsync(String agentId, Trace trace) throws Exception;
+
+    void rollup(String agentRollupId) throws Exception;
+
     @OnlyUsedByTests
     void truncateAll() throws Exception;
 }
@@ -28,6 +28,12 @@ import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
@@ -35,10 +41,15 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Strings;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Ordering;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
+import com.google.protobuf.InvalidProtocolBufferException;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
@@ -66,6 +77,7 @@ import org.glowroot.common2.repo.ImmutableErrorMessageCount;
 import org.glowroot.common2.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common2.repo.ImmutableErrorMessageResult;
 import org.glowroot.common2.repo.ImmutableHeaderPlus;
+import org.glowroot.common2.repo.ImmutableTraceQuery;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
@@ -75,12 +87,18 @@ import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.glowroot.common2.repo.ConfigRepository.ROLLUP_1_INTERVAL_MILLIS;
 
 public class TraceDaoImpl implements TraceDao {
 
     @SuppressWarnings("deprecation")
     private static final HashFunction SHA_1 = Hashing.sha1();
 
+    // error message counts are pre-aggregated into intervals of this size, which divides evenly
+    // into all of the rollup intervals used as chart resolutions except for the 1 minute interval
+    static final long ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS = ROLLUP_1_INTERVAL_MILLIS;
+
     private final Session session;
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
@@ -107,6 +125,11 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement insertOverallErrorMessage;
     private final PreparedStatement insertTransactionErrorMessage;
 
+    private final PreparedStatement insertOverallErrorMessageRollup;
+    private final PreparedStatement insertTransactionErrorMessageRollup;
+
+    private final PreparedStatement insertErrorMessageNeedsRollup;
+
     private final PreparedStatement insertHeaderV2;
     private final PreparedStatement insertEntryV2;
     private final PreparedStatement insertQueryV2;
@@ -133,6 +156,13 @@ public class TraceDaoImpl implements TraceDao {
     private final PreparedStatement readOverallErrorMessage;
     private final PreparedStatement readTransactionErrorMessage;
 
+    private final PreparedStatement readOverallErrorMessageRollup;
+    private final PreparedStatement readTransactionErrorMessageRollup;
+
+    private final PreparedStatement readErrorMessageNeedsRollup;
+    private final PreparedStatement readErrorMessageNeedsRollupForQuery;
+    private final PreparedStatement deleteErrorMessageNeedsRollup;
+
     private final PreparedStatement readHeaderV1;
     private final PreparedStatement readEntriesV1;
     private final PreparedStatement readSharedQueryTextsV1;
@@ -141,6 +171,7 @@ public class TraceDaoImpl implements TraceDao {
 
     private final PreparedStatement readHeaderV2;
     private final PreparedStatement readEntriesV2;
+    private final PreparedStatement readEntriesRangeV2;
     private final PreparedStatement readQueriesV2;
     private final PreparedStatement readSharedQueryTextsV2;
     private final PreparedStatement readMainThreadProfileV2;
@@ -254,6 +285,35 @@ public class TraceDaoImpl implements TraceDao {
                 + " varchar, primary key ((agent_rollup, transaction_type, transaction_name),"
                 + " capture_time, agent_id, trace_id))", expirationHours);
 
+        // error message counts per error message rollup interval, so that error message summaries
+        // can be read with cost proportional to the number of distinct error messages instead of
+        // the number of errors (error_message_sha1 is used instead of error_message in the primary
+        // key since error messages can be very long)
+        //
+        // error messages are counted by their exact text (no normalization), the same as the
+        // non-rolled up error messages that are merged with them in readErrorMessages(), so that
+        // the same error message is never split across two different keys
+        session.createTableWithTWCS("create table if not exists trace_tt_error_message_rollup"
+                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+                + " error_message_sha1 varchar, error_message varchar, error_count bigint, primary"
+                + " key ((agent_rollup, transaction_type), capture_time, error_message_sha1))",
+                expirationHours);
+
+        session.createTableWithTWCS("create table if not exists trace_tn_error_message_rollup"
+                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+                + " capture_time timestamp, error_message_sha1 varchar, error_message varchar,"
+                + " error_count bigint, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name), capture_time, error_message_sha1))", expirationHours);
+
+        // capture_time is the end of the error message rollup interval
+        //
+        // see comment in AggregateDaoImpl regarding gc_grace_seconds of "needs rollup" tables
+        session.createTableWithLCS("create table if not exists trace_error_message_needs_rollup"
+                + " (agent_rollup varchar, capture_time timestamp, uniqueness timeuuid,"
+                + " transaction_type varchar, transaction_name varchar, primary key"
+                + " (agent_rollup, capture_time, uniqueness)) with gc_grace_seconds = "
+                + HOURS.toSeconds(4), true);
+
         // ===== trace components v1 =====
 
         session.createTableWithTWCS("create table if not exists trace_header (agent_id varchar,"
@@ -377,6 +437,22 @@ public class TraceDaoImpl implements TraceDao {
                 + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
                 + " trace_id, error_message) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertOverallErrorMessageRollup = session.prepare("insert into"
+                + " trace_tt_error_message_rollup (agent_rollup, transaction_type, capture_time,"
+                + " error_message_sha1, error_message, error_count) values (?, ?, ?, ?, ?, ?) using"
+                + " ttl ?");
+
+        insertTransactionErrorMessageRollup = session.prepare("insert into"
+                + " trace_tn_error_message_rollup (agent_rollup, transaction_type,"
+                + " transaction_name, capture_time, error_message_sha1, error_message,"
+                + " error_count) values (?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
+        // TTL is used to prevent non-idempotent rolling up of partially expired error messages
+        // (e.g. "needs rollup" record resurrecting due to small gc_grace_seconds)
+        insertErrorMessageNeedsRollup = session.prepare("insert into"
+                + " trace_error_message_needs_rollup (agent_rollup, capture_time, uniqueness,"
+                + " transaction_type, transaction_name) values (?, ?, ?, ?, ?) using ttl ?");
+
         insertHeaderV2 = session.prepare("insert into trace_header_v2 (agent_id, trace_id, header)"
                 + " values (?, ?, ?) using ttl ?");
 
@@ -462,6 +538,27 @@ public class TraceDaoImpl implements TraceDao {
                 + " trace_tn_error_message where agent_rollup = ? and transaction_type = ? and"
                 + " transaction_name = ? and capture_time > ? and capture_time <= ?");
 
+        readOverallErrorMessageRollup = session.prepare("select capture_time, error_message,"
+                + " error_count from trace_tt_error_message_rollup where agent_rollup = ? and"
+                + " transaction_type = ? and capture_time > ? and capture_time <= ?");
+
+        readTransactionErrorMessageRollup = session.prepare("select capture_time, error_message,"
+                + " error_count from trace_tn_error_message_rollup where agent_rollup = ? and"
+                + " transaction_type = ? and transaction_name = ? and capture_time > ? and"
+                + " capture_time <= ?");
+
+        readErrorMessageNeedsRollup = session.prepare("select capture_time, uniqueness,"
+                + " transaction_type, transaction_name from trace_error_message_needs_rollup where"
+                + " agent_rollup = ?");
+
+        readErrorMessageNeedsRollupForQuery = session.prepare("select capture_time,"
+                + " transaction_type, transaction_name from trace_error_message_needs_rollup where"
+                + " agent_rollup = ? and capture_time > ? and capture_time <= ?");
+
+        deleteErrorMessageNeedsRollup = session.prepare("delete from"
+                + " trace_error_message_needs_rollup where agent_rollup = ? and capture_time = ?"
+                + " and uniqueness = ?");
+
         readHeaderV1 = session
                 .prepare("select header from trace_header where agent_id = ? and trace_id = ?");
 
@@ -487,6 +584,10 @@ public class TraceDaoImpl implements TraceDao {
                 + " message, shared_query_text_index, query_message_prefix, query_message_suffix,"
                 + " detail, location_stack_trace, error from trace_entry_v2 where agent_id = ? and"
                 + " trace_id = ?");
+        readEntriesRangeV2 = session.prepare("select depth, start_offset_nanos, duration_nanos,"
+                + " active, message, shared_query_text_index, query_message_prefix,"
+                + " query_message_suffix, detail, location_stack_trace, error from trace_entry_v2"
+                + " where agent_id = ? and trace_id = ? and index_ >= ? and index_ < ?");
 
         readQueriesV2 = session.prepare("select type, shared_query_text_index,"
                 + " total_duration_nanos, execution_count, total_rows, active from trace_query_v2"
@@ -521,18 +622,55 @@ public class TraceDaoImpl implements TraceDao {
 
     @Override
     public void store(String agentId, Trace trace) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, trace)));
+    }
+
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, Trace trace) throws Exception {
         List<String> agentRollupIds = AgentRollupIds.getAgentRollupIds(agentId);
-        store(agentId, agentRollupIds, agentRollupIds, trace);
+        return storeAsync(agentId, agentRollupIds, agentRollupIds, trace);
     }
 
-    public void store(String agentId, List<String> agentRollupIds,
+    public CompletableFuture<?> storeAsync(String agentId, List<String> agentRollupIds,
             List<String> agentRollupIdsForMeta, Trace trace) throws Exception {
+        Trace.Header header = trace.getHeader();
+        List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
+        List<Future<?>> futures = withWriteMetrics(header,
+                () -> storeFullQueryTexts(agentId, agentRollupIds, trace, sharedQueryTexts));
+        CompletableFuture<Trace. /*@Nullable*/ Header> priorHeaderFuture;
+        if (trace.getUpdate()) {
+            priorHeaderFuture = readHeaderAsync(agentId, trace.getId());
+            futures.add(priorHeaderFuture);
+        } else {
+            priorHeaderFuture = CompletableFuture.completedFuture(null);
+        }
+        Executor executor = session.getAsyncExecutor();
+        // wait for success before proceeding in order to ensure cannot end up with orphaned
+        // fullTextSha1
+        CompletableFuture<?> future = MoreFutures.thenComposeAsync(MoreFutures.allAsync(futures),
+                () -> MoreFutures.allAsync(withWriteMetrics(header,
+                        () -> storeTrace(agentId, agentRollupIds, agentRollupIdsForMeta, trace,
+                                sharedQueryTexts, priorHeaderFuture.join()))),
+                executor);
+        if (!header.hasError() || header.getPartial()) {
+            return future;
+        }
+        // "needs rollup" is inserted only after the error message has been stored, so that the
+        // error message is guaranteed to be visible to the rollup that consumes the "needs
+        // rollup" record
+        return MoreFutures.thenComposeAsync(future,
+                () -> MoreFutures.allAsync(withWriteMetrics(header,
+                        () -> storeErrorMessageNeedsRollup(agentRollupIds, header))),
+                executor);
+    }
+
+    private <V> V withWriteMetrics(Trace.Header header, Callable<V> callable) throws Exception {
         CassandraWriteMetrics cassandraWriteMetrics = session.getCassandraWriteMetrics();
-        cassandraWriteMetrics.setCurrTransactionType(trace.getHeader().getTransactionType());
-        cassandraWriteMetrics.setCurrTransactionName(trace.getHeader().getTransactionName());
-        cassandraWriteMetrics.setPartialTrace(trace.getHeader().getPartial());
+        cassandraWriteMetrics.setCurrTransactionType(header.getTransactionType());
+        cassandraWriteMetrics.setCurrTransactionName(header.getTransactionName());
+        cassandraWriteMetrics.setPartialTrace(header.getPartial());
         try {
-            storeInternal(agentId, agentRollupIds, agentRollupIdsForMeta, trace);
+            return callable.call();
         } finally {
             cassandraWriteMetrics.setCurrTransactionType(null);
             cassandraWriteMetrics.setCurrTransactionName(null);
@@ -540,15 +678,9 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
-    private void storeInternal(String agentId, List<String> agentRollupIds,
-            List<String> agentRollupIdsForMeta, Trace trace) throws Exception {
-        String traceId = trace.getId();
-        Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
-        Trace.Header header = trace.getHeader();
-
+    private List<Future<?>> storeFullQueryTexts(String agentId, List<String> agentRollupIds,
+            Trace trace, List<Trace.SharedQueryText> sharedQueryTexts) throws Exception {
         List<Future<?>> futures = new ArrayList<>();
-
-        List<Trace.SharedQueryText> sharedQueryTexts = new ArrayList<>();
         for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
             String fullTextSha1 = sharedQueryText.getFullTextSha1();
             if (fullTextSha1.isEmpty()) {
@@ -581,11 +713,16 @@ public class TraceDaoImpl implements TraceDao {
             }
         }
 
-        // wait for success before proceeding in order to ensure cannot end up with orphaned
-        // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        return futures;
+    }
 
+    private List<Future<?>> storeTrace(String agentId, List<String> agentRollupIds,
+            List<String> agentRollupIdsForMeta, Trace trace,
+            List<Trace.SharedQueryText> sharedQueryTexts, Trace. /*@Nullable*/ Header priorHeader)
+            throws Exception {
+        String traceId = trace.getId();
+        Trace.Header header = trace.getHeader();
+        List<Future<?>> futures = new ArrayList<>();
         int adjustedTTL =
                 Common.getAdjustedTTL(configRepository.getCentralStorageConfig().getTraceTTL(),
                         header.getCaptureTime(), clock);
@@ -796,7 +933,31 @@ public class TraceDaoImpl implements TraceDao {
         }
         futures.addAll(
                 transactionTypeDao.store(agentRollupIdsForMeta, header.getTransactionType()));
-        MoreFutures.waitForAll(futures);
+        return futures;
+    }
+
+    private List<Future<?>> storeErrorMessageNeedsRollup(List<String> agentRollupIds,
+            Trace.Header header) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        int adjustedTTL =
+                Common.getAdjustedTTL(configRepository.getCentralStorageConfig().getTraceTTL(),
+                        header.getCaptureTime(), clock);
+        int needsRollupAdjustedTTL = Common.getNeedsRollupAdjustedTTL(adjustedTTL,
+                configRepository.getRollupConfigs());
+        long rollupCaptureTime = CaptureTimes.getRollup(header.getCaptureTime(),
+                ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS);
+        for (String agentRollupId : agentRollupIds) {
+            BoundStatement boundStatement = insertErrorMessageNeedsRollup.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(rollupCaptureTime));
+            boundStatement.setUUID(i++, UUIDs.timeBased());
+            boundStatement.setString(i++, header.getTransactionType());
+            boundStatement.setString(i++, header.getTransactionName());
+            boundStatement.setInt(i++, needsRollupAdjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
     }
 
     @Override
@@ -879,30 +1040,26 @@ public class TraceDaoImpl implements TraceDao {
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = new LinkedHashMap<>();
+        Map<Long, MutableLong> pointCounts = new TreeMap<>();
         Map<String, MutableLong> messageCounts = new HashMap<>();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
-            }
-            long rollupCaptureTime = CaptureTimes.getRollup(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        long intervalMillis = ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS;
+        // from is non-inclusive, so the first complete interval ends at least one interval later
+        long rollupFrom = CaptureTimes.getRollup(query.from(), intervalMillis);
+        long rollupTo = query.to() - query.to() % intervalMillis;
+        if (resolutionMillis % intervalMillis != 0 || rollupTo <= rollupFrom) {
+            mergeErrorMessages(agentRollupId, query, query.from(), query.to(), filter,
+                    resolutionMillis, pointCounts, messageCounts);
+        } else {
+            // partial intervals at the start and end of the query are read from the non-rolled up
+            // error messages
+            mergeErrorMessages(agentRollupId, query, query.from(), rollupFrom, filter,
+                    resolutionMillis, pointCounts, messageCounts);
+            mergeErrorMessageRollups(agentRollupId, query, rollupFrom, rollupTo, filter,
+                    resolutionMillis, pointCounts, messageCounts);
+            mergeErrorMessages(agentRollupId, query, rollupTo, query.to(), filter,
+                    resolutionMillis, pointCounts, messageCounts);
         }
-        // pointCounts is linked hash map and is already sorted by capture time
+        // pointCounts is tree map and is already sorted by capture time
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
                 // explicit type on this line is needed for Checker Framework
@@ -928,6 +1085,198 @@ public class TraceDaoImpl implements TraceDao {
         }
     }
 
+    // rolls up the error messages for the error message rollup intervals that have received new
+    // errors since the last rollup
+    @Override
+    public void rollup(String agentRollupId) throws Exception {
+        BoundStatement boundStatement = readErrorMessageNeedsRollup.bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.execute(boundStatement);
+        Map<Long, ErrorMessageNeedsRollup> needsRollupMap = new LinkedHashMap<>();
+        long currentTime = clock.currentTimeMillis();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (captureTime > currentTime) {
+                // the interval is still being added to, and it will be rolled up once it completes
+                // (in the meantime, it is read from the non-rolled up error messages)
+                break;
+            }
+            UUID uniqueness = checkNotNull(row.getUUID(i++));
+            String transactionType = checkNotNull(row.getString(i++));
+            String transactionName = checkNotNull(row.getString(i++));
+            ErrorMessageNeedsRollup needsRollup = needsRollupMap.get(captureTime);
+            if (needsRollup == null) {
+                needsRollup = new ErrorMessageNeedsRollup();
+                needsRollupMap.put(captureTime, needsRollup);
+            }
+            needsRollup.transactionNames.put(transactionType, transactionName);
+            needsRollup.uniquenessKeysForDeletion.add(uniqueness);
+        }
+        int traceTTL = configRepository.getCentralStorageConfig().getTraceTTL();
+        for (Map.Entry<Long, ErrorMessageNeedsRollup> entry : needsRollupMap.entrySet()) {
+            long captureTime = entry.getKey();
+            ErrorMessageNeedsRollup needsRollup = entry.getValue();
+            int adjustedTTL = Common.getAdjustedTTL(traceTTL, captureTime, clock);
+            List<Future<?>> futures = new ArrayList<>();
+            for (String transactionType : needsRollup.transactionNames.keySet()) {
+                futures.addAll(rollupErrorMessages(agentRollupId, transactionType, null,
+                        captureTime, adjustedTTL));
+                for (String transactionName : needsRollup.transactionNames.get(transactionType)) {
+                    futures.addAll(rollupErrorMessages(agentRollupId, transactionType,
+                            transactionName, captureTime, adjustedTTL));
+                }
+            }
+            // wait for the rollups to be stored before deleting the "needs rollup" records
+            MoreFutures.waitForAll(futures);
+            futures.clear();
+            for (UUID uniqueness : needsRollup.uniquenessKeysForDeletion) {
+                boundStatement = deleteErrorMessageNeedsRollup.bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setTimestamp(i++, new Date(captureTime));
+                boundStatement.setUUID(i++, uniqueness);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            MoreFutures.waitForAll(futures);
+        }
+    }
+
+    // from is non-inclusive
+    private void mergeErrorMessages(String agentRollupId, TraceQuery query, long from, long to,
+            ErrorMessageFilter filter, long resolutionMillis, Map<Long, MutableLong> pointCounts,
+            Map<String, MutableLong> messageCounts) throws Exception {
+        if (to <= from) {
+            return;
+        }
+        ResultSet results = readErrorMessageRows(agentRollupId, query.transactionType(),
+                query.transactionName(), from, to);
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String errorMessage = checkNotNull(row.getString(1));
+            if (!matches(filter, errorMessage)) {
+                continue;
+            }
+            long rollupCaptureTime = CaptureTimes.getRollup(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        }
+    }
+
+    // from is non-inclusive, and both from and to must be on error message rollup intervals
+    private void mergeErrorMessageRollups(String agentRollupId, TraceQuery query, long from,
+            long to, ErrorMessageFilter filter, long resolutionMillis,
+            Map<Long, MutableLong> pointCounts, Map<String, MutableLong> messageCounts)
+            throws Exception {
+        String transactionType = query.transactionType();
+        String transactionName = query.transactionName();
+        // intervals that have not been rolled up yet (or that have received additional errors
+        // since they were rolled up) are read from the non-rolled up error messages
+        BoundStatement boundStatement = readErrorMessageNeedsRollupForQuery.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        ResultSet results = session.execute(boundStatement);
+        Set<Long> pendingCaptureTimes = new HashSet<>();
+        for (Row row : results) {
+            i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            String needsRollupTransactionType = checkNotNull(row.getString(i++));
+            String needsRollupTransactionName = checkNotNull(row.getString(i++));
+            if (needsRollupTransactionType.equals(transactionType) && (transactionName == null
+                    || needsRollupTransactionName.equals(transactionName))) {
+                pendingCaptureTimes.add(captureTime);
+            }
+        }
+        if (transactionName == null) {
+            boundStatement = readOverallErrorMessageRollup.bind();
+        } else {
+            boundStatement = readTransactionErrorMessageRollup.bind();
+        }
+        bindTraceQuery(boundStatement, agentRollupId, ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .build(), transactionName == null);
+        results = session.execute(boundStatement);
+        for (Row row : results) {
+            i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (pendingCaptureTimes.contains(captureTime)) {
+                continue;
+            }
+            String errorMessage = checkNotNull(row.getString(i++));
+            long errorCount = row.getLong(i++);
+            if (!matches(filter, errorMessage)) {
+                continue;
+            }
+            long rollupCaptureTime = CaptureTimes.getRollup(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).add(errorCount);
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).add(errorCount);
+        }
+        for (long captureTime : pendingCaptureTimes) {
+            mergeErrorMessages(agentRollupId, query,
+                    captureTime - ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS, captureTime, filter,
+                    resolutionMillis, pointCounts, messageCounts);
+        }
+    }
+
+    private List<Future<?>> rollupErrorMessages(String agentRollupId, String transactionType,
+            @Nullable String transactionName, long captureTime, int adjustedTTL)
+            throws Exception {
+        ResultSet results = readErrorMessageRows(agentRollupId, transactionType, transactionName,
+                captureTime - ERROR_MESSAGE_ROLLUP_INTERVAL_MILLIS, captureTime);
+        Map<String, MutableLong> messageCounts = new HashMap<>();
+        for (Row row : results) {
+            String errorMessage = checkNotNull(row.getString(1));
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        for (Map.Entry<String, MutableLong> entry : messageCounts.entrySet()) {
+            String errorMessage = entry.getKey();
+            BoundStatement boundStatement;
+            if (transactionName == null) {
+                boundStatement = insertOverallErrorMessageRollup.bind();
+            } else {
+                boundStatement = insertTransactionErrorMessageRollup.bind();
+            }
+            int i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(captureTime));
+            boundStatement.setString(i++, SHA_1.hashString(errorMessage, UTF_8).toString());
+            boundStatement.setString(i++, errorMessage);
+            boundStatement.setLong(i++, entry.getValue().value);
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    // from is non-inclusive
+    private ResultSet readErrorMessageRows(String agentRollupId, String transactionType,
+            @Nullable String transactionName, long from, long to) throws Exception {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = readOverallErrorMessage.bind();
+        } else {
+            boundStatement = readTransactionErrorMessage.bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        return session.execute(boundStatement);
+    }
+
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentId, String traceId) throws Exception {
         Trace.Header header = readHeader(agentId, traceId);
@@ -954,6 +1303,20 @@ public class TraceDaoImpl implements TraceDao {
                 .build();
     }
 
+    @Override
+    public @Nullable Entries readEntries(String agentId, String traceId, int from, int limit)
+            throws Exception {
+        List<Trace.Entry> entries = readEntriesInternal(agentId, traceId, from, limit);
+        if (entries.isEmpty() && from == 0) {
+            // trace not found or was found but had no entries (in either v2 or v1)
+            return null;
+        }
+        return ImmutableEntries.builder()
+                .addAllEntries(entries)
+                .addAllSharedQueryTexts(readSharedQueryTexts(agentId, traceId))
+                .build();
+    }
+
     @Override
     public Queries readQueries(String agentId, String traceId) throws Exception {
         return ImmutableQueries.builder()
@@ -1048,6 +1411,35 @@ public class TraceDaoImpl implements TraceDao {
         return readHeaderUsingPS(agentId, traceId, readHeaderV1);
     }
 
+    private CompletableFuture<Trace. /*@Nullable*/ Header> readHeaderAsync(String agentId,
+            String traceId) throws Exception {
+        CompletableFuture<Trace. /*@Nullable*/ Header> headerV2Future =
+                readHeaderUsingPSAsync(agentId, traceId, readHeaderV2);
+        CompletableFuture<Trace. /*@Nullable*/ Header> headerV1Future =
+                readHeaderUsingPSAsync(agentId, traceId, readHeaderV1);
+        return headerV2Future.thenCombine(headerV1Future,
+                (headerV2, headerV1) -> headerV2 != null ? headerV2 : headerV1);
+    }
+
+    private CompletableFuture<Trace. /*@Nullable*/ Header> readHeaderUsingPSAsync(
+            String agentId, String traceId, PreparedStatement readPS) throws Exception {
+        BoundStatement boundStatement = readPS.bind();
+        boundStatement.setString(0, agentId);
+        boundStatement.setString(1, traceId);
+        return MoreFutures.toCompletableFuture(session.executeAsync(boundStatement))
+                .thenApply(results -> {
+                    Row row = results.one();
+                    if (row == null) {
+                        return null;
+                    }
+                    try {
+                        return Trace.Header.parseFrom(checkNotNull(row.getBytes(0)));
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
     private Trace. /*@Nullable*/ Header readHeaderUsingPS(String agentId, String traceId,
             PreparedStatement readPS) throws Exception {
         BoundStatement boundStatement = readPS.bind();
@@ -1069,12 +1461,36 @@ public class TraceDaoImpl implements TraceDao {
         return readEntriesUsingPS(agentId, traceId, readEntriesV1);
     }
 
+    private List<Trace.Entry> readEntriesInternal(String agentId, String traceId, int from,
+            int limit) throws Exception {
+        BoundStatement boundStatement = readEntriesRangeV2.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setInt(i++, from);
+        boundStatement.setInt(i++, (int) Math.min(Integer.MAX_VALUE, (long) from + limit));
+        List<Trace.Entry> entries = readEntries(session.execute(boundStatement));
+        if (!entries.isEmpty()) {
+            return entries;
+        }
+        // trace_entry (v1) does not have index_ clustering column
+        entries = readEntriesUsingPS(agentId, traceId, readEntriesV1);
+        int to = (int) Math.min(entries.size(), (long) from + limit);
+        if (from >= to) {
+            return ImmutableList.of();
+        }
+        return entries.subList(from, to);
+    }
+
     private List<Trace.Entry> readEntriesUsingPS(String agentId, String traceId,
             PreparedStatement readPS) throws Exception {
         BoundStatement boundStatement = readPS.bind();
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
-        ResultSet results = session.execute(boundStatement);
+        return readEntries(session.execute(boundStatement));
+    }
+
+    private static List<Trace.Entry> readEntries(ResultSet results) throws IOException {
         List<Trace.Entry> entries = new ArrayList<>();
         while (!results.isExhausted()) {
             Row row = results.one();
@@ -1196,6 +1612,9 @@ public class TraceDaoImpl implements TraceDao {
         session.execute("truncate table trace_tn_error_point");
         session.execute("truncate table trace_tt_error_message");
         session.execute("truncate table trace_tn_error_message");
+        session.execute("truncate table trace_tt_error_message_rollup");
+        session.execute("truncate table trace_tn_error_message_rollup");
+        session.execute("truncate table trace_error_message_needs_rollup");
         session.execute("truncate table trace_header");
         session.execute("truncate table trace_entry");
         session.execute("truncate table trace_shared_query_text");
@@ -1420,5 +1839,14 @@ public class TraceDaoImpl implements TraceDao {
         private void increment() {
             value++;
         }
+        private void add(long delta) {
+            value += delta;
+        }
+    }
+
+    private static class ErrorMessageNeedsRollup {
+        // keys are transaction types, values are transaction names
+        private final Multimap<String, String> transactionNames = HashMultimap.create();
+        private final Set<UUID> uniquenessKeysForDeletion = new HashSet<>();
     }
 }
@@ -17,7 +17,10 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -29,6 +32,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.base.Ticker;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -38,6 +45,11 @@ import org.infinispan.configuration.global.GlobalConfiguration;
 import org.infinispan.configuration.global.GlobalConfigurationBuilder;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryInvalidatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
 import org.infinispan.remoting.transport.Address;
 import org.infinispan.util.function.SerializableFunction;
 import org.infinispan.util.function.TriConsumer;
@@ -60,7 +72,8 @@ public abstract class ClusterManager {
         return new NonClusterManager();
     }
 
-    public static ClusterManager create(File confDir, Map<String, String> jgroupsProperties) {
+    public static ClusterManager create(File confDir, Map<String, String> jgroupsProperties,
+            long nearCacheMaxSize, long nearCacheExpirationSeconds) {
         Map<String, String> properties = Maps.newHashMap(jgroupsProperties);
         String jgroupsConfigurationFile = properties.remove("jgroups.configurationFile");
         if (jgroupsConfigurationFile != null) {
@@ -70,7 +83,8 @@ public abstract class ClusterManager {
                 properties.put("jgroups.initialNodes",
                         Pattern.compile(":([0-9]+)").matcher(initialNodes).replaceAll("[$1]"));
             }
-            return new ClusterManagerImpl(confDir, jgroupsConfigurationFile, properties);
+            return new ClusterManagerImpl(confDir, jgroupsConfigurationFile, properties,
+                    nearCacheMaxSize, nearCacheExpirationSeconds);
         } else {
             return new NonClusterManager();
         }
@@ -97,8 +111,16 @@ public abstract class ClusterManager {
 
         private final EmbeddedCacheManager cacheManager;
 
+        private final long nearCacheMaxSize;
+        private final long nearCacheExpirationSeconds;
+
+        private final List<ObjectName> mbeanObjectNames = new ArrayList<>();
+
         private ClusterManagerImpl(File confDir, String jgroupsConfigurationFile,
-                Map<String, String> jgroupsProperties) {
+                Map<String, String> jgroupsProperties, long nearCacheMaxSize,
+                long nearCacheExpirationSeconds) {
+            this.nearCacheMaxSize = nearCacheMaxSize;
+            this.nearCacheExpirationSeconds = nearCacheExpirationSeconds;
             GlobalConfiguration configuration = new GlobalConfigurationBuilder()
                     .transport().defaultTransport()
                     .addProperty("configurationFile",
@@ -115,7 +137,17 @@ public abstract class ClusterManager {
             configurationBuilder.clustering()
                     .cacheMode(CacheMode.INVALIDATION_ASYNC);
             cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
-            return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
+            org.infinispan.Cache<K, V> cache = cacheManager.getCache(cacheName);
+            if (nearCacheMaxSize <= 0) {
+                return new CacheImpl<K, V>(cache, null, loader);
+            }
+            NearCache<K, V> nearCache = new NearCache<K, V>(nearCacheMaxSize,
+                    nearCacheExpirationSeconds, Ticker.systemTicker());
+            // invalidations from other nodes (and local removals) are delivered through the
+            // clustered cache's invalidation messages
+            cache.addListener(new NearCacheInvalidationListener(nearCache));
+            registerMBean(nearCache, cacheName);
+            return new CacheImpl<K, V>(cache, nearCache, loader);
         }
 
         @Override
@@ -154,12 +186,36 @@ public abstract class ClusterManager {
 
         @Override
         public void close() throws InterruptedException {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName mbeanObjectName : mbeanObjectNames) {
+                try {
+                    mbeanServer.unregisterMBean(mbeanObjectName);
+                } catch (Exception e) {
+                    logger.warn(e.getMessage(), e);
+                }
+            }
             cacheManager.stop();
             // org.infinispan.factories.NamedExecutorsFactory.stop() calls shutdownNow() on all
             // executors, but does not awaitTermination(), so sleep a bit to allow time
             SECONDS.sleep(1);
         }
 
+        private void registerMBean(NearCacheMXBean nearCache, String cacheName) {
+            try {
+                ObjectName objectName = new ObjectName(
+                        "org.glowroot.central:type=NearCache,name=" + ObjectName.quote(cacheName));
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                if (mbeanServer.isRegistered(objectName)) {
+                    // e.g. multiple cluster nodes in the same jvm during testing
+                    return;
+                }
+                mbeanServer.registerMBean(nearCache, objectName);
+                mbeanObjectNames.add(objectName);
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+
         private static String getConfigurationFilePropertyValue(File confDir,
                 String jgroupsConfigurationFile) {
             File file = new File(jgroupsConfigurationFile);
@@ -247,29 +303,67 @@ public abstract class ClusterManager {
             implements Cache<K, V> {
 
         private final org.infinispan.Cache<K, V> cache;
+        private final @Nullable NearCache<K, V> nearCache;
         private final CacheLoader<K, V> loader;
 
-        private CacheImpl(org.infinispan.Cache<K, V> cache, CacheLoader<K, V> loader) {
+        private CacheImpl(org.infinispan.Cache<K, V> cache, @Nullable NearCache<K, V> nearCache,
+                CacheLoader<K, V> loader) {
             this.cache = cache;
+            this.nearCache = nearCache;
             this.loader = loader;
         }
 
         @Override
         public V get(K key) throws Exception {
+            long nearCacheGeneration = 0;
+            if (nearCache != null) {
+                V value = nearCache.getIfPresent(key);
+                if (value != null) {
+                    return value;
+                }
+                nearCacheGeneration = nearCache.getGeneration(key);
+            }
             V value = cache.get(key);
             if (value == null) {
                 value = loader.load(key);
                 cache.putForExternalRead(key, value);
             }
+            if (nearCache != null) {
+                nearCache.put(key, value, nearCacheGeneration);
+            }
             return value;
         }
 
         @Override
         public void invalidate(K key) {
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
             cache.remove(key);
         }
     }
 
+    // infinispan requires listener classes to be public
+    @Listener
+    public static class NearCacheInvalidationListener {
+
+        private final NearCache<?, ?> nearCache;
+
+        private NearCacheInvalidationListener(NearCache<?, ?> nearCache) {
+            this.nearCache = nearCache;
+        }
+
+        @CacheEntryInvalidated
+        public void onInvalidated(CacheEntryInvalidatedEvent<?, ?> event) {
+            nearCache.invalidate(event.getKey());
+        }
+
+        @CacheEntryRemoved
+        public void onRemoved(CacheEntryRemovedEvent<?, ?> event) {
+            nearCache.invalidate(event.getKey());
+        }
+    }
+
     private static class NonClusterCacheImpl<K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object>
             implements Cache<K, V> {
 
@@ -15,10 +15,14 @@
  */
 package org.glowroot.central.util;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
@@ -60,6 +64,51 @@ public class MoreFutures {
         throw exception;
     }
 
+    // same as waitForAll(), but without blocking the calling thread
+    public static CompletableFuture<Void> allAsync(Collection<? extends Future<?>> futures) {
+        List<CompletableFuture<?>> completableFutures = new ArrayList<>();
+        for (Future<?> future : futures) {
+            if (future instanceof CompletableFuture) {
+                completableFutures.add((CompletableFuture<?>) future);
+            } else if (future instanceof ListenableFuture) {
+                completableFutures.add(toCompletableFuture((ListenableFuture<?>) future));
+            } else {
+                throw new IllegalArgumentException(
+                        "Unexpected future type: " + future.getClass().getName());
+            }
+        }
+        return CompletableFuture.allOf(
+                completableFutures.toArray(new CompletableFuture<?>[completableFutures.size()]));
+    }
+
+    // executes the next stage on the given executor (as opposed to on the driver i/o thread that
+    // completed the prior stage) in order to not block driver i/o threads, e.g. in
+    // Session.throttle()
+    public static <V> CompletableFuture<V> thenComposeAsync(CompletableFuture<?> future,
+            DoAsync<V> next, Executor executor) {
+        return future.thenComposeAsync(ignored -> callAsync(next), executor);
+    }
+
+    // same as doAsync.call(), but returns a failed future instead of throwing
+    public static <V> CompletableFuture<V> callAsync(DoAsync<V> doAsync) {
+        try {
+            return doAsync.call();
+        } catch (Throwable t) {
+            CompletableFuture<V> failedFuture = new CompletableFuture<>();
+            failedFuture.completeExceptionally(t);
+            return failedFuture;
+        }
+    }
+
+    public static Throwable unwrapCompletionException(Throwable t) {
+        Throwable cause = t.getCause();
+        if (t instanceof CompletionException && cause != null) {
+            return cause;
+        } else {
+            return t;
+        }
+    }
+
     public static <V> CompletableFuture<V> onFailure(ListenableFuture<V> future,
             Runnable onFailure) {
         CompletableFuture<V> chainedFuture = new CompletableFuture<>();
@@ -125,4 +174,8 @@ public class MoreFutures {
             return e;
         }
     }
+
+    public interface DoAsync<V> {
+        CompletableFuture<V> call() throws Exception;
+    }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// size-bounded local tier in front of a clustered cache, so that cache reads on hot paths (e.g.
+// collector requests) do not go through the clustered cache
+//
+// entries are invalidated locally when the clustered cache entry is removed or invalidated (from
+// any node), and expire after a fixed time as a backstop for lost invalidation messages
+class NearCache<K extends /*@NonNull*/ Object, V extends /*@NonNull*/ Object>
+        implements NearCacheMXBean {
+
+    // invalidation generations are tracked per stripe of keys instead of per key, so that they do
+    // not need to be cleaned up (a collision only causes an occasional skipped put)
+    private static final int GENERATION_STRIPES = 256;
+
+    private final com.google.common.cache.Cache<K, V> cache;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    NearCache(long maxSize, long expirationSeconds, Ticker ticker) {
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .ticker(ticker)
+                .recordStats();
+        if (expirationSeconds > 0) {
+            builder.expireAfterWrite(expirationSeconds, TimeUnit.SECONDS);
+        }
+        cache = builder.build();
+    }
+
+    @Nullable
+    V getIfPresent(K key) {
+        return cache.getIfPresent(key);
+    }
+
+    // must be read before reading the value from the clustered cache, and then passed to put()
+    long getGeneration(Object key) {
+        return generations.get(getStripe(key));
+    }
+
+    // the value is not cached if the key has been invalidated since the generation was read, since
+    // the value may have been read from the clustered cache before the invalidation
+    void put(K key, V value, long generation) {
+        int stripe = getStripe(key);
+        if (generations.get(stripe) != generation) {
+            return;
+        }
+        cache.put(key, value);
+        if (generations.get(stripe) != generation) {
+            // invalidated concurrently, and the invalidation may have run before the put above
+            cache.invalidate(key);
+        }
+    }
+
+    void invalidate(Object key) {
+        generations.incrementAndGet(getStripe(key));
+        cache.invalidate(key);
+    }
+
+    private static int getStripe(Object key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    @Override
+    public long getHitCount() {
+        return cache.stats().hitCount();
+    }
+
+    @Override
+    public long getMissCount() {
+        return cache.stats().missCount();
+    }
+
+    @Override
+    public double getHitRate() {
+        return cache.stats().hitRate();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return cache.stats().evictionCount();
+    }
+
+    @Override
+    public long getSize() {
+        return cache.size();
+    }
+}
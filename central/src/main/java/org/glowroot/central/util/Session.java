@@ -15,13 +15,21 @@
  */
 package org.glowroot.central.util;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
@@ -38,6 +46,7 @@ import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,8 +56,16 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class Session {
 
+    // writes to the same partition are coalesced into unlogged batches
+    public static final int DEFAULT_WRITE_BATCH_MAX_STATEMENTS = 20;
+    // stay under cassandra's default batch_size_warn_threshold_in_kb (5)
+    public static final int DEFAULT_WRITE_BATCH_MAX_SIZE_KB = 4;
+
     private static final Logger logger = LoggerFactory.getLogger(Session.class);
 
+    private static final String WRITE_COALESCER_MBEAN_OBJECT_NAME =
+            "org.glowroot.central:type=CassandraWriteCoalescer";
+
     // limit concurrent async queries per thread (mainly so the rollup thread doesn't hog them all)
     @SuppressWarnings("nullness:type.argument.type.incompatible")
     private static final ThreadLocal<Semaphore> perThreadSemaphores = new ThreadLocal<Semaphore>() {
@@ -58,18 +75,44 @@ public class Session {
         }
     };
 
+    private static final int ASYNC_THREADS = Integer.getInteger(
+            "glowroot.internal.cassandra.asyncThreads",
+            Math.max(4, Runtime.getRuntime().availableProcessors()));
+
     private final com.datastax.driver.core.Session wrappedSession;
     private final String keyspaceName;
 
+    // continuations of async store operations are executed here instead of on driver i/o threads,
+    // since executeAsync() can block in throttle() and write metrics are tracked per thread
+    private final ExecutorService asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS,
+            new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Glowroot-Cassandra-Async-%d")
+                    .build());
+
     private final Queue<String> allTableNames = new ConcurrentLinkedQueue<>();
 
     private final CassandraWriteMetrics cassandraWriteMetrics;
 
+    private final int writeBatchMaxStatements;
+    private final int writeBatchMaxSizeBytes;
+    private final WriteCoalescerMetrics writeCoalescerMetrics = new WriteCoalescerMetrics();
+    private final @Nullable ObjectName writeCoalescerMBeanObjectName;
+
     public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName)
             throws InterruptedException {
+        this(wrappedSession, keyspaceName, DEFAULT_WRITE_BATCH_MAX_STATEMENTS,
+                DEFAULT_WRITE_BATCH_MAX_SIZE_KB);
+    }
+
+    public Session(com.datastax.driver.core.Session wrappedSession, String keyspaceName,
+            int writeBatchMaxStatements, int writeBatchMaxSizeKb) throws InterruptedException {
         this.wrappedSession = wrappedSession;
         this.keyspaceName = keyspaceName;
+        this.writeBatchMaxStatements = writeBatchMaxStatements;
+        writeBatchMaxSizeBytes = writeBatchMaxSizeKb * 1024;
         cassandraWriteMetrics = new CassandraWriteMetrics(wrappedSession, keyspaceName);
+        writeCoalescerMBeanObjectName = registerMBean(writeCoalescerMetrics);
 
         updateSchemaWithRetry(wrappedSession, "create keyspace if not exists " + keyspaceName
                 + " with replication = { 'class' : 'SimpleStrategy', 'replication_factor' : 1 }");
@@ -80,6 +123,18 @@ public class Session {
         return cassandraWriteMetrics;
     }
 
+    public Executor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    // a new write coalescer should be created for each store operation
+    public WriteCoalescer createWriteCoalescer() {
+        Configuration configuration = wrappedSession.getCluster().getConfiguration();
+        return new WriteCoalescer(this, writeBatchMaxStatements, writeBatchMaxSizeBytes,
+                configuration.getProtocolOptions().getProtocolVersion(),
+                configuration.getCodecRegistry(), writeCoalescerMetrics);
+    }
+
     public PreparedStatement prepare(String query) {
         return wrappedSession.prepare(query);
     }
@@ -113,6 +168,17 @@ public class Session {
         });
     }
 
+    // write metrics must already have been recorded for the statement (or for each statement in
+    // the batch) on the thread that created it, since CassandraWriteMetrics relies on thread locals
+    ListenableFuture<ResultSet> executeAsyncWithoutRecordingMetrics(Statement statement)
+            throws Exception {
+        return throttle(() -> wrappedSession.executeAsync(statement));
+    }
+
+    void recordWriteMetrics(Statement statement) {
+        cassandraWriteMetrics.recordMetrics(statement);
+    }
+
     private ListenableFuture<ResultSet> executeAsync(String query) throws Exception {
         return throttle(() -> wrappedSession.executeAsync(query));
     }
@@ -152,6 +218,15 @@ public class Session {
     }
 
     public void close() {
+        if (writeCoalescerMBeanObjectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer()
+                        .unregisterMBean(writeCoalescerMBeanObjectName);
+            } catch (Exception e) {
+                logger.warn(e.getMessage(), e);
+            }
+        }
+        asyncExecutor.shutdown();
         wrappedSession.close();
     }
 
@@ -278,6 +353,22 @@ public class Session {
         return outerFuture;
     }
 
+    private static @Nullable ObjectName registerMBean(WriteCoalescerMetrics metrics) {
+        try {
+            ObjectName objectName = new ObjectName(WRITE_COALESCER_MBEAN_OBJECT_NAME);
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            if (mbeanServer.isRegistered(objectName)) {
+                // e.g. multiple sessions in the same jvm during testing
+                return null;
+            }
+            mbeanServer.registerMBean(metrics, objectName);
+            return objectName;
+        } catch (Exception e) {
+            logger.warn(e.getMessage(), e);
+            return null;
+        }
+    }
+
     private static @Nullable String getTableName(String createTableQuery, String prefix) {
         if (createTableQuery.startsWith(prefix)) {
             String suffix = createTableQuery.substring(prefix.length());
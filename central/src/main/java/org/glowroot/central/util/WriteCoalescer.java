@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+// groups writes to the same partition into unlogged batches, so that each group is sent to the
+// replicas of that partition as a single request instead of one request per write
+//
+// writes are grouped by table and routing key (the serialized partition key), so that each batch
+// is a single partition batch (writes to different tables or keyspaces can have the same routing
+// key bytes without being in the same partition)
+//
+// pending writes are sent once a group reaches the max number of statements or the max size, and
+// the remaining pending writes are sent by flush(), which must be called before waiting on any of
+// the futures returned by add()
+//
+// not thread safe, a new write coalescer should be created for each store operation
+public class WriteCoalescer {
+
+    private final Session session;
+    private final int maxBatchStatements;
+    private final int maxBatchSizeBytes;
+    private final ProtocolVersion protocolVersion;
+    private final CodecRegistry codecRegistry;
+    private final WriteCoalescerMetrics metrics;
+
+    private final Map<BatchKey, PendingBatch> pendingBatches = new LinkedHashMap<>();
+
+    WriteCoalescer(Session session, int maxBatchStatements, int maxBatchSizeBytes,
+            ProtocolVersion protocolVersion, CodecRegistry codecRegistry,
+            WriteCoalescerMetrics metrics) {
+        this.session = session;
+        this.maxBatchStatements = maxBatchStatements;
+        this.maxBatchSizeBytes = maxBatchSizeBytes;
+        this.protocolVersion = protocolVersion;
+        this.codecRegistry = codecRegistry;
+        this.metrics = metrics;
+    }
+
+    public ListenableFuture<ResultSet> add(BoundStatement boundStatement) throws Exception {
+        if (maxBatchStatements <= 1) {
+            return session.executeAsync(boundStatement);
+        }
+        int sizeBytes = getSizeBytes(boundStatement);
+        ByteBuffer routingKey = boundStatement.getRoutingKey(protocolVersion, codecRegistry);
+        if (routingKey == null || sizeBytes > maxBatchSizeBytes) {
+            metrics.recordUnbatchedWrite();
+            return session.executeAsync(boundStatement);
+        }
+        // routing key is non-null, so there is at least one bound variable
+        ColumnDefinitions variables = boundStatement.preparedStatement().getVariables();
+        BatchKey batchKey =
+                ImmutableBatchKey.of(variables.getKeyspace(0), variables.getTable(0), routingKey);
+        // for now, need to record metrics on the calling thread because CassandraWriteMetrics
+        // relies on some thread locals
+        session.recordWriteMetrics(boundStatement);
+        PendingBatch pendingBatch = pendingBatches.get(batchKey);
+        if (pendingBatch != null && pendingBatch.sizeBytes + sizeBytes > maxBatchSizeBytes) {
+            pendingBatches.remove(batchKey);
+            execute(pendingBatch);
+            pendingBatch = null;
+        }
+        if (pendingBatch == null) {
+            pendingBatch = new PendingBatch();
+            pendingBatches.put(batchKey, pendingBatch);
+        }
+        pendingBatch.statements.add(boundStatement);
+        pendingBatch.sizeBytes += sizeBytes;
+        SettableFuture<ResultSet> future = pendingBatch.future;
+        if (pendingBatch.statements.size() == maxBatchStatements) {
+            pendingBatches.remove(batchKey);
+            execute(pendingBatch);
+        }
+        return future;
+    }
+
+    public void flush() throws Exception {
+        List<PendingBatch> batches = new ArrayList<>(pendingBatches.values());
+        pendingBatches.clear();
+        for (PendingBatch pendingBatch : batches) {
+            execute(pendingBatch);
+        }
+    }
+
+    private void execute(PendingBatch pendingBatch) throws Exception {
+        List<BoundStatement> statements = pendingBatch.statements;
+        Statement statement;
+        if (statements.size() == 1) {
+            statement = statements.get(0);
+        } else {
+            BatchStatement batchStatement = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batchStatement.addAll(statements);
+            statement = batchStatement;
+        }
+        metrics.recordBatch(statements.size());
+        // write metrics were already recorded when the statements were added
+        pendingBatch.future.setFuture(session.executeAsyncWithoutRecordingMetrics(statement));
+    }
+
+    private static int getSizeBytes(BoundStatement boundStatement) {
+        int sizeBytes = 0;
+        int count = boundStatement.preparedStatement().getVariables().size();
+        for (int i = 0; i < count; i++) {
+            @Nullable
+            ByteBuffer value = boundStatement.getBytesUnsafe(i);
+            if (value != null) {
+                sizeBytes += value.remaining();
+            }
+        }
+        return sizeBytes;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface BatchKey {
+        String keyspace();
+        String table();
+        ByteBuffer routingKey();
+    }
+
+    private static class PendingBatch {
+
+        private final List<BoundStatement> statements = new ArrayList<>();
+        private int sizeBytes;
+        private final SettableFuture<ResultSet> future = SettableFuture.create();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class WriteCoalescerMetrics implements WriteCoalescerMetricsMXBean {
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedWriteCount = new AtomicLong();
+    private final AtomicLong unbatchedWriteCount = new AtomicLong();
+    private final AtomicInteger maxBatchSize = new AtomicInteger();
+
+    void recordBatch(int batchSize) {
+        batchCount.incrementAndGet();
+        batchedWriteCount.addAndGet(batchSize);
+        maxBatchSize.accumulateAndGet(batchSize, Math::max);
+    }
+
+    void recordUnbatchedWrite() {
+        unbatchedWriteCount.incrementAndGet();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getBatchedWriteCount() {
+        return batchedWriteCount.get();
+    }
+
+    @Override
+    public long getUnbatchedWriteCount() {
+        return unbatchedWriteCount.get();
+    }
+
+    @Override
+    public double getAverageBatchSize() {
+        long batchCount = this.batchCount.get();
+        return batchCount == 0 ? 0 : batchedWriteCount.get() / (double) batchCount;
+    }
+
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+}
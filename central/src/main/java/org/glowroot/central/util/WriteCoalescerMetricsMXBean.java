@@ -0,0 +1,34 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+// exposed via jmx (org.glowroot.central:type=CassandraWriteCoalescer) so that the effectiveness of
+// write coalescing can be monitored
+public interface WriteCoalescerMetricsMXBean {
+
+    // number of requests sent for coalesced writes (a batch can contain a single write)
+    long getBatchCount();
+
+    // number of writes sent as part of a batch
+    long getBatchedWriteCount();
+
+    // number of writes sent individually because they had no routing key or were too large
+    long getUnbatchedWriteCount();
+
+    double getAverageBatchSize();
+
+    int getMaxBatchSize();
+}
@@ -18,13 +18,16 @@ package org.glowroot.central.v09support;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+import com.google.common.collect.ImmutableList;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
 
 import org.glowroot.central.repo.AgentRollupIds;
 import org.glowroot.central.repo.AggregateDao;
 import org.glowroot.central.repo.AggregateDaoImpl;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.live.ImmutableOverallQuery;
 import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
@@ -71,14 +74,23 @@ public class AggregateDaoWithV09Support implements AggregateDao {
     public void store(String agentId, long captureTime,
             List<OldAggregatesByType> aggregatesByTypeList,
             List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, captureTime,
+                aggregatesByTypeList, initialSharedQueryTexts)));
+    }
+
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, long captureTime,
+            List<OldAggregatesByType> aggregatesByTypeList,
+            List<Aggregate.SharedQueryText> initialSharedQueryTexts) throws Exception {
         if (captureTime <= v09LastCaptureTime
                 && agentRollupIdsWithV09Data.contains(agentId)) {
-            delegate.store(V09Support.convertToV09(agentId),
+            return delegate.storeAsync(V09Support.convertToV09(agentId),
                     V09Support.getAgentRollupIdsV09(agentId), agentId,
                     AgentRollupIds.getAgentRollupIds(agentId), captureTime, aggregatesByTypeList,
                     initialSharedQueryTexts);
         } else {
-            delegate.store(agentId, captureTime, aggregatesByTypeList, initialSharedQueryTexts);
+            return delegate.storeAsync(agentId, captureTime, aggregatesByTypeList,
+                    initialSharedQueryTexts);
         }
     }
 
@@ -233,13 +245,16 @@ public class AggregateDaoWithV09Support implements AggregateDao {
     }
 
     @Override
-    public void rollup(String agentRollupId) throws Exception {
-        delegate.rollup(agentRollupId);
+    public long rollup(String agentRollupId) throws Exception {
+        long oldestCaptureTime = delegate.rollup(agentRollupId);
         if (agentRollupIdsWithV09Data.contains(agentRollupId)
                 && clock.currentTimeMillis() < v09LastCaptureTime + DAYS.toMillis(30)) {
-            delegate.rollup(V09Support.convertToV09(agentRollupId), agentRollupId,
-                    V09Support.getParentV09(agentRollupId), V09Support.isLeaf(agentRollupId));
+            oldestCaptureTime = Math.min(oldestCaptureTime,
+                    delegate.rollup(V09Support.convertToV09(agentRollupId), agentRollupId,
+                            V09Support.getParentV09(agentRollupId),
+                            V09Support.isLeaf(agentRollupId)));
         }
+        return oldestCaptureTime;
     }
 
     private void splitMergeIfNeeded(String agentRollupId, OverallQuery query,
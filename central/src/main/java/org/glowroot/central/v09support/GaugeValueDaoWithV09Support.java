@@ -18,10 +18,14 @@ package org.glowroot.central.v09support;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.common.collect.ImmutableList;
 
 import org.glowroot.central.repo.AgentRollupIds;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.GaugeValueDaoImpl;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.v09support.V09Support.Query;
 import org.glowroot.central.v09support.V09Support.QueryPlan;
 import org.glowroot.common.util.Clock;
@@ -48,9 +52,14 @@ public class GaugeValueDaoWithV09Support implements GaugeValueDao {
 
     @Override
     public void store(String agentId, List<GaugeValue> gaugeValues) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, gaugeValues)));
+    }
+
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, List<GaugeValue> gaugeValues)
+            throws Exception {
         if (!agentRollupIdsWithV09Data.contains(agentId)) {
-            delegate.store(agentId, gaugeValues);
-            return;
+            return delegate.storeAsync(agentId, gaugeValues);
         }
         List<GaugeValue> gaugeValuesV09 = new ArrayList<>();
         List<GaugeValue> gaugeValuesPostV09 = new ArrayList<>();
@@ -61,13 +70,15 @@ public class GaugeValueDaoWithV09Support implements GaugeValueDao {
                 gaugeValuesPostV09.add(gaugeValue);
             }
         }
+        List<CompletableFuture<?>> futures = new ArrayList<>();
         if (!gaugeValuesV09.isEmpty()) {
-            delegate.store(V09Support.convertToV09(agentId),
-                    AgentRollupIds.getAgentRollupIds(agentId), gaugeValuesV09);
+            futures.add(delegate.storeAsync(V09Support.convertToV09(agentId),
+                    AgentRollupIds.getAgentRollupIds(agentId), gaugeValuesV09));
         }
         if (!gaugeValuesPostV09.isEmpty()) {
-            delegate.store(agentId, gaugeValuesPostV09);
+            futures.add(delegate.storeAsync(agentId, gaugeValuesPostV09));
         }
+        return MoreFutures.allAsync(futures);
     }
 
     @Override
@@ -106,13 +117,16 @@ public class GaugeValueDaoWithV09Support implements GaugeValueDao {
     }
 
     @Override
-    public void rollup(String agentRollupId) throws Exception {
-        delegate.rollup(agentRollupId);
+    public long rollup(String agentRollupId) throws Exception {
+        long oldestCaptureTime = delegate.rollup(agentRollupId);
         if (agentRollupIdsWithV09Data.contains(agentRollupId)
                 && clock.currentTimeMillis() < v09LastCaptureTime + DAYS.toMillis(30)) {
-            delegate.rollup(V09Support.convertToV09(agentRollupId),
-                    V09Support.getParentV09(agentRollupId), V09Support.isLeaf(agentRollupId));
+            oldestCaptureTime = Math.min(oldestCaptureTime,
+                    delegate.rollup(V09Support.convertToV09(agentRollupId),
+                            V09Support.getParentV09(agentRollupId),
+                            V09Support.isLeaf(agentRollupId)));
         }
+        return oldestCaptureTime;
     }
 
     @Override
@@ -21,8 +21,10 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Ordering;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.value.Value;
@@ -30,6 +32,7 @@ import org.immutables.value.Value;
 import org.glowroot.central.repo.AgentRollupIds;
 import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.TraceDaoImpl;
+import org.glowroot.central.util.MoreFutures;
 import org.glowroot.common.live.ImmutableTracePoint;
 import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.EntriesAndQueries;
@@ -76,16 +79,26 @@ public class TraceDaoWithV09Support implements TraceDao {
 
     @Override
     public void store(String agentId, Trace trace) throws Exception {
+        MoreFutures.waitForAll(ImmutableList.of(storeAsync(agentId, trace)));
+    }
+
+    @Override
+    public CompletableFuture<?> storeAsync(String agentId, Trace trace) throws Exception {
         if (trace.getHeader().getCaptureTime() <= v09LastCaptureTime
                 && agentRollupIdsWithV09Data.contains(agentId)) {
-            delegate.store(V09Support.convertToV09(agentId),
+            return delegate.storeAsync(V09Support.convertToV09(agentId),
                     V09Support.getAgentRollupIdsV09(agentId),
                     AgentRollupIds.getAgentRollupIds(agentId), trace);
         } else {
-            delegate.store(agentId, trace);
+            return delegate.storeAsync(agentId, trace);
         }
     }
 
+    @Override
+    public void rollup(String agentRollupId) throws Exception {
+        delegate.rollup(agentRollupId);
+    }
+
     @Override
     public long readSlowCount(String agentRollupId, TraceQuery query) throws Exception {
         return splitCountIfNeeded(agentRollupId, query, (id, q) -> delegate.readSlowCount(id, q));
@@ -135,6 +148,16 @@ public class TraceDaoWithV09Support implements TraceDao {
         return entries;
     }
 
+    @Override
+    public Entries readEntries(String agentId, String traceId, int from, int limit)
+            throws Exception {
+        Entries entries = delegate.readEntries(agentId, traceId, from, limit);
+        if (entries.entries().isEmpty() && checkV09(agentId, traceId)) {
+            return delegate.readEntries(V09Support.convertToV09(agentId), traceId, from, limit);
+        }
+        return entries;
+    }
+
     @Override
     public Queries readQueries(String agentId, String traceId) throws Exception {
         Queries queries = delegate.readQueries(agentId, traceId);
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AgentThrottleTest {
+
+    private static final Executor EXECUTOR = MoreExecutors.directExecutor();
+
+    @Test
+    public void shouldChainCollections() {
+        // given
+        AgentThrottle throttle = new AgentThrottle(10);
+        List<String> started = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        CompletableFuture<Void> second = new CompletableFuture<>();
+
+        // when
+        throttle.submit(() -> {
+            started.add("first");
+            return first;
+        }, EXECUTOR);
+        throttle.submit(() -> {
+            started.add("second");
+            return second;
+        }, EXECUTOR);
+
+        // then
+        assertThat(started).containsExactly("first");
+        first.complete(null);
+        assertThat(started).containsExactly("first", "second");
+    }
+
+    @Test
+    public void shouldRejectAtLimit() {
+        // given
+        AgentThrottle throttle = new AgentThrottle(2);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+
+        // when
+        boolean firstAccepted = throttle.submit(() -> first, EXECUTOR);
+        boolean secondAccepted =
+                throttle.submit(() -> CompletableFuture.completedFuture(null), EXECUTOR);
+        boolean thirdAccepted =
+                throttle.submit(() -> CompletableFuture.completedFuture(null), EXECUTOR);
+
+        // then
+        assertThat(firstAccepted).isTrue();
+        assertThat(secondAccepted).isTrue();
+        assertThat(thirdAccepted).isFalse();
+        first.complete(null);
+        assertThat(throttle.submit(() -> CompletableFuture.completedFuture(null), EXECUTOR))
+                .isTrue();
+    }
+
+    @Test
+    public void shouldContinueChainAfterFailedCollection() {
+        // given
+        AgentThrottle throttle = new AgentThrottle(2);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        List<String> started = new CopyOnWriteArrayList<>();
+        throttle.submit(() -> first, EXECUTOR);
+        throttle.submit(() -> {
+            started.add("second");
+            return CompletableFuture.completedFuture(null);
+        }, EXECUTOR);
+
+        // when
+        first.completeExceptionally(new Exception("failed store"));
+
+        // then
+        assertThat(started).containsExactly("second");
+        assertThat(throttle.submit(() -> CompletableFuture.completedFuture(null), EXECUTOR))
+                .isTrue();
+        assertThat(throttle.submit(() -> CompletableFuture.completedFuture(null), EXECUTOR))
+                .isTrue();
+    }
+
+    @Test
+    public void shouldContinueChainAfterCollectorThrows() {
+        // given
+        AgentThrottle throttle = new AgentThrottle(1);
+        List<String> started = new CopyOnWriteArrayList<>();
+
+        // when
+        boolean accepted = throttle.submit(() -> {
+            throw new IllegalStateException("failed binding");
+        }, EXECUTOR);
+
+        // then
+        assertThat(accepted).isTrue();
+        assertThat(throttle.submit(() -> {
+            started.add("second");
+            return CompletableFuture.completedFuture(null);
+        }, EXECUTOR)).isTrue();
+        assertThat(started).containsExactly("second");
+    }
+
+    @Test
+    public void shouldRunWhenIdle() {
+        // given
+        AgentThrottle throttle = new AgentThrottle(10);
+        CompletableFuture<Void> first = new CompletableFuture<>();
+        List<String> idle = new CopyOnWriteArrayList<>();
+        throttle.submit(() -> first, EXECUTOR);
+
+        // when
+        throttle.whenIdle(() -> idle.add("idle"), EXECUTOR);
+
+        // then
+        assertThat(idle).isEmpty();
+        first.complete(null);
+        assertThat(idle).containsExactly("idle");
+    }
+}
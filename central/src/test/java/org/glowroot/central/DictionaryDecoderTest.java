@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.central.AggregateDictionary;
+import org.glowroot.agent.central.GaugeNameDictionary;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DictionaryDecoderTest {
+
+    @Test
+    public void shouldRoundTripAggregates() {
+        // given
+        AggregateDictionary encoder = new AggregateDictionary();
+        List<String> decoderDictionary = new ArrayList<>();
+        List<Aggregate> aggregates = ImmutableList.of(
+                createAggregate("servlet", "jdbc query", "select 1"),
+                createAggregate("servlet", "jdbc query", "select 2"),
+                createAggregate("other", "http client request", "GET /abc"));
+
+        for (Aggregate aggregate : aggregates) {
+            // when
+            int transactionTypeIndex = encoder.getIndex("Web");
+            Aggregate encoded = encoder.encode(aggregate);
+            // entries are sent (and received) prior to the message that references them
+            decoderDictionary.addAll(encoder.drainNewEntries());
+            Aggregate decoded = DictionaryDecoder.decodeAggregate(encoded, decoderDictionary);
+
+            // then
+            assertThat(decoderDictionary.get(transactionTypeIndex)).isEqualTo("Web");
+            assertThat(encoded.getMainThreadRootTimer(0).getName()).isEmpty();
+            assertThat(encoded.getQuery(0).getType()).isEmpty();
+            assertThat(encoded.getServiceCall(0).getText()).isEmpty();
+            assertThat(decoded).isEqualTo(aggregate);
+        }
+        // repeated strings are only sent once per stream
+        assertThat(decoderDictionary).containsOnlyOnce("Web", "servlet", "jdbc query", "select 1");
+        assertThat(encoder.drainNewEntries()).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripGaugeValues() {
+        // given
+        GaugeNameDictionary encoder = new GaugeNameDictionary();
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        List<GaugeValue> gaugeValues = createGaugeValues();
+
+        // when
+        GaugeValueMessage message = encoder.encode(gaugeValues).build();
+        List<GaugeValue> decoded = decoder.decodeGaugeValues("agent", message);
+        encoder.onSent(message.getGaugeNameEntryList());
+        GaugeValueMessage nextMessage = encoder.encode(gaugeValues).build();
+        List<GaugeValue> nextDecoded = decoder.decodeGaugeValues("agent", nextMessage);
+
+        // then
+        assertThat(message.getGaugeNameEntryCount()).isEqualTo(2);
+        assertThat(decoded).isEqualTo(gaugeValues);
+        assertThat(nextMessage.getGaugeNameEntryCount()).isZero();
+        assertThat(nextDecoded).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldRequestResendOfUnknownGaugeNames() {
+        // given
+        GaugeNameDictionary encoder = new GaugeNameDictionary();
+        List<GaugeValue> gaugeValues = createGaugeValues();
+        GaugeValueMessage message = encoder.encode(gaugeValues).build();
+        new DictionaryDecoder().decodeGaugeValues("agent", message);
+        encoder.onSent(message.getGaugeNameEntryList());
+        // e.g. central was restarted, or a different central node receives the next message
+        DictionaryDecoder decoder = new DictionaryDecoder();
+
+        // when
+        List<GaugeValue> decoded =
+                decoder.decodeGaugeValues("agent", encoder.encode(gaugeValues).build());
+        // this is what the agent does when it receives resend_gauge_names
+        encoder.reset();
+        List<GaugeValue> resendDecoded =
+                decoder.decodeGaugeValues("agent", encoder.encode(gaugeValues).build());
+
+        // then
+        assertThat(decoded).isNull();
+        assertThat(resendDecoded).isEqualTo(gaugeValues);
+    }
+
+    @Test
+    public void shouldNotShareGaugeNamesAcrossAgents() {
+        // given
+        GaugeNameDictionary encoder = new GaugeNameDictionary();
+        DictionaryDecoder decoder = new DictionaryDecoder();
+        List<GaugeValue> gaugeValues = createGaugeValues();
+        GaugeValueMessage message = encoder.encode(gaugeValues).build();
+        decoder.decodeGaugeValues("agent1", message);
+        encoder.onSent(message.getGaugeNameEntryList());
+
+        // when
+        List<GaugeValue> decoded =
+                decoder.decodeGaugeValues("agent2", encoder.encode(gaugeValues).build());
+
+        // then
+        assertThat(decoded).isNull();
+    }
+
+    private static Aggregate createAggregate(String timerName, String serviceCallType,
+            String queryText) {
+        Aggregate.Timer grandchildTimer = Aggregate.Timer.newBuilder()
+                .setName("jdbc query")
+                .setTotalNanos(1)
+                .setCount(1)
+                .build();
+        Aggregate.Timer childTimer = Aggregate.Timer.newBuilder()
+                .setName("jdbc execute")
+                .setTotalNanos(2)
+                .setCount(1)
+                .addChildTimer(grandchildTimer)
+                .build();
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(10)
+                .setTransactionCount(1)
+                .addMainThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName(timerName)
+                        .setTotalNanos(10)
+                        .setCount(1)
+                        .addChildTimer(childTimer))
+                .addAuxThreadRootTimer(Aggregate.Timer.newBuilder()
+                        .setName("auxiliary thread")
+                        .setTotalNanos(3)
+                        .setCount(1)
+                        .addChildTimer(childTimer))
+                .addAsyncTimer(Aggregate.Timer.newBuilder()
+                        .setName("http client request")
+                        .setTotalNanos(4)
+                        .setCount(1))
+                .addQuery(Aggregate.Query.newBuilder()
+                        .setType("SQL")
+                        .setSharedQueryTextIndex(0)
+                        .setTotalDurationNanos(1)
+                        .setExecutionCount(1))
+                .addServiceCall(Aggregate.ServiceCall.newBuilder()
+                        .setType(serviceCallType)
+                        .setText(queryText)
+                        .setTotalDurationNanos(4)
+                        .setExecutionCount(1))
+                .build();
+    }
+
+    private static List<GaugeValue> createGaugeValues() {
+        return ImmutableList.of(
+                GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=Memory:HeapMemoryUsage.used")
+                        .setCaptureTime(1000)
+                        .setValue(1)
+                        .setWeight(1)
+                        .build(),
+                GaugeValue.newBuilder()
+                        .setGaugeName("java.lang:type=Threading:ThreadCount")
+                        .setCaptureTime(1000)
+                        .setValue(2)
+                        .setWeight(1)
+                        .build());
+    }
+}
@@ -15,8 +15,14 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Test;
 
+import org.glowroot.central.RollupService.RollupMetrics;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class RollupServiceTest {
@@ -28,4 +34,65 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldPartitionAgentRollupsAcrossNodes() {
+        // given
+        List<String> nodeIds = ImmutableList.of("node1", "node2", "node3");
+
+        // when
+        int[] ownedCounts = new int[nodeIds.size()];
+        for (int i = 0; i < 3000; i++) {
+            String agentRollupId = "agent" + i;
+            int ownerCount = 0;
+            for (int j = 0; j < nodeIds.size(); j++) {
+                if (RollupService.isOwner(agentRollupId, nodeIds.get(j), nodeIds)) {
+                    ownedCounts[j]++;
+                    ownerCount++;
+                }
+            }
+            // then
+            assertThat(ownerCount).isEqualTo(1);
+        }
+        for (int ownedCount : ownedCounts) {
+            assertThat(ownedCount).isBetween(800, 1200);
+        }
+    }
+
+    @Test
+    public void shouldOnlyMoveAgentRollupsOfRemovedNode() {
+        // given
+        List<String> nodeIds = ImmutableList.of("node1", "node2", "node3");
+        List<String> remainingNodeIds = ImmutableList.of("node1", "node3");
+
+        // when
+        for (int i = 0; i < 1000; i++) {
+            String agentRollupId = "agent" + i;
+            // then
+            if (RollupService.isOwner(agentRollupId, "node1", nodeIds)) {
+                assertThat(RollupService.isOwner(agentRollupId, "node1", remainingNodeIds))
+                        .isTrue();
+            }
+            if (RollupService.isOwner(agentRollupId, "node3", nodeIds)) {
+                assertThat(RollupService.isOwner(agentRollupId, "node3", remainingNodeIds))
+                        .isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void shouldRecordCycleMetrics() {
+        // given
+        RollupMetrics metrics = new RollupMetrics();
+
+        // when
+        metrics.recordCycle(60000, 61000, 75000, 2, ImmutableMap.of("a", 100L, "b", 300L));
+
+        // then
+        assertThat(metrics.getLastCycleLagMillis()).isEqualTo(15000);
+        assertThat(metrics.getLastCycleDurationMillis()).isEqualTo(14000);
+        assertThat(metrics.getLastCycleNodeCount()).isEqualTo(2);
+        assertThat(metrics.getLastCycleAgentRollupCount()).isEqualTo(2);
+        assertThat(metrics.getLastCycleMaxAgentRollupLatencyMillis()).isEqualTo(300);
+    }
 }
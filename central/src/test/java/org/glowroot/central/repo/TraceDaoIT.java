@@ -39,10 +39,15 @@ import org.glowroot.common.live.StringComparator;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common2.config.ImmutableCentralStorageConfig;
+import org.glowroot.common2.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common2.repo.ImmutableErrorMessageFilter;
 import org.glowroot.common2.repo.ImmutableTraceQuery;
+import org.glowroot.common2.repo.TraceRepository.ErrorMessageResult;
 import org.glowroot.common2.repo.TraceRepository.TraceQuery;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -56,6 +61,7 @@ public class TraceDaoIT {
     private static Cluster cluster;
     private static Session session;
     private static ClusterManager clusterManager;
+    private static Clock clock;
     private static TraceDao traceDao;
 
     @Parameter
@@ -76,7 +82,9 @@ public class TraceDaoIT {
         ConfigRepositoryImpl configRepository = mock(ConfigRepositoryImpl.class);
         when(configRepository.getCentralStorageConfig())
                 .thenReturn(ImmutableCentralStorageConfig.builder().build());
-        Clock clock = mock(Clock.class);
+        when(configRepository.getRollupConfigs())
+                .thenReturn(ImmutableList.copyOf(RollupConfig.buildRollupConfigs()));
+        clock = mock(Clock.class);
         when(clock.currentTimeMillis()).thenReturn(200L);
         traceDao = new TraceDaoWithV09Support(ImmutableSet.of(), 0, 0, clock,
                 new TraceDaoImpl(session, mock(TransactionTypeDao.class),
@@ -310,4 +318,49 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldReadErrorMessagesFromRollup() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace("abc"));
+        traceDao.store(AGENT_ID, createErrorTrace("abc"));
+        traceDao.store(AGENT_ID, createErrorTrace("xyz"));
+        when(clock.currentTimeMillis()).thenReturn(HOURS.toMillis(1));
+        traceDao.rollup(AGENT_ID);
+        when(clock.currentTimeMillis()).thenReturn(200L);
+        // stored after the rollup, so it needs to be read from the non-rolled up error messages
+        traceDao.store(AGENT_ID, createErrorTrace("xyz"));
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(HOURS.toMillis(1))
+                .build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(AGENT_ID, query,
+                ImmutableErrorMessageFilter.builder().build(), MINUTES.toMillis(30), 10);
+
+        // then
+        if (partial) {
+            // error info is not stored for partial traces
+            assertThat(result.points()).isEmpty();
+            assertThat(result.counts().records()).isEmpty();
+        } else {
+            assertThat(result.points()).hasSize(1);
+            assertThat(result.points().get(0).captureTime()).isEqualTo(MINUTES.toMillis(30));
+            assertThat(result.points().get(0).errorCount()).isEqualTo(4);
+            assertThat(result.counts().records()).hasSize(2);
+            assertThat(result.counts().records().get(0).count()).isEqualTo(2);
+            assertThat(result.counts().records().get(1).count()).isEqualTo(2);
+        }
+    }
+
+    private Trace createErrorTrace(String errorMessage) {
+        Trace trace = TraceTestData.createTrace(partial);
+        return trace.toBuilder()
+                .setHeader(trace.getHeader().toBuilder()
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage(errorMessage)))
+                .build();
+    }
 }
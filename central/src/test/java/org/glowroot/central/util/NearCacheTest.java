@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NearCacheTest {
+
+    @Test
+    public void shouldRecordHitsAndMisses() {
+        // given
+        NearCache<String, String> nearCache = new NearCache<>(10, 0, Ticker.systemTicker());
+
+        // when
+        nearCache.getIfPresent("a");
+        nearCache.put("a", "x", nearCache.getGeneration("a"));
+        nearCache.getIfPresent("a");
+        nearCache.getIfPresent("a");
+
+        // then
+        assertThat(nearCache.getHitCount()).isEqualTo(2);
+        assertThat(nearCache.getMissCount()).isEqualTo(1);
+        assertThat(nearCache.getSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvictWhenMaxSizeReached() {
+        // given
+        NearCache<Integer, String> nearCache = new NearCache<>(10, 0, Ticker.systemTicker());
+
+        // when
+        for (int i = 0; i < 20; i++) {
+            nearCache.put(i, "x", nearCache.getGeneration(i));
+        }
+
+        // then
+        assertThat(nearCache.getSize()).isEqualTo(10);
+        assertThat(nearCache.getEvictionCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldExpire() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        NearCache<String, String> nearCache = new NearCache<>(10, 60, ticker);
+        nearCache.put("a", "x", nearCache.getGeneration("a"));
+
+        // when
+        ticker.nanos.addAndGet(SECONDS.toNanos(61));
+
+        // then
+        assertThat(nearCache.getIfPresent("a")).isNull();
+    }
+
+    @Test
+    public void shouldInvalidate() {
+        // given
+        NearCache<String, String> nearCache = new NearCache<>(10, 0, Ticker.systemTicker());
+        nearCache.put("a", "x", nearCache.getGeneration("a"));
+
+        // when
+        nearCache.invalidate("a");
+
+        // then
+        assertThat(nearCache.getIfPresent("a")).isNull();
+        assertThat(nearCache.getEvictionCount()).isZero();
+    }
+
+    @Test
+    public void shouldNotCacheValueReadBeforeInvalidation() {
+        // given
+        NearCache<String, String> nearCache = new NearCache<>(10, 0, Ticker.systemTicker());
+        long generation = nearCache.getGeneration("a");
+
+        // when
+        nearCache.invalidate("a");
+        nearCache.put("a", "stale", generation);
+
+        // then
+        assertThat(nearCache.getIfPresent("a")).isNull();
+        nearCache.put("a", "x", nearCache.getGeneration("a"));
+        assertThat(nearCache.getIfPresent("a")).isEqualTo("x");
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private final AtomicLong nanos = new AtomicLong();
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WriteCoalescerTest {
+
+    private Session session;
+    private WriteCoalescerMetrics metrics;
+
+    @Before
+    public void beforeEach() throws Exception {
+        session = mock(Session.class);
+        ListenableFuture<ResultSet> future = Futures.immediateFuture(mock(ResultSet.class));
+        when(session.executeAsync(any(Statement.class))).thenReturn(future);
+        when(session.executeAsyncWithoutRecordingMetrics(any(Statement.class)))
+                .thenReturn(future);
+        metrics = new WriteCoalescerMetrics();
+    }
+
+    @Test
+    public void shouldGroupByRoutingKey() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(10, 1024);
+
+        // when
+        ListenableFuture<ResultSet> future1 = writeCoalescer.add(mockStatement("a", 10));
+        ListenableFuture<ResultSet> future2 = writeCoalescer.add(mockStatement("b", 10));
+        ListenableFuture<ResultSet> future3 = writeCoalescer.add(mockStatement("a", 10));
+        writeCoalescer.flush();
+
+        // then
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(2)).executeAsyncWithoutRecordingMetrics(captor.capture());
+        assertThat(captor.getAllValues().get(0)).isInstanceOf(BatchStatement.class);
+        assertThat(((BatchStatement) captor.getAllValues().get(0)).size()).isEqualTo(2);
+        assertThat(captor.getAllValues().get(1)).isInstanceOf(BoundStatement.class);
+        assertThat(future1).isSameAs(future3);
+        assertThat(future1.isDone()).isTrue();
+        assertThat(future2.isDone()).isTrue();
+        verify(session, times(3)).recordWriteMetrics(any(Statement.class));
+        assertThat(metrics.getBatchCount()).isEqualTo(2);
+        assertThat(metrics.getBatchedWriteCount()).isEqualTo(3);
+        assertThat(metrics.getMaxBatchSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotGroupDifferentTablesWithSameRoutingKey() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(10, 1024);
+
+        // when
+        ListenableFuture<ResultSet> future1 = writeCoalescer.add(mockStatement("t1", "a", 10));
+        ListenableFuture<ResultSet> future2 = writeCoalescer.add(mockStatement("t2", "a", 10));
+        writeCoalescer.flush();
+
+        // then
+        assertThat(future1).isNotSameAs(future2);
+        verify(session, times(2)).executeAsyncWithoutRecordingMetrics(any(BoundStatement.class));
+        assertThat(metrics.getMaxBatchSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSendBatchWhenMaxStatementsReached() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(2, 1024);
+
+        // when
+        writeCoalescer.add(mockStatement("a", 10));
+        ListenableFuture<ResultSet> future = writeCoalescer.add(mockStatement("a", 10));
+
+        // then
+        assertThat(future.isDone()).isTrue();
+        verify(session).executeAsyncWithoutRecordingMetrics(any(BatchStatement.class));
+    }
+
+    @Test
+    public void shouldSendBatchWhenMaxSizeWouldBeExceeded() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(10, 100);
+
+        // when
+        ListenableFuture<ResultSet> future1 = writeCoalescer.add(mockStatement("a", 60));
+        ListenableFuture<ResultSet> future2 = writeCoalescer.add(mockStatement("a", 60));
+
+        // then
+        assertThat(future1).isNotSameAs(future2);
+        assertThat(future1.isDone()).isTrue();
+        assertThat(future2.isDone()).isFalse();
+        writeCoalescer.flush();
+        assertThat(future2.isDone()).isTrue();
+        assertThat(metrics.getBatchCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldNotBatchLargeOrUnroutableStatements() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(10, 100);
+
+        // when
+        writeCoalescer.add(mockStatement("a", 200));
+        writeCoalescer.add(mockStatement(null, 10));
+        writeCoalescer.flush();
+
+        // then
+        verify(session, times(2)).executeAsync(any(Statement.class));
+        verify(session, never()).executeAsyncWithoutRecordingMetrics(any(Statement.class));
+        assertThat(metrics.getUnbatchedWriteCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldPassThroughWhenDisabled() throws Exception {
+        // given
+        WriteCoalescer writeCoalescer = newWriteCoalescer(1, 1024);
+
+        // when
+        writeCoalescer.add(mockStatement("a", 10));
+        writeCoalescer.add(mockStatement("a", 10));
+
+        // then
+        verify(session, times(2)).executeAsync(any(Statement.class));
+        assertThat(metrics.getBatchCount()).isZero();
+    }
+
+    private WriteCoalescer newWriteCoalescer(int maxBatchStatements, int maxBatchSizeBytes) {
+        return new WriteCoalescer(session, maxBatchStatements, maxBatchSizeBytes,
+                ProtocolVersion.V4, CodecRegistry.DEFAULT_INSTANCE, metrics);
+    }
+
+    private static BoundStatement mockStatement(String routingKey, int sizeBytes) {
+        return mockStatement("t", routingKey, sizeBytes);
+    }
+
+    private static BoundStatement mockStatement(String table, String routingKey, int sizeBytes) {
+        BoundStatement boundStatement = mock(BoundStatement.class);
+        PreparedStatement preparedStatement = mock(PreparedStatement.class);
+        ColumnDefinitions variables = mock(ColumnDefinitions.class);
+        when(boundStatement.preparedStatement()).thenReturn(preparedStatement);
+        when(preparedStatement.getVariables()).thenReturn(variables);
+        when(variables.size()).thenReturn(1);
+        when(variables.getKeyspace(0)).thenReturn("k");
+        when(variables.getTable(0)).thenReturn(table);
+        when(boundStatement.getBytesUnsafe(0)).thenReturn(ByteBuffer.allocate(sizeBytes));
+        if (routingKey != null) {
+            when(boundStatement.getRoutingKey(ProtocolVersion.V4, CodecRegistry.DEFAULT_INSTANCE))
+                    .thenReturn(ByteBuffer.wrap(routingKey.getBytes()));
+        }
+        return boundStatement;
+    }
+}
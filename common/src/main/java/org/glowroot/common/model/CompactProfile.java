@@ -0,0 +1,441 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// alternative to MutableProfile for merging large numbers of profiles (e.g. during rollups)
+//
+// profile tree is stored in parallel primitive arrays (node -> parent, frame id, sample count,
+// first child, last child, next sibling), and frames (package/class/method/file name index, line
+// number and leaf thread state) are interned in an open addressing hash table, so that no objects
+// are allocated per node
+//
+// does not support filtering or truncating, use toProto() to convert to MutableProfile for that
+public class CompactProfile {
+
+    private static final int NO_NODE = -1;
+
+    private static final int FRAME_FIELD_COUNT = 6;
+    private static final int PACKAGE_NAME_INDEX = 0;
+    private static final int CLASS_NAME_INDEX = 1;
+    private static final int METHOD_NAME_INDEX = 2;
+    private static final int FILE_NAME_INDEX = 3;
+    private static final int LINE_NUMBER = 4;
+    private static final int LEAF_THREAD_STATE = 5;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final NameTable packageNames = new NameTable();
+    private final NameTable classNames = new NameTable();
+    private final NameTable methodNames = new NameTable();
+    private final NameTable fileNames = new NameTable();
+
+    // frame fields are stored FRAME_FIELD_COUNT ints per frame
+    private int[] frames = new int[INITIAL_CAPACITY * FRAME_FIELD_COUNT];
+    private int frameCount;
+    // open addressing (linear probing), entries are frame id + 1 (0 means empty)
+    private int[] frameHashTable = new int[INITIAL_CAPACITY * 2];
+
+    private int[] nodeParents = new int[INITIAL_CAPACITY];
+    private int[] nodeFrameIds = new int[INITIAL_CAPACITY];
+    private long[] nodeSampleCounts = new long[INITIAL_CAPACITY];
+    private int[] nodeFirstChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeNextSiblings = new int[INITIAL_CAPACITY];
+    private int nodeCount;
+    private int firstRootNode = NO_NODE;
+    // open addressing (linear probing) index of (parent node, frame id) -> node, so that finding
+    // the matching child node does not require scanning all siblings, entries are node + 1 (0 means
+    // empty)
+    private int[] nodeHashTable = new int[INITIAL_CAPACITY * 2];
+    // last child of each node is tracked in order to append new child nodes in constant time
+    private int[] nodeLastChilds = new int[INITIAL_CAPACITY];
+    private int lastRootNode = NO_NODE;
+
+    // reused across merges, holds the destination node at each depth of the profile being merged
+    private int[] pathNodes = new int[INITIAL_CAPACITY];
+
+    public void merge(Profile profile) {
+        int[] packageNameIndexMapping = packageNames.makeIndexMapping(profile.getPackageNameList());
+        int[] classNameIndexMapping = classNames.makeIndexMapping(profile.getClassNameList());
+        int[] methodNameIndexMapping = methodNames.makeIndexMapping(profile.getMethodNameList());
+        int[] fileNameIndexMapping = fileNames.makeIndexMapping(profile.getFileNameList());
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            mergeNode(node.getDepth(), packageNameIndexMapping[node.getPackageNameIndex()],
+                    classNameIndexMapping[node.getClassNameIndex()],
+                    methodNameIndexMapping[node.getMethodNameIndex()],
+                    fileNameIndexMapping[node.getFileNameIndex()], node.getLineNumber(),
+                    node.getLeafThreadStateValue(), node.getSampleCount());
+        }
+    }
+
+    // merges directly from the serialized Profile protobuf, without constructing Profile and
+    // Profile.ProfileNode instances
+    public void merge(ByteBuffer serializedProfile) throws IOException {
+        // first pass reads the names (which are needed to map the node name indexes), since the
+        // protobuf wire format does not guarantee field ordering
+        IntArrayList packageNameIndexMapping = new IntArrayList();
+        IntArrayList classNameIndexMapping = new IntArrayList();
+        IntArrayList methodNameIndexMapping = new IntArrayList();
+        IntArrayList fileNameIndexMapping = new IntArrayList();
+        CodedInputStream in = CodedInputStream.newInstance(serializedProfile.duplicate());
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            switch (WireFormat.getTagFieldNumber(tag)) {
+                case Profile.PACKAGE_NAME_FIELD_NUMBER:
+                    packageNameIndexMapping.add(packageNames.getIndex(in.readStringRequireUtf8()));
+                    break;
+                case Profile.CLASS_NAME_FIELD_NUMBER:
+                    classNameIndexMapping.add(classNames.getIndex(in.readStringRequireUtf8()));
+                    break;
+                case Profile.METHOD_NAME_FIELD_NUMBER:
+                    methodNameIndexMapping.add(methodNames.getIndex(in.readStringRequireUtf8()));
+                    break;
+                case Profile.FILE_NAME_FIELD_NUMBER:
+                    fileNameIndexMapping.add(fileNames.getIndex(in.readStringRequireUtf8()));
+                    break;
+                default:
+                    in.skipField(tag);
+            }
+        }
+        in = CodedInputStream.newInstance(serializedProfile.duplicate());
+        while ((tag = in.readTag()) != 0) {
+            if (WireFormat.getTagFieldNumber(tag) != Profile.NODE_FIELD_NUMBER) {
+                in.skipField(tag);
+                continue;
+            }
+            int limit = in.pushLimit(in.readRawVarint32());
+            int depth = 0;
+            int packageNameIndex = 0;
+            int classNameIndex = 0;
+            int methodNameIndex = 0;
+            int fileNameIndex = 0;
+            int lineNumber = 0;
+            int leafThreadState = 0;
+            long sampleCount = 0;
+            while ((tag = in.readTag()) != 0) {
+                switch (WireFormat.getTagFieldNumber(tag)) {
+                    case Profile.ProfileNode.DEPTH_FIELD_NUMBER:
+                        depth = in.readInt32();
+                        break;
+                    case Profile.ProfileNode.PACKAGE_NAME_INDEX_FIELD_NUMBER:
+                        packageNameIndex = in.readInt32();
+                        break;
+                    case Profile.ProfileNode.CLASS_NAME_INDEX_FIELD_NUMBER:
+                        classNameIndex = in.readInt32();
+                        break;
+                    case Profile.ProfileNode.METHOD_NAME_INDEX_FIELD_NUMBER:
+                        methodNameIndex = in.readInt32();
+                        break;
+                    case Profile.ProfileNode.FILE_NAME_INDEX_FIELD_NUMBER:
+                        fileNameIndex = in.readInt32();
+                        break;
+                    case Profile.ProfileNode.LINE_NUMBER_FIELD_NUMBER:
+                        lineNumber = in.readSInt32();
+                        break;
+                    case Profile.ProfileNode.LEAF_THREAD_STATE_FIELD_NUMBER:
+                        leafThreadState = in.readEnum();
+                        break;
+                    case Profile.ProfileNode.SAMPLE_COUNT_FIELD_NUMBER:
+                        sampleCount = in.readInt64();
+                        break;
+                    default:
+                        in.skipField(tag);
+                }
+            }
+            in.popLimit(limit);
+            mergeNode(depth, packageNameIndexMapping.get(packageNameIndex),
+                    classNameIndexMapping.get(classNameIndex),
+                    methodNameIndexMapping.get(methodNameIndex),
+                    fileNameIndexMapping.get(fileNameIndex), lineNumber, leafThreadState,
+                    sampleCount);
+        }
+    }
+
+    public boolean isEmpty() {
+        return firstRootNode == NO_NODE;
+    }
+
+    public long getSampleCount() {
+        long sampleCount = 0;
+        for (int node = firstRootNode; node != NO_NODE; node = nodeNextSiblings[node]) {
+            sampleCount += nodeSampleCounts[node];
+        }
+        return sampleCount;
+    }
+
+    public Profile toProto() {
+        Profile.Builder builder = Profile.newBuilder()
+                .addAllPackageName(packageNames.names)
+                .addAllClassName(classNames.names)
+                .addAllMethodName(methodNames.names)
+                .addAllFileName(fileNames.names);
+        // pre-order traversal using the parent links (so no explicit stack is needed)
+        int node = firstRootNode;
+        int depth = 0;
+        while (node != NO_NODE) {
+            int frameOffset = nodeFrameIds[node] * FRAME_FIELD_COUNT;
+            builder.addNode(Profile.ProfileNode.newBuilder()
+                    .setDepth(depth)
+                    .setPackageNameIndex(frames[frameOffset + PACKAGE_NAME_INDEX])
+                    .setClassNameIndex(frames[frameOffset + CLASS_NAME_INDEX])
+                    .setMethodNameIndex(frames[frameOffset + METHOD_NAME_INDEX])
+                    .setFileNameIndex(frames[frameOffset + FILE_NAME_INDEX])
+                    .setLineNumber(frames[frameOffset + LINE_NUMBER])
+                    .setLeafThreadStateValue(frames[frameOffset + LEAF_THREAD_STATE])
+                    .setSampleCount(nodeSampleCounts[node]));
+            if (nodeFirstChilds[node] != NO_NODE) {
+                node = nodeFirstChilds[node];
+                depth++;
+                continue;
+            }
+            while (node != NO_NODE && nodeNextSiblings[node] == NO_NODE) {
+                node = nodeParents[node];
+                depth--;
+            }
+            if (node != NO_NODE) {
+                node = nodeNextSiblings[node];
+            }
+        }
+        return builder.build();
+    }
+
+    private void mergeNode(int depth, int packageNameIndex, int classNameIndex,
+            int methodNameIndex, int fileNameIndex, int lineNumber, int leafThreadState,
+            long sampleCount) {
+        int frameId = getOrAddFrameId(packageNameIndex, classNameIndex, methodNameIndex,
+                fileNameIndex, lineNumber, leafThreadState);
+        int parentNode = depth == 0 ? NO_NODE : pathNodes[depth - 1];
+        int node = getOrAddChildNode(parentNode, frameId);
+        nodeSampleCounts[node] += sampleCount;
+        if (depth >= pathNodes.length) {
+            pathNodes = Ints.ensureCapacity(pathNodes, depth + 1, depth);
+        }
+        pathNodes[depth] = node;
+    }
+
+    private int getOrAddFrameId(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, int leafThreadState) {
+        int hash = hashFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState);
+        int mask = frameHashTable.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int entry = frameHashTable[slot];
+            if (entry == 0) {
+                break;
+            }
+            int frameId = entry - 1;
+            int frameOffset = frameId * FRAME_FIELD_COUNT;
+            // checking line number first since most likely to be different
+            if (frames[frameOffset + LINE_NUMBER] == lineNumber
+                    && frames[frameOffset + METHOD_NAME_INDEX] == methodNameIndex
+                    && frames[frameOffset + CLASS_NAME_INDEX] == classNameIndex
+                    && frames[frameOffset + LEAF_THREAD_STATE] == leafThreadState
+                    && frames[frameOffset + FILE_NAME_INDEX] == fileNameIndex
+                    && frames[frameOffset + PACKAGE_NAME_INDEX] == packageNameIndex) {
+                return frameId;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int frameId = frameCount++;
+        int frameOffset = frameId * FRAME_FIELD_COUNT;
+        if (frameOffset + FRAME_FIELD_COUNT > frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        frames[frameOffset + PACKAGE_NAME_INDEX] = packageNameIndex;
+        frames[frameOffset + CLASS_NAME_INDEX] = classNameIndex;
+        frames[frameOffset + METHOD_NAME_INDEX] = methodNameIndex;
+        frames[frameOffset + FILE_NAME_INDEX] = fileNameIndex;
+        frames[frameOffset + LINE_NUMBER] = lineNumber;
+        frames[frameOffset + LEAF_THREAD_STATE] = leafThreadState;
+        frameHashTable[slot] = frameId + 1;
+        // keep load factor at or below 0.5
+        if (frameCount * 2 > frameHashTable.length) {
+            rehashFrames(frameHashTable.length * 2);
+        }
+        return frameId;
+    }
+
+    private void rehashFrames(int capacity) {
+        frameHashTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int frameId = 0; frameId < frameCount; frameId++) {
+            int frameOffset = frameId * FRAME_FIELD_COUNT;
+            int hash = hashFrame(frames[frameOffset + PACKAGE_NAME_INDEX],
+                    frames[frameOffset + CLASS_NAME_INDEX],
+                    frames[frameOffset + METHOD_NAME_INDEX], frames[frameOffset + FILE_NAME_INDEX],
+                    frames[frameOffset + LINE_NUMBER], frames[frameOffset + LEAF_THREAD_STATE]);
+            int slot = hash & mask;
+            while (frameHashTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            frameHashTable[slot] = frameId + 1;
+        }
+    }
+
+    private int getOrAddChildNode(int parentNode, int frameId) {
+        int mask = nodeHashTable.length - 1;
+        int slot = hashNode(parentNode, frameId) & mask;
+        while (true) {
+            int entry = nodeHashTable[slot];
+            if (entry == 0) {
+                break;
+            }
+            int node = entry - 1;
+            if (nodeFrameIds[node] == frameId && nodeParents[node] == parentNode) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int node = addNode(parentNode, frameId);
+        nodeHashTable[slot] = node + 1;
+        // append (instead of prepend) to retain the same node ordering as MutableProfile
+        if (parentNode == NO_NODE) {
+            if (lastRootNode == NO_NODE) {
+                firstRootNode = node;
+            } else {
+                nodeNextSiblings[lastRootNode] = node;
+            }
+            lastRootNode = node;
+        } else {
+            int lastChildNode = nodeLastChilds[parentNode];
+            if (lastChildNode == NO_NODE) {
+                nodeFirstChilds[parentNode] = node;
+            } else {
+                nodeNextSiblings[lastChildNode] = node;
+            }
+            nodeLastChilds[parentNode] = node;
+        }
+        // keep load factor at or below 0.5
+        if (nodeCount * 2 > nodeHashTable.length) {
+            rehashNodes(nodeHashTable.length * 2);
+        }
+        return node;
+    }
+
+    private void rehashNodes(int capacity) {
+        nodeHashTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int node = 0; node < nodeCount; node++) {
+            int slot = hashNode(nodeParents[node], nodeFrameIds[node]) & mask;
+            while (nodeHashTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            nodeHashTable[slot] = node + 1;
+        }
+    }
+
+    private int addNode(int parentNode, int frameId) {
+        if (nodeCount == nodeFrameIds.length) {
+            int newCapacity = nodeCount * 2;
+            nodeParents = Arrays.copyOf(nodeParents, newCapacity);
+            nodeFrameIds = Arrays.copyOf(nodeFrameIds, newCapacity);
+            nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newCapacity);
+            nodeLastChilds = Arrays.copyOf(nodeLastChilds, newCapacity);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newCapacity);
+        }
+        int node = nodeCount++;
+        nodeParents[node] = parentNode;
+        nodeFrameIds[node] = frameId;
+        nodeSampleCounts[node] = 0;
+        nodeFirstChilds[node] = NO_NODE;
+        nodeLastChilds[node] = NO_NODE;
+        nodeNextSiblings[node] = NO_NODE;
+        return node;
+    }
+
+    private static int hashNode(int parentNode, int frameId) {
+        return spread(31 * parentNode + frameId);
+    }
+
+    private static int hashFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, int leafThreadState) {
+        int hash = packageNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + lineNumber;
+        hash = 31 * hash + leafThreadState;
+        return spread(hash);
+    }
+
+    // spread bits since linear probing is sensitive to clustering
+    private static int spread(int hash) {
+        int spread = hash;
+        spread ^= spread >>> 16;
+        spread *= 0x85ebca6b;
+        spread ^= spread >>> 13;
+        return spread;
+    }
+
+    private static class NameTable {
+
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        private final List<String> names = Lists.newArrayList();
+
+        private int getIndex(String name) {
+            Integer index = indexes.get(name);
+            if (index == null) {
+                index = names.size();
+                names.add(name);
+                indexes.put(name, index);
+            }
+            return index;
+        }
+
+        private int[] makeIndexMapping(List<String> toBeMergedNames) {
+            int[] indexMapping = new int[toBeMergedNames.size()];
+            for (int i = 0; i < toBeMergedNames.size(); i++) {
+                indexMapping[i] = getIndex(toBeMergedNames.get(i));
+            }
+            return indexMapping;
+        }
+    }
+
+    private static class IntArrayList {
+
+        private int[] values = new int[16];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int get(int index) {
+            if (index >= size) {
+                throw new IllegalStateException("Invalid name index: " + index);
+            }
+            return values[index];
+        }
+    }
+}
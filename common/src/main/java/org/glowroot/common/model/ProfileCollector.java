@@ -15,17 +15,26 @@
  */
 package org.glowroot.common.model;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 public class ProfileCollector {
 
-    private final MutableProfile profile = new MutableProfile();
+    // merging into compact profile, and only converting to MutableProfile at the end, since there
+    // can be a large number of profiles to merge
+    private final CompactProfile profile = new CompactProfile();
     private long lastCaptureTime;
 
     public void mergeProfile(Profile profile) {
         this.profile.merge(profile);
     }
 
+    public void mergeProfile(ByteBuffer serializedProfile) throws IOException {
+        profile.merge(serializedProfile);
+    }
+
     public void updateLastCaptureTime(long captureTime) {
         lastCaptureTime = Math.max(lastCaptureTime, captureTime);
     }
@@ -35,6 +44,8 @@ public class ProfileCollector {
     }
 
     public MutableProfile getProfile() {
-        return profile;
+        MutableProfile mutableProfile = new MutableProfile();
+        mutableProfile.merge(profile.toProto());
+        return mutableProfile;
     }
 }
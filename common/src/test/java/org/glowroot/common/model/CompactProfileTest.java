@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactProfileTest {
+
+    @Test
+    public void shouldMergeSameAsMutableProfile() {
+        // given
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+
+        // when
+        for (Profile profile : createProfiles()) {
+            mutableProfile.merge(profile);
+            compactProfile.merge(profile);
+        }
+
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(mutableProfile.toProto());
+        assertThat(compactProfile.getSampleCount()).isEqualTo(mutableProfile.getSampleCount());
+    }
+
+    @Test
+    public void shouldMergeFromSerializedProfile() throws Exception {
+        // given
+        MutableProfile mutableProfile = new MutableProfile();
+        CompactProfile compactProfile = new CompactProfile();
+
+        // when
+        for (Profile profile : createProfiles()) {
+            mutableProfile.merge(profile);
+            compactProfile.merge(ByteBuffer.wrap(profile.toByteArray()));
+        }
+
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(mutableProfile.toProto());
+    }
+
+    @Test
+    public void shouldMergeFromSerializedProfileWithNamesAfterNodes() throws Exception {
+        // given
+        Profile profile = createProfiles().get(0);
+        Profile namesOnly = profile.toBuilder()
+                .clearNode()
+                .build();
+        Profile nodesOnly = Profile.newBuilder()
+                .addAllNode(profile.getNodeList())
+                .build();
+        // concatenated protobuf messages are merged, so this has nodes before names
+        byte[] nodesBytes = nodesOnly.toByteArray();
+        byte[] namesBytes = namesOnly.toByteArray();
+        ByteBuffer bytes = ByteBuffer.allocate(nodesBytes.length + namesBytes.length);
+        bytes.put(nodesBytes);
+        bytes.put(namesBytes);
+        bytes.flip();
+        CompactProfile compactProfile = new CompactProfile();
+
+        // when
+        compactProfile.merge(bytes);
+
+        // then
+        assertThat(compactProfile.toProto()).isEqualTo(profile);
+    }
+
+    @Test
+    public void shouldBeEmpty() {
+        // given
+        CompactProfile compactProfile = new CompactProfile();
+
+        // when
+        compactProfile.merge(Profile.getDefaultInstance());
+
+        // then
+        assertThat(compactProfile.isEmpty()).isTrue();
+        assertThat(compactProfile.getSampleCount()).isZero();
+        assertThat(compactProfile.toProto()).isEqualTo(Profile.getDefaultInstance());
+    }
+
+    private static List<Profile> createProfiles() {
+        ImmutableList.Builder<Profile> profiles = ImmutableList.builder();
+        for (int i = 0; i < 20; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 10; j++) {
+                List<StackTraceElement> stackTrace = ImmutableList.of(
+                        new StackTraceElement("aa.bb.Leaf" + (i + j) % 7, "leaf", "Leaf.java",
+                                j % 3),
+                        new StackTraceElement("aa.bb.Middle", "middle" + j % 4, "Middle.java",
+                                i % 5),
+                        new StackTraceElement("Main", "main", null, 10));
+                profile.merge(stackTrace, j % 2 == 0 ? Thread.State.RUNNABLE
+                        : Thread.State.WAITING);
+            }
+            profiles.add(profile.toProto());
+        }
+        return profiles.build();
+    }
+}
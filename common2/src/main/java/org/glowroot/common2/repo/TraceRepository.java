@@ -58,6 +58,13 @@ public interface TraceRepository {
     @Nullable
     Entries readEntries(String agentId, String traceId) throws Exception;
 
+    // same as readEntries(), except only returns the entries in the range [from, from + limit),
+    // and returns empty list of entries (not null) when from is past the last entry
+    //
+    // SharedQueryTexts are returned in full for each range
+    @Nullable
+    Entries readEntries(String agentId, String traceId, int from, int limit) throws Exception;
+
     // null return value means trace not found or was found but had no queries
     //
     // SharedQueryTexts are returned with either fullTrace or
@@ -128,6 +128,13 @@ public class AlertingService {
         }
     }
 
+    // called after aggregates or gauge values have been stored for the agent rollup, so that metric
+    // alert checks re-read any of them that were stored later than expected, e.g. agent data that
+    // was spooled while the central collector was unavailable, or delayed rollups
+    public void onDataStored(String agentRollupId, long oldestCaptureTime) {
+        metricService.onRowsStored(agentRollupId, oldestCaptureTime);
+    }
+
     public void checkForAllDeletedAlerts() throws Exception {
         for (OpenIncident openIncident : incidentRepository.readAllOpenIncidents()) {
             if (isDeletedAlert(openIncident)) {
@@ -16,9 +16,12 @@
 package org.glowroot.common2.repo.util;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.common.live.ImmutableTransactionQuery;
@@ -28,20 +31,69 @@ import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common2.repo.AggregateRepository;
 import org.glowroot.common2.repo.GaugeValueRepository;
+import org.glowroot.common2.repo.util.MetricWindow.RowReader;
+import org.glowroot.common2.repo.util.MetricWindow.RowTotaler;
+import org.glowroot.common2.repo.util.MetricWindow.Totals;
 import org.glowroot.common2.repo.util.RollupLevelService.DataKind;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertCondition.MetricCondition;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.HOURS;
 
 class MetricService {
 
     private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
 
+    private static final RowTotaler<OverviewAggregate> OVERVIEW_TOTALER =
+            new RowTotaler<OverviewAggregate>() {
+                @Override
+                public double value(OverviewAggregate aggregate) {
+                    return aggregate.totalDurationNanos();
+                }
+                @Override
+                public long weight(OverviewAggregate aggregate) {
+                    return aggregate.transactionCount();
+                }
+            };
+
+    private static final RowTotaler<ThroughputAggregate> THROUGHPUT_TOTALER =
+            new RowTotaler<ThroughputAggregate>() {
+                @Override
+                public double value(ThroughputAggregate aggregate) {
+                    return MoreObjects.firstNonNull(aggregate.errorCount(), 0L);
+                }
+                @Override
+                public long weight(ThroughputAggregate aggregate) {
+                    return aggregate.transactionCount();
+                }
+            };
+
+    private static final RowTotaler<GaugeValue> GAUGE_VALUE_TOTALER =
+            new RowTotaler<GaugeValue>() {
+                @Override
+                public double value(GaugeValue gaugeValue) {
+                    return gaugeValue.getValue() * gaugeValue.getWeight();
+                }
+                @Override
+                public long weight(GaugeValue gaugeValue) {
+                    return gaugeValue.getWeight();
+                }
+            };
+
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final RollupLevelService rollupLevelService;
 
+    // windows are per agent rollup and metric condition, and are dropped once the condition is no
+    // longer being checked (e.g. alert config was edited or deleted)
+    //
+    // the window type is determined by the metric condition's metric, see getMetricValue()
+    private final Cache<String, Cache<MetricCondition, MetricWindow<?>>> windows =
+            CacheBuilder.newBuilder()
+                    .expireAfterAccess(1, HOURS)
+                    .build();
+
     public MetricService(AggregateRepository aggregateRepository,
             GaugeValueRepository gaugeValueRepository, RollupLevelService rollupLevelService) {
         this.aggregateRepository = aggregateRepository;
@@ -54,45 +106,69 @@ class MetricService {
             long endTime) throws Exception {
         String metric = metricCondition.getMetric();
         if (metric.equals("transaction:x-percentile")) {
-            return getTransactionDurationPercentile(agentRollupId,
-                    metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()),
-                    metricCondition.getPercentile().getValue(), startTime, endTime);
+            return getTransactionDurationPercentile(agentRollupId, metricCondition, startTime,
+                    endTime);
         } else if (metric.equals("transaction:average")) {
-            return getTransactionAverage(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+            return getTransactionAverage(agentRollupId, metricCondition, startTime, endTime);
         } else if (metric.equals("transaction:count")) {
-            return getTransactionCount(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+            Totals totals =
+                    getThroughputTotals(agentRollupId, metricCondition, startTime, endTime);
+            return totals == null ? 0 : totals.weight();
         } else if (metric.equals("error:rate")) {
-            return getErrorRate(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+            return getErrorRate(agentRollupId, metricCondition, startTime, endTime);
         } else if (metric.equals("error:count")) {
-            return getErrorCount(agentRollupId, metricCondition.getTransactionType(),
-                    Strings.emptyToNull(metricCondition.getTransactionName()), startTime, endTime);
+            Totals totals =
+                    getThroughputTotals(agentRollupId, metricCondition, startTime, endTime);
+            return totals == null ? 0 : (long) totals.value();
         } else if (metric.startsWith("gauge:")) {
-            return getGaugeValue(agentRollupId, metric.substring("gauge:".length()), startTime,
-                    endTime);
+            return getGaugeValue(agentRollupId, metricCondition,
+                    metric.substring("gauge:".length()), startTime, endTime);
         } else {
             throw new IllegalStateException("Unexpected metric: " + metric);
         }
     }
 
-    private @Nullable Double getTransactionDurationPercentile(String agentRollupId,
-            String transactionType, @Nullable String transactionName, double percentile,
-            long startTime, long endTime) throws Exception {
+    // called after rows have been stored for the agent rollup (with the given capture time or
+    // later), see MetricWindow.onRowsStored()
+    void onRowsStored(String agentRollupId, long captureTime) {
+        Cache<MetricCondition, MetricWindow<?>> agentRollupWindows =
+                windows.getIfPresent(agentRollupId);
+        if (agentRollupWindows == null) {
+            return;
+        }
+        for (MetricWindow<?> window : agentRollupWindows.asMap().values()) {
+            window.onRowsStored(captureTime);
+        }
+    }
+
+    private @Nullable Double getTransactionDurationPercentile(final String agentRollupId,
+            final MetricCondition metricCondition, long startTime, long endTime)
+            throws Exception {
         int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
-        // startTime + 1 in order to not include the aggregate value at startTime
-        List<PercentileAggregate> aggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(transactionType)
-                                .transactionName(transactionName)
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+        MetricWindow<PercentileAggregate> window = getWindow(agentRollupId, metricCondition,
+                new Callable<MetricWindow<PercentileAggregate>>() {
+                    @Override
+                    public MetricWindow<PercentileAggregate> call() {
+                        // percentile histograms cannot be subtracted, so there are no running
+                        // totals, and the histograms of the rows in the window are merged instead
+                        return new MetricWindow<PercentileAggregate>(
+                                new RowReader<PercentileAggregate>() {
+                                    @Override
+                                    public List<PercentileAggregate> read(long from, long to,
+                                            int rollupLevel) throws Exception {
+                                        return aggregateRepository.readPercentileAggregates(
+                                                agentRollupId, getTransactionQuery(
+                                                        metricCondition, from, to, rollupLevel));
+                                    }
+                                    @Override
+                                    public long captureTime(PercentileAggregate aggregate) {
+                                        return aggregate.captureTime();
+                                    }
+                                }, null);
+                    }
+                });
+        List<PercentileAggregate> aggregates = window.getRows(startTime, endTime, rollupLevel);
         if (aggregates.isEmpty()) {
             return null;
         }
@@ -100,33 +176,59 @@ class MetricService {
         for (PercentileAggregate aggregate : aggregates) {
             durationNanosHistogram.merge(aggregate.durationNanosHistogram());
         }
-        return durationNanosHistogram.getValueAtPercentile(percentile)
-                / NANOSECONDS_PER_MILLISECOND;
+        return durationNanosHistogram.getValueAtPercentile(
+                metricCondition.getPercentile().getValue()) / NANOSECONDS_PER_MILLISECOND;
     }
 
-    private @Nullable Double getTransactionAverage(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
-        List<OverviewAggregate> aggregates = getOverviewAggregates(agentRollupId, transactionType,
-                transactionName, startTime, endTime);
-        if (aggregates.isEmpty()) {
+    private @Nullable Double getTransactionAverage(final String agentRollupId,
+            final MetricCondition metricCondition, long startTime, long endTime)
+            throws Exception {
+        int rollupLevel =
+                rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
+        MetricWindow<OverviewAggregate> window = getWindow(agentRollupId, metricCondition,
+                new Callable<MetricWindow<OverviewAggregate>>() {
+                    @Override
+                    public MetricWindow<OverviewAggregate> call() {
+                        return new MetricWindow<OverviewAggregate>(
+                                new RowReader<OverviewAggregate>() {
+                                    @Override
+                                    public List<OverviewAggregate> read(long from, long to,
+                                            int rollupLevel) throws Exception {
+                                        return aggregateRepository.readOverviewAggregates(
+                                                agentRollupId, getTransactionQuery(
+                                                        metricCondition, from, to, rollupLevel));
+                                    }
+                                    @Override
+                                    public long captureTime(OverviewAggregate aggregate) {
+                                        return aggregate.captureTime();
+                                    }
+                                }, OVERVIEW_TOTALER);
+                    }
+                });
+        Totals totals = window.getTotals(startTime, endTime, rollupLevel);
+        if (totals == null) {
             return null;
         }
-        double totalDurationNanos = 0;
-        long totalTransactionCount = 0;
-        for (OverviewAggregate aggregate : aggregates) {
-            totalDurationNanos += aggregate.totalDurationNanos();
-            totalTransactionCount += aggregate.transactionCount();
-        }
-        // individual aggregate transaction counts cannot be zero, and aggregates is non-empty
-        // (see above conditional), so totalTransactionCount is guaranteed non-zero
-        checkState(totalTransactionCount != 0);
-        return totalDurationNanos / (totalTransactionCount * NANOSECONDS_PER_MILLISECOND);
+        // individual aggregate transaction counts cannot be zero, and there is at least one
+        // aggregate (see above conditional), so total transaction count is guaranteed non-zero
+        checkState(totals.weight() != 0);
+        return totals.value() / (totals.weight() * NANOSECONDS_PER_MILLISECOND);
     }
 
     public long getTransactionCount(String agentRollupId, String transactionType,
             @Nullable String transactionName, long startTime, long endTime) throws Exception {
-        List<ThroughputAggregate> throughputAggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
+        int rollupLevel =
+                rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
+        // startTime + 1 in order to not include the aggregate at startTime
+        List<ThroughputAggregate> throughputAggregates =
+                aggregateRepository.readThroughputAggregates(agentRollupId,
+                        ImmutableTransactionQuery.builder()
+                                .transactionType(transactionType)
+                                .transactionName(transactionName)
+                                .from(startTime + 1)
+                                .to(endTime)
+                                .rollupLevel(rollupLevel)
+                                .build());
         long totalTransactionCount = 0;
         for (ThroughputAggregate throughputAggregate : throughputAggregates) {
             totalTransactionCount += throughputAggregate.transactionCount();
@@ -134,87 +236,106 @@ class MetricService {
         return totalTransactionCount;
     }
 
-    private @Nullable Double getErrorRate(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
-        List<ThroughputAggregate> aggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
-        if (aggregates.isEmpty()) {
+    private @Nullable Double getErrorRate(String agentRollupId, MetricCondition metricCondition,
+            long startTime, long endTime) throws Exception {
+        Totals totals = getThroughputTotals(agentRollupId, metricCondition, startTime, endTime);
+        if (totals == null) {
             return null;
         }
-        long totalTransactionCount = 0;
-        long totalErrorCount = 0;
-        for (ThroughputAggregate aggregate : aggregates) {
-            totalTransactionCount += aggregate.transactionCount();
-            totalErrorCount += MoreObjects.firstNonNull(aggregate.errorCount(), 0L);
-        }
-        // individual aggregate transaction counts cannot be zero, and aggregates is non-empty
-        // (see above conditional), so totalTransactionCount is guaranteed non-zero
-        checkState(totalTransactionCount != 0);
-        return (100.0 * totalErrorCount) / totalTransactionCount;
+        // individual aggregate transaction counts cannot be zero, and there is at least one
+        // aggregate (see above conditional), so total transaction count is guaranteed non-zero
+        checkState(totals.weight() != 0);
+        return (100.0 * totals.value()) / totals.weight();
     }
 
-    private long getErrorCount(String agentRollupId, String transactionType,
-            @Nullable String transactionName, long startTime, long endTime) throws Exception {
-        List<ThroughputAggregate> aggregates = getThroughputAggregates(agentRollupId,
-                transactionType, transactionName, startTime, endTime);
-        long totalErrorCount = 0;
-        for (ThroughputAggregate aggregate : aggregates) {
-            totalErrorCount += MoreObjects.firstNonNull(aggregate.errorCount(), 0L);
-        }
-        return totalErrorCount;
-    }
-
-    private @Nullable Double getGaugeValue(String agentRollupId, String gaugeName,
-            long startTime, long endTime) throws Exception {
+    private @Nullable Double getGaugeValue(final String agentRollupId,
+            MetricCondition metricCondition, final String gaugeName, long startTime, long endTime)
+            throws Exception {
         int rollupLevel = rollupLevelService.getGaugeRollupLevelForView(startTime, endTime,
                 agentRollupId.endsWith("::"));
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                gaugeName, startTime + 1, endTime, rollupLevel);
-        if (gaugeValues.isEmpty()) {
+        MetricWindow<GaugeValue> window = getWindow(agentRollupId, metricCondition,
+                new Callable<MetricWindow<GaugeValue>>() {
+                    @Override
+                    public MetricWindow<GaugeValue> call() {
+                        return new MetricWindow<GaugeValue>(new RowReader<GaugeValue>() {
+                            @Override
+                            public List<GaugeValue> read(long from, long to, int rollupLevel)
+                                    throws Exception {
+                                // from + 1 in order to not include the gauge value at from
+                                return gaugeValueRepository.readGaugeValues(agentRollupId,
+                                        gaugeName, from + 1, to, rollupLevel);
+                            }
+                            @Override
+                            public long captureTime(GaugeValue gaugeValue) {
+                                return gaugeValue.getCaptureTime();
+                            }
+                        }, GAUGE_VALUE_TOTALER);
+                    }
+                });
+        Totals totals = window.getTotals(startTime, endTime, rollupLevel);
+        if (totals == null) {
             return null;
         }
-        double totalWeightedValue = 0;
-        long totalWeight = 0;
-        for (GaugeValue gaugeValue : gaugeValues) {
-            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
-            totalWeight += gaugeValue.getWeight();
-        }
-        // individual gauge value weights cannot be zero, and gaugeValues is non-empty
-        // (see above conditional), so totalWeight is guaranteed non-zero
-        checkState(totalWeight != 0);
-        return totalWeightedValue / totalWeight;
+        // individual gauge value weights cannot be zero, and there is at least one gauge value
+        // (see above conditional), so total weight is guaranteed non-zero
+        checkState(totals.weight() != 0);
+        return totals.value() / totals.weight();
     }
 
-    private List<ThroughputAggregate> getThroughputAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
+    private @Nullable Totals getThroughputTotals(final String agentRollupId,
+            final MetricCondition metricCondition, long startTime, long endTime)
             throws Exception {
         int rollupLevel =
                 rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
-        // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readThroughputAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+        MetricWindow<ThroughputAggregate> window = getWindow(agentRollupId, metricCondition,
+                new Callable<MetricWindow<ThroughputAggregate>>() {
+                    @Override
+                    public MetricWindow<ThroughputAggregate> call() {
+                        return new MetricWindow<ThroughputAggregate>(
+                                new RowReader<ThroughputAggregate>() {
+                                    @Override
+                                    public List<ThroughputAggregate> read(long from, long to,
+                                            int rollupLevel) throws Exception {
+                                        return aggregateRepository.readThroughputAggregates(
+                                                agentRollupId, getTransactionQuery(
+                                                        metricCondition, from, to, rollupLevel));
+                                    }
+                                    @Override
+                                    public long captureTime(ThroughputAggregate aggregate) {
+                                        return aggregate.captureTime();
+                                    }
+                                }, THROUGHPUT_TOTALER);
+                    }
+                });
+        return window.getTotals(startTime, endTime, rollupLevel);
     }
 
-    private List<OverviewAggregate> getOverviewAggregates(String agentRollupId,
-            String transactionType, @Nullable String transactionName, long startTime, long endTime)
-            throws Exception {
-        int rollupLevel =
-                rollupLevelService.getRollupLevelForView(startTime, endTime, DataKind.GENERAL);
-        // startTime + 1 in order to not include the aggregate at startTime
-        return aggregateRepository.readOverviewAggregates(agentRollupId,
-                ImmutableTransactionQuery.builder()
-                        .transactionType(transactionType)
-                        .transactionName(transactionName)
-                        .from(startTime + 1)
-                        .to(endTime)
-                        .rollupLevel(rollupLevel)
-                        .build());
+    // the unchecked cast is safe since each metric condition is always used with the same window
+    // type, see getMetricValue()
+    @SuppressWarnings("unchecked")
+    private <T> MetricWindow<T> getWindow(String agentRollupId, MetricCondition metricCondition,
+            Callable<MetricWindow<T>> windowLoader) throws Exception {
+        Cache<MetricCondition, MetricWindow<?>> agentRollupWindows = windows.get(agentRollupId,
+                new Callable<Cache<MetricCondition, MetricWindow<?>>>() {
+                    @Override
+                    public Cache<MetricCondition, MetricWindow<?>> call() {
+                        return CacheBuilder.newBuilder()
+                                .expireAfterAccess(1, HOURS)
+                                .build();
+                    }
+                });
+        return (MetricWindow<T>) agentRollupWindows.get(metricCondition, windowLoader);
+    }
+
+    private static ImmutableTransactionQuery getTransactionQuery(MetricCondition metricCondition,
+            long from, long to, int rollupLevel) {
+        // from + 1 in order to not include the aggregate at from
+        return ImmutableTransactionQuery.builder()
+                .transactionType(metricCondition.getTransactionType())
+                .transactionName(Strings.emptyToNull(metricCondition.getTransactionName()))
+                .from(from + 1)
+                .to(to)
+                .rollupLevel(rollupLevel)
+                .build();
     }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.immutables.value.Value;
+
+import org.glowroot.common.util.Styles;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// sliding window of the rows (aggregates or gauge values) that a single metric alert condition is
+// evaluated over, so that each alert check only needs to read the rows that have been stored since
+// the prior check, instead of re-reading the entire time period
+//
+// when the window has a row totaler, running totals are maintained as rows enter and leave the
+// window, so that each alert check also doesn't need to re-aggregate all of the rows in the window
+//
+// the repository itself serves as the checkpoint, the window is rebuilt from the repository after
+// restart (and periodically, see below)
+class MetricWindow<T> {
+
+    // rows with capture times that are this close to the end time of the prior check are re-read
+    // on the next check since they can still change, e.g. agent data that arrives late or rollups
+    // that have not completed yet
+    private static final long SETTLE_MILLIS =
+            Long.getLong("glowroot.alert.settleMillis", MINUTES.toMillis(2));
+
+    private final RowReader<T> rowReader;
+    private final @Nullable RowTotaler<T> rowTotaler;
+
+    private final NavigableMap<Long, T> rows = new TreeMap<Long, T>();
+
+    // running totals over the rows in the window (only maintained when there is a row totaler)
+    private double totalValue;
+    private long totalWeight;
+
+    private int rollupLevel = -1;
+    private long lastEndTime;
+    private long lastRebuildTime;
+    // rows with capture time less than or equal to this are not re-read
+    private long settledTime;
+
+    // oldest capture time of rows that have been stored since the prior check, see onRowsStored()
+    private final AtomicLong storedCaptureTime = new AtomicLong(Long.MAX_VALUE);
+
+    MetricWindow(RowReader<T> rowReader, @Nullable RowTotaler<T> rowTotaler) {
+        this.rowReader = rowReader;
+        this.rowTotaler = rowTotaler;
+    }
+
+    // returns the rows with capture time in the range (startTime, endTime]
+    synchronized List<T> getRows(long startTime, long endTime, int rollupLevel) throws Exception {
+        if (endTime < lastEndTime) {
+            // out of order check, don't disturb the window
+            return rowReader.read(startTime, endTime, rollupLevel);
+        }
+        update(startTime, endTime, rollupLevel);
+        return ImmutableList.copyOf(rows.values());
+    }
+
+    // returns the totals over the rows with capture time in the range (startTime, endTime], or
+    // null if there are no rows in the range
+    synchronized @Nullable Totals getTotals(long startTime, long endTime, int rollupLevel)
+            throws Exception {
+        RowTotaler<T> rowTotaler = checkNotNull(this.rowTotaler);
+        if (endTime < lastEndTime) {
+            // out of order check, don't disturb the window
+            List<T> rows = rowReader.read(startTime, endTime, rollupLevel);
+            if (rows.isEmpty()) {
+                return null;
+            }
+            double totalValue = 0;
+            long totalWeight = 0;
+            for (T row : rows) {
+                totalValue += rowTotaler.value(row);
+                totalWeight += rowTotaler.weight(row);
+            }
+            return ImmutableTotals.of(totalValue, totalWeight);
+        }
+        update(startTime, endTime, rollupLevel);
+        if (rows.isEmpty()) {
+            return null;
+        }
+        return ImmutableTotals.of(totalValue, totalWeight);
+    }
+
+    // called after rows have been stored with the given capture time (or later), so that if those
+    // rows have already settled in the window, they are re-read on the next check, e.g. agent data
+    // that was spooled while the central collector was unavailable, or delayed rollups
+    //
+    // this is lock free since the window lock is held during repository reads
+    void onRowsStored(long captureTime) {
+        while (true) {
+            long current = storedCaptureTime.get();
+            if (captureTime >= current || storedCaptureTime.compareAndSet(current, captureTime)) {
+                return;
+            }
+        }
+    }
+
+    private void update(long startTime, long endTime, int rollupLevel) throws Exception {
+        long storedCaptureTime = this.storedCaptureTime.getAndSet(Long.MAX_VALUE);
+        if (storedCaptureTime <= settledTime) {
+            // minus 1 since rows are re-read in the range (settledTime, endTime]
+            settledTime = storedCaptureTime - 1;
+        }
+        // the window is rebuilt once per time period, which bounds how long any row that arrives
+        // later than the settle period (without onRowsStored() being called) can be missing from
+        // the window, and also bounds any floating point drift in the running totals
+        if (rollupLevel != this.rollupLevel || startTime >= lastRebuildTime
+                || startTime >= settledTime) {
+            clearRows();
+            putRows(rowReader.read(startTime, endTime, rollupLevel));
+            this.rollupLevel = rollupLevel;
+            lastRebuildTime = endTime;
+        } else {
+            // evict rows that have slid out of the window, and discard rows that may have changed
+            // since they were read
+            removeRows(rows.headMap(startTime, true));
+            removeRows(rows.tailMap(settledTime, false));
+            putRows(rowReader.read(settledTime, endTime, rollupLevel));
+        }
+        lastEndTime = endTime;
+        settledTime = Math.max(settledTime, endTime - SETTLE_MILLIS);
+    }
+
+    private void putRows(List<T> newRows) {
+        for (T row : newRows) {
+            T replacedRow = rows.put(rowReader.captureTime(row), row);
+            if (rowTotaler != null) {
+                if (replacedRow != null) {
+                    totalValue -= rowTotaler.value(replacedRow);
+                    totalWeight -= rowTotaler.weight(replacedRow);
+                }
+                totalValue += rowTotaler.value(row);
+                totalWeight += rowTotaler.weight(row);
+            }
+        }
+    }
+
+    private void removeRows(NavigableMap<Long, T> removedRows) {
+        if (rowTotaler != null) {
+            for (T row : removedRows.values()) {
+                totalValue -= rowTotaler.value(row);
+                totalWeight -= rowTotaler.weight(row);
+            }
+        }
+        removedRows.clear();
+    }
+
+    private void clearRows() {
+        rows.clear();
+        totalValue = 0;
+        totalWeight = 0;
+    }
+
+    interface RowReader<T> {
+
+        // reads the rows with capture time in the range (from, to]
+        List<T> read(long from, long to, int rollupLevel) throws Exception;
+
+        long captureTime(T row);
+    }
+
+    // the contribution of a single row to the running totals
+    interface RowTotaler<T> {
+
+        double value(T row);
+
+        long weight(T row);
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface Totals {
+        double value();
+        long weight();
+    }
+}
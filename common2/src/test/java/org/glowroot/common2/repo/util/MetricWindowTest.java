@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common2.repo.util;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.common2.repo.util.MetricWindow.RowReader;
+import org.glowroot.common2.repo.util.MetricWindow.RowTotaler;
+import org.glowroot.common2.repo.util.MetricWindow.Totals;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricWindowTest {
+
+    private static final long MINUTE = 60000;
+
+    private NavigableMap<Long, String> repository;
+    private List<String> reads;
+    private RowReader<String> rowReader;
+    private RowTotaler<String> rowTotaler;
+
+    @Before
+    public void beforeEachTest() {
+        repository = new TreeMap<Long, String>();
+        for (long captureTime = MINUTE; captureTime <= 20 * MINUTE; captureTime += MINUTE) {
+            repository.put(captureTime, captureTime + ":a");
+        }
+        reads = Lists.newArrayList();
+        rowReader = new RowReader<String>() {
+            @Override
+            public List<String> read(long from, long to, int rollupLevel) {
+                reads.add(from + "-" + to + "@" + rollupLevel);
+                return ImmutableList.copyOf(repository.subMap(from, false, to, true).values());
+            }
+            @Override
+            public long captureTime(String row) {
+                return Long.parseLong(row.substring(0, row.indexOf(':')));
+            }
+        };
+        // value is the number of characters after the capture time, e.g. "60000:a" is 1
+        rowTotaler = new RowTotaler<String>() {
+            @Override
+            public double value(String row) {
+                return row.length() - row.indexOf(':') - 1;
+            }
+            @Override
+            public long weight(String row) {
+                return 1;
+            }
+        };
+    }
+
+    @Test
+    public void shouldOnlyReadNewAndUnsettledRows() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getRows(0, 10 * MINUTE, 0);
+        // revised after it was first read, but still within the settle period
+        repository.put(9 * MINUTE, 9 * MINUTE + ":b");
+
+        // when
+        List<String> rows = window.getRows(MINUTE, 11 * MINUTE, 0);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "480000-660000@0");
+        assertThat(rows).isEqualTo(
+                ImmutableList.copyOf(repository.subMap(MINUTE, false, 11 * MINUTE, true).values()));
+        assertThat(rows).contains(9 * MINUTE + ":b");
+    }
+
+    @Test
+    public void shouldRebuildOncePerTimePeriod() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getRows(0, 10 * MINUTE, 0);
+        window.getRows(5 * MINUTE, 15 * MINUTE, 0);
+
+        // when
+        List<String> rows = window.getRows(10 * MINUTE, 20 * MINUTE, 0);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "480000-900000@0", "600000-1200000@0");
+        assertThat(rows).hasSize(10);
+    }
+
+    @Test
+    public void shouldRebuildWhenRollupLevelChanges() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getRows(0, 10 * MINUTE, 0);
+
+        // when
+        window.getRows(MINUTE, 11 * MINUTE, 1);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "60000-660000@1");
+    }
+
+    @Test
+    public void shouldNotDisturbWindowForOutOfOrderCheck() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getRows(MINUTE, 11 * MINUTE, 0);
+
+        // when
+        List<String> rows = window.getRows(0, 10 * MINUTE, 0);
+        window.getRows(2 * MINUTE, 12 * MINUTE, 0);
+
+        // then
+        assertThat(rows).hasSize(10);
+        assertThat(reads).containsExactly("60000-660000@0", "0-600000@0", "540000-720000@0");
+    }
+
+    @Test
+    public void shouldMaintainRunningTotals() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getTotals(0, 10 * MINUTE, 0);
+        // revised after it was first read, but still within the settle period
+        repository.put(9 * MINUTE, 9 * MINUTE + ":bb");
+
+        // when
+        Totals totals = window.getTotals(MINUTE, 11 * MINUTE, 0);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "480000-660000@0");
+        assertThat(totals.value()).isEqualTo(11);
+        assertThat(totals.weight()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldReturnNullTotalsForEmptyWindow() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+
+        // when
+        Totals totals = window.getTotals(30 * MINUTE, 40 * MINUTE, 0);
+
+        // then
+        assertThat(totals).isNull();
+    }
+
+    @Test
+    public void shouldReReadSettledRowsWhenOlderRowsAreStored() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getTotals(0, 10 * MINUTE, 0);
+        window.getTotals(MINUTE, 11 * MINUTE, 0);
+        // e.g. spooled agent data or a delayed rollup
+        repository.put(5 * MINUTE, 5 * MINUTE + ":bbb");
+        window.onRowsStored(5 * MINUTE);
+        window.onRowsStored(7 * MINUTE);
+
+        // when
+        Totals totals = window.getTotals(2 * MINUTE, 12 * MINUTE, 0);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "480000-660000@0", "299999-720000@0");
+        assertThat(totals.value()).isEqualTo(12);
+        assertThat(totals.weight()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotReReadWhenOnlyUnsettledRowsAreStored() throws Exception {
+        // given
+        MetricWindow<String> window = new MetricWindow<String>(rowReader, rowTotaler);
+        window.getTotals(0, 10 * MINUTE, 0);
+        window.onRowsStored(9 * MINUTE);
+
+        // when
+        window.getTotals(MINUTE, 11 * MINUTE, 0);
+
+        // then
+        assertThat(reads).containsExactly("0-600000@0", "480000-660000@0");
+    }
+}
@@ -638,9 +638,12 @@ HandlebarsRendering = (function () {
         var $button = $(this);
         var spinner = Glowroot.showSpinner($button.parent().find('.gt-trace-detail-spinner'));
         var url = 'backend/trace/entries?agent-id=' + encodeURIComponent(agentId) + '&trace-id=' + traceId;
-        if (checkLiveTraces) {
-          url += '&check-live-traces=true';
+        if (!checkLiveTraces) {
+          // stored trace entries are retrieved and rendered one page at a time
+          loadEntryPages(url, $selector, spinner);
+          return;
         }
+        url += '&check-live-traces=true';
         $.get(url)
             .done(function (data) {
               if (data.overwritten) {
@@ -686,6 +689,10 @@ HandlebarsRendering = (function () {
   $(document).on('click', '.gt-trace-entry-toggle', function () {
     function toggleChildren(parentTraceEntry, collapse) {
       var i;
+      if (!parentTraceEntry.childEntries) {
+        // child entries are in the next page of trace entries, which has not been retrieved yet
+        return;
+      }
       for (i = 0; i < parentTraceEntry.childEntries.length; i++) {
         var entry = parentTraceEntry.childEntries[i];
         if (collapse) {
@@ -922,6 +929,95 @@ HandlebarsRendering = (function () {
     queryTextLength = Math.min(queryTextLength, 240);
   }
 
+  function loadEntryPages(url, $selector, spinner) {
+    var pageSize = 500;
+    var sharedQueryTexts;
+    // ancestors[depth] is the most recent entry at that depth
+    var ancestors = [];
+    flattenedTraceEntries = [];
+
+    function appendEntries(entries) {
+      var html = '';
+      var hiddenIndexes = [];
+      var i;
+      var j;
+      var entry;
+      var parent;
+      for (i = 0; i < entries.length; i++) {
+        entry = entries[i];
+        entry.collapsed = false;
+        entry.index = flattenedTraceEntries.length;
+        flattenedTraceEntries.push(entry);
+        ancestors.length = entry.depth;
+        if (entry.depth > 0 && ancestors[entry.depth - 1]) {
+          parent = ancestors[entry.depth - 1];
+          parent.childEntries = parent.childEntries || [];
+          parent.childEntries.push(entry);
+          for (j = 0; j < entry.depth; j++) {
+            if (ancestors[j].collapsed) {
+              // ancestor was collapsed before this page was retrieved
+              hiddenIndexes.push(entry.index);
+              break;
+            }
+          }
+        }
+        ancestors.push(entry);
+        html += JST['trace-entry'](entry);
+      }
+      $selector.append(html);
+      for (i = 0; i < hiddenIndexes.length; i++) {
+        $('#gtTraceEntry' + hiddenIndexes[i]).hide();
+      }
+    }
+
+    function loadPage(from) {
+      $.get(url + '&from=' + from + '&limit=' + pageSize)
+          .done(function (data) {
+            if (from === 0) {
+              if (data.overwritten) {
+                $selector.append('<div style="padding: 1em;">The trace entries have expired, see'
+                    + ' <a href="admin/storage#trace-capped-database-size">'
+                    + 'Configuration &gt; Storage &gt; Trace detail data</a></div>');
+                return;
+              }
+              if (data.expired) {
+                $selector.append('<div style="padding: 1em;">This trace has expired</div>');
+                return;
+              }
+              // first time opening
+              initTraceEntryMessageLength();
+              sharedQueryTexts = data.sharedQueryTexts;
+              // un-hide before building in case there are lots of trace entries, at least can see first few quickly
+              $selector.removeClass('hide');
+            }
+            mergeSharedQueryTextsIntoEntries(data.entries, sharedQueryTexts);
+            appendEntries(data.entries);
+            if (data.nextFrom !== undefined) {
+              setTimeout(function () {
+                loadPage(data.nextFrom);
+              }, 10);
+            }
+          })
+          .fail(function (jqXHR) {
+            if (jqXHR.status === 401) {
+              goToLogin(jqXHR.responseJSON.timedOut);
+            } else {
+              $selector.append(
+                  '<div class="gt-red" style="padding: 1em;">An error occurred retrieving the trace entries</div>');
+            }
+          })
+          .always(function () {
+            if (from === 0) {
+              spinner.stop();
+              $selector.data('gtLoading', false);
+              $selector.data('gtLoaded', true);
+            }
+          });
+    }
+
+    loadPage(0);
+  }
+
   function mergeSharedQueryTextsIntoEntries(entries, sharedQueryTexts) {
     $.each(entries, function (index, entry) {
       if (entry.queryMessage) {
@@ -964,6 +1060,7 @@ HandlebarsRendering = (function () {
         entry = entries[i];
         entry.collapsed = false;
         entry.depth = depth;
+        entry.hasChildEntries = !!entry.childEntries;
         flattenedTraceEntries.push(entry);
         entry.index = traceEntryIndex++;
         if (entry.childEntries) {
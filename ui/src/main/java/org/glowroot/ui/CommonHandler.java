@@ -176,6 +176,18 @@ public class CommonHandler {
         return response;
     }
 
+    // static resources are cheap to serve, so these are handled directly on the netty event loop
+    boolean isStaticResource(CommonRequest request) {
+        String path = request.getPath();
+        return !path.startsWith("/backend/") && getHttpService(path) == null
+                && getJsonServiceMapping(request, path) == null;
+    }
+
+    @Nullable
+    String getSessionId(CommonRequest request) throws Exception {
+        return httpSessionManager.getSessionId(request);
+    }
+
     private @Nullable CommonResponse handleIfLoginOrLogoutRequest(CommonRequest request)
             throws Exception {
         String path = request.getPath();
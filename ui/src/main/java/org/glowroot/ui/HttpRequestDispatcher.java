@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// runs non-static requests on a bounded worker pool so that slow requests do not block the netty
+// event loop (which is shared by many connections)
+class HttpRequestDispatcher implements HttpRequestDispatcherMXBean {
+
+    private static final int QUEUE_SIZE =
+            Integer.getInteger("glowroot.internal.ui.requestQueueSize", 100);
+
+    private static final long REQUEST_TIMEOUT_SECONDS =
+            Long.getLong("glowroot.internal.ui.requestTimeoutSeconds", 300);
+
+    private final ThreadPoolExecutor executor;
+    private final int maxRequestsPerUser;
+
+    @GuardedBy("activeRequestsPerUser")
+    private final Map<String, Integer> activeRequestsPerUser = Maps.newHashMap();
+
+    private final AtomicLong rejectedRequests = new AtomicLong();
+    private final AtomicLong timedOutRequests = new AtomicLong();
+
+    HttpRequestDispatcher(int numThreads) {
+        int threads = Integer.getInteger("glowroot.internal.ui.requestThreads", numThreads);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Http-Request-%d")
+                .build();
+        executor = new ThreadPoolExecutor(threads, threads, 60, SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        // relative to the number of worker threads so that a single user cannot occupy all of them
+        maxRequestsPerUser = Integer.getInteger("glowroot.internal.ui.maxRequestsPerUser",
+                Math.max(1, threads / 2));
+    }
+
+    // throws RejectedExecutionException if the queue is full
+    Future<?> submit(Runnable runnable) {
+        try {
+            return executor.submit(runnable);
+        } catch (RuntimeException e) {
+            rejectedRequests.getAndIncrement();
+            throw e;
+        }
+    }
+
+    long getRequestTimeoutMillis() {
+        return SECONDS.toMillis(REQUEST_TIMEOUT_SECONDS);
+    }
+
+    boolean tryAcquire(String user) {
+        synchronized (activeRequestsPerUser) {
+            Integer activeRequests = activeRequestsPerUser.get(user);
+            int count = activeRequests == null ? 0 : activeRequests;
+            if (count >= maxRequestsPerUser) {
+                rejectedRequests.getAndIncrement();
+                return false;
+            }
+            activeRequestsPerUser.put(user, count + 1);
+            return true;
+        }
+    }
+
+    void release(String user) {
+        synchronized (activeRequestsPerUser) {
+            Integer activeRequests = activeRequestsPerUser.get(user);
+            if (activeRequests == null || activeRequests <= 1) {
+                activeRequestsPerUser.remove(user);
+            } else {
+                activeRequestsPerUser.put(user, activeRequests - 1);
+            }
+        }
+    }
+
+    void onTimeout() {
+        timedOutRequests.getAndIncrement();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public int getActiveRequests() {
+        return executor.getActiveCount();
+    }
+
+    @Override
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    @Override
+    public long getTimedOutRequests() {
+        return timedOutRequests.get();
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+}
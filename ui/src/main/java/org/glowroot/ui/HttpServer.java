@@ -56,6 +56,7 @@ class HttpServer {
 
     private final ServerBootstrap bootstrap;
     private final HttpServerHandler handler;
+    private final HttpRequestDispatcher requestDispatcher;
     private final EventLoopGroup bossGroup;
     private final EventLoopGroup workerGroup;
 
@@ -86,7 +87,9 @@ class HttpServer {
         bossGroup = new NioEventLoopGroup(1, bossThreadFactory);
         workerGroup = new NioEventLoopGroup(numWorkerThreads, workerThreadFactory);
 
-        final HttpServerHandler handler = new HttpServerHandler(contextPathSupplier, commonHandler);
+        requestDispatcher = new HttpRequestDispatcher(numWorkerThreads);
+        final HttpServerHandler handler =
+                new HttpServerHandler(contextPathSupplier, commonHandler, requestDispatcher);
 
         if (https) {
             // upgrade from 0.9.26 to 0.9.27
@@ -213,10 +216,15 @@ class HttpServer {
     }
 
     // used by tests and by central ui
+    HttpRequestDispatcherMXBean getRequestDispatcher() {
+        return requestDispatcher;
+    }
+
     void close() throws Exception {
         logger.debug("close(): stopping http server");
         workerGroup.shutdownGracefully().get();
         bossGroup.shutdownGracefully().get();
+        requestDispatcher.close();
         logger.debug("close(): http server stopped");
     }
 
@@ -16,8 +16,16 @@
 package org.glowroot.ui;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
@@ -45,7 +53,12 @@ import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpUtil;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.stream.ChunkedInput;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,11 +67,15 @@ import org.glowroot.ui.CommonHandler.CommonRequest;
 import org.glowroot.ui.CommonHandler.CommonResponse;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
 import static io.netty.handler.codec.http.HttpResponseStatus.FOUND;
 import static io.netty.handler.codec.http.HttpResponseStatus.INTERNAL_SERVER_ERROR;
 import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpResponseStatus.TOO_MANY_REQUESTS;
 import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 @Sharable
 class HttpServerHandler extends ChannelInboundHandlerAdapter {
@@ -68,15 +85,22 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     private static final ThreadLocal</*@Nullable*/ Channel> currentChannel =
             new ThreadLocal</*@Nullable*/ Channel>();
 
+    private static final AttributeKey<PipelinedRequests> PIPELINED_REQUESTS =
+            AttributeKey.valueOf("glowroot.pipelinedRequests");
+
     private final ChannelGroup allChannels;
 
     private final Supplier<String> contextPathSupplier;
 
     private final CommonHandler commonHandler;
 
-    HttpServerHandler(Supplier<String> contextPathSupplier, CommonHandler commonHandler) {
+    private final HttpRequestDispatcher requestDispatcher;
+
+    HttpServerHandler(Supplier<String> contextPathSupplier, CommonHandler commonHandler,
+            HttpRequestDispatcher requestDispatcher) {
         this.contextPathSupplier = contextPathSupplier;
         this.commonHandler = commonHandler;
+        this.requestDispatcher = requestDispatcher;
         allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
     }
 
@@ -86,6 +110,18 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         super.channelActive(ctx);
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PipelinedRequests pipelinedRequests = ctx.channel().attr(PIPELINED_REQUESTS).get();
+        if (pipelinedRequests != null) {
+            FullHttpRequest request;
+            while ((request = pipelinedRequests.queued.poll()) != null) {
+                request.release();
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
     void closeAllButCurrent() throws Exception {
         Channel current = currentChannel.get();
         for (Channel channel : allChannels) {
@@ -103,6 +139,14 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         FullHttpRequest request = (FullHttpRequest) msg;
+        PipelinedRequests pipelinedRequests = getPipelinedRequests(ctx.channel());
+        if (pipelinedRequests.dispatched) {
+            // pausing auto read does not prevent requests that were already decoded from the same
+            // read, so these are queued until the response to the dispatched request has been
+            // sent, in order to keep the responses to pipelined requests in order
+            pipelinedRequests.queued.add(request);
+            return;
+        }
         if (request.decoderResult().isFailure()) {
             CommonResponse response = new CommonResponse(BAD_REQUEST, MediaType.PLAIN_TEXT_UTF_8,
                     Strings.nullToEmpty(request.decoderResult().cause().getMessage()));
@@ -113,6 +157,7 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         logger.debug("channelRead(): request.uri={}", uri);
         Channel channel = ctx.channel();
         currentChannel.set(channel);
+        boolean dispatched = false;
         try {
             String contextPath = contextPathSupplier.get();
             boolean keepAlive = HttpUtil.isKeepAlive(request);
@@ -124,12 +169,14 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             }
             QueryStringDecoder decoder = new QueryStringDecoder(stripContextPath(uri, contextPath));
             CommonRequest commonRequest = new NettyRequest(request, contextPath, decoder);
-            CommonResponse response = commonHandler.handle(commonRequest);
-            if (response.isCloseConnectionAfterPortChange()) {
-                response.setHeader("Connection", "close");
-                keepAlive = false;
+            if (commonHandler.isStaticResource(commonRequest)) {
+                CommonResponse response = commonHandler.handle(commonRequest);
+                sendResponse(ctx, request, response, keepAlive);
+            } else {
+                // the dispatched request takes over responsibility for releasing the request
+                new DispatchedRequest(ctx, request, commonRequest, keepAlive).dispatch();
+                dispatched = true;
             }
-            sendResponse(ctx, request, response, keepAlive);
         } catch (Exception e) {
             logger.error("error handling request {}: {}", uri, e.getMessage(), e);
             CommonResponse response =
@@ -137,10 +184,41 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
             sendResponse(ctx, request, response, false);
         } finally {
             currentChannel.remove();
-            request.release();
+            if (!dispatched) {
+                request.release();
+            }
         }
     }
 
+    // called on the netty event loop after the response to a dispatched request has been written
+    private void handleQueuedRequests(ChannelHandlerContext ctx) {
+        PipelinedRequests pipelinedRequests = getPipelinedRequests(ctx.channel());
+        pipelinedRequests.dispatched = false;
+        FullHttpRequest request;
+        while (!pipelinedRequests.dispatched
+                && (request = pipelinedRequests.queued.poll()) != null) {
+            try {
+                channelRead(ctx, request);
+            } catch (Exception e) {
+                exceptionCaught(ctx, e);
+            }
+        }
+        ctx.flush();
+        if (!pipelinedRequests.dispatched) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private static PipelinedRequests getPipelinedRequests(Channel channel) {
+        Attribute<PipelinedRequests> attr = channel.attr(PIPELINED_REQUESTS);
+        PipelinedRequests pipelinedRequests = attr.get();
+        if (pipelinedRequests == null) {
+            pipelinedRequests = new PipelinedRequests();
+            attr.set(pipelinedRequests);
+        }
+        return pipelinedRequests;
+    }
+
     private static void sendResponse(ChannelHandlerContext ctx, FullHttpRequest request,
             CommonResponse response, boolean keepAlive) throws IOException {
         Object content = response.getContent();
@@ -204,6 +282,178 @@ class HttpServerHandler extends ChannelInboundHandlerAdapter {
         return path.substring(contextPath.length());
     }
 
+    private class DispatchedRequest implements Runnable {
+
+        private final ChannelHandlerContext ctx;
+        private final FullHttpRequest request;
+        private final CommonRequest commonRequest;
+        private final boolean keepAlive;
+
+        private final AtomicBoolean responded = new AtomicBoolean();
+        private final AtomicBoolean permitReleased = new AtomicBoolean();
+
+        private @MonotonicNonNull String user;
+
+        private volatile @MonotonicNonNull Future<?> future;
+        private volatile @MonotonicNonNull ScheduledFuture<?> timeoutFuture;
+
+        private DispatchedRequest(ChannelHandlerContext ctx, FullHttpRequest request,
+                CommonRequest commonRequest, boolean keepAlive) {
+            this.ctx = ctx;
+            this.request = request;
+            this.commonRequest = commonRequest;
+            this.keepAlive = keepAlive;
+        }
+
+        // called on the netty event loop
+        private void dispatch() throws Exception {
+            String user = getUser();
+            // stop reading from the connection until the response has been sent, so that
+            // responses to pipelined requests cannot be sent out of order
+            ctx.channel().config().setAutoRead(false);
+            getPipelinedRequests(ctx.channel()).dispatched = true;
+            // the per user limit is applied before queueing, so that a single user cannot fill up
+            // the request queue
+            if (!requestDispatcher.tryAcquire(user)) {
+                respond(new CommonResponse(TOO_MANY_REQUESTS, MediaType.PLAIN_TEXT_UTF_8,
+                        "too many concurrent requests"), keepAlive);
+                return;
+            }
+            this.user = user;
+            // the worker thread holds its own reference to the request, since the request can time
+            // out and the response be sent while the worker thread is still reading the request
+            request.retain();
+            try {
+                future = requestDispatcher.submit(this);
+            } catch (RejectedExecutionException e) {
+                logger.warn("rejected request {}, the request queue is full", request.uri());
+                releasePermit();
+                request.release();
+                respond(new CommonResponse(SERVICE_UNAVAILABLE, MediaType.PLAIN_TEXT_UTF_8,
+                        "too many requests are queued"), false);
+                return;
+            }
+            timeoutFuture = ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout();
+                }
+            }, requestDispatcher.getRequestTimeoutMillis(), MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            currentChannel.set(ctx.channel());
+            try {
+                CommonResponse response = commonHandler.handle(commonRequest);
+                if (response.isCloseConnectionAfterPortChange()) {
+                    response.setHeader("Connection", "close");
+                    respond(response, false);
+                } else {
+                    respond(response, keepAlive);
+                }
+            } catch (Exception e) {
+                if (responded.get()) {
+                    // most likely caused by interrupt after the request timed out
+                    logger.debug(e.getMessage(), e);
+                } else {
+                    logger.error("error handling request {}: {}", request.uri(), e.getMessage(),
+                            e);
+                    respondWithStackTrace(e);
+                }
+            } finally {
+                releasePermit();
+                currentChannel.remove();
+                // release the worker thread's reference to the request
+                request.release();
+            }
+        }
+
+        // the permit is released exactly once, either when the worker thread finishes, or when
+        // the request is rejected or times out (in which case the worker thread may never run)
+        private void releasePermit() {
+            if (permitReleased.compareAndSet(false, true)) {
+                requestDispatcher.release(checkNotNull(user));
+            }
+        }
+
+        // requests without a session (e.g. anonymous access) are grouped by remote address
+        private String getUser() throws Exception {
+            String sessionId = commonHandler.getSessionId(commonRequest);
+            if (sessionId != null) {
+                return sessionId;
+            }
+            SocketAddress remoteAddress = ctx.channel().remoteAddress();
+            if (remoteAddress instanceof InetSocketAddress) {
+                InetAddress address = ((InetSocketAddress) remoteAddress).getAddress();
+                if (address != null) {
+                    return address.getHostAddress();
+                }
+            }
+            return "";
+        }
+
+        private void respondWithStackTrace(Exception e) {
+            CommonResponse response;
+            try {
+                response =
+                        CommonHandler.newHttpResponseWithStackTrace(e, INTERNAL_SERVER_ERROR, null);
+            } catch (IOException f) {
+                logger.error(f.getMessage(), f);
+                response = new CommonResponse(INTERNAL_SERVER_ERROR);
+            }
+            respond(response, false);
+        }
+
+        // called on the netty event loop
+        private void onTimeout() {
+            if (responded.get()) {
+                return;
+            }
+            requestDispatcher.onTimeout();
+            logger.warn("request timed out: {}", request.uri());
+            checkNotNull(future).cancel(true);
+            releasePermit();
+            respond(new CommonResponse(SERVICE_UNAVAILABLE, MediaType.PLAIN_TEXT_UTF_8,
+                    "request timed out"), false);
+        }
+
+        private void respond(final CommonResponse response, final boolean keepConnectionAlive) {
+            if (!responded.compareAndSet(false, true)) {
+                // request already timed out
+                ReferenceCountUtil.release(response.getContent());
+                return;
+            }
+            ScheduledFuture<?> timeoutFuture = this.timeoutFuture;
+            if (timeoutFuture != null) {
+                timeoutFuture.cancel(false);
+            }
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendResponse(ctx, request, response, keepConnectionAlive);
+                    } catch (Exception e) {
+                        logger.error(e.getMessage(), e);
+                        ctx.close();
+                    } finally {
+                        // only released after sending the response, since sending the response
+                        // reads the request's protocol version
+                        request.release();
+                    }
+                    handleQueuedRequests(ctx);
+                }
+            });
+        }
+    }
+
+    // only accessed from the channel's event loop
+    private static class PipelinedRequests {
+
+        private boolean dispatched;
+        private final Queue<FullHttpRequest> queued = new ArrayDeque<FullHttpRequest>();
+    }
+
     private static class NettyRequest implements CommonRequest {
 
         private final FullHttpRequest request;
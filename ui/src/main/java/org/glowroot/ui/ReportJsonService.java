@@ -22,6 +22,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -76,24 +82,30 @@ class ReportJsonService {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // max number of agent rollups evaluated concurrently for a single report
+    private static final int PARALLELISM =
+            Integer.getInteger("glowroot.internal.ui.reportParallelism", 4);
+
     private final ConfigRepository configRepository;
     private final AgentRollupRepository agentRollupRepository;
     private final TransactionTypeRepository transactionTypeRepository;
     private final AggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final RollupLevelService rollupLevelService;
+    private final ExecutorService executor;
 
     ReportJsonService(ConfigRepository configRepository,
             AgentRollupRepository agentRollupRepository,
             TransactionTypeRepository transactionTypeRepository,
             AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
-            RollupLevelService rollupLevelService) {
+            RollupLevelService rollupLevelService, ExecutorService executor) {
         this.configRepository = configRepository;
         this.agentRollupRepository = agentRollupRepository;
         this.transactionTypeRepository = transactionTypeRepository;
         this.aggregateRepository = aggregateRepository;
         this.gaugeValueRepository = gaugeValueRepository;
         this.rollupLevelService = rollupLevelService;
+        this.executor = executor;
     }
 
     @GET(path = "/backend/report/agent-rollups", permission = "")
@@ -206,12 +218,8 @@ class ReportJsonService {
             if (rollupLevel == 4) {
                 verifyFourHourAggregateTimeZone(timeZone);
             }
-            String gaugeName = metric.substring("gauge:".length());
-            dataSeriesList = Lists.newArrayList();
-            for (String agentRollupId : request.agentRollupIds()) {
-                dataSeriesList.add(getDataSeriesForGauge(agentRollupId, gaugeName, from, to,
-                        rollupLevel, rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis));
-            }
+            dataSeriesList = getGaugeReport(request, timeZone, from, to, rollupLevel,
+                    rollupCaptureTimeFn, gapMillis);
             if (rollupLevel == 0) {
                 dataPointIntervalMillis = configRepository.getGaugeCollectionIntervalMillis();
             } else {
@@ -251,10 +259,11 @@ class ReportJsonService {
                 .build();
     }
 
-    private List<DataSeries> getTransactionReport(ReportRequest request, TimeZone timeZone,
-            Date from, Date to, int rollupLevel, RollupCaptureTimeFn rollupCaptureTimeFn,
-            double gapMillis) throws Exception {
-        TransactionQuery query = ImmutableTransactionQuery.builder()
+    private List<DataSeries> getTransactionReport(final ReportRequest request,
+            final TimeZone timeZone, Date from, Date to, int rollupLevel,
+            final RollupCaptureTimeFn rollupCaptureTimeFn, final double gapMillis)
+            throws Exception {
+        final TransactionQuery query = ImmutableTransactionQuery.builder()
                 .transactionType(checkNotNull(request.transactionType()))
                 .transactionName(Strings.emptyToNull(checkNotNull(request.transactionName())))
                 // + 1 to make from non-inclusive, since data points are displayed as midpoint of
@@ -263,33 +272,97 @@ class ReportJsonService {
                 .to(to.getTime())
                 .rollupLevel(rollupLevel)
                 .build();
-        List<DataSeries> dataSeriesList = Lists.newArrayList();
-        String metric = request.metric();
-        for (String agentRollupId : request.agentRollupIds()) {
-            if (metric.equals("transaction:average")) {
-                dataSeriesList.add(getDataSeriesForAverage(agentRollupId, query,
-                        rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis));
-            } else if (metric.equals("transaction:x-percentile")) {
-                dataSeriesList.add(getDataSeriesForPercentile(agentRollupId, query,
-                        checkNotNull(request.percentile()), rollupCaptureTimeFn,
-                        request.rollup(), timeZone, gapMillis));
-            } else if (metric.equals("transaction:count")) {
-                dataSeriesList.add(getDataSeriesForThroughput(agentRollupId, query,
-                        rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis,
-                        new CountCalculator()));
-            } else if (metric.equals("error:rate")) {
-                dataSeriesList.add(getDataSeriesForThroughput(agentRollupId, query,
-                        rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis,
-                        new ErrorRateCalculator()));
-            } else if (metric.equals("error:count")) {
-                dataSeriesList.add(getDataSeriesForThroughput(agentRollupId, query,
-                        rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis,
-                        new ErrorCountCalculator()));
-            } else {
-                throw new IllegalStateException("Unexpected metric: " + metric);
+        final String metric = request.metric();
+        return getDataSeriesList(request.agentRollupIds(), new DataSeriesFn() {
+            @Override
+            public DataSeries apply(String agentRollupId) throws Exception {
+                if (metric.equals("transaction:average")) {
+                    return getDataSeriesForAverage(agentRollupId, query, rollupCaptureTimeFn,
+                            request.rollup(), timeZone, gapMillis);
+                } else if (metric.equals("transaction:x-percentile")) {
+                    return getDataSeriesForPercentile(agentRollupId, query,
+                            checkNotNull(request.percentile()), rollupCaptureTimeFn,
+                            request.rollup(), timeZone, gapMillis);
+                } else if (metric.equals("transaction:count")) {
+                    return getDataSeriesForThroughput(agentRollupId, query, rollupCaptureTimeFn,
+                            request.rollup(), timeZone, gapMillis, new CountCalculator());
+                } else if (metric.equals("error:rate")) {
+                    return getDataSeriesForThroughput(agentRollupId, query, rollupCaptureTimeFn,
+                            request.rollup(), timeZone, gapMillis, new ErrorRateCalculator());
+                } else if (metric.equals("error:count")) {
+                    return getDataSeriesForThroughput(agentRollupId, query, rollupCaptureTimeFn,
+                            request.rollup(), timeZone, gapMillis, new ErrorCountCalculator());
+                } else {
+                    throw new IllegalStateException("Unexpected metric: " + metric);
+                }
+            }
+        });
+    }
+
+    private List<DataSeries> getGaugeReport(final ReportRequest request, final TimeZone timeZone,
+            final Date from, final Date to, final int rollupLevel,
+            final RollupCaptureTimeFn rollupCaptureTimeFn, final double gapMillis)
+            throws Exception {
+        final String gaugeName = request.metric().substring("gauge:".length());
+        return getDataSeriesList(request.agentRollupIds(), new DataSeriesFn() {
+            @Override
+            public DataSeries apply(String agentRollupId) throws Exception {
+                return getDataSeriesForGauge(agentRollupId, gaugeName, from, to, rollupLevel,
+                        rollupCaptureTimeFn, request.rollup(), timeZone, gapMillis);
+            }
+        });
+    }
+
+    // evaluates the agent rollups concurrently (at most PARALLELISM at a time), and returns the
+    // data series in the same order as the agent rollup ids
+    @VisibleForTesting
+    List<DataSeries> getDataSeriesList(List<String> agentRollupIds, final DataSeriesFn fn)
+            throws Exception {
+        if (agentRollupIds.size() == 1) {
+            // no need to hand off to another thread
+            return Lists.newArrayList(fn.apply(agentRollupIds.get(0)));
+        }
+        CompletionService<IndexedDataSeries> completionService =
+                new ExecutorCompletionService<IndexedDataSeries>(executor);
+        List<Future<IndexedDataSeries>> futures = Lists.newArrayList();
+        DataSeries[] dataSeriesArray = new DataSeries[agentRollupIds.size()];
+        int nextIndex = 0;
+        try {
+            while (nextIndex < agentRollupIds.size() && nextIndex < PARALLELISM) {
+                futures.add(submit(completionService, fn, agentRollupIds, nextIndex++));
+            }
+            for (int i = 0; i < agentRollupIds.size(); i++) {
+                IndexedDataSeries indexedDataSeries = completionService.take().get();
+                dataSeriesArray[indexedDataSeries.index] = indexedDataSeries.dataSeries;
+                if (nextIndex < agentRollupIds.size()) {
+                    futures.add(submit(completionService, fn, agentRollupIds, nextIndex++));
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            // no-op for futures that have already completed
+            for (Future<IndexedDataSeries> future : futures) {
+                future.cancel(true);
             }
         }
-        return dataSeriesList;
+        return Lists.newArrayList(dataSeriesArray);
+    }
+
+    private static Future<IndexedDataSeries> submit(
+            CompletionService<IndexedDataSeries> completionService, final DataSeriesFn fn,
+            List<String> agentRollupIds, final int index) {
+        final String agentRollupId = agentRollupIds.get(index);
+        return completionService.submit(new Callable<IndexedDataSeries>() {
+            @Override
+            public IndexedDataSeries call() throws Exception {
+                return new IndexedDataSeries(index, fn.apply(agentRollupId));
+            }
+        });
     }
 
     private DataSeries getDataSeriesForAverage(String agentRollupId, TransactionQuery query,
@@ -655,6 +728,21 @@ class ReportJsonService {
         Double getOverall();
     }
 
+    interface DataSeriesFn {
+        DataSeries apply(String agentRollupId) throws Exception;
+    }
+
+    private static class IndexedDataSeries {
+
+        private final int index;
+        private final DataSeries dataSeries;
+
+        private IndexedDataSeries(int index, DataSeries dataSeries) {
+            this.index = index;
+            this.dataSeries = dataSeries;
+        }
+    }
+
     private static class CountCalculator implements ThroughputAggregateFn {
 
         private long transactionCount;
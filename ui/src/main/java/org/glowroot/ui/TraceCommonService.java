@@ -112,6 +112,50 @@ class TraceCommonService {
         return toJson(getStoredEntries(agentId, traceId, new RetryCountdown(checkLiveTraces)));
     }
 
+    // this is only used for stored traces, and returns a single page of entries flattened (with
+    // depth and hasChildEntries) instead of nested, so that the trace viewer can render large
+    // numbers of trace entries incrementally without reading and decoding them all up front
+    @Nullable
+    String getEntriesJson(String agentId, String traceId, int from, int limit) throws Exception {
+        // one extra entry is read in order to know if there are more entries, and if the last
+        // entry in the page has child entries
+        Entries entries = traceRepository.readEntries(agentId, traceId, from,
+                (int) Math.min(Integer.MAX_VALUE, (long) limit + 1));
+        if (entries == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        JsonGenerator jg = jsonFactory.createGenerator(CharStreams.asWriter(sb));
+        try {
+            jg.writeStartObject();
+            jg.writeArrayFieldStart("entries");
+            List<Trace.Entry> list = entries.entries();
+            for (int i = 0; i < Math.min(list.size(), limit); i++) {
+                Trace.Entry entry = list.get(i);
+                jg.writeStartObject();
+                jg.writeNumberField("depth", entry.getDepth());
+                writeJson(entry, jg);
+                if (i + 1 < list.size() && list.get(i + 1).getDepth() > entry.getDepth()) {
+                    jg.writeBooleanField("hasChildEntries", true);
+                }
+                jg.writeEndObject();
+            }
+            jg.writeEndArray();
+            if (from == 0) {
+                // shared query texts are only needed once, since they apply to all pages
+                jg.writeFieldName("sharedQueryTexts");
+                writeSharedQueryTexts(jg, entries.sharedQueryTexts());
+            }
+            if (list.size() > limit) {
+                jg.writeNumberField("nextFrom", from + limit);
+            }
+            jg.writeEndObject();
+        } finally {
+            jg.close();
+        }
+        return sb.toString();
+    }
+
     // TODO this comment is no longer valid?
     // overwritten entries will return {"overwritten":true}
     // expired (not found) trace will return {"expired":true}
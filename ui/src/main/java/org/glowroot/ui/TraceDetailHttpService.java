@@ -65,6 +65,18 @@ class TraceDetailHttpService implements HttpService {
         logger.debug("handleRequest(): traceComponent={}, agentId={}, traceId={},"
                 + " checkLiveTraces={}", traceComponent, agentId, traceId, checkLiveTraces);
 
+        // from and limit are only used for stored trace entries
+        List<String> fromParams = request.getParameters("from");
+        List<String> limitParams = request.getParameters("limit");
+        if (traceComponent.equals("entries") && !checkLiveTraces && !fromParams.isEmpty()
+                && !limitParams.isEmpty()) {
+            String entriesJson = traceCommonService.getEntriesJson(agentId, traceId,
+                    Integer.parseInt(fromParams.get(0)), Integer.parseInt(limitParams.get(0)));
+            if (entriesJson == null) {
+                return new CommonResponse(NOT_FOUND);
+            }
+            return new CommonResponse(OK, MediaType.JSON_UTF_8, ChunkSource.wrap(entriesJson));
+        }
         ChunkSource detail =
                 getDetailChunkSource(traceComponent, agentId, traceId, checkLiveTraces);
         if (detail == null) {
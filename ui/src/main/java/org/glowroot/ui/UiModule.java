@@ -18,6 +18,8 @@ package org.glowroot.ui;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Supplier;
@@ -25,6 +27,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.immutables.builder.Builder;
 import org.slf4j.Logger;
@@ -63,6 +66,9 @@ public class UiModule {
     // CommonHandler is non-null when using servlet container (applies to central only)
     private final @Nullable CommonHandler commonHandler;
 
+    // used to fan out multi-agent reports
+    private final ExecutorService reportExecutor;
+
     @Builder.Factory
     public static UiModule createUiModule(
             boolean central,
@@ -115,6 +121,13 @@ public class UiModule {
                 configRepository, transactionTypeRepository, traceAttributeNameRepository,
                 agentRollupRepository, liveAggregateRepository);
 
+        // per-report parallelism is bounded inside ReportJsonService, and idle threads are
+        // released after 60 seconds
+        ExecutorService reportExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Report-Worker-%d")
+                .build());
+
         List<Object> jsonServices = Lists.newArrayList();
         jsonServices.add(new LayoutJsonService(agentRollupRepository, layoutService));
         jsonServices.add(new TransactionJsonService(transactionCommonService, aggregateRepository,
@@ -132,7 +145,7 @@ public class UiModule {
                 agentRollupRepository, clock));
         jsonServices.add(new ReportJsonService(configRepository, agentRollupRepository,
                 transactionTypeRepository, aggregateRepository, gaugeValueRepository,
-                rollupLevelService));
+                rollupLevelService, reportExecutor));
         jsonServices.add(new ConfigJsonService(transactionTypeRepository, gaugeValueRepository,
                 configRepository));
         jsonServices
@@ -195,7 +208,7 @@ public class UiModule {
                 httpSessionManager, jsonServices, clock);
 
         if (servlet) {
-            return new UiModule(commonHandler);
+            return new UiModule(commonHandler, reportExecutor);
         } else {
             HttpServer httpServer;
             int initialPort;
@@ -224,17 +237,19 @@ public class UiModule {
             }
             adminJsonService.setHttpServer(httpServer);
             httpServer.bindEventually(initialPort);
-            return new UiModule(httpServer);
+            return new UiModule(httpServer, reportExecutor);
         }
     }
 
-    private UiModule(HttpServer httpServer) {
+    private UiModule(HttpServer httpServer, ExecutorService reportExecutor) {
         this.httpServer = httpServer;
+        this.reportExecutor = reportExecutor;
         commonHandler = null;
     }
 
-    private UiModule(CommonHandler commonHandler) {
+    private UiModule(CommonHandler commonHandler, ExecutorService reportExecutor) {
         this.commonHandler = commonHandler;
+        this.reportExecutor = reportExecutor;
         httpServer = null;
     }
 
@@ -243,10 +258,16 @@ public class UiModule {
         return checkNotNull(commonHandler);
     }
 
+    // null when using servlet container
+    public @Nullable HttpRequestDispatcherMXBean getHttpRequestDispatcher() {
+        return httpServer == null ? null : httpServer.getRequestDispatcher();
+    }
+
     // used by tests and by central ui
     public void close() throws Exception {
         if (httpServer != null) {
             httpServer.close();
         }
+        reportExecutor.shutdownNow();
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpRequestDispatcherTest {
+
+    private HttpRequestDispatcher requestDispatcher;
+
+    @Before
+    public void beforeEachTest() {
+        requestDispatcher = new HttpRequestDispatcher(20);
+    }
+
+    @After
+    public void afterEachTest() {
+        requestDispatcher.close();
+    }
+
+    @Test
+    public void shouldLimitConcurrentRequestsPerUser() {
+        // when
+        for (int i = 0; i < 10; i++) {
+            assertThat(requestDispatcher.tryAcquire("one")).isTrue();
+        }
+
+        // then
+        assertThat(requestDispatcher.tryAcquire("one")).isFalse();
+        assertThat(requestDispatcher.tryAcquire("two")).isTrue();
+        assertThat(requestDispatcher.getRejectedRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldLimitConcurrentRequestsPerUserRelativeToThreads() {
+        // given
+        HttpRequestDispatcher requestDispatcher = new HttpRequestDispatcher(2);
+
+        // when
+        assertThat(requestDispatcher.tryAcquire("one")).isTrue();
+
+        // then
+        assertThat(requestDispatcher.tryAcquire("one")).isFalse();
+        requestDispatcher.close();
+    }
+
+    @Test
+    public void shouldAllowRequestAfterRelease() {
+        // given
+        for (int i = 0; i < 10; i++) {
+            requestDispatcher.tryAcquire("one");
+        }
+
+        // when
+        requestDispatcher.release("one");
+
+        // then
+        assertThat(requestDispatcher.tryAcquire("one")).isTrue();
+        assertThat(requestDispatcher.tryAcquire("one")).isFalse();
+    }
+}
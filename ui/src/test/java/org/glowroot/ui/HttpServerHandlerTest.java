@@ -15,9 +15,43 @@
  */
 package org.glowroot.ui;
 
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.base.Suppliers;
+import com.google.common.net.MediaType;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.ui.CommonHandler.CommonRequest;
+import org.glowroot.ui.CommonHandler.CommonResponse;
 
+import static com.google.common.base.Charsets.UTF_8;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class HttpServerHandlerTest {
 
@@ -30,4 +64,81 @@ public class HttpServerHandlerTest {
         assertThat(HttpServerHandler.stripContextPath("/one/two", "/one")).isEqualTo("/two");
         assertThat(HttpServerHandler.stripContextPath("/one/two/", "/one")).isEqualTo("/two/");
     }
+
+    @Test
+    public void shouldRespondToPipelinedRequestsInOrder() throws Exception {
+        // given
+        CommonHandler commonHandler = mock(CommonHandler.class);
+        when(commonHandler.isStaticResource(any(CommonRequest.class)))
+                .thenAnswer(new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation) {
+                        return ((CommonRequest) invocation.getArgument(0)).getPath()
+                                .equals("/static");
+                    }
+                });
+        when(commonHandler.handle(any(CommonRequest.class)))
+                .thenAnswer(new Answer<CommonResponse>() {
+                    @Override
+                    public CommonResponse answer(InvocationOnMock invocation) throws Exception {
+                        String path = ((CommonRequest) invocation.getArgument(0)).getPath();
+                        if (!path.equals("/static")) {
+                            // slow dispatched request
+                            Thread.sleep(200);
+                        }
+                        return new CommonResponse(OK, MediaType.PLAIN_TEXT_UTF_8, path);
+                    }
+                });
+        HttpRequestDispatcher requestDispatcher = new HttpRequestDispatcher(1);
+        final HttpServerHandler handler = new HttpServerHandler(Suppliers.ofInstance("/"),
+                commonHandler, requestDispatcher);
+        final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+        EventLoopGroup group = new DefaultEventLoopGroup(2);
+        LocalAddress address = new LocalAddress("HttpServerHandlerTest");
+        try {
+            new ServerBootstrap()
+                    .group(group)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new HttpServerCodec());
+                            ch.pipeline().addLast(new HttpObjectAggregator(1048576));
+                            ch.pipeline().addLast(handler);
+                        }
+                    })
+                    .bind(address).sync();
+            Channel client = new Bootstrap()
+                    .group(group)
+                    .channel(LocalChannel.class)
+                    .handler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            ch.pipeline().addLast(new HttpClientCodec());
+                            ch.pipeline().addLast(new HttpObjectAggregator(1048576));
+                            ch.pipeline().addLast(
+                                    new SimpleChannelInboundHandler<FullHttpResponse>() {
+                                        @Override
+                                        protected void channelRead0(ChannelHandlerContext ctx,
+                                                FullHttpResponse response) {
+                                            responses.add(response.content().toString(UTF_8));
+                                        }
+                                    });
+                        }
+                    })
+                    .connect(address).sync().channel();
+
+            // when
+            client.write(new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.GET, "/dispatched"));
+            client.writeAndFlush(new DefaultFullHttpRequest(HTTP_1_1, HttpMethod.GET, "/static"));
+
+            // then
+            assertThat(responses.poll(10, SECONDS)).isEqualTo("/dispatched");
+            assertThat(responses.poll(10, SECONDS)).isEqualTo("/static");
+            client.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 0, SECONDS).sync();
+            requestDispatcher.close();
+        }
+    }
 }
@@ -18,16 +18,30 @@ package org.glowroot.ui;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
+import org.glowroot.common2.repo.AgentRollupRepository;
+import org.glowroot.common2.repo.AggregateRepository;
+import org.glowroot.common2.repo.ConfigRepository;
+import org.glowroot.common2.repo.GaugeValueRepository;
+import org.glowroot.common2.repo.TransactionTypeRepository;
+import org.glowroot.common2.repo.util.RollupLevelService;
+import org.glowroot.ui.ReportJsonService.DataSeriesFn;
 import org.glowroot.ui.ReportJsonService.ROLLUP;
 import org.glowroot.ui.ReportJsonService.RollupCaptureTimeFn;
 
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class ReportJsonServiceTest {
 
@@ -63,6 +77,47 @@ public class ReportJsonServiceTest {
                 HOURS.toMillis(1) * 24 * 31 + HOURS.toMillis(1));
     }
 
+    @Test
+    public void shouldReturnDataSeriesInAgentRollupOrder() throws Exception {
+        // given
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ReportJsonService reportJsonService = new ReportJsonService(
+                mock(ConfigRepository.class), mock(AgentRollupRepository.class),
+                mock(TransactionTypeRepository.class), mock(AggregateRepository.class),
+                mock(GaugeValueRepository.class), mock(RollupLevelService.class), executor);
+        List<String> agentRollupIds = ImmutableList.of("a", "b", "c", "d", "e", "f", "g");
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        // when
+        List<DataSeries> dataSeriesList;
+        try {
+            dataSeriesList =
+                    reportJsonService.getDataSeriesList(agentRollupIds, new DataSeriesFn() {
+                        @Override
+                        public DataSeries apply(String agentRollupId) throws Exception {
+                            int current = concurrent.incrementAndGet();
+                            synchronized (maxConcurrent) {
+                                maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+                            }
+                            // complete in reverse order
+                            MILLISECONDS.sleep(10 * ('g' - agentRollupId.charAt(0)));
+                            concurrent.decrementAndGet();
+                            return new DataSeries(agentRollupId);
+                        }
+                    });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // then
+        assertThat(dataSeriesList).hasSize(7);
+        for (int i = 0; i < agentRollupIds.size(); i++) {
+            assertThat(dataSeriesList.get(i).getName()).isEqualTo(agentRollupIds.get(i));
+        }
+        assertThat(maxConcurrent.get()).isLessThanOrEqualTo(4);
+    }
+
     private static void testRollupCaptureTime(String tz) throws ParseException {
         testRollupCaptureTime(ROLLUP.HOURLY, tz, "20161127T0159", "20161127T0200");
         testRollupCaptureTime(ROLLUP.HOURLY, tz, "20161127T0200", "20161127T0200");